@@ -11,7 +11,9 @@ package com.cybozu.vmbkp.config;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
 import java.io.File;
 import java.io.IOException;
 import java.util.TreeMap;
@@ -40,12 +42,23 @@ public class ConfigLikeGit
 {
     private GroupMap map_;
 
+    /**
+     * Path, contents, modification time, and length
+     * of the file written last by write(String).
+     * Used to skip writing the same contents again.
+     */
+    private String lastPath_;
+    private String lastContents_;
+    private long lastModified_;
+    private long lastLength_;
+
     /**
      * Constructor
      */
     public ConfigLikeGit()
     {
         map_ = new GroupMap();
+        forgetLastWrite();
     }
 
     /**
@@ -55,6 +68,7 @@ public class ConfigLikeGit
     public void clear()
     {
         map_.clear();
+        forgetLastWrite();
     }
 
     /**
@@ -199,16 +213,81 @@ public class ConfigLikeGit
 
     /**
      * Serializer for file.
+     *
+     * The contents are written to a temporary file, forced to the disk,
+     * and renamed to the file, so the file is never torn by a crash.
+     * Writing is skipped if the contents are the same as the last write
+     * and the file has not been modified since then.
      */
     public void write(String fileName)
         throws IOException
     {
         /* overwrite the file path. */
         this.setPath(fileName);
-        
-        BufferedWriter out = (new BufferedWriter (new FileWriter(fileName)));
+
+        StringWriter sw = new StringWriter();
+        BufferedWriter out = new BufferedWriter(sw);
         write(out);
         out.close();
+        String contents = sw.toString();
+
+        File file = new File(fileName);
+        if (fileName.equals(lastPath_) &&
+            contents.equals(lastContents_) &&
+            file.lastModified() == lastModified_ &&
+            file.length() == lastLength_) {
+            return;
+        }
+
+        forgetLastWrite();
+        writeAtomically(file, contents);
+        lastPath_ = fileName;
+        lastContents_ = contents;
+        lastModified_ = file.lastModified();
+        lastLength_ = file.length();
+    }
+
+    /**
+     * Write contents to a temporary file then rename it to the file.
+     * The temporary file has a unique name in the same directory
+     * not to be truncated by another writer.
+     */
+    private static void writeAtomically(File file, String contents)
+        throws IOException
+    {
+        File tmpFile = File.createTempFile
+            ("." + file.getName() + ".", ".tmp",
+             file.getAbsoluteFile().getParentFile());
+        FileOutputStream fos = new FileOutputStream(tmpFile);
+        try {
+            BufferedWriter out =
+                new BufferedWriter(new OutputStreamWriter(fos));
+            out.write(contents);
+            out.flush();
+            fos.getChannel().force(true);
+        } finally {
+            fos.close();
+        }
+
+        if (tmpFile.renameTo(file) == false) {
+            /* Some platforms can not rename to an existing file. */
+            if (file.delete() == false || tmpFile.renameTo(file) == false) {
+                tmpFile.delete();
+                throw new IOException
+                    ("rename " + tmpFile.getPath() + " failed.");
+            }
+        }
+    }
+
+    /**
+     * Forget the last write then the next write(String) will not be skipped.
+     */
+    private void forgetLastWrite()
+    {
+        lastPath_ = null;
+        lastContents_ = null;
+        lastModified_ = 0L;
+        lastLength_ = -1L;
     }
 
     /**
@@ -12,6 +12,7 @@ import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.LinkedList;
 import java.io.IOException;
@@ -22,14 +23,33 @@ import java.io.IOException;
 public class EntryMap
 {
     /* Map of key -> entry (key,val). */
-    private TreeMap<String, Entry> map_;
+    private Map<String, Entry> map_;
+
+    /* True if map_ is hashed with interned keys. */
+    private boolean isHashed_;
 
     /**
      * Constructor.
      */
     public EntryMap()
     {
-        map_ = new TreeMap<String, Entry>();
+        this(false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param isHashed True to use a hashed map in insertion order,
+     *        false to use a sorted map.
+     */
+    public EntryMap(boolean isHashed)
+    {
+        isHashed_ = isHashed;
+        if (isHashed_) {
+            map_ = new LinkedHashMap<String, Entry>();
+        } else {
+            map_ = new TreeMap<String, Entry>();
+        }
     }
 
     /**
@@ -37,7 +57,15 @@ public class EntryMap
      */
     public EntryMap(List<Entry> entryList)
     {
-        map_ = new TreeMap<String, Entry>();
+        this(entryList, false);
+    }
+
+    /**
+     * Constructor with entry list.
+     */
+    public EntryMap(List<Entry> entryList, boolean isHashed)
+    {
+        this(isHashed);
         for (Entry entry : entryList) {
             put(entry);
         }
@@ -56,6 +84,9 @@ public class EntryMap
      */
     public void put(Entry entry)
     {
+        if (isHashed_ && map_.containsKey(entry.getKey()) == false) {
+            entry = new Entry(entry.getKey().intern(), entry.getVal());
+        }
         map_.put(entry.getKey(), entry);
     }
 
@@ -64,6 +95,9 @@ public class EntryMap
      */
     public void put(String key, String val)
     {
+        if (isHashed_ && map_.containsKey(key) == false) {
+            key = key.intern();
+        }
         map_.put(key, new Entry(key, val));
     }
 
@@ -20,6 +20,9 @@ public class FormatBool
      */
     public static boolean isBool(String val)
     {
+        /* Fast path for values written by toString(). */
+        if (val.equals("true") || val.equals("false")) { return true; }
+
         Parser p = new Parser(val);
 
         if (p.parseBOOL() != null && p.isEnd()) {
@@ -37,6 +40,9 @@ public class FormatBool
      */
     public static boolean toBool(String val)
     {
+        if (val.equals("true"))  { return true; }
+        if (val.equals("false")) { return false; }
+
         Parser p = new Parser(val);
         
         String t = p.parseTRUE();
@@ -9,8 +9,12 @@
 package com.cybozu.vmbkp.config;
 
 import java.util.logging.Logger;
+import java.util.logging.Level;
 
 import java.util.ArrayList;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.Collections;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.StringWriter;
@@ -28,6 +32,13 @@ public class Group
     private static final Logger logger_
         = Logger.getLogger(Group.class.getName());
 
+    /**
+     * First group names already checked as basic strings.
+     * Profile accessors create groups with the same names many times.
+     */
+    private static final Set<String> checkedG0Set_ =
+        Collections.synchronizedSet(new HashSet<String>());
+
     /**
      * First group name.
      * This must be a basic string (Type.BSTRING).
@@ -47,7 +58,7 @@ public class Group
         grp0_ = g0;
         grp1_ = g1;
 
-        assert FormatString.getType(grp0_) == Type.BSTRING;
+        assert isBasicString(grp0_);
     }
 
     /**
@@ -58,7 +69,19 @@ public class Group
         grp0_ = g0;
         grp1_ = null;
 
-        assert FormatString.getType(grp0_) == Type.BSTRING;
+        assert isBasicString(grp0_);
+    }
+
+    /**
+     * Check the first group name is a basic string.
+     * The result is cached because this is called in every constructor.
+     */
+    private static boolean isBasicString(String g0)
+    {
+        if (checkedG0Set_.contains(g0)) { return true; }
+        if (FormatString.getType(g0) != Type.BSTRING) { return false; }
+        checkedG0Set_.add(g0);
+        return true;
     }
 
     /**
@@ -105,15 +128,35 @@ public class Group
     {
         int ret = compareToImpl(obj);
 
-        logger_.fine(String.format
-                     ("compare: %s %s %s\n",
-                      this.toString(),
-                      compToString(ret),
-                      ((Group) obj).toString()));
-
+        if (logger_.isLoggable(Level.FINE)) {
+            logger_.fine(String.format
+                         ("compare: %s %s %s\n",
+                          this.toString(),
+                          compToString(ret),
+                          ((Group) obj).toString()));
+        }
         return ret;
     }
 
+    /**
+     * Equality consistent with compareTo().
+     */
+    public boolean equals(Object obj)
+    {
+        if (this == obj) { return true; }
+        if (obj instanceof Group == false) { return false; }
+        return compareToImpl(obj) == 0;
+    }
+
+    /**
+     * Hash code consistent with equals().
+     */
+    public int hashCode()
+    {
+        int h = (grp0_ == null ? 0 : grp0_.hashCode());
+        return h * 31 + (grp1_ == null ? 0 : grp1_.hashCode());
+    }
+
     /**
      * Convert result of compareTo() to String.
      *
@@ -12,19 +12,44 @@ import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.LinkedList;
 import java.io.IOException;
 
 /**
  * @brief Manage a set of entryMaps.
+ *
+ * Two implementations are available.
+ * Sorted (default): groups and entries are kept in TreeMap
+ * and written in sorted order.
+ * Hashed: groups and entries are kept in LinkedHashMap with interned keys
+ * and written in insertion order, that is the order in the read file.
+ * The file format is the same.
  */
 public class GroupMap
 {
+    /**
+     * System property to select the implementation.
+     * Set "hash" to use hashed maps.
+     */
+    public static final String MAP_TYPE_PROPERTY = "vmbkp.config.map";
+
+    /**
+     * True if newly created maps are hashed.
+     */
+    private static boolean isHashed_ =
+        "hash".equals(System.getProperty(MAP_TYPE_PROPERTY));
+
     /**
      * Map of a Group and its contents as an EntryMap.
      */
-    private TreeMap<Group, EntryMap> map_;
+    private Map<Group, EntryMap> map_;
+
+    /**
+     * True if this map is hashed.
+     */
+    private boolean isHashedMap_;
 
     /**************************************************************************
      * Public methods.
@@ -36,7 +61,30 @@ public class GroupMap
      */
     public GroupMap()
     {
-        map_ = new TreeMap<Group, EntryMap>();
+        isHashedMap_ = isHashed_;
+        if (isHashedMap_) {
+            map_ = new LinkedHashMap<Group, EntryMap>();
+        } else {
+            map_ = new TreeMap<Group, EntryMap>();
+        }
+    }
+
+    /**
+     * Select the implementation of maps created later.
+     *
+     * @param isHashed True for hashed maps, false for sorted maps.
+     */
+    public static void setHashed(boolean isHashed)
+    {
+        isHashed_ = isHashed;
+    }
+
+    /**
+     * @return True if maps created later are hashed.
+     */
+    public static boolean isHashed()
+    {
+        return isHashed_;
     }
 
     /**
@@ -55,8 +103,8 @@ public class GroupMap
     {
         EntryMap entryMap = getEntryMap(group);
         if (entryMap == null) {
-            entryMap = new EntryMap();
-            putEntryMap(group, entryMap);
+            entryMap = new EntryMap(isHashedMap_);
+            putEntryMap(internGroup(group), entryMap);
         }
         entryMap.put(key, val);
     }
@@ -149,14 +197,32 @@ public class GroupMap
      */
     public void replaceAllEntries(Group group, List<Entry> entryList)
     {
-        EntryMap entryMap = new EntryMap(entryList);
-        putEntryMap(group, entryMap);
+        EntryMap entryMap = new EntryMap(entryList, isHashedMap_);
+        putEntryMap(internGroup(group), entryMap);
     }
 
     /********************************************************************************
      * Private set operations.
      ********************************************************************************/
 
+    /**
+     * Make a group to be stored as a key.
+     * Hashed maps keep interned strings because the same names
+     * appear in many groups (ex. [disk "0"], [generation "0"]).
+     */
+    private Group internGroup(Group group)
+    {
+        if (isHashedMap_ == false) { return group; }
+
+        String g0 = group.getG0().intern();
+        String g1 = group.getG1();
+        if (g1 == null) {
+            return new Group(g0);
+        } else {
+            return new Group(g0, g1.intern());
+        }
+    }
+
     /**
      * Get the entry map of the group.
      */
@@ -9,6 +9,7 @@
 package com.cybozu.vmbkp.config;
 
 import java.util.logging.Logger;
+import java.util.logging.Level;
 import java.util.LinkedList;
 
 /**
@@ -109,9 +110,13 @@ public class Parser
         if (!parse('[')) { back(); return null; }
         parseSPACES();
         if ((g0 = parseBSTRING()) == null) { back(); return null; }
-        logger_.fine(String.format("***%s***", g0)); /* debug */
+        if (logger_.isLoggable(Level.FINE)) {
+            logger_.fine(String.format("***%s***", g0)); /* debug */
+        }
         parseSPACES();
-        logger_.fine(String.format("idx:%d\n", idx_)); /* debug */
+        if (logger_.isLoggable(Level.FINE)) {
+            logger_.fine(String.format("idx:%d\n", idx_)); /* debug */
+        }
         if ((g1 = parseQSTRING()) != null) { parseSPACES(); }
         if (!parse(']')) { back(); return null; }
         parseSPACES();
@@ -213,7 +218,9 @@ public class Parser
      */
     private char next()
     {
-        logger_.fine(String.format("idx: %d\n", idx_)); //debug
+        if (logger_.isLoggable(Level.FINE)) {
+            logger_.fine(String.format("idx: %d\n", idx_)); //debug
+        }
         char ret = line_.charAt(idx_);
         idx_ ++;
         return ret;
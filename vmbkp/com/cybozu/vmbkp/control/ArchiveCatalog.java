@@ -0,0 +1,378 @@
+/**
+ * @file
+ * @brief ArchiveCatalog, CatalogRecord
+ *
+ * Copyright (C) 2009,2010 Cybozu Inc., all rights reserved.
+ *
+ * @author Takashi HOSHINO <hoshino@labs.cybozu.co.jp>
+ */
+package com.cybozu.vmbkp.control;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+
+import com.cybozu.vmbkp.config.FormatInt;
+
+import com.cybozu.vmbkp.profile.ConfigGlobal;
+import com.cybozu.vmbkp.profile.ProfileVm;
+
+import com.cybozu.vmbkp.util.LockFileManager;
+import com.cybozu.vmbkp.util.LockFileManagerN;
+import com.cybozu.vmbkp.util.Utility;
+
+/**
+ * @brief Summary of the archive of a virtual machine.
+ */
+class CatalogRecord
+{
+    public String moref;
+    public String name;
+    public int latestGenId;
+    public long latestTimestampMs;
+    public int latestSucceededGenId;
+    public long latestSucceededTimestampMs;
+    public int numGenerations;
+    public int numSucceededGenerations;
+    public long archiveSizeInBytes;
+
+    /**
+     * Number of fields of a record line including the type.
+     */
+    public static final int NUM_FIELDS = 11;
+
+    /**
+     * Make a record from vm profile and its directory.
+     */
+    public CatalogRecord(ProfileVm profVm)
+    {
+        moref = profVm.getMoref();
+        name = profVm.getName();
+        if (name == null) { name = ""; }
+
+        latestGenId = profVm.getLatestGenerationId();
+        latestTimestampMs = getTimestampMs(profVm, latestGenId);
+        latestSucceededGenId = profVm.getLatestSucceededGenerationId();
+        latestSucceededTimestampMs =
+            getTimestampMs(profVm, latestSucceededGenId);
+
+        numGenerations = profVm.getNumOfGeneration();
+        numSucceededGenerations = profVm.getNumOfSucceededGeneration();
+
+        File dir = profVm.getDirectoryFile();
+        archiveSizeInBytes =
+            (dir == null ? -1L : Utility.getDirectorySizeRecursive(dir));
+    }
+
+    /**
+     * Parse a record line.
+     *
+     * @param fields Tab-separated fields. fields[0] must be "put".
+     */
+    public CatalogRecord(String[] fields)
+        throws Exception
+    {
+        if (fields.length != NUM_FIELDS ||
+            fields[NUM_FIELDS - 1].equals(".") == false) {
+            throw new Exception("invalid record.");
+        }
+        moref = fields[1];
+        name = fields[2];
+        latestGenId = FormatInt.toInt(fields[3]);
+        latestTimestampMs = FormatInt.toLong(fields[4]);
+        latestSucceededGenId = FormatInt.toInt(fields[5]);
+        latestSucceededTimestampMs = FormatInt.toLong(fields[6]);
+        numGenerations = FormatInt.toInt(fields[7]);
+        numSucceededGenerations = FormatInt.toInt(fields[8]);
+        archiveSizeInBytes = FormatInt.toLong(fields[9]);
+    }
+
+    /**
+     * @return timestamp_ms of the generation, or -1.
+     */
+    private static long getTimestampMs(ProfileVm profVm, int genId)
+    {
+        if (genId < 0) { return -1L; }
+        String ts = profVm.getTimestampMs(genId);
+        if (ts == null || FormatInt.canBeLong(ts) == false) { return -1L; }
+        return FormatInt.toLong(ts);
+    }
+
+    /**
+     * Convert to a record line without line separator.
+     * The last field "." is a terminator to detect broken lines.
+     */
+    public String toLine()
+    {
+        return String.format
+            ("put\t%s\t%s\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t.",
+             moref, name.replaceAll("[\t\n\r]", " "),
+             latestGenId, latestTimestampMs,
+             latestSucceededGenId, latestSucceededTimestampMs,
+             numGenerations, numSucceededGenerations,
+             archiveSizeInBytes);
+    }
+
+    /**
+     * Get status string. Same format as ProfileVm.getStatusString().
+     */
+    public String toStatusString(boolean isAvailable)
+    {
+        StringBuffer sb = new StringBuffer();
+
+        if (isAvailable) {
+            sb.append(String.format("[%s][%s]", moref, name));
+        } else {
+            sb.append(String.format("[(%s)][%s]", moref, name));
+        }
+
+        if (latestSucceededGenId < 0) {
+            sb.append(" ----------NO_ARCHIVE ----------");
+        } else {
+            sb.append(String.format
+                      ("[Latest %d \"%s\"]", latestSucceededGenId,
+                       (new Date(latestSucceededTimestampMs)).toString()));
+            sb.append(String.format
+                      ("[Clean %d/%d]",
+                       numSucceededGenerations, numGenerations));
+        }
+        return sb.toString();
+    }
+}
+
+/**
+ * @brief Catalog of archives of all virtual machines.
+ *
+ * The catalog is an append-only log file under the root directory.
+ * Each line is "put" with a whole CatalogRecord or "del" with a moref,
+ * and the last line of a moref wins.
+ * The log is compacted when it has many overwritten records.
+ *
+ * The catalog is a summary for list/status commands.
+ * vmbkp_vm.profile of each virtual machine is always the master.
+ */
+public class ArchiveCatalog
+{
+    public static final String FILE_NAME = "vmbkp_catalog.log";
+
+    /**
+     * Logger.
+     */
+    private static final Logger logger_ =
+        Logger.getLogger(ArchiveCatalog.class.getName());
+
+    /**
+     * Lock timeout to append/compact the log.
+     */
+    private static final int LOCK_TIMEOUT_SEC = 10;
+
+    /**
+     * Path of the log file.
+     */
+    private String path_;
+
+    /**
+     * Index of moref -> latest record.
+     */
+    private TreeMap<String, CatalogRecord> map_;
+
+    /**
+     * Number of lines in the log file.
+     */
+    private int numLines_;
+
+    /**
+     * Constructor. This does not load the log file.
+     */
+    public ArchiveCatalog(ConfigGlobal cfgGlobal)
+    {
+        assert cfgGlobal != null;
+        path_ = cfgGlobal.getRootDirectory() + "/" + FILE_NAME;
+        map_ = new TreeMap<String, CatalogRecord>();
+        numLines_ = 0;
+    }
+
+    /**
+     * Load the log file and build the index.
+     * The log is compacted if required.
+     *
+     * @return True in success, or false.
+     */
+    public boolean load()
+    {
+        try {
+            loadDetail();
+        } catch (IOException e) {
+            logger_.warning(Utility.toString(e));
+            map_.clear();
+            return false;
+        }
+        if (numLines_ > map_.size() * 2 + 64) {
+            compact();
+        }
+        return true;
+    }
+
+    /**
+     * Load the log file.
+     */
+    private void loadDetail()
+        throws IOException
+    {
+        map_.clear();
+        numLines_ = 0;
+        if ((new File(path_)).isFile() == false) { return; }
+
+        BufferedReader in = new BufferedReader
+            (new InputStreamReader(new FileInputStream(path_), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                numLines_ ++;
+                applyLine(line);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Apply a record line to the index.
+     * Broken lines (ex. written by crashed process) are ignored.
+     */
+    private void applyLine(String line)
+    {
+        String[] fields = line.split("\t");
+        if (fields.length == 2 && fields[0].equals("del")) {
+            map_.remove(fields[1]);
+        } else if (fields.length > 0 && fields[0].equals("put")) {
+            try {
+                CatalogRecord rec = new CatalogRecord(fields);
+                map_.put(rec.moref, rec);
+            } catch (Exception e) {
+                logger_.warning("broken catalog record: " + line);
+            }
+        } else {
+            logger_.warning("broken catalog record: " + line);
+        }
+    }
+
+    /**
+     * Get the record of the virtual machine.
+     *
+     * @return null if not found.
+     */
+    public CatalogRecord get(String moref)
+    {
+        return map_.get(moref);
+    }
+
+    /**
+     * Put the record of the vm profile.
+     *
+     * @return True in success, or false.
+     */
+    public boolean put(ProfileVm profVm)
+    {
+        CatalogRecord rec = new CatalogRecord(profVm);
+        if (append(rec.toLine()) == false) { return false; }
+        map_.put(rec.moref, rec);
+        return true;
+    }
+
+    /**
+     * Delete the record of the virtual machine.
+     *
+     * @return True in success, or false.
+     */
+    public boolean remove(String moref)
+    {
+        if (append("del\t" + moref) == false) { return false; }
+        map_.remove(moref);
+        return true;
+    }
+
+    /**
+     * Append a line to the log file.
+     */
+    private boolean append(String line)
+    {
+        LockFileManager lockM = new LockFileManagerN(path_ + ".lock");
+        try {
+            lockM.lock(LOCK_TIMEOUT_SEC);
+        } catch (Exception e) {
+            logger_.warning("lock catalog failed: " + line);
+            return false;
+        }
+
+        boolean ret = false;
+        try {
+            FileOutputStream out = new FileOutputStream(path_, true);
+            try {
+                out.write((line + "\n").getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+            numLines_ ++;
+            ret = true;
+        } catch (IOException e) {
+            logger_.warning(Utility.toString(e));
+        } finally {
+            lockM.unlock();
+        }
+        return ret;
+    }
+
+    /**
+     * Rewrite the log file with the latest records only.
+     */
+    private void compact()
+    {
+        LockFileManager lockM = new LockFileManagerN(path_ + ".lock");
+        try {
+            lockM.lock(LOCK_TIMEOUT_SEC);
+        } catch (Exception e) {
+            logger_.info("skip compaction of catalog.");
+            return;
+        }
+
+        try {
+            /* Other processes may have appended records. */
+            loadDetail();
+
+            String tmpPath = path_ + ".tmp";
+            BufferedWriter out = new BufferedWriter
+                (new OutputStreamWriter
+                 (new FileOutputStream(tmpPath), "UTF-8"));
+            try {
+                for (Map.Entry<String, CatalogRecord> ent : map_.entrySet()) {
+                    out.write(ent.getValue().toLine());
+                    out.write('\n');
+                }
+            } finally {
+                out.close();
+            }
+            if ((new File(tmpPath)).renameTo(new File(path_)) == false) {
+                throw new IOException("rename " + tmpPath + " failed.");
+            }
+            logger_.info
+                (String.format("catalog compacted %d -> %d records.",
+                               numLines_, map_.size()));
+            numLines_ = map_.size();
+
+        } catch (IOException e) {
+            logger_.warning(Utility.toString(e));
+        } finally {
+            lockM.unlock();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * @file
+ * @brief MergeInfo
+ *
+ * Copyright (C) 2009,2010 Cybozu Inc., all rights reserved.
+ *
+ * @author Takashi HOSHINO <hoshino@labs.cybozu.co.jp>
+ */
+package com.cybozu.vmbkp.control;
+
+import com.cybozu.vmbkp.config.FormatInt;
+
+/**
+ * @brief Information for merge command.
+ */
+public class MergeInfo
+{
+    /**
+     * Older generation id, or -1 to use the previous one of generationId.
+     */
+    public int fromGenerationId;
+
+    /**
+     * Newer generation id, or -1 to use the latest one.
+     */
+    public int generationId;
+
+    /**
+     * Directory to write merged bitmaps, or null.
+     */
+    public String bmpOutDir;
+
+    /**
+     * Constructor.
+     */
+    public MergeInfo(VmbkpCommandLine cmdLine)
+        throws Exception
+    {
+        fromGenerationId = getIntOption(cmdLine, "--from");
+        generationId = getIntOption(cmdLine, "--generation");
+
+        bmpOutDir = null;
+        if (cmdLine.isOption("--bmpout")) {
+            bmpOutDir = cmdLine.getOptionArgs("--bmpout").get(0);
+        }
+    }
+
+    /**
+     * @return -1 if not specified or invalid.
+     */
+    private static int getIntOption(VmbkpCommandLine cmdLine, String optStr)
+    {
+        if (cmdLine.isOption(optStr)) {
+            String str = cmdLine.getOptionArgs(optStr).get(0);
+            if (str != null && FormatInt.canBeInt(str)) {
+                return FormatInt.toInt(str);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * toString()
+     */
+    public String toString()
+    {
+        StringBuffer sb = new StringBuffer();
+        sb.append("MergeInfo: ");
+
+        sb.append(String.format("[from %d]", fromGenerationId));
+        sb.append(String.format("[generation %d]", generationId));
+        sb.append(String.format("[bmpOutDir %s]", bmpOutDir));
+        
+        return sb.toString();
+    }
+    
+}
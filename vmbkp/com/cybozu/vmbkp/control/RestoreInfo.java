@@ -23,6 +23,7 @@ public class RestoreInfo
     public boolean isNoVmdk;
     public boolean isDryRun;
     public boolean isSan;
+    public boolean isRollback;
     
     /**
      * Constructor.
@@ -40,10 +41,15 @@ public class RestoreInfo
         isNoVmdk = false;
         isDryRun = false;
         isSan = false;
+        isRollback = false;
 
+        if (cmdLine.isOption("--rollback")) {
+            isRollback = true;
+        }
+        
         if (cmdLine.isOption("--name")) {
             newVmName = cmdLine.getOptionArgs("--name").get(0);
-        } else {
+        } else if (isRollback == false) {
             String errStr = "Please specify --name option for new VM name.";
             System.out.println(errStr);
             throw new Exception(errStr);
@@ -104,6 +110,8 @@ public class RestoreInfo
         sb.append(String.format("[isNoVmdk %s]", Boolean.toString(isNoVmdk)));
         sb.append(String.format("[isDryRun %s]", Boolean.toString(isDryRun)));
         sb.append(String.format("[isSan %s]", Boolean.toString(isSan)));
+        sb.append(String.format("[isRollback %s]",
+                                Boolean.toString(isRollback)));
         
         return sb.toString();
     }
@@ -0,0 +1,249 @@
+/**
+ * @file
+ * @brief TestVmbkpSimulator
+ *
+ * Copyright (C) 2009,2010 Cybozu Inc., all rights reserved.
+ *
+ * @author Takashi HOSHINO <hoshino@labs.cybozu.co.jp>
+ */
+package com.cybozu.vmbkp.control;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.FileReader;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.List;
+
+import com.cybozu.vmbkp.soap.VsphereSimulator;
+import com.cybozu.vmbkp.profile.ConfigGlobal;
+import com.cybozu.vmbkp.profile.ProfileVm;
+import com.cybozu.vmbkp.profile.ProfileGeneration;
+import com.cybozu.vmbkp.util.BackupMode;
+import com.cybozu.vmbkp.util.VmdkBitmap;
+import com.cybozu.vmbkp.util.ChangedExtents;
+
+/**
+ * @brief Benchmark of vmbkp commands with a simulated vSphere environment.
+ *
+ * Usage: TestVmbkpSimulator [numVms] [numDisks] [latencyMs] [taskLatencyMs]
+ *
+ * vmdkbkp is replaced by a shell script creating empty archive files,
+ * so that this measures the orchestration cost only.
+ */
+public class TestVmbkpSimulator
+{
+    private static final String STUB =
+        "#!/bin/sh\n" +
+        "if [ \"$1\" = lock ]; then\n" +
+        "  echo >> \"`dirname $0`/lock.count\"\n" +
+        "  while echo LOCKED && read line && echo UNLOCKED &&\n" +
+        "        read line && [ \"$line\" = LOCK ]; do :; done; exit 0\n" +
+        "fi\n" +
+        "while [ $# -gt 0 ]; do\n" +
+        "  case \"$1\" in\n" +
+        "  --dumpout|--digestout|--rdiffout) : > \"$2\"; shift;;\n" +
+        "  --bmpin) cp \"$2\" \"$2.in\"; shift;;\n" +
+        "  esac\n" +
+        "  shift\n" +
+        "done\n" +
+        "echo PROGRESS 64 128 67108864 0\n" +
+        "echo PROGRESS 128 128 134217728 1048576\n";
+
+    public static void main(String[] args)
+        throws Exception
+    {
+        int numVms = (args.length > 0 ? Integer.parseInt(args[0]) : 20);
+        int numDisks = (args.length > 1 ? Integer.parseInt(args[1]) : 2);
+        long latencyMs = (args.length > 2 ? Long.parseLong(args[2]) : 0);
+        long taskLatencyMs = (args.length > 3 ? Long.parseLong(args[3]) : 0);
+
+        File dir = new File("testvmbkpsimulator");
+        File root = new File(dir, "archive");
+        root.mkdirs();
+        File stub = new File(dir, "vmdkbkp");
+        write(stub, STUB);
+        stub.setExecutable(true);
+        File conf = new File(dir, ConfigGlobal.FILE_NAME);
+        write(conf,
+              "[global]\n" +
+              "\tkeep_generations = 3\n" +
+              "\tsnapshot_batch_size = 8\n" +
+              "\tmax_vmdkbkp_per_archive = 2\n" +
+              "\tprofile_all_vm_file_name = vmbkp_all_vm.profile\n" +
+              "\troot_directory = " + root.getAbsolutePath() + "\n" +
+              "\tvmdkbkp_path = " + stub.getAbsolutePath() + "\n" +
+              "[vsphere]\n" +
+              "\tserver = simulator\n" +
+              "\turl = https://simulator/sdk\n" +
+              "\tusername = user\n" +
+              "\tpassword = pass\n");
+
+        VsphereSimulator sim = new VsphereSimulator(1);
+        sim.setLatencyMs(latencyMs);
+        sim.setTaskLatencyMs(taskLatencyMs);
+        sim.addVms(numVms, numDisks, 1024L * 1024L); /* 1GB */
+        VmbkpMain.setSimulator(sim);
+
+        String c = conf.getPath();
+        run(sim, "update", numVms, new String[] {"--conf", c, "update"});
+        run(sim, "full backup", numVms, new String[]
+            {"--conf", c, "backup", "--mode", "full", "all"});
+        run(sim, "incr backup", numVms, new String[]
+            {"--conf", c, "backup", "--mode", "incr", "all"});
+        int numBackedUp = 0;
+        for (File vmDir : root.listFiles()) {
+            if (! (new File(vmDir, ProfileVm.FILE_NAME)).isFile()) {
+                continue; /* lock directories */
+            }
+            ProfileVm profVm = new ProfileVm
+                (vmDir.getPath() + "/" + ProfileVm.FILE_NAME);
+            assert profVm.getNumOfSucceededGeneration() == 2;
+
+            /* Throughput parsed from the progress of the full dump. */
+            int genId = profVm.getGenerationIdList().get(0);
+            ProfileGeneration profGen = new ProfileGeneration
+                (vmDir.getPath() + "/" + genId + "/" +
+                 ProfileGeneration.FILE_NAME);
+            assert profGen.getDumpReadBytesPerSec(0) > 0;
+            assert (new File(vmDir.getPath() + "/" + genId + "/0.progress"))
+                .exists() == false;
+            numBackedUp ++;
+        }
+        assert numBackedUp == numVms;
+
+        /* One lock process for each command with snapshots. */
+        assert countLines(new File(dir, "lock.count")) == 2;
+
+        /* Dumps are admitted through the queue of the archive. */
+        File queue = new File(root, VmdkBkpSupervisor.ARCHIVE_QUEUE_NAME);
+        assert (new File(queue, "seq")).isFile();
+        for (String name : queue.list()) {
+            assert name.endsWith(".W") == false && name.endsWith(".R") == false;
+        }
+        run(sim, "restore", 1, new String[]
+            {"--conf", c, "restore", "--name", "restored",
+             "--host", VsphereSimulator.HOST_NAME,
+             "--datastore", VsphereSimulator.DATASTORE_NAME, "sim-vm-1"});
+        assert sim.getNumFailures() == 0;
+
+        /* Changed blocks of the two incr generations of a vm. */
+        run(sim, "incr backup", 1, new String[]
+            {"--conf", c, "backup", "--mode", "incr", "sim-vm-1"});
+        ProfileVm profVm = null;
+        for (File vmDir : root.listFiles()) {
+            if (! (new File(vmDir, ProfileVm.FILE_NAME)).isFile()) {
+                continue; /* lock directories */
+            }
+            profVm = new ProfileVm(vmDir.getPath() + "/" + ProfileVm.FILE_NAME);
+            if (profVm.getName().equals("sim-vm-1")) { break; }
+        }
+        List<Integer> genIdList = profVm.getGenerationIdList();
+        assert genIdList.size() == 3;
+        File bmpOut = new File(dir, "merged");
+        bmpOut.mkdirs();
+        run(sim, "merge", 1, new String[]
+            {"--conf", c, "merge", "--from", genIdList.get(0).toString(),
+             "--bmpout", bmpOut.getPath(), "sim-vm-1"});
+        for (int i = 0; i < numDisks; i ++) {
+            VmdkBitmap expected = null;
+            for (int j = 1; j < 3; j ++) {
+                ProfileGeneration profGen = new ProfileGeneration
+                    (profVm.getDefaultProfileGenerationPath
+                     (genIdList.get(j).intValue()));
+                VmdkBitmap bmp = ChangedExtents.readFrom
+                    (profGen.getExtentsPath(i)).toBitmap
+                    (profGen.getCapacity(i), profGen.getBlockSize(i));
+                if (expected == null) {
+                    expected = bmp;
+                } else {
+                    expected.or(bmp);
+                }
+            }
+            VmdkBitmap merged = VmdkBitmap.map
+                (bmpOut.getPath() + "/" + i + ".bmp",
+                 expected.getBlockSize(), false);
+            assert merged.toString().equals(expected.toString());
+        }
+
+        /* Rollback writes a superset of the merged blocks. */
+        run(sim, "rollback", 1, new String[]
+            {"--conf", c, "restore", "--rollback",
+             "--generation", genIdList.get(0).toString(), "sim-vm-1"});
+        assert sim.getNumFailures() == 0;
+        ProfileGeneration gen0 = new ProfileGeneration
+            (profVm.getDefaultProfileGenerationPath
+             (genIdList.get(0).intValue()));
+        for (int i = 0; i < numDisks; i ++) {
+            String bmpPath = String.format
+                ("%s/vmdkbkp.rollback.%s.%d.%d.bmp", gen0.getDirectory(),
+                 profVm.getMoref(), gen0.getGenerationId(), i);
+            assert (new File(bmpPath)).exists() == false;
+            VmdkBitmap merged = VmdkBitmap.map
+                (bmpOut.getPath() + "/" + i + ".bmp",
+                 gen0.getBlockSize(i), true);
+            VmdkBitmap written = VmdkBitmap.map
+                (bmpPath + ".in", gen0.getBlockSize(i), false);
+            merged.andNot(written);
+            assert merged.cardinality() == 0;
+        }
+
+        /* Backup after rollback is not incremental. */
+        ProfileGeneration gen2 = new ProfileGeneration
+            (profVm.getDefaultProfileGenerationPath
+             (genIdList.get(2).intValue()));
+        assert gen2.getBackupMode(0) == BackupMode.INCR;
+        run(sim, "incr backup", 1, new String[]
+            {"--conf", c, "backup", "--mode", "incr", "sim-vm-1"});
+        profVm.reload();
+        ProfileGeneration gen3 = new ProfileGeneration
+            (profVm.getDefaultProfileGenerationPath
+             (profVm.getLatestSucceededGenerationId()));
+        assert gen3.getGenerationId() > gen2.getGenerationId();
+        for (int i = 0; i < numDisks; i ++) {
+            assert gen3.getBackupMode(i) != BackupMode.INCR;
+        }
+
+        sim.shutdown();
+        System.out.println("TestVmbkpSimulator passed.");
+    }
+
+    /**
+     * Run a command and print the time per vm.
+     */
+    private static void run(VsphereSimulator sim, String label,
+                            int numVms, String[] args)
+    {
+        long calls = sim.getNumCalls();
+        long begin = System.currentTimeMillis();
+        VmbkpMain.main(args);
+        long ms = System.currentTimeMillis() - begin;
+        System.out.printf("%s: %d vms %d ms (%.1f ms/vm) %d calls\n",
+                          label, numVms, ms, (double) ms / numVms,
+                          sim.getNumCalls() - calls);
+    }
+
+    private static int countLines(File file)
+        throws IOException
+    {
+        BufferedReader br = new BufferedReader(new FileReader(file));
+        try {
+            int ret = 0;
+            while (br.readLine() != null) { ret ++; }
+            return ret;
+        } finally {
+            br.close();
+        }
+    }
+
+    private static void write(File file, String str)
+        throws IOException
+    {
+        FileWriter fw = new FileWriter(file);
+        try {
+            fw.write(str);
+        } finally {
+            fw.close();
+        }
+    }
+}
@@ -25,12 +25,16 @@ import com.cybozu.vmbkp.config.FormatInt;
 import com.cybozu.vmbkp.profile.ConfigGlobal;
 import com.cybozu.vmbkp.profile.ProfileVm;
 import com.cybozu.vmbkp.profile.ProfileGeneration;
+import com.cybozu.vmbkp.profile.ProfileChain;
 
 import com.cybozu.vmbkp.util.VmInfo;
 import com.cybozu.vmbkp.util.SnapInfo;
 import com.cybozu.vmbkp.util.VmdkInfo;
 import com.cybozu.vmbkp.util.AdapterType;
 import com.cybozu.vmbkp.util.Utility;
+import com.cybozu.vmbkp.util.VmdkBitmap;
+import com.cybozu.vmbkp.util.CompressedBitmap;
+import com.cybozu.vmbkp.util.ChangedExtents;
 
 import com.cybozu.vmbkp.soap.SnapshotManager;
 import com.cybozu.vmbkp.soap.VirtualControllerManager;
@@ -92,11 +96,22 @@ public class VmArchiveManager
      */
     private ProfileGeneration currGen_;
 
+    /**
+     * Index of restore chains.
+     */
+    private ProfileChain profChain_;
+
     /**
      * List of lazy tasks.
      */
     private LinkedList<LazyTask> lazyTaskList_;
-    
+
+    /**
+     * True while the profile is locked in shared mode.
+     * Profiles are not written then.
+     */
+    private boolean isSharedLock_ = false;
+
     /**
      * Constructor.
      */
@@ -112,6 +127,8 @@ public class VmArchiveManager
         /* Initialize profile. */
         profVm_ = initializeProfileVm(vmInfo);
         assert profVm_ != null;
+        profChain_ = loadProfileChain();
+        assert profChain_ != null;
 
         lazyTaskList_ = new LinkedList<LazyTask>();
     }
@@ -266,6 +283,117 @@ public class VmArchiveManager
         return profVm;
     }
 
+    /**
+     * Get path of the restore chain index.
+     */
+    private String getProfileChainPath()
+    {
+        return profVm_.getDirectory() + "/" + ProfileChain.FILE_NAME;
+    }
+
+    /**
+     * Load the restore chain index.
+     * The index is dropped if it is broken or out of date,
+     * then chains will be resolved by scanning generations again.
+     *
+     * @return Loaded or empty index. Never returns null.
+     */
+    private ProfileChain loadProfileChain()
+    {
+        String path = getProfileChainPath();
+        ProfileChain profChain = null;
+        if ((new File(path)).isFile()) {
+            try {
+                profChain = new ProfileChain(path);
+            } catch (Exception e) {
+                logger_.warning(Utility.toString(e));
+            }
+        }
+        if (profChain == null) {
+            return new ProfileChain();
+        }
+
+        int latestGenId = profVm_.getLatestSucceededGenerationId();
+        if (profChain.getLatestGenerationId() != latestGenId) {
+            logger_.info
+                (String.format
+                 ("chain index is out of date (%d != %d).",
+                  profChain.getLatestGenerationId(), latestGenId));
+            profChain.clear();
+        }
+        return profChain;
+    }
+
+    /**
+     * Save the restore chain index.
+     * Failure is not fatal because the index is just a cache.
+     * Under a shared lock the index is kept only in memory.
+     */
+    private void saveProfileChain()
+    {
+        if (isSharedLock_) { return; }
+        profChain_.setLatestGenerationId
+            (profVm_.getLatestSucceededGenerationId());
+        try {
+            profChain_.write(getProfileChainPath());
+        } catch (Exception e) {
+            logger_.warning(Utility.toString(e));
+        }
+    }
+
+    /**
+     * Convert a file name in the generation to
+     * a path relative to the vm directory.
+     */
+    private String toChainPath(int genId, String filename)
+    {
+        return Integer.toString(genId) + "/" + filename;
+    }
+
+    /**
+     * Convert a path relative to the vm directory to a full path.
+     */
+    private String fromChainPath(String chainPath)
+    {
+        return profVm_.getDirectory() + "/" + chainPath;
+    }
+
+    /**
+     * Register the chains of succeeded disks of the current generation.
+     * All of them have their own dump and digest.
+     */
+    private void registerCurrentChains()
+    {
+        ProfileGeneration currGen = currGen_;
+        int genId = currGen.getGenerationId();
+
+        for (Integer diskIdI : currGen.getDiskIdList()) {
+            int diskId = diskIdI.intValue();
+            if (currGen.isVmdkdumpSucceeded(diskId) == false) { continue; }
+
+            String uuid = currGen.getUuid(diskId);
+            List<String> list = new LinkedList<String>();
+            list.add(toChainPath(genId, currGen.getDumpOutFileName(diskId)));
+            profChain_.setFileList(genId, uuid, list);
+            profChain_.setDigest
+                (genId, uuid,
+                 toChainPath(genId, currGen.getDigestOutFileName(diskId)));
+        }
+    }
+
+    /**
+     * Put the summary of the archive to the catalog.
+     * Failure is not fatal because the catalog is just a summary.
+     */
+    public void updateCatalog()
+    {
+        assert profVm_ != null;
+        ArchiveCatalog catalog = new ArchiveCatalog(cfgGlobal_);
+        if (catalog.put(profVm_) == false) {
+            logger_.warning("update catalog failed.");
+        }
+    }
+
     /**
      * Get global config.
      */
@@ -281,11 +409,13 @@ public class VmArchiveManager
         throws Exception
     {
         assert profVm_ != null;
+        assert isSharedLock_ == false;
         profVm_.write();
         
         if (currGen_ != null) {
             currGen_.write();
         }
+        saveProfileChain();
     }
 
     /**
@@ -302,17 +432,29 @@ public class VmArchiveManager
         assert currGen_ != null;
 
         /* Execute lasy tasks. */
+        boolean isLazyTaskExecuted = false;
         if (isSucceeded) {
             isSucceeded = execLazyTasks();
+            isLazyTaskExecuted = true;
         }
         
         currGen_.setIsSucceeded(isSucceeded);
         profVm_.setGenerationInfo(currGen_);
 
+        /* Update the restore chain index.
+           Archive files may be partially moved/deleted in failure,
+           then we drop all chains. */
+        if (isSucceeded) {
+            registerCurrentChains();
+        } else if (isLazyTaskExecuted) {
+            profChain_.clear();
+        }
+
         /* Delete old generations. */
         if (isSucceeded) {
             this.deleteOldGenerations();
         }
+        updateCatalog();
 
         return isSucceeded;
     }
@@ -386,12 +528,13 @@ public class VmArchiveManager
      * @param vmdkInfoList The list of vmdk information.
      * @param calendar timestamp.
      * @param isGzip True when you use gziped archives.
+     * @param blockSize Block size of changed block tracking and archives.
      * @return Initialized ProfileGeneration object in success.
      */
     public ProfileGeneration prepareNewGeneration
         (VmInfo vmInfo, SnapInfo snapInfo,
          List<VmdkInfo> vmdkInfoList, Calendar calendar,
-         boolean isGzip)
+         boolean isGzip, int blockSize)
         throws Exception
     {
         ProfileVm profVm = profVm_;
@@ -421,7 +564,7 @@ public class VmArchiveManager
         profGen.initializeGeneration
             (newGenId, currGenId,
              vmInfo, snapInfo,
-             vmdkInfoList, calendar, isGzip);
+             vmdkInfoList, calendar, isGzip, blockSize);
         profGen.write(profGenFn);
 
         return profGen;
@@ -511,6 +654,7 @@ public class VmArchiveManager
             assert genIdI != null;
             deleteGeneration(genIdI.intValue());
         }
+        updateCatalog();
     }
 
     /**
@@ -544,6 +688,7 @@ public class VmArchiveManager
 
         /* delete information of the generation from profile vm */
         profVm.delGenerationInfo(genId);
+        profChain_.delGeneration(genId);
 
         return ret;
     }
@@ -718,6 +863,17 @@ public class VmArchiveManager
             logger_.info("capacity is invalid or different.");
             return false;
         }
+
+        /* Block size check.
+           Archives of a chain must have the same block size. */
+        int blockSize = currGen_.getBlockSize(diskId);
+        int prevBlockSize = prevGen.getBlockSize(prevDiskId);
+        if (blockSize < 0 || blockSize != prevBlockSize) {
+            logger_.info(String.format
+                         ("block size is invalid or different (%d, %d).",
+                          prevBlockSize, blockSize));
+            return false;
+        }
         
         /* Check full dump file exists in previous generation. */
         if (prevGen.isDumpOutExist(prevDiskId) == false ||
@@ -809,12 +965,28 @@ public class VmArchiveManager
             return null;
         }
 
+        /* Try the restore chain index. */
+        int genId = currGen.getGenerationId();
+        List<String> chainList = profChain_.getFileList(genId, uuid);
+        if (chainList != null) {
+            for (String chainPath : chainList) {
+                ret.add(FormatString.toQuatedString(fromChainPath(chainPath)));
+            }
+            logger_.info("getDumpPathListForRestore end (indexed).");
+            return (List<String>) ret;
+        }
+        LinkedList<String> newChainList = new LinkedList<String>();
+
         /* Does this generation have the full dump */
         String dumpPath;
         dumpPath = currGen.getDumpOutPath(diskId);
         logger_.info(String.format("dumpPath: %s\n", dumpPath));
         if (currGen.isDumpOutExist(diskId)) {
             ret.add(dumpPath);
+            newChainList.add
+                (toChainPath(genId, currGen.getDumpOutFileName(diskId)));
+            profChain_.setFileList(genId, uuid, newChainList);
+            saveProfileChain();
             return ret; 
         }
 
@@ -855,11 +1027,17 @@ public class VmArchiveManager
             if (next.isRdiffOutExist(nextDiskId)) {
                 /* Rdiff file is found. */
                 ret.addFirst(FormatString.toQuatedString(rdiffPath));
+                newChainList.addFirst
+                    (toChainPath(next.getGenerationId(),
+                                 next.getRdiffOutFileName(nextDiskId)));
                 notFoundFile = false;
             }
             if (next.isDumpOutExist(nextDiskId)) {
                 /* Dump file is found. */
                 ret.addFirst(FormatString.toQuatedString(dumpPath));
+                newChainList.addFirst
+                    (toChainPath(next.getGenerationId(),
+                                 next.getDumpOutFileName(nextDiskId)));
                 isFirstElementDump = true;
                 break;
             }
@@ -897,6 +1075,9 @@ public class VmArchiveManager
         sb.append("----------------------------------------\n");
         logger_.info(sb.toString());
 
+        profChain_.setFileList(genId, uuid, newChainList);
+        saveProfileChain();
+
         logger_.info("getDumpPathListForRestore end.");
         return (List<String>) ret;
     }
@@ -915,6 +1096,15 @@ public class VmArchiveManager
 
         String uuid = currGen.getUuid(diskId);
 
+        /* Try the restore chain index. */
+        int genId = currGen.getGenerationId();
+        String chainPath = profChain_.getDigest(genId, uuid);
+        if (chainPath != null) {
+            String digestPath = fromChainPath(chainPath);
+            logger_.info(String.format("digestPath: %s (indexed)\n", digestPath));
+            return digestPath;
+        }
+
         /* There is no digest file in the current generation.
            Search newer generations. */
         boolean isFound = false;
@@ -939,6 +1129,11 @@ public class VmArchiveManager
             digestPath = next.getDigestOutPath(nextDiskId);
             if (next.isDigestOutExist(nextDiskId)) {
                 logger_.info(String.format("digestPath: %s\n", digestPath));
+                profChain_.setDigest
+                    (genId, uuid,
+                     toChainPath(next.getGenerationId(),
+                                 next.getDigestOutFileName(nextDiskId)));
+                saveProfileChain();
                 return digestPath;
             }
 
@@ -1004,6 +1199,98 @@ public class VmArchiveManager
         return filename + ".gz";
     }
     
+    /**
+     * Get id of succeeded previous generation.
+     *
+     * @return Generation id, or -2 if not found.
+     */
+    public int getPrevSucceededGenerationId(int genId)
+    {
+        assert profVm_ != null;
+        return profVm_.getPrevSucceededGenerationId(genId);
+    }
+
+    /**
+     * Union of changed blocks of a disk
+     * in the generations after fromGenId until toGen.
+     * Changed blocks of each generation are read from its bitmap file,
+     * or its extents file, and added to one bitmap.
+     *
+     * @param fromGenId Older succeeded generation id.
+     * @param toGen Newer generation.
+     * @param uuid Disk uuid.
+     * @return Merged bitmap with the block size of toGen,
+     *         or null if changed blocks of some generation are not available.
+     */
+    public VmdkBitmap getMergedChangedBitmap
+        (int fromGenId, ProfileGeneration toGen, String uuid)
+        throws Exception
+    {
+        assert profVm_ != null;
+        ProfileVm profVm = profVm_;
+
+        int toDiskId = toGen.getDiskIdWithUuid(uuid);
+        if (toDiskId < 0) { return null; }
+        int blockSize = toGen.getBlockSize(toDiskId);
+        long capacity = toGen.getCapacity(toDiskId);
+        VmdkBitmap ret = new VmdkBitmap(capacity, blockSize);
+
+        ProfileGeneration gen = toGen;
+        int genId = toGen.getGenerationId();
+        while (genId != fromGenId) {
+            int diskId = gen.getDiskIdWithUuid(uuid);
+            if (diskId < 0 ||
+                gen.getBlockSize(diskId) != blockSize ||
+                gen.getCapacity(diskId) != capacity) {
+                logger_.info(String.format
+                             ("disk %s differs in generation %d.",
+                              uuid, genId));
+                return null;
+            }
+            if (addChangedBlocks(gen, diskId, ret) == false) {
+                logger_.info(String.format
+                             ("changed blocks of %s in generation %d " +
+                              "are not available.", uuid, genId));
+                return null;
+            }
+
+            genId = profVm.getPrevSucceededGenerationId(genId);
+            if (genId < 0 || genId < fromGenId) {
+                logger_.warning(String.format
+                                ("generation %d is not found.", fromGenId));
+                return null;
+            }
+            if (genId != fromGenId) { gen = loadProfileGeneration(genId); }
+        }
+        return ret;
+    }
+
+    /**
+     * Add changed blocks of a disk in a generation to a bitmap.
+     *
+     * @return False if the generation has no changed block information.
+     */
+    private boolean addChangedBlocks
+        (ProfileGeneration gen, int diskId, VmdkBitmap bmp)
+        throws Exception
+    {
+        String bmpPath = gen.getBmpInPath(diskId);
+        if (bmpPath != null && (new File(bmpPath)).isFile()) {
+            if (CompressedBitmap.isCompressed(bmpPath)) {
+                CompressedBitmap.orInto(bmpPath, bmp);
+            } else {
+                bmp.or(VmdkBitmap.map(bmpPath, bmp.getBlockSize(), false));
+            }
+            return true;
+        }
+        String extentsPath = gen.getExtentsPath(diskId);
+        if (extentsPath != null && (new File(extentsPath)).isFile()) {
+            ChangedExtents.readFrom(extentsPath).addTo(bmp);
+            return true;
+        }
+        return false;
+    }
+
     /**
      * Move previous dump and digest files
      * to current generation directory.
@@ -1080,7 +1367,25 @@ public class VmArchiveManager
             return false;
         }
 
-        return fromDump.renameTo(toDump) && fromDigest.renameTo(toDigest);
+        boolean ret =
+            fromDump.renameTo(toDump) && fromDigest.renameTo(toDigest);
+
+        /* Chains which used the previous dump and digest
+           now use the moved ones. */
+        if (ret) {
+            int currGenId = currGen_.getGenerationId();
+            int prevGenId = profVm_.getPrevSucceededGenerationId(currGenId);
+            String uuid = currGen_.getUuid(diskId);
+
+            List<String> newHead = new LinkedList<String>();
+            newHead.add(toChainPath(currGenId, toDump.getName()));
+            profChain_.replaceHead
+                (uuid, toChainPath(prevGenId, fromDump.getName()), newHead);
+            profChain_.replaceDigest
+                (uuid, toChainPath(prevGenId, fromDigest.getName()),
+                 toChainPath(currGenId, toDigest.getName()));
+        }
+        return ret;
     }
 
     /**
@@ -1107,6 +1412,23 @@ public class VmArchiveManager
         /* delete previoud dump file! */
         boolean isDeleted = prevDumpFile.delete();
         currGen_.setDeletedPreviousDump(diskId, isDeleted);
+
+        /* Chains which used the previous dump now use
+           the current dump and rdiff. */
+        if (isDeleted) {
+            int currGenId = currGen_.getGenerationId();
+            List<String> newHead = new LinkedList<String>();
+            newHead.add(toChainPath
+                        (currGenId, currGen_.getDumpOutFileName(diskId)));
+            if (currGen_.isRdiffOutExist(diskId)) {
+                newHead.add(toChainPath
+                            (currGenId, currGen_.getRdiffOutFileName(diskId)));
+            }
+            profChain_.replaceHead
+                (currGen_.getUuid(diskId),
+                 toChainPath(prevGen.getGenerationId(), prevDumpFile.getName()),
+                 newHead);
+        }
         
         logger_.info
             (String.format
@@ -1319,6 +1641,18 @@ public class VmArchiveManager
     {
         assert profVm_ != null;
         profVm_.lock(timeoutSec);
+        isSharedLock_ = false;
+    }
+
+    /**
+     * Shared lock wrapper for read-only commands.
+     */
+    public void lockShared(int timeoutSec)
+        throws Exception
+    {
+        assert profVm_ != null;
+        profVm_.lockShared(timeoutSec);
+        isSharedLock_ = true;
     }
 
     /**
@@ -1328,6 +1662,7 @@ public class VmArchiveManager
     {
         assert profVm_ != null;
         profVm_.unlock();
+        isSharedLock_ = false;
     }
 
     /**
@@ -1338,6 +1673,7 @@ public class VmArchiveManager
     {
         assert profVm_ != null;
         profVm_.reload();
+        profChain_ = loadProfileChain();
     }
 
     /**
@@ -1359,9 +1695,14 @@ public class VmArchiveManager
 
                 for (Integer diskId: diskIdList) {
 
+                    /* Read throughput of the dump if recorded. */
+                    long rate = profGen.getDumpReadBytesPerSec(diskId);
+                    String rateStr = (rate < 0 ? "" :
+                                      String.format(" %.1fMB/s",
+                                                    rate / 1048576.0));
                     sb.append
                         (String.format
-                         ("[%d %s%s:%s %sB %s %ds]",
+                         ("[%d %s%s:%s %sB %s %ds%s]",
                           diskId,
                           profGen.getAdapterType(diskId).toTypeString(),
                           profGen.getBusNumber
@@ -1369,7 +1710,8 @@ public class VmArchiveManager
                           profGen.getUnitNumber(diskId),
                           FormatInt.toString(profGen.getCapacity(diskId)),
                           profGen.getBackupMode(diskId).toString(),
-                          profGen.getDumpElapsedTimeMs(diskId) / 1000L
+                          profGen.getDumpElapsedTimeMs(diskId) / 1000L,
+                          rateStr
                           ));
                 }
 
@@ -24,6 +24,7 @@ public enum VmbkpCommand
     DESTROY, /* destroy the specified aliving vm, removing its vmdk files. */
     CLEAN,   /* delete archives of the specified vm. */
     LIST,    /* print list of vm with a various maching parameters. */
+    MERGE,   /* merge changed blocks of the generations. */
     HELP,    /* show help message. */
     UNKNOWN; /* Anything else. */
 
@@ -100,8 +100,9 @@ public class VmbkpCommandLine
         registerOption("--host", 1); 
         registerOption("--datastore", 1);
         registerOption("--folder", 1);
+        registerOption("--rollback", 0);
 
-        /* optional for restore/check */
+        /* optional for restore/check/merge */
         registerOption("--generation", 1);
 
         /* optional for backup/restore */
@@ -116,6 +117,9 @@ public class VmbkpCommandLine
         /* optional for backup/restore/check/clean */
         registerOption("--dryrun", 0);
 
+        /* optional for update */
+        registerOption("--watch", 0);
+
         /* optional for status */
         registerOption("--detail", 0);
 
@@ -127,6 +131,10 @@ public class VmbkpCommandLine
         registerOption("--exist", 1);
         registerOption("--mtime", 1);
         registerOption("--mmin", 1);
+
+        /* optional for merge */
+        registerOption("--from", 1);
+        registerOption("--bmpout", 1);
     }
     
     /**
@@ -208,6 +216,7 @@ public class VmbkpCommandLine
              "  destroy: destroy the specified virtual machine removing vmdk files.\n" +
              "  clean:   delete archives of the specified vm.\n" +
              "  list:    list vm moref with various filters.\n" +
+             "  merge:   show blocks changed between two generations.\n" +
              "  help:    show this message.\n" +
              "\n" +
              "Global options:\n" +
@@ -215,6 +224,9 @@ public class VmbkpCommandLine
              "  --grpconf <file>: group configuration file.\n" +
              "  --help:           show this message.\n" +
              "\n" +
+             "Options for update command:\n" +
+             "  --watch:        keep updating as soon as the inventory changes.\n" +
+             "\n" +
              "Options for backup command:\n" +
              "  --novmdk:       backup except vmdk contents.\n" +
              "  --dryrun:       do not backup really.\n" +
@@ -223,7 +235,8 @@ public class VmbkpCommandLine
              "  --mode <mode>:  specify wanted backup level (incr, diff, full).\n" +
              "\n" +
              "Options for restore command:\n" +
-             "  --name <name>:      new name of virtual machine (required).\n" +
+             "  --name <name>:      new name of virtual machine\n" +
+             "                      (required without --rollback).\n" +
              "  --generation <id>:  generation id to restore.\n" +
              "  --host <name>:      VMware host to restore.\n" +
              "  --datastore <name>: VMware datastore to restore.\n" +
@@ -231,6 +244,9 @@ public class VmbkpCommandLine
              "  --novmdk:           restore except vmdk contents.\n" +
              "  --dryrun:           do not restore really.\n" +
              "  --san:              use SAN transfer instead of NBD.\n" +
+             "  --rollback:         roll back disks of the existing vm in place\n" +
+             "                      writing only blocks changed after the generation.\n" +
+             "                      the vm should be powered off.\n" +
              "\n" +
              "Options for status command:\n" +
              "  --detail: show detailed status.\n" +
@@ -251,6 +267,12 @@ public class VmbkpCommandLine
              "  --mmin <(+/-/)N>:      Select where latest generation is created N minutes ago.\n" +
              "                         +N means greater than N, -N means less than N.\n" +
              "\n" +
+             "Options for merge command:\n" +
+             "  --from <id>:       older generation id (default: previous one).\n" +
+             "  --generation <id>: newer generation id (default: latest one).\n" +
+             "  --bmpout <dir>:    write merged bitmaps to <dir>/<disk-id>.bmp.\n" +
+             "                     you can specify just one target with this.\n" +
+             "\n" +
              "Target:\n" +
              "  all:     all available virtual machines. \n" +
              "           please run with update command to get \n" +
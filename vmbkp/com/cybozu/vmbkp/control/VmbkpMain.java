@@ -10,30 +10,42 @@ package com.cybozu.vmbkp.control;
 
 import java.util.Calendar;
 import java.util.Date;
-import java.util.Set;
 import java.util.TreeSet;
 import java.util.List;
 import java.util.LinkedList;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.io.File;
-import java.io.FileWriter;
-import java.io.FilterOutputStream;
 import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.BufferedOutputStream;
 
 import com.cybozu.vmbkp.config.NotNormalFileException;
 
 import com.cybozu.vmbkp.util.BackupMode;
 import com.cybozu.vmbkp.util.Utility;
 import com.cybozu.vmbkp.util.VmdkBitmap;
-import com.cybozu.vmbkp.util.XmlIndent;
-import com.cybozu.vmbkp.util.VmbkpOvf;
+import com.cybozu.vmbkp.util.ChangedExtents;
+import com.cybozu.vmbkp.util.CompressedBitmap;
+import com.cybozu.vmbkp.util.OvfSanitizer;
 import com.cybozu.vmbkp.util.AdapterType;
 import com.cybozu.vmbkp.util.VmdkInfo;
 import com.cybozu.vmbkp.util.VmInfo;
+import com.cybozu.vmbkp.util.VmInventoryInfo;
 import com.cybozu.vmbkp.util.LockTimeoutException;
+import com.cybozu.vmbkp.util.LockMetrics;
 
 import com.cybozu.vmbkp.soap.Connection;
+import com.cybozu.vmbkp.soap.ConnectionPool;
 import com.cybozu.vmbkp.soap.GlobalManager;
+import com.cybozu.vmbkp.soap.GlobalManagerV;
+import com.cybozu.vmbkp.soap.GlobalManagerS;
+import com.cybozu.vmbkp.soap.VsphereSimulator;
+import com.cybozu.vmbkp.soap.SoapMetrics;
+import com.cybozu.vmbkp.soap.InventoryTracker;
+import com.cybozu.vmbkp.soap.ChangedBlockCollector;
 import com.cybozu.vmbkp.soap.VirtualMachineManager;
 import com.cybozu.vmbkp.soap.VirtualMachineConfigManager;
 import com.cybozu.vmbkp.soap.SnapshotManager;
@@ -51,6 +63,8 @@ import com.cybozu.vmbkp.control.VmbkpLog;
 import com.cybozu.vmbkp.control.VmbkpCommandLine;
 import com.cybozu.vmbkp.control.RestoreInfo;
 import com.cybozu.vmbkp.control.VmArchiveManager;
+import com.cybozu.vmbkp.control.VmdkBkpSupervisor;
+import com.cybozu.vmbkp.control.VmdkBkpSupervisor.JobClass;
 
 /**
  * @brief Top-level controller of the software.
@@ -63,6 +77,12 @@ public class VmbkpMain
     private static ProfileAllVm profAllVm_;
     private static GlobalManager gm_;
     private static List<String> targetVmMorefList_;
+
+    /**
+     * Simulated vSphere environment used instead of the soap server.
+     * null in normal use.
+     */
+    private static VsphereSimulator simulator_ = null;
     
     /**
      * Logger.
@@ -150,6 +170,10 @@ public class VmbkpMain
         }
         logger_.info(cmdLine_.toString());
 
+        /* Metrics of the previous command in the process are cleared. */
+        SoapMetrics.reset();
+        LockMetrics.reset();
+
         /* The first log. */
         logger_.info("\n" +
                      "----------------------------------------\n" +
@@ -171,6 +195,18 @@ public class VmbkpMain
     {
         assert gm_ != null;
         gm_.disconnect();
+        VmdkBkp.closeLock();
+
+        /* Summary of vSphere API calls of the command. */
+        logger_.info(String.format("%d vSphere API calls.\n%s",
+                                   SoapMetrics.getNumCalls(),
+                                   SoapMetrics.summary()));
+        if (logger_.isLoggable(Level.FINE)) {
+            logger_.fine(SoapMetrics.dump());
+        }
+        logger_.info(String.format("%d profile locks.\n%s",
+                                   LockMetrics.getNumAcquired(),
+                                   LockMetrics.summary()));
     }
     
     /**
@@ -199,6 +235,11 @@ public class VmbkpMain
      */
     public static void setupGlobalManager()
     {
+        if (simulator_ != null) {
+            gm_ = new GlobalManagerS(simulator_);
+            return;
+        }
+
         /* Information to connect to vsphere soap server. */
         String url = cfgGlobal_.getUrl();
         String username = cfgGlobal_.getUsername();
@@ -209,8 +250,25 @@ public class VmbkpMain
            when the connection is really required. */
         Connection conn = new Connection(url, username, password);
 
+        /* Extra sessions for concurrent operations. */
+        int poolSize = cfgGlobal_.getPoolSize();
+        if (poolSize > 0) {
+            conn.setPool(new ConnectionPool(url, username, password, poolSize));
+        }
+
         /* Prepare global manager. */
-        gm_ = new GlobalManager(conn);
+        gm_ = new GlobalManagerV(conn);
+    }
+
+    /**
+     * Use a simulated vSphere environment for benchmarking.
+     * Call this before main().
+     *
+     * @param sim Simulator, or null to use the soap server.
+     */
+    public static void setSimulator(VsphereSimulator sim)
+    {
+        simulator_ = sim;
     }
 
     /**
@@ -223,6 +281,7 @@ public class VmbkpMain
         case STATUS:
         case RESTORE:
         case CLEAN:
+        case MERGE:
             isAvailableOnly = false;
         }
         
@@ -252,6 +311,7 @@ public class VmbkpMain
         case DESTROY: doDestroy(); break;
         case CLEAN:   doClean();   break;
         case LIST:    doList();    break;
+        case MERGE:   doMerge();   break;
         case HELP: cmdLine_.showHelpMessages(); break;
         default: assert (false); break;
         }
@@ -313,6 +373,11 @@ public class VmbkpMain
             throw new Exception();
         }
 
+        if (cmdLine_.isOption("--watch")) {
+            watchAllVmInfoAndUpdate(profAllVm_);
+            return;
+        }
+
         try {
             profAllVm_.lock(60);
             profAllVm_.reload();
@@ -339,34 +404,221 @@ public class VmbkpMain
         }
 
         BackupInfo backupInfo = new BackupInfo(cmdLine_);
-        
-        for (String vmMoref: targetVmMorefList_) {
-            
+
+        /* Snapshots of a batch are created together. */
+        int batchSize = cfgGlobal_.getSnapshotBatchSize();
+        int numTargets = targetVmMorefList_.size();
+        int i = 0;
+        while (i < numTargets) {
+            i += backupVms(targetVmMorefList_.subList
+                           (i, Math.min(i + batchSize, numTargets)),
+                           backupInfo);
+        }
+    }
+
+    /**
+     * A virtual machine to backup in a batch.
+     */
+    private static class BackupTarget
+    {
+        String moref_;
+        VmInfo vmInfo_;
+        VmArchiveManager vmArcMgr_;
+        boolean isLocked_ = false;
+        VmdkBkpSupervisor.Slot slot_ = null;
+        Calendar cal_;
+        String snapName_;
+        boolean isSnapshotCreated_ = false;
+        boolean ret_ = false;
+    }
+
+    /**
+     * Backup virtual machines of a batch.
+     * Their snapshots are created concurrently before dumps
+     * in a single hold of the lock shared with vmdkbkp.
+     * The snapshot of each virtual machine is deleted
+     * and its profile is unlocked just after its dump
+     * not to keep them during dumps of the others.
+     * A slot of vmdkbkp is held for each of them
+     * from before its snapshot is created until the end of its dumps.
+     *
+     * @return Number of virtual machines done. The batch ends
+     *         before a virtual machine not admitted at once.
+     */
+    private static int backupVms
+        (List<String> vmMorefList, BackupInfo backupInfo)
+        throws Exception
+    {
+        /* Lock profiles and check the virtual machines. */
+        List<BackupTarget> tgtList = new LinkedList<BackupTarget>();
+        List<BackupTarget> snapTgtList = new LinkedList<BackupTarget>();
+        for (String vmMoref : vmMorefList) {
+
             /* Target virtual machine */
+            BackupTarget tgt = new BackupTarget();
+            tgt.moref_ = vmMoref;
             VirtualMachineManager vmm = gm_.searchVmWithMoref(vmMoref);
-            VmInfo vmInfo = vmm.getVmInfo();
-            VmArchiveManager vmArcMgr =
-                new VmArchiveManager(cfgGlobal_, vmInfo);
+            tgt.vmInfo_ = vmm.getVmInfo();
+            tgt.vmArcMgr_ = new VmArchiveManager(cfgGlobal_, tgt.vmInfo_);
+            tgtList.add(tgt);
 
-            boolean ret = false;
             try {
                 int timeoutSec = 60;
                 if (backupInfo.isDryRun) {timeoutSec = 0;}
                 
-                vmArcMgr.lock(timeoutSec);
-                vmArcMgr.reload();
-                ret = backupVm(vmm, vmArcMgr, backupInfo);
-                
+                tgt.vmArcMgr_.lock(timeoutSec);
+                tgt.isLocked_ = true;
+                tgt.vmArcMgr_.reload();
+                if (checkBackupVm(vmm, backupInfo)) {
+                    if (admitBackupTarget(tgt, backupInfo,
+                                          snapTgtList.isEmpty()) == false) {
+                        /* Backup it in the next batch. */
+                        tgt.vmArcMgr_.unlock();
+                        tgtList.remove(tgt);
+                        break;
+                    }
+                    tgt.cal_ = Calendar.getInstance();
+                    tgt.snapName_ = generateSnapshotName(tgt.cal_);
+                    snapTgtList.add(tgt);
+                } else {
+                    tgt.ret_ = true; /* dryrun */
+                }
             } catch (Exception e) {
                 logException
                     (e, String.format
                      ("backupVm of %s failed.", vmMoref));
-            } finally {
-                vmArcMgr.unlock();
             }
+        }
 
-            System.out.printf("BACKUP %s %s\n",
-                              (ret ? "OK" : "NG"), vmInfo.toString());
+        /* Create snapshots. */
+        operateSnapshotsOfTargets(TaskType.CREATE, snapTgtList);
+
+        /* Finish targets without snapshots. */
+        for (BackupTarget tgt : tgtList) {
+            if (tgt.isSnapshotCreated_ == false) { finishBackupTarget(tgt); }
+        }
+
+        /* Dump each virtual machine and delete its snapshot. */
+        for (BackupTarget tgt : snapTgtList) {
+            if (tgt.isSnapshotCreated_ == false) { continue; }
+            try {
+                /* Search again because the connection may be renewed. */
+                VirtualMachineManager vmm =
+                    gm_.searchVmWithMoref(tgt.moref_);
+                tgt.ret_ = backupVm(vmm, tgt.vmArcMgr_, backupInfo,
+                                    tgt.cal_, tgt.snapName_, tgt.slot_);
+            } catch (Exception e) {
+                logException
+                    (e, String.format
+                     ("backupVm of %s failed.", tgt.moref_));
+
+                /* The connection may be closed for the dump. */
+                try {
+                    gm_.disconnect();
+                    gm_.connect();
+                } catch (Exception e2) {
+                    logException(e2, "Connect failed.");
+                }
+            }
+
+            List<BackupTarget> delTgtList = new LinkedList<BackupTarget>();
+            delTgtList.add(tgt);
+            operateSnapshotsOfTargets(TaskType.DELETE, delTgtList);
+            finishBackupTarget(tgt);
+        }
+        return tgtList.size();
+    }
+
+    /**
+     * Hold a slot of vmdkbkp for dumps of a backup target
+     * before its snapshot is created.
+     * Only the first target of a batch waits for admission
+     * not to wait for the slots held by the batch itself.
+     *
+     * @return False if the target is not admitted at once.
+     */
+    private static boolean admitBackupTarget
+        (BackupTarget tgt, BackupInfo backupInfo, boolean isFirst)
+        throws Exception
+    {
+        if (backupInfo.isNoVmdk) { return true; }
+
+        if (isFirst) {
+            tgt.slot_ = VmdkBkpSupervisor.admit
+                (cfgGlobal_, JobClass.BACKUP, null);
+        } else {
+            tgt.slot_ = VmdkBkpSupervisor.tryAdmit
+                (cfgGlobal_, JobClass.BACKUP);
+        }
+        return tgt.slot_ != null;
+    }
+
+    /**
+     * Release the slot, unlock the profile of a backup target
+     * and print its result.
+     */
+    private static void finishBackupTarget(BackupTarget tgt)
+    {
+        VmdkBkpSupervisor.release(tgt.slot_);
+        tgt.slot_ = null;
+        if (tgt.isLocked_) {
+            tgt.vmArcMgr_.unlock();
+            tgt.isLocked_ = false;
+        }
+        System.out.printf("BACKUP %s %s\n",
+                          (tgt.ret_ ? "OK" : "NG"), tgt.vmInfo_.toString());
+    }
+
+    /**
+     * Create or delete snapshots of backup targets.
+     * A target is marked NG if its snapshot operation failed.
+     */
+    private static void operateSnapshotsOfTargets
+        (TaskType type, List<BackupTarget> tgtList)
+    {
+        if (tgtList.isEmpty()) { return; }
+
+        List<VirtualMachineManager> vmmList =
+            new LinkedList<VirtualMachineManager>();
+        List<String> snapNameList = new LinkedList<String>();
+        try {
+            for (BackupTarget tgt : tgtList) {
+                VirtualMachineManager vmm = gm_.searchVmWithMoref(tgt.moref_);
+                if (vmm == null) {
+                    throw new Exception("vm not found: " + tgt.moref_);
+                }
+                vmmList.add(vmm);
+                snapNameList.add(tgt.snapName_);
+            }
+        } catch (Exception e) {
+            logException(e, "Not found vm.");
+            for (BackupTarget tgt : tgtList) { tgt.ret_ = false; }
+            return;
+        }
+
+        boolean[] rets;
+        try {
+            rets = operateSnapshots(type, vmmList, snapNameList);
+        } catch (Exception e) {
+            logException(e);
+            rets = new boolean[tgtList.size()];
+        }
+        int i = 0;
+        for (BackupTarget tgt : tgtList) {
+            String msg;
+            if (type == TaskType.CREATE) {
+                tgt.isSnapshotCreated_ = rets[i];
+                msg = String.format("create snapshot name %s %s.",
+                                    tgt.snapName_,
+                                    (rets[i] ? "succeeded" : "failed"));
+            } else {
+                msg = String.format("Delete snapshot %s %s.",
+                                    tgt.snapName_,
+                                    (rets[i] ? "succeeded" : "failed"));
+            }
+            if (rets[i] == false) { tgt.ret_ = false; }
+            System.out.println(msg); logger_.info(msg);
+            i ++;
         }
     }
 
@@ -398,7 +650,11 @@ public class VmbkpMain
             
             vmArcMgr.lock(timeoutSec);
             vmArcMgr.reload();
-            restoreVm(vmArcMgr, restoreInfo);
+            if (restoreInfo.isRollback) {
+                rollbackVm(vmArcMgr, restoreInfo);
+            } else {
+                restoreVm(vmArcMgr, restoreInfo);
+            }
 
         } catch (BackupFailedException e) {
             System.out.printf("The generation is marked FAILED.");
@@ -444,7 +700,7 @@ public class VmbkpMain
                 int timeoutSec = 60;
                 if (checkInfo.isDryRun) {timeoutSec = 0;}
             
-                vmArcMgr.lock(timeoutSec);
+                vmArcMgr.lockShared(timeoutSec);
                 vmArcMgr.reload();
                 isClean = checkGeneration(vmArcMgr, checkInfo);
             
@@ -607,19 +863,32 @@ public class VmbkpMain
         /* 3. mtime/mmin filter. */
         if (listInfo.isMtime || listInfo.isMmin) {
             tlist = new LinkedList<String>();
+            ArchiveCatalog catalog = new ArchiveCatalog(cfgGlobal_);
+            catalog.load();
+            long tsNow = Calendar.getInstance().getTimeInMillis();
             
             for (String moref: morefs) {
+                /* Use the catalog if available. */
+                CatalogRecord rec = catalog.get(moref);
+                if (rec != null) {
+                    if (rec.latestSucceededGenId >= 0 &&
+                        listInfo.isSatisfyTime(rec.latestTimestampMs, tsNow)) {
+                        tlist.add(moref);
+                    }
+                    continue;
+                }
+                
                 VmInfo vmInfo = profAllVm_.makeVmInfoWithMoref(moref);
                 if (VmArchiveManager.isExistSucceededGeneration(cfgGlobal_, vmInfo)) {
                     VmArchiveManager vmArcMgr =
                         new VmArchiveManager(cfgGlobal_, vmInfo);
 
                     long tsGen = vmArcMgr.getTimestampMsOfLatestGeneration();
-                    long tsNow = Calendar.getInstance().getTimeInMillis();
                     
                     if (listInfo.isSatisfyTime(tsGen, tsNow)) {
                         tlist.add(moref);
                     }
+                    vmArcMgr.updateCatalog();
                 }
             }
             morefs = tlist;
@@ -632,6 +901,95 @@ public class VmbkpMain
         System.err.println(listInfo.toString());
     }
 
+    /**
+     * Execute merge command.
+     */
+    public static void doMerge()
+        throws Exception
+    {
+        MergeInfo mergeInfo = new MergeInfo(cmdLine_);
+
+        if (mergeInfo.bmpOutDir != null &&
+            targetVmMorefList_.size() != 1) {
+
+            String msg =
+                "Just one target is required for merge with " +
+                "--bmpout option.";
+            System.err.println(msg);
+            throw new Exception(msg);
+        }
+
+        for (String targetVmMoref: targetVmMorefList_) {
+
+            VmInfo vmInfo = profAllVm_.makeVmInfoWithMoref(targetVmMoref);
+            assert vmInfo != null;
+
+            VmArchiveManager vmArcMgr =
+                new VmArchiveManager(cfgGlobal_, vmInfo);
+            try {
+                vmArcMgr.lockShared(60);
+                vmArcMgr.reload();
+                mergeGenerations(vmArcMgr, vmInfo, mergeInfo);
+
+            } catch (Exception e) {
+                logException
+                    (e, String.format
+                     ("mergeGenerations of %s failed.", targetVmMoref));
+                System.out.printf("[%s][%s] ##########_ERROR_##########\n",
+                                  vmInfo.getMoref(), vmInfo.getName());
+            } finally {
+                vmArcMgr.unlock();
+            }
+        }
+    }
+
+    /**
+     * Print changed blocks of each disk between two generations.
+     */
+    private static void mergeGenerations
+        (VmArchiveManager vmArcMgr, VmInfo vmInfo, MergeInfo mergeInfo)
+        throws Exception
+    {
+        ProfileGeneration toGen =
+            vmArcMgr.loadProfileGeneration(mergeInfo.generationId);
+        if (toGen == null) {
+            System.out.printf("[%s][%s] ##########_NO_ARCHIVE_##########\n",
+                              vmInfo.getMoref(), vmInfo.getName());
+            return;
+        }
+        int toGenId = toGen.getGenerationId();
+        int fromGenId = mergeInfo.fromGenerationId;
+        if (fromGenId < 0) {
+            fromGenId = vmArcMgr.getPrevSucceededGenerationId(toGenId);
+        }
+        if (fromGenId < 0 || fromGenId >= toGenId) {
+            throw new Exception
+                (String.format("There is no generation to merge before %d.",
+                               toGenId));
+        }
+
+        for (Integer diskIdI : toGen.getDiskIdList()) {
+            int diskId = diskIdI.intValue();
+            String uuid = toGen.getUuid(diskId);
+            VmdkBitmap bmp =
+                vmArcMgr.getMergedChangedBitmap(fromGenId, toGen, uuid);
+            if (bmp == null) {
+                System.out.printf("MERGE [%s][%s] %d-%d disk %d: UNKNOWN\n",
+                                  vmInfo.getMoref(), vmInfo.getName(),
+                                  fromGenId, toGenId, diskId);
+                continue;
+            }
+            System.out.printf("MERGE [%s][%s] %d-%d disk %d: " +
+                              "%d blocks %d bytes\n",
+                              vmInfo.getMoref(), vmInfo.getName(),
+                              fromGenId, toGenId, diskId,
+                              bmp.cardinality(), bmp.cardinalityInBytes());
+            if (mergeInfo.bmpOutDir != null) {
+                bmp.writeTo(mergeInfo.bmpOutDir + "/" + diskId + ".bmp");
+            }
+        }
+    }
+
     /**
      * Execute status command.
      */
@@ -646,6 +1004,10 @@ public class VmbkpMain
         }
 
         StatusInfo statusInfo = new StatusInfo(cmdLine_);
+
+        /* Detailed status requires generation profiles. */
+        ArchiveCatalog catalog = new ArchiveCatalog(cfgGlobal_);
+        if (! statusInfo.isDetail) { catalog.load(); }
         
         for (String vmMoref: targetVmMorefList_) {
 
@@ -655,6 +1017,19 @@ public class VmbkpMain
                 continue;
             }
 
+            /* Use the catalog if available. */
+            CatalogRecord rec = catalog.get(vmMoref);
+            if (rec != null) {
+                if (rec.latestSucceededGenId < 0) {
+                    System.out.printf("[%s][%s] ##########_NO_ARCHIVE_##########\n",
+                                      vmInfo.getMoref(), vmInfo.getName());
+                } else {
+                    boolean isAvailable = profAllVm_.isAvailableWithMoref(vmMoref);
+                    System.out.println(rec.toStatusString(isAvailable));
+                }
+                continue;
+            }
+
             /* Check archive existance. */
             if (! VmArchiveManager.isExistSucceededGeneration(cfgGlobal_, vmInfo)) {
                 System.out.printf("[%s][%s] ##########_NO_ARCHIVE_##########\n",
@@ -675,12 +1050,13 @@ public class VmbkpMain
 
             /* Get status information from the metadata. */
             try {
-                vmArcMgr.lock(0);
+                vmArcMgr.lockShared(0);
                 vmArcMgr.reload();
 
                 boolean isAvailable = profAllVm_.isAvailableWithMoref(vmMoref);
                 System.out.println
                     (vmArcMgr.getStatusString(statusInfo, isAvailable));
+                vmArcMgr.updateCatalog();
                 
             } catch (LockTimeoutException e) {
                 logException(e, "lock timeout" + vmInfo.toString());
@@ -707,16 +1083,92 @@ public class VmbkpMain
         profAllVm.setAllAvailabilityToFalse();
 
         /* put all available virtual machine to the config. */
-        List<VirtualMachineManager> vmmList = gm_.getAllVmList();
-        for (VirtualMachineManager vmm : vmmList) {
-            profAllVm.addVmEntry(vmm.getVmInfo(), Calendar.getInstance(),
-                                 vmm.getConfig().isTemplate());
+        List<VmInventoryInfo> vmInfoList = gm_.getAllVmInventoryInfoList();
+        Calendar cal = Calendar.getInstance();
+        for (VmInventoryInfo vmInfo : vmInfoList) {
+            profAllVm.addVmEntry(vmInfo, cal, vmInfo.isTemplate());
         }
+        String msg = String.format
+            ("%d virtual machines found.", vmInfoList.size());
+        System.out.println(msg); logger_.info(msg);
 
         /* write config file. */
         profAllVm.write();
     }
 
+    /**
+     * Max seconds to wait for inventory updates in a call.
+     */
+    private static final int WATCH_WAIT_SEC = 60;
+
+    /**
+     * Seconds to wait before reconnecting after an error of the server.
+     */
+    private static final int WATCH_RETRY_SEC = 10;
+
+    /**
+     * Keep the vmbkp_all_vm.conf file up to date
+     * applying changes of the inventory as soon as reported.
+     * The first update is of all virtual machines.
+     * Errors of the server are retried with a new session
+     * and a full update.
+     * This never returns unless an error of the profile occurs.
+     */
+    public static void watchAllVmInfoAndUpdate(ProfileAllVm profAllVm)
+        throws Exception
+    {
+        InventoryTracker tracker = gm_.createInventoryTracker();
+        try {
+            while (true) {
+                boolean isFull = (tracker.getVersion() == null);
+                List<VmInventoryInfo> updatedList =
+                    new LinkedList<VmInventoryInfo>();
+                List<String> removedList = new LinkedList<String>();
+                try {
+                    if (tracker.waitForUpdates
+                        (WATCH_WAIT_SEC, updatedList, removedList) == false) {
+                        continue;
+                    }
+                } catch (Exception e) {
+                    logException(e, "waiting for inventory updates failed.");
+                    String msg = String.format
+                        ("Reconnect after %d seconds.", WATCH_RETRY_SEC);
+                    System.out.println(msg); logger_.info(msg);
+                    tracker.reset();
+                    Thread.sleep(WATCH_RETRY_SEC * 1000L);
+                    continue;
+                }
+
+                try {
+                    profAllVm.lock(60);
+                    profAllVm.reload();
+
+                    if (isFull) { profAllVm.setAllAvailabilityToFalse(); }
+                    Calendar cal = Calendar.getInstance();
+                    for (VmInventoryInfo vmInfo : updatedList) {
+                        profAllVm.addVmEntry(vmInfo, cal, vmInfo.isTemplate());
+                    }
+                    for (String moref : removedList) {
+                        profAllVm.setAvailability(moref, false);
+                    }
+                    profAllVm.setInventoryVersion(tracker.getVersion(), cal);
+                    profAllVm.write();
+
+                } finally {
+                    profAllVm.unlock();
+                }
+
+                String msg = String.format
+                    ("Inventory version %s: %d updated, %d removed, %d total.",
+                     tracker.getVersion(), updatedList.size(),
+                     removedList.size(), tracker.size());
+                System.out.println(msg); logger_.info(msg);
+            }
+        } finally {
+            tracker.destroy();
+        }
+    }
+
     /**
      * Get target list of moref of virtual machine
      * when the group is specified, it will be replaced to its members.
@@ -800,18 +1252,15 @@ public class VmbkpMain
     }
     
     /**
-     * Backup the specified virtual machine.
+     * Check the specified virtual machine can be backed up.
      *
-     * @return True in success.
+     * @return False if the backup should not be continued
+     *         cause dryrun.
      */
-    public static boolean backupVm
-        (VirtualMachineManager vmm, VmArchiveManager vmArcMgr,
-         BackupInfo backupInfo)
+    private static boolean checkBackupVm
+        (VirtualMachineManager vmm, BackupInfo backupInfo)
         throws Exception
     {
-        logger_.info("backupVm() start.");
-        boolean ret;
-        
         /* Print and log start message. */
         String msg;
         msg = String.format
@@ -823,28 +1272,36 @@ public class VmbkpMain
         if (backupInfo.isDryRun) {
             msg = "Backup ends cause dryrun.";
             System.out.println(msg); logger_.info(msg);
-            return true;
+            return false;
         }
 
-        /* Decide to use snapshot or not.
-           Currently not used. */
-        final boolean isUseSnapshot = ! vmm.getConfig().isTemplate();
-        
         /* Check the vm is marked as template. */
         if (vmm.getConfig().isTemplate()) {
             msg = "Template backup is not supported.";
             throw new Exception(msg);
         }
-        
-        /*
-         * Create snapshot
-         */
-        Calendar cal = Calendar.getInstance();
-        String snapName = generateSnapshotName(cal);
-        createSnapshot(vmm, snapName);
-        msg = String.format
-            ("create snapshot name %s succeeded.", snapName);
-        System.out.println(msg); logger_.info(msg);
+        return true;
+    }
+
+    /**
+     * Backup the specified virtual machine
+     * with a snapshot created by doBackup().
+     * The snapshot is deleted by the caller.
+     *
+     * @param cal Time when the snapshot is created.
+     * @param snapName Name of the snapshot.
+     * @param slot Slot of vmdkbkp held for the dumps, or null.
+     * @return True in success.
+     */
+    public static boolean backupVm
+        (VirtualMachineManager vmm, VmArchiveManager vmArcMgr,
+         BackupInfo backupInfo, Calendar cal, String snapName,
+         VmdkBkpSupervisor.Slot slot)
+        throws Exception
+    {
+        logger_.info("backupVm() start.");
+        boolean ret;
+        String msg;
         
         /*
          * Make generation profile.
@@ -859,10 +1316,14 @@ public class VmbkpMain
             logger_.info(vmdkInfo.toString());
         }
         /* Prepare generation profile. */
+        VmInfo snapVmInfo = snap.getVmInfo();
+        int blockSize = cfgGlobal_.getBlockSize
+            (snapVmInfo.getMoref(), snapVmInfo.getName(), cfgGroup_);
+        logger_.info(String.format("block size: %d", blockSize));
         ProfileGeneration profGen =
             vmArcMgr.prepareNewGeneration
-            (snap.getVmInfo(), snap.getSnapInfo(), vmdkInfoList, cal,
-             backupInfo.isGzip);
+            (snapVmInfo, snap.getSnapInfo(), vmdkInfoList, cal,
+             backupInfo.isGzip, blockSize);
         vmArcMgr.setTargetGeneration(profGen);
 
         /*
@@ -878,6 +1339,23 @@ public class VmbkpMain
                 (String.format("ovf export failed (%s).", ovfFilePath));
         }
 
+        /*
+         * Query changed blocks of all disks concurrently
+         * before the connection is closed by the dump.
+         */
+        ChangedBlockCollector cbtCollector =
+            new ChangedBlockCollector
+            (snap, Math.max(CBT_QUERY_THREADS, cfgGlobal_.getPoolSize()));
+        try {
+            if (backupInfo.isNoVmdk == false) {
+                submitChangedBlockQueries
+                    (cbtCollector, vmArcMgr, profGen, vmdkInfoList);
+            }
+            cbtCollector.waitAll();
+        } finally {
+            cbtCollector.shutdown();
+        }
+
         /*
          * Dump each vmdk file.
          */
@@ -897,7 +1375,8 @@ public class VmbkpMain
                     ret = true;
                 } else {
                     ret = backupVmdk
-                        (vmm, vmArcMgr, snap, vmdkInfo, backupInfo);
+                        (vmm, vmArcMgr, cbtCollector, vmdkInfo, backupInfo,
+                         slot);
                     msg = String.format("Dump vmdk %s %s.",
                                         vmdkInfo.uuid_,
                                         (ret ? "succeeded" : "failed"));
@@ -930,12 +1409,6 @@ public class VmbkpMain
         }
         vmArcMgr.save();
 
-        /* Delete the snapshot. */
-        assert snapName != null;
-        deleteSnapshot(vmm, snapName);
-        msg = String.format("Delete snapshot %s succeeded.", snapName);
-        System.out.println(msg); logger_.info(msg);
-
         logger_.info("backupVm() end.");
         return ret;
     }
@@ -977,9 +1450,10 @@ public class VmbkpMain
     public static boolean backupVmdk
         (VirtualMachineManager vmm,
          VmArchiveManager vmArcMgr,
-         SnapshotManager snap,
+         ChangedBlockCollector cbtCollector,
          VmdkInfo vmdkInfo,
-         BackupInfo info)       /* Use isSan and mode */
+         BackupInfo info,       /* Use isSan and mode */
+         VmdkBkpSupervisor.Slot slot)
     {
         boolean ret = false;
         boolean hasChangedBlocks = false;
@@ -998,7 +1472,7 @@ public class VmbkpMain
         if (isInc) {
             /* profGen.setIsChange(diskId, false) will be called inside it. */
             hasChangedBlocks = getAndSaveChangedBlocksOfDisk
-                (snap, vmArcMgr, vmdkInfo, diskId);
+                (cbtCollector, vmArcMgr, vmdkInfo, diskId);
         }
 
         /* If ctkEnabled not available, turn off incr mode */
@@ -1023,6 +1497,11 @@ public class VmbkpMain
             logger_.info("The vmdk is not changed at all.");
             vmArcMgr.registerLazyTaskMovePrevDumpAndDigest(diskId);
             ret = true;
+        } else if (mode == BackupMode.INCR &&
+                   saveChangedBitmapOfDisk(profGen, vmdkInfo, diskId) == false) {
+
+            logger_.warning("Save changed bitmap failed.");
+            ret = false;
         } else {
             /* Soap connection is not required during running vmdkbkp.
                It may take a long time and soap timeout will occur,
@@ -1032,7 +1511,7 @@ public class VmbkpMain
             gm_.disconnect();
             
             ret = VmdkBkp.doDump
-                (mode, vmm.getMoref(), vmArcMgr, diskId, info.isSan);
+                (mode, vmm.getMoref(), vmArcMgr, diskId, info.isSan, slot);
         }
         profGen.setDumpEndTimestamp(diskId);
             
@@ -1060,40 +1539,26 @@ public class VmbkpMain
         (VirtualMachineManager vmm, String outOvfPath)
     {
         try {
-            String ovfStr1 = vmm.exportOvf();
-            VmbkpOvf ovf = new VmbkpOvf(ovfStr1);
-
-            /* Export original ovf. This is just for debug. */
-            {
-                XmlIndent xmli = new XmlIndent(ovf.toString());
-                xmli.fixIndent();
-                FileWriter fw = new FileWriter(outOvfPath + ".orig");
-                fw.write(xmli.toString());
-                fw.close();
-            }
-
-            /* Delete scsi controller and disk information. */
-            ovf.deleteFilesInReferences();
-            ovf.deleteDisksInDiskSection();
-            Set<String> ctrlIdSet = ovf.deleteDiskDevicesInHardwareSection();
-            ovf.deleteControllerDevicesWithoutChildInHardwareSection(ctrlIdSet);
-
-            /* Delete mounted cd-rom information. */
-            ovf.deleteMountedCdromInfoInHardwareSection();
-
-            /* Fix indent of xml data for human's eary read. */
-            XmlIndent xmli = new XmlIndent(ovf.toString());
-            xmli.fixIndent();
-            String ovfStr2 = xmli.toString();
-            if (ovfStr2 == null) {
+            String ovfStr = vmm.exportOvf();
+            if (ovfStr == null) {
                 logger_.warning("ovf is null.");
                 return false;
             }
 
-            /* Write the ovf file. */
-            FileWriter fw = new FileWriter(outOvfPath);
-            fw.write(ovfStr2);
-            fw.close();
+            /* Delete scsi controller, disk and mounted cd-rom information,
+               and write it with the original ovf for debug. */
+            OutputStream out = new BufferedOutputStream
+                (new FileOutputStream(outOvfPath));
+            OutputStream origOut = null;
+            try {
+                origOut = new BufferedOutputStream
+                    (new FileOutputStream(outOvfPath + ".orig"));
+                new OvfSanitizer().sanitize
+                    (new StringReader(ovfStr), out, origOut);
+            } finally {
+                out.close();
+                if (origOut != null) { origOut.close(); }
+            }
             
         } catch (Exception e) {
             logger_.warning(Utility.toString(e));
@@ -1104,40 +1569,63 @@ public class VmbkpMain
     }
 
     /**
-     * Get and save changed blocks of vmdk file.
+     * Number of threads to query changed blocks
+     * unless [vsphere] pool_size is larger.
+     */
+    private static final int CBT_QUERY_THREADS = 4;
+
+    /**
+     * Submit changed block queries of disks
+     * which can be backed up in incremental mode.
+     */
+    private static void submitChangedBlockQueries
+        (ChangedBlockCollector cbtCollector,
+         VmArchiveManager vmArcMgr,
+         ProfileGeneration profGen,
+         List<VmdkInfo> vmdkInfoList)
+    {
+        for (VmdkInfo vmdkInfo : vmdkInfoList) {
+            int diskId = profGen.getDiskIdWithUuid(vmdkInfo.uuid_);
+            if (profGen.isIndependentDisk(diskId) ||
+                vmArcMgr.canExecIncrBackup(vmdkInfo.uuid_) == false) {
+                continue;
+            }
+            String prevChangeId = vmArcMgr.getPrevChangeId(diskId);
+            assert prevChangeId != null && (prevChangeId.equals("*") == false);
+            cbtCollector.submit(vmdkInfo, prevChangeId);
+        }
+    }
+
+    /**
+     * Get and save changed extents of vmdk file.
+     * The bitmap file will be made by saveChangedBitmapOfDisk()
+     * only when it is really required.
      *
-     * @param snap Target snapshot.
+     * @param cbtCollector Collector the query of the disk has been submitted.
      * @param vmArcMgr Vm profiles manager.
      * @param vmdkInfo Target vmdk.
      * @param diskId Target disk id in the profGen.
      * @return true in success, or false.
      */
     public static boolean getAndSaveChangedBlocksOfDisk
-        (SnapshotManager snap,
+        (ChangedBlockCollector cbtCollector,
          VmArchiveManager vmArcMgr,
          VmdkInfo vmdkInfo,
          int diskId)
     {
-        String prevChangeId = vmArcMgr.getPrevChangeId(diskId);
-        assert prevChangeId != null && (prevChangeId.equals("*") == false);
-        
-        VmdkBitmap bmp = snap.getChangedBlocksOfDisk(vmdkInfo, prevChangeId);
-        if (bmp == null) { return false; }
+        ChangedExtents extents = cbtCollector.get(vmdkInfo.uuid_);
+        if (extents == null) { return false; }
 
         ProfileGeneration profGen = vmArcMgr.getTargetGeneration();
+        String path = profGen.getExtentsPath(diskId);
+        if (path == null) { return false; }
 
         try {
-            /* Save the changed bitmap file */
-            FilterOutputStream fos =
-                new FilterOutputStream
-                (new FileOutputStream
-                 (profGen.getBmpInPath(diskId)));
-            bmp.writeTo(fos);
-            fos.close();
-
-            /* Check whether the bitmap is all zero or not.
-               (All zero means the vmdk does not change at all.) */
-            profGen.setIsChanged(diskId, bmp.isAllZero() == false);
+            /* Save the changed extents file */
+            extents.writeTo(path);
+
+            /* Empty extents means the vmdk does not change at all. */
+            profGen.setIsChanged(diskId, extents.isEmpty() == false);
             
         } catch (Exception e) {
             logger_.warning(Utility.toString(e));
@@ -1146,6 +1634,34 @@ public class VmbkpMain
         return true;
     }
 
+    /**
+     * Convert the saved changed extents file to a bitmap file
+     * for vmdkbkp.
+     *
+     * @return true in success, or false.
+     */
+    private static boolean saveChangedBitmapOfDisk
+        (ProfileGeneration profGen, VmdkInfo vmdkInfo, int diskId)
+    {
+        try {
+            ChangedExtents extents =
+                ChangedExtents.readFrom(profGen.getExtentsPath(diskId));
+
+            /* The bitmap must have the same block size as the dump. */
+            VmdkBitmap bmp = extents.toBitmap
+                (vmdkInfo.capacityInKB_ * 1024L, profGen.getBlockSize(diskId));
+            if (cfgGlobal_.isBmpCompressed()) {
+                CompressedBitmap.write(bmp, profGen.getBmpInPath(diskId));
+            } else {
+                bmp.writeTo(profGen.getBmpInPath(diskId));
+            }
+        } catch (Exception e) {
+            logger_.warning(Utility.toString(e));
+            return false;
+        }
+        return true;
+    }
+
     /**
      * Restore a virtual machine from an archive.
      *
@@ -1311,7 +1827,8 @@ public class VmbkpMain
                 /* Restore each remote vmdk file. */
                 ret = VmdkBkp.doRestore(vmArcMgr, tgtDiskId,
                                         morefOfNewVm, vmdkInfo.name_,
-                                        snapMoref, restoreInfo.isSan);
+                                        snapMoref, restoreInfo.isSan,
+                                        null);
                 if (ret) {
                     /* This vmdk restore succeeded. */
                     msg = String.format
@@ -1352,6 +1869,232 @@ public class VmbkpMain
         logger_.info("restoreVm() end.");
     }
 
+    /**
+     * Roll back disks of the existing virtual machine to a generation
+     * writing only blocks changed after the generation.
+     * The changed blocks are the union of the blocks of
+     * the generations after the target one and the blocks changed
+     * after the latest generation.
+     * The virtual machine should be powered off.
+     *
+     * @param vmArcMgr Vm profiles manager.
+     * @param restoreInfo generationId, isDryRun and isSan are used.
+     */
+    public static void rollbackVm
+        (VmArchiveManager vmArcMgr, RestoreInfo restoreInfo)
+        throws Exception
+    {
+        logger_.info("rollbackVm() start.");
+        String msg;
+        msg = String.format
+            ("Rollback target: \"%s\" (%s).",
+             vmArcMgr.getName(), vmArcMgr.getMoref());
+        System.out.println(msg); logger_.info(msg);
+
+        msg = restoreInfo.toString();
+        System.out.println(msg); logger_.info(msg);
+
+        /* Load the target and the latest generations. */
+        ProfileGeneration profGen =
+            vmArcMgr.loadProfileGeneration(restoreInfo.generationId);
+        ProfileGeneration latestGen = vmArcMgr.loadProfileGeneration(-1);
+        if (profGen == null || latestGen == null) {
+            throw new Exception("ProfileGeneration is null.");
+        }
+        vmArcMgr.setTargetGeneration(profGen);
+
+        String moref = vmArcMgr.getMoref();
+        VirtualMachineManager vmm = gm_.searchVmWithMoref(moref);
+        if (vmm == null) {
+            throw new Exception
+                (String.format("Could not find vm %s.", moref));
+        }
+
+        /* Finish if --dryrun option is specified. */
+        if (restoreInfo.isDryRun) {
+            msg = "Rollback ends cause dryrun.";
+            System.out.println(msg); logger_.info(msg);
+            return;
+        }
+
+        /* Create snapshot to get changed blocks after the latest
+           generation and to access the disks. */
+        Calendar cal = Calendar.getInstance();
+        String snapName = generateSnapshotName(cal);
+        createSnapshot(vmm, snapName);
+        msg = String.format
+            ("create snapshot name %s succeeded.", snapName);
+        System.out.println(msg); logger_.info(msg);
+
+        /* The snapshot is reverted and deleted even in failure. */
+        List<String> bmpPathList = new LinkedList<String>();
+        boolean isSucceeded = false;
+        try {
+            rollbackVmDetail
+                (vmArcMgr, restoreInfo, vmm, snapName,
+                 profGen, latestGen, bmpPathList);
+            isSucceeded = true;
+        } finally {
+            for (String bmpPath : bmpPathList) {
+                (new File(bmpPath)).delete();
+            }
+            try {
+                /* Reconnect if disconnected and reload. */
+                vmm = gm_.searchVmWithMoref(moref);
+                if (vmm == null) { throw new Exception("vmm is null."); }
+
+                /* Revert the vm to the snapshot and delete it. */
+                revertToSnapshot(vmm, snapName);
+                msg = String.format
+                    ("Revert to snapshot %s succeeded.", snapName);
+                System.out.println(msg); logger_.info(msg);
+
+                deleteSnapshot(vmm, snapName);
+                msg = String.format
+                    ("Delete snapshot %s succeeded.", snapName);
+                System.out.println(msg); logger_.info(msg);
+            } catch (Exception e) {
+                if (isSucceeded) { throw e; }
+                /* Do not hide the original exception. */
+                logger_.warning(Utility.toString(e));
+            }
+        }
+
+        logger_.info("rollbackVm() end.");
+    }
+
+    /**
+     * Called by rollbackVm() after the snapshot is created.
+     * Bitmaps of all disks are made before any disk is written.
+     * A disk whose changed blocks are not available is written
+     * in all blocks.
+     *
+     * @param bmpPathList Bitmap files written are added.
+     * @exception Exception If a disk cannot be rolled back.
+     */
+    private static void rollbackVmDetail
+        (VmArchiveManager vmArcMgr, RestoreInfo restoreInfo,
+         VirtualMachineManager vmm, String snapName,
+         ProfileGeneration profGen, ProfileGeneration latestGen,
+         List<String> bmpPathList)
+        throws Exception
+    {
+        String msg;
+        String moref = vmArcMgr.getMoref();
+        int genId = profGen.getGenerationId();
+
+        SnapshotManager snap = vmm.getCurrentSnapshot();
+        if (snap == null || snapName.equals(snap.getName()) == false) {
+            throw new Exception("Could not get snapshot.");
+        }
+        String snapMoref = snap.getMoref();
+
+        /* Every archived disk must exist with the same capacity. */
+        List<VmdkInfo> vmdkInfoList = snap.getConfig().getAllVmdkInfo();
+        List<Integer> tgtDiskIdList = new LinkedList<Integer>();
+        for (VmdkInfo vmdkInfo : vmdkInfoList) {
+            int tgtDiskId = profGen.getDiskIdWithUuid(vmdkInfo.uuid_);
+            if (tgtDiskId < 0) {
+                throw new Exception
+                    ("The disk is not in the archives.\n" +
+                     vmdkInfo.toString());
+            }
+            if (profGen.getCapacity(tgtDiskId) !=
+                vmdkInfo.capacityInKB_ * 1024L) {
+                throw new Exception
+                    (String.format("Capacity of vmdk %d is changed.\n",
+                                   tgtDiskId) + vmdkInfo.toString());
+            }
+            tgtDiskIdList.add(tgtDiskId);
+        }
+        for (Integer diskId : profGen.getDiskIdList()) {
+            if (tgtDiskIdList.contains(diskId) == false) {
+                throw new Exception
+                    (String.format("vmdk %d is not in the vm.",
+                                   diskId.intValue()));
+            }
+        }
+
+        /* Make bitmaps of blocks to write for each disk. */
+        for (int i = 0; i < vmdkInfoList.size(); i ++) {
+            VmdkInfo vmdkInfo = vmdkInfoList.get(i);
+            int tgtDiskId = tgtDiskIdList.get(i).intValue();
+            int latestDiskId = latestGen.getDiskIdWithUuid(vmdkInfo.uuid_);
+            long capacity = profGen.getCapacity(tgtDiskId);
+            int blockSize = profGen.getBlockSize(tgtDiskId);
+
+            VmdkBitmap bmp = null;
+            VmdkBitmap curr = null;
+            if (latestDiskId >= 0) {
+                bmp = vmArcMgr.getMergedChangedBitmap
+                    (genId, latestGen, vmdkInfo.uuid_);
+            }
+            if (bmp != null) {
+                curr = snap.getChangedBlocksOfDisk
+                    (vmdkInfo, latestGen.getChangeId(latestDiskId),
+                     bmp.getBlockSize());
+            }
+            if (bmp == null || curr == null ||
+                bmp.getBlockSize() != blockSize ||
+                bmp.size() != curr.size()) {
+                msg = String.format
+                    ("Changed blocks of vmdk %d are not available. " +
+                     "All blocks are written.", tgtDiskId);
+                System.out.println(msg); logger_.warning(msg);
+                bmp = new VmdkBitmap(capacity, blockSize);
+                bmp.setRangeInBytes(0, capacity);
+            } else {
+                bmp.or(curr);
+            }
+
+            String bmpPath = String.format
+                ("%s/vmdkbkp.rollback.%s.%d.%d.bmp",
+                 profGen.getDirectory(), moref, genId, tgtDiskId);
+            bmpPathList.add(bmpPath);
+            bmp.writeTo(bmpPath);
+            msg = String.format
+                ("Rollback vmdk %d: %d of %d blocks.",
+                 tgtDiskId, bmp.cardinality(), bmp.size());
+            System.out.println(msg); logger_.info(msg);
+        }
+
+        /* Writes to the base disks are not reliably tracked by
+           changed block tracking, so the next incr backup would miss
+           rolled back blocks. The latest generation is saved not to be
+           the base of incr backup before any disk is written. */
+        for (Integer diskId : latestGen.getDiskIdList()) {
+            latestGen.clearChangeId(diskId.intValue());
+        }
+        latestGen.write();
+
+        gm_.disconnect(); /* to avoid soap timeout. */
+        List<Integer> failedList = new LinkedList<Integer>();
+        for (int i = 0; i < vmdkInfoList.size(); i ++) {
+            VmdkInfo vmdkInfo = vmdkInfoList.get(i);
+            int tgtDiskId = tgtDiskIdList.get(i).intValue();
+
+            boolean ret = VmdkBkp.doRestore(vmArcMgr, tgtDiskId,
+                                            moref, vmdkInfo.name_,
+                                            snapMoref, restoreInfo.isSan,
+                                            bmpPathList.get(i));
+            if (ret) {
+                msg = String.format
+                    ("Rollback vmdk %d succeeded.", tgtDiskId);
+            } else {
+                msg = String.format
+                    ("Rollback vmdk %d failed.\n", tgtDiskId) +
+                    vmdkInfo.toString();
+                failedList.add(tgtDiskId);
+            }
+            System.out.println(msg); logger_.info(msg);
+        }
+        if (failedList.isEmpty() == false) {
+            throw new Exception
+                (String.format("Rollback of vmdk %s failed.",
+                               failedList.toString()));
+        }
+    }
+
     /**
      * Check the archives of the specified vm and its generation.
      *
@@ -1445,6 +2188,7 @@ public class VmbkpMain
             String msg = String.format("Delete directory %s failed.", backupDirPath);
             throw new Exception(msg);
         }
+        (new ArchiveCatalog(cfgGlobal_)).remove(vmInfo.getMoref());
     }
     
     /**
@@ -1507,36 +2251,86 @@ public class VmbkpMain
                                               VirtualMachineManager vmm, String snapName)
         throws Exception
     {
-        VmdkBkp.lock(cfgGlobal_);
-        try {
+        List<VirtualMachineManager> vmmList =
+            new LinkedList<VirtualMachineManager>();
+        vmmList.add(vmm);
+        List<String> snapNameList = new LinkedList<String>();
+        snapNameList.add(snapName);
+
+        if (operateSnapshots(type, vmmList, snapNameList)[0] == false) {
+            String msg;
             switch (type) {
             case CREATE:
-                if (! vmm.createSnapshot(snapName)) {
-                    String msg = String.format("Create snapshot %s failed.", snapName);
-                    throw new Exception(msg);
-                }
+                msg = String.format("Create snapshot %s failed.", snapName);
                 break;
-            
             case DELETE:
-                if (! vmm.deleteSnapshot(snapName)) {
-                    String msg = String.format("Delete snapshot %s failed.", snapName);
-                    throw new Exception(msg);
-                }
+                msg = String.format("Delete snapshot %s failed.", snapName);
                 break;
-            
-            case REVERT:
-                if (! vmm.revertToSnapshot(snapName)) {
-                    String msg = String.format("Reverting to snapshot %s failed.", snapName);
-                    throw new Exception(msg);
-                }
+            default: /* REVERT */
+                msg = String.format("Reverting to snapshot %s failed.", snapName);
                 break;
-            
-            default:
-                assert false;
+            }
+            throw new Exception(msg);
+        }
+    }
+
+    /**
+     * Operate snapshots of virtual machines concurrently
+     * in a single hold of the lock shared with vmdkbkp processes.
+     * All tasks are started before waiting for them.
+     *
+     * @param vmmList Virtual machines.
+     * @param snapNameList Snapshot name for each virtual machine.
+     * @return Result for each virtual machine.
+     */
+    private static boolean[] operateSnapshots
+        (TaskType type, List<VirtualMachineManager> vmmList,
+         List<String> snapNameList)
+        throws Exception
+    {
+        assert vmmList.size() == snapNameList.size();
+        boolean[] ret = new boolean[vmmList.size()];
+        List<Future<String>> futureList = new LinkedList<Future<String>>();
+
+        VmdkBkp.lock(cfgGlobal_);
+        try {
+            int i = 0;
+            for (VirtualMachineManager vmm : vmmList) {
+                String snapName = snapNameList.get(i ++);
+                Future<String> future = null;
+                try {
+                    switch (type) {
+                    case CREATE:
+                        future = vmm.createSnapshotAsync(snapName); break;
+                    case DELETE:
+                        future = vmm.deleteSnapshotAsync(snapName); break;
+                    case REVERT:
+                        future = vmm.revertToSnapshotAsync(snapName); break;
+                    default:
+                        assert false;
+                    }
+                } catch (Exception e) {
+                    logException(e, String.format("%s snapshot %s of %s failed.",
+                                                  type, snapName, vmm.getMoref()));
+                }
+                futureList.add(future);
+            }
+
+            i = 0;
+            for (Future<String> future : futureList) {
+                if (future != null) {
+                    try {
+                        ret[i] = future.get().equals("success");
+                    } catch (Exception e) {
+                        logException(e);
+                    }
+                }
+                i ++;
             }
         } finally {
             VmdkBkp.unlock();
         }
+        return ret;
     }
 
     
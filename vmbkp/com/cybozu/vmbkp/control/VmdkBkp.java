@@ -1,6 +1,6 @@
 /**
  * @file
- * @brief VmdkBkp, PrintStreamThread, ThreadLock.
+ * @brief VmdkBkp, PrintStreamThread, LockProcess.
  *
  * Copyright (C) 2009,2010 Cybozu Inc., all rights reserved.
  *
@@ -11,9 +11,6 @@ package com.cybozu.vmbkp.control;
 import java.util.List;
 import java.util.LinkedList;
 import java.util.logging.Logger;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.Condition;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -28,11 +25,13 @@ import com.cybozu.vmbkp.config.FormatString;
 
 import com.cybozu.vmbkp.util.Utility;
 import com.cybozu.vmbkp.util.BackupMode;
+import com.cybozu.vmbkp.util.CompressedBitmap;
 
 import com.cybozu.vmbkp.profile.ConfigGlobal;
 import com.cybozu.vmbkp.profile.ProfileGeneration;
 
 import com.cybozu.vmbkp.control.VmArchiveManager;
+import com.cybozu.vmbkp.control.VmdkBkpSupervisor.JobClass;
 
 /**
  * @brief Output to stream in parallel.
@@ -55,17 +54,42 @@ class PrintStreamThread extends Thread
      */
     private BufferedWriter out_;
 
+    /**
+     * Progress parsed from the stream, or null.
+     */
+    private VmdkBkpProgress progress_;
+
+    /**
+     * Interval to flush the output.
+     */
+    private static final long FLUSH_INTERVAL_MS = 1000L;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     /**
      * Constructor.
      */
     public PrintStreamThread(InputStream in, String outFileName)
+    {
+        this(in, outFileName, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param progress Progress to update with progress lines, or null.
+     */
+    public PrintStreamThread(InputStream in, String outFileName,
+                             VmdkBkpProgress progress)
     {    
+        progress_ = progress;
         in_ = new BufferedReader(new InputStreamReader(in));
         BufferedWriter backupOut = null;
         try {
             backupOut = new BufferedWriter(new OutputStreamWriter(System.out));
             /* open append mode */
-            out_ = new BufferedWriter(new FileWriter(outFileName, true));
+            out_ = new BufferedWriter
+                (new FileWriter(outFileName, true), BUFFER_SIZE);
         } catch (IOException e) {
             logger_.warning(Utility.toString(e));
             logger_.info("Fall back to stdout.");
@@ -82,10 +106,18 @@ class PrintStreamThread extends Thread
         
         assert out_ != null;
         try {
+            /* Flush at intervals instead of each line
+               not to slow down with many progress characters. */
+            long flushedMs = System.currentTimeMillis();
             String str = null;
             while ((str = in_.readLine()) != null) {
+                if (progress_ != null) { progress_.parse(str); }
                 out_.write(str, 0, str.length());
-                out_.newLine(); out_.flush();
+                out_.newLine();
+                long now = System.currentTimeMillis();
+                if (now - flushedMs >= FLUSH_INTERVAL_MS) {
+                    out_.flush(); flushedMs = now;
+                }
             }
             out_.close();
             in_.close();
@@ -99,187 +131,129 @@ class PrintStreamThread extends Thread
 }
 
 /**
- * @brief Lock thread.
+ * @brief Long-lived vmdkbkp lock process.
+ *
+ * The process is started at the first lock()
+ * and reused for later critical sections until close().
  */
-class LockThread extends Thread
+class LockProcess
 {
     /**
      * Logger
      */
     private static final Logger logger_ =
-        Logger.getLogger(LockThread.class.getName());
-        
+        Logger.getLogger(LockProcess.class.getName());
+
+    private ConfigGlobal cfgGlobal_;
+
     private Process proc_;
     private BufferedWriter out_;
     private BufferedReader in_;
-    
-    private ConfigGlobal cfgGlobal_;
-
-    private final Lock mutex_ = new ReentrantLock();
-    private final Condition isLockCond_ = mutex_.newCondition();
-    private volatile boolean isLock_ = false;
-    private final Condition isUnlockCond_ = mutex_.newCondition();
-    private volatile boolean isUnlock_ = false;
-    
+    private boolean isLocked_;
 
-    public LockThread(ConfigGlobal cfgGlobal) {
+    public LockProcess(ConfigGlobal cfgGlobal) {
 
         assert (cfgGlobal != null);
         cfgGlobal_ = cfgGlobal;
-    }
-
-    public void lock() {
-
-        start();
-        waitForLockDone();
-    }
-    
-    public void unlock() {
-
-        mutex_.lock();
-        try {
-            isUnlock_ = true;
-            isUnlockCond_.signal();
-
-        } finally {
-            mutex_.unlock();
-        }
+        proc_ = null;
+        isLocked_ = false;
     }
 
     /**
-     * For master.
+     * Enter the critical section.
+     * Nothing is done if already locked.
      */
-    private void waitForLockDone() {
+    public void lock() throws IOException {
 
-        mutex_.lock();
+        if (isLocked_) { return; }
         try {
-            while (! isLock_) {
-                isLockCond_.await();
+            if (proc_ == null) {
+                start();
+            } else {
+                send("LOCK");
             }
-        } catch (InterruptedException ignored) {
-        } finally {
-            mutex_.unlock();
+            recv("LOCKED");
+        } catch (IOException e) {
+            destroy();
+            throw e;
         }
+        isLocked_ = true;
     }
 
     /**
-     * For worker.
+     * Leave the critical section keeping the process.
      */
-    private void notifyLockDone() {
+    public void unlock() {
 
-        mutex_.lock();
+        if (! isLocked_) { return; }
+        isLocked_ = false;
         try {
-            isLock_ = true;
-            isLockCond_.signal();
-            
-        } finally {
-            mutex_.unlock();
-        }
-    }
-    
-    /**
-     * For worker.
-     */
-    private void recvLocked() throws IOException {
-
-        String locked = in_.readLine();
-        if (locked == null) {
-            String msg = "Locker may be dead.";
-            logger_.warning(msg);
-            throw new IOException(msg);
-        }
-        if (! locked.equals("LOCKED")) {
-            String msg = "Locker did not say LOCKED.";
-            logger_.warning(msg);
-            throw new IOException(msg);
+            send("UNLOCK");
+            recv("UNLOCKED");
+        } catch (IOException e) {
+            logger_.warning(Utility.toString(e));
+            destroy();
         }
     }
 
     /**
-     * For worker.
-     */
-    private void sendUnlock() throws IOException {
-
-        String unlock = "UNLOCK";
-        out_.write(unlock, 0, unlock.length());
-        out_.newLine(); out_.flush();
-    }
-
-    /**
-     * For worker.
+     * Unlock and stop the process.
      */
-    private void recvUnlocked() throws IOException {
-
-        String unlocked = in_.readLine();
-        if (unlocked == null) {
-            String msg = "Locker may be dead.";
-            logger_.warning(msg);
-            throw new IOException(msg);
-        }
-        if (! unlocked.equals("UNLOCKED")) {
-            String msg = "Locker did not say UNLOCKED.";
-            logger_.warning(msg);
-            throw new IOException(msg);
-        }
-    }
+    public void close() {
 
-    /**
-     * For worker.
-     */
-    private void waitUnlockCalled() {
-        
-        mutex_.lock();
+        unlock();
+        if (proc_ == null) { return; }
         try {
-            /* Wait for unlock() called */
-            while (! isUnlock_) {
-                isUnlockCond_.await();
-            }
-        } catch (InterruptedException ignored) {
-        } finally {
-            mutex_.unlock();
+            send("QUIT");
+            out_.close();
+            proc_.waitFor();
+        } catch (Exception e) {
+            logger_.warning(Utility.toString(e));
+            proc_.destroy();
         }
+        proc_ = null;
+        out_ = null;
+        in_ = null;
     }
-    
-    @Override
-    public void run() {
 
-        /* Master calls lock() to start this thread. */
+    private void start() throws IOException {
+
         String vmdkBkp = cfgGlobal_.getVmdkBkpPath();
         if (vmdkBkp == null) {
-            logger_.severe("vmdkbkp path is not available.");
-            return;
+            throw new IOException("vmdkbkp path is not available.");
         }
         String[] cmd = new String[] { vmdkBkp, "lock" };
-        
-        /* Execute lock command. */
-        try {
-            proc_ = Runtime.getRuntime().exec(cmd);
-        } catch (IOException e) {
-            logger_.severe("execution of vmdkbkp lock command failed.");
-            return;
-        }
-
+        proc_ = Runtime.getRuntime().exec(cmd);
         out_ = new BufferedWriter
             (new OutputStreamWriter(proc_.getOutputStream()));
         in_  = new BufferedReader
             (new InputStreamReader(proc_.getInputStream()));
+        logger_.info("vmdkbkp lock process started.");
+    }
 
-        try {
-            recvLocked();
-            notifyLockDone();
-            waitUnlockCalled();
-            sendUnlock();
-            recvUnlocked();
+    private void destroy() {
 
-        } catch (IOException e) {
+        if (proc_ != null) { proc_.destroy(); }
+        proc_ = null;
+        out_ = null;
+        in_ = null;
+    }
 
-            logger_.warning("IO exception" + e.toString() + ".");
-            proc_.destroy();
-            return;
+    private void send(String line) throws IOException {
+
+        out_.write(line, 0, line.length());
+        out_.newLine(); out_.flush();
+    }
+
+    private void recv(String expected) throws IOException {
+
+        String line = in_.readLine();
+        if (line == null) {
+            throw new IOException("Locker may be dead.");
+        }
+        if (! line.equals(expected)) {
+            throw new IOException("Locker did not say " + expected + ".");
         }
-        try {
-            proc_.waitFor();
-        } catch (InterruptedException ignored) {}
     }
 }
 
@@ -297,14 +271,24 @@ public class VmdkBkp
     
     /**
      * A wrapper of Runtime.exec().
+     * The command starts after admitted by VmdkBkpSupervisor.
      *
      * @param command Command list.
      * @param workDirStr Working directory.
+     * @param cfgGlobal Global config.
+     * @param jobClass Job class for admission.
+     * @param heldSlot Slot already admitted for the command, or null.
+     * @param progress Progress parsed from stdout, or null.
      * @return True when the command returns with status 0, or false.
      */
     private static boolean execCommand(List<String> command, String workDirStr,
-                                       String outFilePath, String errFilePath)
+                                       String outFilePath, String errFilePath,
+                                       ConfigGlobal cfgGlobal, JobClass jobClass,
+                                       VmdkBkpSupervisor.Slot heldSlot,
+                                       VmdkBkpProgress progress)
     {
+        VmdkBkpSupervisor.Slot slot = null;
+        boolean isStarted = false;
         try {
             /* return value */
             int ret = -1;
@@ -321,14 +305,28 @@ public class VmdkBkp
         
             if (workDir.exists() && workDir.isDirectory()) {
                 /* good */
+                if (heldSlot == null) {
+                    slot = VmdkBkpSupervisor.admit
+                        (cfgGlobal, jobClass, workDir);
+                } else {
+                    VmdkBkpSupervisor.start(heldSlot, workDir);
+                    isStarted = true;
+                }
+                if (progress != null) { progress.start(); }
                 proc = Runtime.getRuntime().exec(commandStrs, null, workDir);
                 stdout = proc.getInputStream();
                 stderr = proc.getErrorStream();
 
-                (new PrintStreamThread(stdout, outFilePath)).start();
-                (new PrintStreamThread(stderr, errFilePath)).start();
+                Thread outTh =
+                    new PrintStreamThread(stdout, outFilePath, progress);
+                Thread errTh = new PrintStreamThread(stderr, errFilePath);
+                outTh.start();
+                errTh.start();
         
                 ret = proc.waitFor();
+                /* Wait for the rest of outputs and progress. */
+                outTh.join();
+                errTh.join();
                 /* proc.exitValue(); */
                 logger_.info(String.format("exitvalue: %d\n", ret));
 
@@ -345,9 +343,12 @@ public class VmdkBkp
         } catch (IOException e) {
             logger_.warning(Utility.toString(e));
             return false;
-        } catch (InterruptedException e) {
+        } catch (Exception e) {
             logger_.warning(Utility.toString(e));
             return false;
+        } finally {
+            VmdkBkpSupervisor.release(slot);
+            if (isStarted) { VmdkBkpSupervisor.finish(heldSlot); }
         }
     }
 
@@ -359,13 +360,15 @@ public class VmdkBkp
      * @param vmArcMgr Archive manager.
      * @param isSan True if you use SAN transfer.
      * @param diskId disk id to backup.
+     * @param slot Slot held for dumps of the virtual machine, or null.
      */
     public static boolean doDump
         (BackupMode mode,
          String vmMoref,
          VmArchiveManager vmArcMgr,
          int diskId,
-         boolean isSan)
+         boolean isSan,
+         VmdkBkpSupervisor.Slot slot)
     {
         if (vmMoref == null ||
             vmArcMgr== null) {
@@ -417,6 +420,14 @@ public class VmdkBkp
 
         if (isSan) { cmds.add("--san"); }
 
+        int blockSize = profGen.getBlockSize(diskId);
+        if (blockSize <= 0) {
+            logger_.warning("block size is invalid.");
+            return false;
+        }
+        cmds.add("--blocksize");
+        cmds.add(Integer.toString(blockSize));
+
         String prevDumpPath = null;
         if (mode == BackupMode.DIFF || mode == BackupMode.INCR) {
             cmds.add("--dumpin"); /* dumpIn */
@@ -435,9 +446,24 @@ public class VmdkBkp
         cmds.add("--digestout"); /* digestOut */
         cmds.add(profGen.getDigestOutFileName(diskId));
         
+        /* A compressed bitmap is expanded for vmdkbkp
+           and deleted after the dump. */
+        String rawBmpPath = null;
         if (mode == BackupMode.INCR) {
             cmds.add("--bmpin"); /* bmpIn */
-            cmds.add(profGen.getBmpInFileName(diskId));
+            String bmpInPath = profGen.getBmpInPath(diskId);
+            try {
+                if (CompressedBitmap.isCompressed(bmpInPath)) {
+                    rawBmpPath = bmpInPath + ".raw";
+                    CompressedBitmap.expand(bmpInPath, rawBmpPath);
+                    cmds.add(profGen.getBmpInFileName(diskId) + ".raw");
+                } else {
+                    cmds.add(profGen.getBmpInFileName(diskId));
+                }
+            } catch (Exception e) {
+                logger_.warning(Utility.toString(e));
+                return false;
+            }
         }
         if (mode == BackupMode.DIFF || mode == BackupMode.INCR) {
             cmds.add("--rdiffout"); /* rdiffOut */
@@ -462,7 +488,17 @@ public class VmdkBkp
         String errFilePath = workDir + "/" + diskId + ".err";
         
         /* execute the command */
-        boolean ret = execCommand(cmds2, workDir, outFilePath, errFilePath);
+        VmdkBkpProgress progress = new VmdkBkpProgress
+            ("disk " + diskId, workDir + "/" + diskId + ".progress");
+        boolean ret = execCommand(cmds2, workDir, outFilePath, errFilePath,
+                                  cfgGlobal, JobClass.BACKUP, slot, progress);
+        if (rawBmpPath != null) { (new File(rawBmpPath)).delete(); }
+        progress.end();
+        if (ret && progress.isParsed()) {
+            profGen.setDumpThroughput
+                (diskId, progress.getBytesRead(), progress.getBytesWritten(),
+                 progress.getAverageReadRate(), progress.getAverageWriteRate());
+        }
 
         logger_.info("doDump " + (ret ? "succeeded" : "failed"));
         return ret;
@@ -477,6 +513,8 @@ public class VmdkBkp
      * @param remoteVmdkPath remote path of vmdk file to restore.
      * @param snapMoref snapshot moref to restore.
      * @param isSan True if you use SAN transfer.
+     * @param bmpInPath bitmap file of blocks to write to the existing vmdk,
+     *        or null to restore all blocks to an empty vmdk.
      * @return ture in success, false in failure.
      */
     public static boolean doRestore
@@ -485,7 +523,8 @@ public class VmdkBkp
          String vmMoref,
          String remoteVmdkPath,
          String snapMoref,
-         boolean isSan)
+         boolean isSan,
+         String bmpInPath)
     {
         /* Check each parameter. */
         if (vmArcMgr == null ||
@@ -544,11 +583,21 @@ public class VmdkBkp
 
         if (isSan) { cmds.add("--san"); }
 
-        /* These are required to restoring empty thin vmdk. */
+        /* Block size of the archives. */
+        cmds.add("--blocksize");
+        cmds.add(Integer.toString(profGen.getBlockSize(diskId)));
+
         String digestPath = vmArcMgr.getDigestPathForCheck(diskId);
         cmds.add("--digestin");
         cmds.add(digestPath);
-        cmds.add("--omitzeroblock");
+        if (bmpInPath == null) {
+            /* These are required to restoring empty thin vmdk. */
+            cmds.add("--omitzeroblock");
+        } else {
+            /* Overwrite only changed blocks of the existing vmdk. */
+            cmds.add("--bmpin");
+            cmds.add(bmpInPath);
+        }
 
         /* All dump/rdiff path in line. */
         cmds.addAll(pathList);
@@ -570,7 +619,12 @@ public class VmdkBkp
         String outFilePath = workDir + "/" + commonFilename + ".log";
         String errFilePath = workDir + "/" + commonFilename + ".err";
             
-        boolean ret = execCommand(cmds2, workDir, outFilePath, errFilePath);
+        VmdkBkpProgress progress = new VmdkBkpProgress
+            ("restore disk " + diskId,
+             workDir + "/" + commonFilename + ".progress");
+        boolean ret = execCommand(cmds2, workDir, outFilePath, errFilePath,
+                                  cfgGlobal, JobClass.RESTORE, null, progress);
+        progress.end();
         if (ret) {
             logger_.info("vmdkbkp command succeeded.");
         } else {
@@ -675,7 +729,8 @@ public class VmdkBkp
             System.out.printf("dryrun: %s\n", joined);
             ret = true;
         } else {
-            ret = execCommand(cmds2, workDir, outFilePath, errFilePath);
+            ret = execCommand(cmds2, workDir, outFilePath, errFilePath,
+                              cfgGlobal_, JobClass.CHECK, null, null);
             if (ret) {
                 logger_.info("vmdkbkp check OK.");
                 System.out.println("Check OK.");
@@ -689,28 +744,39 @@ public class VmdkBkp
     }
 
     /**
-     * Lock thread.
+     * Lock process shared in the process.
      */
-    private static LockThread lockThread_ = null;
+    private static LockProcess lockProc_ = null;
     
     /**
      * Lock the lock file shared with vmdkbkp processes.
+     * The lock process is kept after unlock() to be reused.
      */
-    public static void lock(ConfigGlobal cfgGlobal)
+    public static synchronized void lock(ConfigGlobal cfgGlobal)
+        throws IOException
     {
-        if (lockThread_ != null) { return; }
-
-        lockThread_ = new LockThread(cfgGlobal);
-        lockThread_.lock();
+        if (lockProc_ == null) {
+            lockProc_ = new LockProcess(cfgGlobal);
+        }
+        lockProc_.lock();
     }
 
     /**
      * unlock the lock file shared with vmdkbkp processes.
      */
-    public static void unlock()
+    public static synchronized void unlock()
+    {
+        if (lockProc_ == null) { return; }
+        lockProc_.unlock();
+    }
+
+    /**
+     * Stop the lock process.
+     */
+    public static synchronized void closeLock()
     {
-        if (lockThread_ == null) { return; }
-        lockThread_.unlock();
-        lockThread_ = null;
+        if (lockProc_ == null) { return; }
+        lockProc_.close();
+        lockProc_ = null;
     }
 }
@@ -0,0 +1,238 @@
+/**
+ * @file
+ * @brief VmdkBkpProgress
+ *
+ * Copyright (C) 2009,2010 Cybozu Inc., all rights reserved.
+ *
+ * @author Takashi HOSHINO <hoshino@labs.cybozu.co.jp>
+ */
+package com.cybozu.vmbkp.control;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import com.cybozu.vmbkp.util.Utility;
+
+/**
+ * @brief Progress of a vmdkbkp process for a disk.
+ *
+ * vmdkbkp prints lines
+ * "PROGRESS <blocks done> <total blocks> <bytes read> <bytes written>".
+ * Throughput is measured between lines at least one second apart.
+ * Time is measured from start(), called after the process is admitted.
+ * The progress is shown at most every SHOW_INTERVAL_MS
+ * and written to the progress file if specified.
+ */
+public class VmdkBkpProgress
+{
+    /**
+     * Logger.
+     */
+    private static final Logger logger_ =
+        Logger.getLogger(VmdkBkpProgress.class.getName());
+
+    private static final String PREFIX = "PROGRESS ";
+
+    /**
+     * Interval to show progress.
+     */
+    private static final long SHOW_INTERVAL_MS = 10000L;
+
+    private final String name_;
+    private final String progressPath_;
+
+    private long blocksDone_ = 0L;
+    private long blocksTotal_ = 0L;
+    private long bytesRead_ = 0L;
+    private long bytesWritten_ = 0L;
+
+    private long beginMs_;
+    private long endMs_ = -1L;
+
+    /**
+     * Sample of the last throughput calculation.
+     */
+    private long sampleMs_;
+    private long sampleRead_ = 0L;
+    private long sampleWritten_ = 0L;
+
+    /**
+     * Bytes per second in the last sample period.
+     */
+    private double readRate_ = 0.0;
+    private double writeRate_ = 0.0;
+
+    private long shownMs_;
+
+    /**
+     * True after a progress line is parsed.
+     */
+    private boolean isParsed_ = false;
+
+    /**
+     * Constructor.
+     *
+     * @param name Name of the target to show such as "disk 0".
+     * @param progressPath File to write the latest progress, or null.
+     */
+    public VmdkBkpProgress(String name, String progressPath)
+    {
+        name_ = name;
+        progressPath_ = progressPath;
+        beginMs_ = System.currentTimeMillis();
+        sampleMs_ = beginMs_;
+        shownMs_ = beginMs_;
+    }
+
+    /**
+     * Start measuring time just before the process starts.
+     * Time waiting for the admission is not included.
+     */
+    public synchronized void start()
+    {
+        beginMs_ = System.currentTimeMillis();
+        sampleMs_ = beginMs_;
+        shownMs_ = beginMs_;
+    }
+
+    /**
+     * Parse a line of vmdkbkp output.
+     *
+     * @return True if the line is a progress line.
+     */
+    public synchronized boolean parse(String line)
+    {
+        if (line.startsWith(PREFIX) == false) { return false; }
+        String[] f = line.substring(PREFIX.length()).trim().split("\\s+");
+        if (f.length != 4) { return false; }
+        try {
+            update(Long.parseLong(f[0]), Long.parseLong(f[1]),
+                   Long.parseLong(f[2]), Long.parseLong(f[3]),
+                   System.currentTimeMillis());
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        isParsed_ = true;
+        return true;
+    }
+
+    /**
+     * Update the progress.
+     */
+    private synchronized void update(long blocksDone, long blocksTotal,
+                                     long bytesRead, long bytesWritten,
+                                     long nowMs)
+    {
+        blocksDone_ = blocksDone;
+        blocksTotal_ = blocksTotal;
+        bytesRead_ = bytesRead;
+        bytesWritten_ = bytesWritten;
+
+        long ms = nowMs - sampleMs_;
+        if (ms >= 1000L) {
+            readRate_ = (bytesRead - sampleRead_) * 1000.0 / ms;
+            writeRate_ = (bytesWritten - sampleWritten_) * 1000.0 / ms;
+            sampleMs_ = nowMs;
+            sampleRead_ = bytesRead;
+            sampleWritten_ = bytesWritten;
+        }
+
+        if (nowMs - shownMs_ >= SHOW_INTERVAL_MS) {
+            shownMs_ = nowMs;
+            show();
+        }
+    }
+
+    /**
+     * Mark the end of the process and show the result.
+     */
+    public synchronized void end()
+    {
+        endMs_ = System.currentTimeMillis();
+        if (progressPath_ != null) { (new File(progressPath_)).delete(); }
+        if (isParsed_ == false) { return; }
+        String msg = toString();
+        System.out.println(msg); logger_.info(msg);
+    }
+
+    /**
+     * True if vmdkbkp has printed progress.
+     */
+    public synchronized boolean isParsed()
+    {
+        return isParsed_;
+    }
+
+    public synchronized long getBlocksDone() { return blocksDone_; }
+    public synchronized long getBlocksTotal() { return blocksTotal_; }
+    public synchronized long getBytesRead() { return bytesRead_; }
+    public synchronized long getBytesWritten() { return bytesWritten_; }
+
+    /**
+     * Average bytes read per second from the beginning.
+     */
+    public synchronized long getAverageReadRate()
+    {
+        return (long) (bytesRead_ * 1000.0 / getElapsedMs());
+    }
+
+    /**
+     * Average bytes written per second from the beginning.
+     */
+    public synchronized long getAverageWriteRate()
+    {
+        return (long) (bytesWritten_ * 1000.0 / getElapsedMs());
+    }
+
+    private long getElapsedMs()
+    {
+        long now = (endMs_ < 0 ? System.currentTimeMillis() : endMs_);
+        return Math.max(now - beginMs_, 1L);
+    }
+
+    /**
+     * Show the progress and write the progress file.
+     */
+    private void show()
+    {
+        String msg = toString();
+        System.out.println(msg); logger_.info(msg);
+        if (progressPath_ == null) { return; }
+
+        File file = new File(progressPath_);
+        File tmp = new File(progressPath_ + ".tmp");
+        try {
+            FileWriter out = new FileWriter(tmp);
+            try {
+                out.write(msg); out.write("\n");
+            } finally {
+                out.close();
+            }
+            if (tmp.renameTo(file) == false) {
+                throw new IOException("rename failed: " + tmp.getPath());
+            }
+        } catch (IOException e) {
+            logger_.warning(Utility.toString(e));
+        }
+    }
+
+    /**
+     * Progress string.
+     * Throughput is the last one while running and the average at the end.
+     */
+    public synchronized String toString()
+    {
+        double percent = (blocksTotal_ > 0 ?
+                          blocksDone_ * 100.0 / blocksTotal_ : 0.0);
+        double readRate = (endMs_ < 0 ? readRate_ : getAverageReadRate());
+        double writeRate = (endMs_ < 0 ? writeRate_ : getAverageWriteRate());
+        return String.format
+            ("%s: %.1f%% (%d/%d blocks) read %.1f MB/s write %.1f MB/s%s",
+             name_, percent, blocksDone_, blocksTotal_,
+             readRate / 1048576.0, writeRate / 1048576.0,
+             (endMs_ < 0 ? "" :
+              String.format(" in %d s", getElapsedMs() / 1000L)));
+    }
+}
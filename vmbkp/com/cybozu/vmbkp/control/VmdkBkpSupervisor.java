@@ -0,0 +1,390 @@
+/**
+ * @file
+ * @brief VmdkBkpSupervisor
+ *
+ * Copyright (C) 2009,2010 Cybozu Inc., all rights reserved.
+ *
+ * @author Takashi HOSHINO <hoshino@labs.cybozu.co.jp>
+ */
+package com.cybozu.vmbkp.control;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.BufferedReader;
+import java.io.PrintWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import com.cybozu.vmbkp.util.AdmissionQueue;
+import com.cybozu.vmbkp.util.Utility;
+import com.cybozu.vmbkp.profile.ConfigGlobal;
+
+/**
+ * @brief Admission control of vmdkbkp processes.
+ *
+ * A process waits in the queue of the root directory
+ * and then in the queue of the host before it starts.
+ * Restore is prior to backup, and backup is prior to check.
+ * Restore may exceed each limit by one not to wait for long dumps.
+ *
+ * Unless no process runs, backup and check are not admitted
+ * while the load average is too high, and backup is not admitted
+ * while a dump more did not increase the write throughput
+ * of the root directory in the records.
+ *
+ * A backup holds one slot from before its snapshot is created
+ * until all dumps of the virtual machine end.
+ */
+public class VmdkBkpSupervisor
+{
+    /**
+     * Logger.
+     */
+    private static final Logger logger_ =
+        Logger.getLogger(VmdkBkpSupervisor.class.getName());
+
+    /**
+     * Job classes in order of priority.
+     */
+    public enum JobClass { RESTORE, BACKUP, CHECK }
+
+    /**
+     * Queue directory of the host.
+     */
+    private static final String HOST_QUEUE_PATH =
+        System.getProperty("java.io.tmpdir") + "/vmbkp.vmdkbkp.queue.d";
+
+    /**
+     * Queue directory name in the root directory.
+     */
+    static final String ARCHIVE_QUEUE_NAME = "vmdkbkp.queue.d";
+
+    /**
+     * File of dump throughput per process for each concurrency
+     * in the archive queue directory.
+     */
+    private static final String THROUGHPUT_FILE = "throughput";
+
+    /**
+     * Throughput older than this is not used.
+     */
+    private static final long THROUGHPUT_EXPIRE_MS = 6L * 3600L * 1000L;
+
+    /**
+     * A dump more must increase the total throughput by this ratio.
+     */
+    private static final double MIN_GAIN = 1.1;
+
+    /**
+     * Throughput per process with the time of the record.
+     */
+    private static class Rate
+    {
+        double bytesPerSec_;
+        long timeMs_;
+    }
+
+    /**
+     * Admitted job.
+     */
+    public static class Slot
+    {
+        private final JobClass jobClass_;
+        private AdmissionQueue archiveQueue_ = null;
+        private AdmissionQueue.Ticket archiveTicket_ = null;
+        private AdmissionQueue hostQueue_ = null;
+        private AdmissionQueue.Ticket hostTicket_ = null;
+        private File workDir_ = null;
+        private long bytes0_;
+        private long beginMs_;
+
+        private Slot(JobClass jobClass)
+        {
+            jobClass_ = jobClass;
+        }
+    }
+
+    /**
+     * Wait until a vmdkbkp process of the job can start.
+     *
+     * @param cfgGlobal Global config.
+     * @param jobClass Job class.
+     * @param workDir Directory where a dump writes archives,
+     *        or null to hold the slot for dumps with start() and finish().
+     * @return Slot to pass to release().
+     */
+    public static Slot admit(ConfigGlobal cfgGlobal, JobClass jobClass,
+                             File workDir)
+        throws Exception
+    {
+        Slot slot = enter(cfgGlobal, jobClass, true);
+        if (workDir != null) { start(slot, workDir); }
+        return slot;
+    }
+
+    /**
+     * Admit the job only if it can start at once.
+     * Dumps with the slot are run between start() and finish().
+     *
+     * @param cfgGlobal Global config.
+     * @param jobClass Job class.
+     * @return Slot to pass to release(), or null if not admitted.
+     */
+    public static Slot tryAdmit(ConfigGlobal cfgGlobal, JobClass jobClass)
+        throws Exception
+    {
+        return enter(cfgGlobal, jobClass, false);
+    }
+
+    /**
+     * Start a dump with the slot.
+     *
+     * @param workDir Directory where the dump writes archives.
+     */
+    public static void start(Slot slot, File workDir)
+    {
+        if (slot.jobClass_ == JobClass.BACKUP) {
+            slot.workDir_ = workDir;
+            slot.bytes0_ = getDirectorySize(workDir);
+        }
+        slot.beginMs_ = System.currentTimeMillis();
+    }
+
+    /**
+     * Finish a dump with the slot and record its throughput.
+     */
+    public static void finish(Slot slot)
+    {
+        if (slot.archiveTicket_ != null && slot.workDir_ != null) {
+            long ms = System.currentTimeMillis() - slot.beginMs_;
+            long bytes = getDirectorySize(slot.workDir_) - slot.bytes0_;
+            /* Concurrency is the larger one at the start and end. */
+            int n = Math.max(slot.archiveTicket_.getNumRunning(),
+                             slot.archiveQueue_.getNumRunning());
+            if (ms >= 1000L && bytes > 0) {
+                try {
+                    recordThroughput(slot.archiveQueue_, n,
+                                     (double) bytes * 1000.0 / ms);
+                } catch (IOException e) {
+                    logger_.warning(Utility.toString(e));
+                }
+            }
+        }
+        slot.workDir_ = null;
+    }
+
+    /**
+     * Release the slot after the process ends.
+     * Throughput of a running dump is recorded.
+     */
+    public static void release(Slot slot)
+    {
+        if (slot == null) { return; }
+
+        finish(slot);
+        if (slot.hostTicket_ != null) {
+            slot.hostQueue_.leave(slot.hostTicket_);
+            slot.hostTicket_ = null;
+        }
+        if (slot.archiveTicket_ != null) {
+            slot.archiveQueue_.leave(slot.archiveTicket_);
+            slot.archiveTicket_ = null;
+        }
+    }
+
+    /**
+     * Enter the queue of the root directory and then of the host.
+     *
+     * @param isWait False not to wait for admission.
+     * @return null if not admitted without waiting.
+     */
+    private static Slot enter(ConfigGlobal cfgGlobal, JobClass jobClass,
+                              boolean isWait)
+        throws Exception
+    {
+        Slot slot = new Slot(jobClass);
+        final int maxPerArchive = cfgGlobal.getMaxVmdkBkpPerArchive();
+        final int maxHost = cfgGlobal.getMaxVmdkBkp();
+        final int maxLoadPercent = cfgGlobal.getMaxLoadPercent();
+
+        String rootDir = cfgGlobal.getRootDirectory();
+        if (maxPerArchive > 0 && rootDir != null) {
+            final AdmissionQueue q =
+                new AdmissionQueue(rootDir + "/" + ARCHIVE_QUEUE_NAME);
+            AdmissionQueue.Policy policy = new AdmissionQueue.Policy() {
+                    public boolean canAdmit(int priority, int numRunning) {
+                        return canAdmitArchive
+                            (q, priority, numRunning, maxPerArchive);
+                    }
+                };
+            slot.archiveQueue_ = q;
+            slot.archiveTicket_ =
+                (isWait ? q.enter(jobClass.ordinal(), policy)
+                        : q.tryEnter(jobClass.ordinal(), policy));
+            if (slot.archiveTicket_ == null) { return null; }
+        }
+        if (maxHost > 0 || maxLoadPercent > 0) {
+            AdmissionQueue q = new AdmissionQueue(HOST_QUEUE_PATH);
+            AdmissionQueue.Policy policy = new AdmissionQueue.Policy() {
+                    public boolean canAdmit(int priority, int numRunning) {
+                        return canAdmitHost
+                            (priority, numRunning,
+                             maxHost, maxLoadPercent);
+                    }
+                };
+            slot.hostQueue_ = q;
+            try {
+                slot.hostTicket_ =
+                    (isWait ? q.enter(jobClass.ordinal(), policy)
+                            : q.tryEnter(jobClass.ordinal(), policy));
+            } catch (Exception e) {
+                release(slot);
+                throw e;
+            }
+            if (slot.hostTicket_ == null) {
+                release(slot);
+                return null;
+            }
+        }
+        slot.beginMs_ = System.currentTimeMillis();
+        return slot;
+    }
+
+    private static boolean canAdmitArchive
+        (AdmissionQueue q, int priority, int numRunning, int max)
+    {
+        if (priority == JobClass.RESTORE.ordinal()) {
+            return numRunning < max + 1;
+        }
+        if (numRunning >= max) { return false; }
+        if (priority != JobClass.BACKUP.ordinal() || numRunning == 0) {
+            return true;
+        }
+
+        /* Bytes per sec per process for each concurrency. */
+        Map<Integer, Rate> rates;
+        try {
+            rates = readThroughput(q);
+        } catch (IOException e) {
+            logger_.warning(Utility.toString(e));
+            return true;
+        }
+        Rate cur = rates.get(numRunning);
+        Rate next = rates.get(numRunning + 1);
+        if (cur == null || next == null) { return true; } /* try it. */
+        return next.bytesPerSec_ * (numRunning + 1) >=
+            cur.bytesPerSec_ * numRunning * MIN_GAIN;
+    }
+
+    private static boolean canAdmitHost
+        (int priority, int numRunning, int max, int maxLoadPercent)
+    {
+        if (priority == JobClass.RESTORE.ordinal()) {
+            return max == 0 || numRunning < max + 1;
+        }
+        if (max > 0 && numRunning >= max) { return false; }
+        if (maxLoadPercent > 0 && numRunning > 0) {
+            OperatingSystemMXBean os =
+                ManagementFactory.getOperatingSystemMXBean();
+            double load = os.getSystemLoadAverage();
+            if (load >= 0 &&
+                load * 100.0 / os.getAvailableProcessors() > maxLoadPercent) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Total size of files in the directory.
+     */
+    private static long getDirectorySize(File dir)
+    {
+        File[] files = dir.listFiles();
+        if (files == null) { return 0L; }
+        long ret = 0L;
+        for (File f : files) {
+            if (f.isFile()) { ret += f.length(); }
+        }
+        return ret;
+    }
+
+    /**
+     * Read throughput not expired.
+     */
+    private static Map<Integer, Rate> readThroughput(AdmissionQueue q)
+        throws IOException
+    {
+        Map<Integer, Rate> ret = new TreeMap<Integer, Rate>();
+        File file = new File(q.getPath(), THROUGHPUT_FILE);
+        if (file.exists() == false) { return ret; }
+
+        long now = System.currentTimeMillis();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] f = line.trim().split("\\s+");
+                if (f.length != 3) { continue; }
+                try {
+                    Rate rate = new Rate();
+                    rate.bytesPerSec_ = Double.parseDouble(f[1]);
+                    rate.timeMs_ = Long.parseLong(f[2]);
+                    if (now - rate.timeMs_ > THROUGHPUT_EXPIRE_MS) {
+                        continue;
+                    }
+                    ret.put(Integer.parseInt(f[0]), rate);
+                } catch (NumberFormatException e) {
+                    logger_.warning("bad line: " + line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return ret;
+    }
+
+    /**
+     * Update throughput of the concurrency with moving average.
+     * The file is replaced by rename and an update
+     * at the same time by another process may be lost.
+     */
+    private static void recordThroughput
+        (AdmissionQueue q, int numRunning, double bytesPerSec)
+        throws IOException
+    {
+        Map<Integer, Rate> rates = readThroughput(q);
+        Rate rate = rates.get(numRunning);
+        if (rate == null) {
+            rate = new Rate();
+            rate.bytesPerSec_ = bytesPerSec;
+            rates.put(numRunning, rate);
+        } else {
+            rate.bytesPerSec_ = (rate.bytesPerSec_ + bytesPerSec) / 2.0;
+        }
+        rate.timeMs_ = System.currentTimeMillis();
+        logger_.info(String.format("dump %.0f bytes/s with %d processes.",
+                                   bytesPerSec, numRunning));
+
+        File dir = new File(q.getPath());
+        File tmp = File.createTempFile(THROUGHPUT_FILE, ".tmp", dir);
+        PrintWriter out = new PrintWriter(new FileWriter(tmp));
+        try {
+            for (Map.Entry<Integer, Rate> e : rates.entrySet()) {
+                out.printf("%d %.0f %d\n", e.getKey(),
+                           e.getValue().bytesPerSec_, e.getValue().timeMs_);
+            }
+        } finally {
+            out.close();
+        }
+        if (tmp.renameTo(new File(dir, THROUGHPUT_FILE)) == false) {
+            tmp.delete();
+            throw new IOException("rename failed: " + tmp.getPath());
+        }
+    }
+}
@@ -27,7 +27,7 @@ public class TestAddEmptyDisks
         String password = "password";
 
         Connection conn = new Connection(url, username, password);
-        GlobalManager gm = new GlobalManager(conn);
+        GlobalManager gm = new GlobalManagerV(conn);
         testAddDisks(gm, vmName, datastoreName);
         conn.disconnect();
     }
@@ -29,7 +29,7 @@ public class TestSnapshot
         
         Connection conn = new Connection(url, username, password);
 
-        GlobalManager gm = new GlobalManager(conn);
+        GlobalManager gm = new GlobalManagerV(conn);
         
         VirtualMachineManager vmm = null;
         try {
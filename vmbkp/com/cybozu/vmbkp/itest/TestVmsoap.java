@@ -25,6 +25,7 @@ import com.cybozu.vmbkp.util.VmbkpOvf;
 
 import com.cybozu.vmbkp.soap.Connection;
 import com.cybozu.vmbkp.soap.GlobalManager;
+import com.cybozu.vmbkp.soap.GlobalManagerV;
 import com.cybozu.vmbkp.soap.VirtualMachineManager;
 import com.cybozu.vmbkp.soap.SnapshotManager;
 import com.cybozu.vmbkp.soap.VirtualMachineConfigManager;
@@ -77,7 +78,7 @@ public class TestVmsoap
 	{
         Connection conn = new Connection(url_, username_, password_);
         try {
-            gm_ = new GlobalManager(conn);
+            gm_ = new GlobalManagerV(conn);
 
             /* Host and datastore */
             getHostsAndDatastores();
@@ -8,11 +8,14 @@
  */
 package com.cybozu.vmbkp.profile;
 
+import java.util.List;
 import java.util.logging.Logger;
 import java.io.File;
 
 import com.cybozu.vmbkp.config.Group;
+import com.cybozu.vmbkp.config.Entry;
 import com.cybozu.vmbkp.config.FormatInt;
+import com.cybozu.vmbkp.util.VmdkBitmap;
 
 import com.cybozu.vmbkp.profile.ConfigWrapper;
 
@@ -26,6 +29,7 @@ public class ConfigGlobal
 
     public static final String G_GLOBAL = "global";
     public static final String G_VSPHERE = "vsphere";
+    public static final String G_BLOCK_SIZE = "block_size";
     
     public static final String ROOT_DIRECTORY = "root_directory";
     public static final String VMDKBKP_PATH = "vmdkbkp_path";
@@ -33,9 +37,18 @@ public class ConfigGlobal
         PROFILE_ALL_VM_FILE_NAME = "profile_all_vm_file_name";
     public static final String SERVER = "server";
     public static final String KEEP_GENERATIONS = "keep_generations";
+    public static final String BLOCK_SIZE = "block_size";
+    public static final String BMP_FORMAT = "bmp_format";
     public static final String URL = "url";
     public static final String USERNAME = "username";
     public static final String PASSWORD = "password";
+    public static final String POOL_SIZE = "pool_size";
+    public static final String
+        SNAPSHOT_BATCH_SIZE = "snapshot_batch_size";
+    public static final String MAX_VMDKBKP = "max_vmdkbkp";
+    public static final String
+        MAX_VMDKBKP_PER_ARCHIVE = "max_vmdkbkp_per_archive";
+    public static final String MAX_LOAD_PERCENT = "max_load_percent";
 
     /**
      * Logger.
@@ -52,6 +65,11 @@ public class ConfigGlobal
      * A group for vSphere configuration.
      */
     private Group vsphere_;
+
+    /**
+     * A group for block size of each vm or vm group.
+     */
+    private Group blockSize_;
     
     /**
      * Constructor
@@ -73,6 +91,7 @@ public class ConfigGlobal
         /* initialize groups */
         global_ = new Group(G_GLOBAL);
         vsphere_ = new Group(G_VSPHERE);
+        blockSize_ = new Group(G_BLOCK_SIZE);
     }
    
     /**
@@ -143,6 +162,84 @@ public class ConfigGlobal
         }
     }
 
+    /**
+     * Get value of [global] bmp_format.
+     *
+     * @return True if it is "compressed", or false for "raw" (default).
+     */
+    public boolean isBmpCompressed()
+    {
+        String val = cfg_.getVal(global_, BMP_FORMAT);
+        if (val == null || val.equals("raw")) { return false; }
+        if (val.equals("compressed")) { return true; }
+        logger_.warning
+            (String.format("bmp_format %s is invalid. use raw.", val));
+        return false;
+    }
+
+    /**
+     * Get block size of changed block tracking and dump archives
+     * for the vm.
+     *
+     * [block_size] `vm moref`, [block_size] `vm name`,
+     * [block_size] `group name` of groups containing the vm,
+     * and [global] block_size are searched in the order.
+     * The smallest one is used when the vm belongs to several groups.
+     *
+     * @param moref vm moref.
+     * @param name vm name. can be null.
+     * @param cfgGroup group config. can be null.
+     * @return block size in bytes.
+     */
+    public int getBlockSize(String moref, String name, ConfigGroup cfgGroup)
+    {
+        assert moref != null;
+
+        int ret = parseBlockSize(cfg_.getVal(blockSize_, moref));
+        if (ret > 0) { return ret; }
+        if (name != null) {
+            ret = parseBlockSize(cfg_.getVal(blockSize_, name));
+            if (ret > 0) { return ret; }
+        }
+
+        if (cfgGroup != null) {
+            for (Entry entry : cfg_.getAllEntries(blockSize_)) {
+                String key = entry.getKey();
+                if (cfgGroup.isGroupName(key) &&
+                    cfgGroup.getAllVmMorefListOfGroup(key).contains(moref)) {
+
+                    int bs = parseBlockSize(entry.getVal());
+                    if (bs > 0 && (ret < 0 || bs < ret)) { ret = bs; }
+                }
+            }
+            if (ret > 0) { return ret; }
+        }
+
+        ret = parseBlockSize(cfg_.getVal(global_, BLOCK_SIZE));
+        if (ret > 0) { return ret; }
+        return VmdkBitmap.DEFAULT_BLOCK_SIZE;
+    }
+
+    /**
+     * Parse a block size like "64K" or "1M".
+     *
+     * @return block size in bytes, or -1 if not set or invalid.
+     */
+    private int parseBlockSize(String val)
+    {
+        if (val == null) { return -1; }
+        if (FormatInt.canBeLong(val)) {
+            long bs = FormatInt.toLong(val);
+            if (VmdkBitmap.isValidBlockSize(bs)) { return (int) bs; }
+        }
+        logger_.warning
+            (String.format
+             ("block size %s is invalid. It must be a power of two " +
+              "between %d and %d.", val,
+              VmdkBitmap.MIN_BLOCK_SIZE, VmdkBitmap.MAX_BLOCK_SIZE));
+        return -1;
+    }
+
     /**
      * Get value of [vsphere] server.
      * @return null when the entry is not found.
@@ -179,6 +276,99 @@ public class ConfigGlobal
         return cfg_.getVal(vsphere_, PASSWORD);
     }
 
+    /**
+     * Get value of [vsphere] pool_size,
+     * the number of extra sessions for concurrent operations.
+     *
+     * @return 0 when the entry is not found or invalid.
+     */
+    public int getPoolSize()
+    {
+        String ps = cfg_.getVal(vsphere_, POOL_SIZE);
+        if (ps == null) { return 0; }
+
+        if (FormatInt.canBeInt(ps) && FormatInt.toInt(ps) >= 0) {
+            return FormatInt.toInt(ps);
+        } else {
+            logger_.warning(String.format("pool_size %s is invalid.", ps));
+            return 0;
+        }
+    }
+
+    /**
+     * Get value of [global] snapshot_batch_size,
+     * the number of virtual machines whose snapshots
+     * are created and deleted together in backup.
+     *
+     * @return 1 when the entry is not found or invalid.
+     */
+    public int getSnapshotBatchSize()
+    {
+        String bs = cfg_.getVal(global_, SNAPSHOT_BATCH_SIZE);
+        if (bs == null) { return 1; }
+
+        if (FormatInt.canBeInt(bs) && FormatInt.toInt(bs) >= 1) {
+            return FormatInt.toInt(bs);
+        } else {
+            logger_.warning
+                (String.format("snapshot_batch_size %s is invalid.", bs));
+            return 1;
+        }
+    }
+
+    /**
+     * Get value of [global] max_vmdkbkp,
+     * the number of vmdkbkp processes running at once in the host.
+     *
+     * @return 0 (unlimited) when the entry is not found or invalid.
+     */
+    public int getMaxVmdkBkp()
+    {
+        return getNonNegativeInt(global_, MAX_VMDKBKP);
+    }
+
+    /**
+     * Get value of [global] max_vmdkbkp_per_archive,
+     * the number of vmdkbkp processes running at once
+     * for the root directory.
+     *
+     * @return 0 (unlimited) when the entry is not found or invalid.
+     */
+    public int getMaxVmdkBkpPerArchive()
+    {
+        return getNonNegativeInt(global_, MAX_VMDKBKP_PER_ARCHIVE);
+    }
+
+    /**
+     * Get value of [global] max_load_percent,
+     * load average per cpu in percent to stop starting
+     * more vmdkbkp processes except restore.
+     *
+     * @return 0 (disabled) when the entry is not found or invalid.
+     */
+    public int getMaxLoadPercent()
+    {
+        return getNonNegativeInt(global_, MAX_LOAD_PERCENT);
+    }
+
+    /**
+     * Get a non-negative integer value.
+     *
+     * @return 0 when the entry is not found or invalid.
+     */
+    private int getNonNegativeInt(Group group, String key)
+    {
+        String val = cfg_.getVal(group, key);
+        if (val == null) { return 0; }
+
+        if (FormatInt.canBeInt(val) && FormatInt.toInt(val) >= 0) {
+            return FormatInt.toInt(val);
+        } else {
+            logger_.warning(String.format("%s %s is invalid.", key, val));
+            return 0;
+        }
+    }
+
     /**
      * Get default backup directory of the vm
      * with the specified moref.
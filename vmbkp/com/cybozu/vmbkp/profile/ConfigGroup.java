@@ -12,10 +12,16 @@ import java.util.List;
 import java.util.LinkedList;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.logging.Logger;
+import java.io.IOException;
 
 import com.cybozu.vmbkp.config.Entry;
 import com.cybozu.vmbkp.config.Group;
+import com.cybozu.vmbkp.config.ParseException;
+import com.cybozu.vmbkp.config.NotNormalFileException;
 
 import com.cybozu.vmbkp.profile.ConfigWrapper;
 import com.cybozu.vmbkp.profile.ProfileAllVm;
@@ -42,6 +48,13 @@ public class ConfigGroup
      */
     ProfileAllVm profAllVm_;
 
+    /**
+     * Compiled index of group name -> sorted moref set.
+     * Each group is expanded just once even if it is nested
+     * in many groups.
+     */
+    private Map<String, Set<String>> groupIndex_;
+
     /**
      * Constructor
      *
@@ -57,6 +70,17 @@ public class ConfigGroup
         super(fileName);
         assert profAllVm != null;
         profAllVm_ = profAllVm;
+        groupIndex_ = new HashMap<String, Set<String>>();
+    }
+
+    /**
+     * Read from a config file and drop the compiled index.
+     */
+    public void read(String filePath)
+        throws IOException, ParseException, NotNormalFileException
+    {
+        super.read(filePath);
+        if (groupIndex_ != null) { groupIndex_.clear(); }
     }
 
     /**
@@ -76,6 +100,31 @@ public class ConfigGroup
      */
     public List<String> getAllVmMorefListOfGroup(String groupName)
     {
+        /* Set -> List */
+        List<String> ret = new LinkedList<String>();
+        ret.addAll(getVmMorefSetOfGroup(groupName, new HashSet<String>()));
+        return ret;
+    }
+
+    /**
+     * Get moref set of [group "`groupName`"] using the compiled index.
+     *
+     * @param groupName group name.
+     * @param visiting groups under expansion to detect loop.
+     * @return never return null. Do not modify it.
+     */
+    private Set<String> getVmMorefSetOfGroup
+        (String groupName, Set<String> visiting)
+    {
+        Set<String> cached = groupIndex_.get(groupName);
+        if (cached != null) { return cached; }
+
+        if (visiting.add(groupName) == false) {
+            logger_.warning
+                (String.format("Group %s is nested in itself.", groupName));
+            return new TreeSet<String>();
+        }
+
         /* We use Set class because it eliminates
            duplication automatically. */
         Set<String> sset = new TreeSet<String>();
@@ -98,7 +147,7 @@ public class ConfigGroup
                     
             } else if (val.equals("group")) {
                 /* recursive call */
-                sset.addAll(getAllVmMorefListOfGroup(key));
+                sset.addAll(getVmMorefSetOfGroup(key, visiting));
                 
             } else {
                 /* error */
@@ -110,10 +159,9 @@ public class ConfigGroup
             }
         }
 
-        /* Set -> List */
-        List<String> ret = new LinkedList<String>();
-        ret.addAll(sset);
-        return ret;
+        visiting.remove(groupName);
+        groupIndex_.put(groupName, sset);
+        return sset;
     }
 
     /**
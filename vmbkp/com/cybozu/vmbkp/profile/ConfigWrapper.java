@@ -12,8 +12,9 @@ import java.io.File;
 import java.io.IOException;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.HashMap;
 
 import com.cybozu.vmbkp.config.ConfigLikeGit;
 import com.cybozu.vmbkp.config.Group;
@@ -23,6 +24,7 @@ import com.cybozu.vmbkp.config.NotNormalFileException;
 
 import com.cybozu.vmbkp.util.LockFileManager;
 import com.cybozu.vmbkp.util.LockFileManagerN;
+import com.cybozu.vmbkp.util.LockFileManagerT;
 
 
 /**
@@ -45,6 +47,35 @@ abstract public class ConfigWrapper
      */
     private LockFileManager lockM_;
 
+    /**
+     * Lock of the "<config>.lock" file used by older versions.
+     * It is taken after the ticket of lockM_ is granted
+     * so that older processes are also excluded.
+     * Shared holders in a process share the file lock
+     * because the process can not lock a file twice.
+     */
+    private static class LegacyLock
+    {
+        final LockFileManagerN lockM_;
+        int count_ = 0;
+
+        LegacyLock(String lockPath)
+        {
+            lockM_ = new LockFileManagerN(lockPath);
+        }
+    }
+
+    /**
+     * Lock path -> legacy lock in the process.
+     */
+    private static final Map<String, LegacyLock> legacyLockMap_ =
+        new HashMap<String, LegacyLock>();
+
+    /**
+     * Legacy lock held by this, or null.
+     */
+    private LegacyLock legacyLock_ = null;
+
     /**
      * Constructor.
      *
@@ -177,21 +208,81 @@ abstract public class ConfigWrapper
      * Lock threads/processes to access the config file.
      * If another thread/process already lock this,
      * current thread/process will wait for its unlock.
+     * Waiters get the lock in the order of their arrival.
      *
      * @param timeoutSec Lock timeout.
      */
     public synchronized void lock(int timeoutSec)
         throws Exception
+    {
+        lock(timeoutSec, false);
+    }
+
+    /**
+     * Lock the config file to read it only.
+     * Other readers can lock it at the same time,
+     * while writers wait for all readers to unlock.
+     *
+     * @param timeoutSec Lock timeout.
+     */
+    public synchronized void lockShared(int timeoutSec)
+        throws Exception
+    {
+        lock(timeoutSec, true);
+    }
+
+    private void lock(int timeoutSec, boolean isShared)
+        throws Exception
     {
         if (configFilePath_ == null) { 
             throw new Exception("configFilePath_ is null.");
         }
 
         if (lockM_ == null) {
-            lockM_ = new LockFileManagerN(configFilePath_ + ".lock");
+            lockM_ = new LockFileManagerT(configFilePath_ + ".lock.d");
+        }
+
+        long beginMs = System.currentTimeMillis();
+        lockM_.lock(timeoutSec, isShared);
+        try {
+            int remainingSec = timeoutSec;
+            if (timeoutSec > 0) {
+                long elapsedSec =
+                    (System.currentTimeMillis() - beginMs) / 1000L;
+                remainingSec = (int) Math.max(0L, timeoutSec - elapsedSec);
+            }
+            lockLegacy(remainingSec, isShared);
+        } catch (Exception e) {
+            lockM_.unlock();
+            throw e;
         }
+    }
 
-        lockM_.lock(timeoutSec);
+    /**
+     * Lock the file of older versions.
+     */
+    private void lockLegacy(int timeoutSec, boolean isShared)
+        throws Exception
+    {
+        String lockPath = configFilePath_ + ".lock";
+        LegacyLock legacyLock;
+        synchronized (legacyLockMap_) {
+            legacyLock = legacyLockMap_.get(lockPath);
+            if (legacyLock == null) {
+                legacyLock = new LegacyLock(lockPath);
+                legacyLockMap_.put(lockPath, legacyLock);
+            }
+        }
+        synchronized (legacyLock) {
+            if (legacyLock.count_ == 0) {
+                legacyLock.lockM_.lock(timeoutSec, isShared);
+            } else {
+                /* The ticket allows only shared holders at once. */
+                assert isShared;
+            }
+            legacyLock.count_ ++;
+        }
+        legacyLock_ = legacyLock;
     }
 
     /**
@@ -201,6 +292,13 @@ abstract public class ConfigWrapper
     public synchronized void unlock()
     {
         assert lockM_ != null;
+        if (legacyLock_ != null) {
+            synchronized (legacyLock_) {
+                legacyLock_.count_ --;
+                if (legacyLock_.count_ == 0) { legacyLock_.lockM_.unlock(); }
+            }
+            legacyLock_ = null;
+        }
         lockM_.unlock();
     }
 
@@ -219,14 +317,22 @@ abstract public class ConfigWrapper
                 String backupFilePath = configFilePath_ + ".bak";
                 FileChannel src, dst;
                 src = (new FileInputStream(configFilePath_)).getChannel();
-                dst = (new FileOutputStream(backupFilePath)).getChannel();
-
-                ByteBuffer buf = ByteBuffer.allocateDirect(4096);
-
-                while (src.read(buf) > 0) {
-                    buf.flip(); dst.write(buf); buf.clear();
+                try {
+                    dst = (new FileOutputStream(backupFilePath)).getChannel();
+                    try {
+                        long size = src.size();
+                        long pos = 0;
+                        while (pos < size) {
+                            long n = src.transferTo(pos, size - pos, dst);
+                            if (n <= 0) { break; }
+                            pos += n;
+                        }
+                    } finally {
+                        dst.close();
+                    }
+                } finally {
+                    src.close();
                 }
-                src.close(); dst.close();
             } catch (Exception e) { return false; }
         } else { return false; }
 
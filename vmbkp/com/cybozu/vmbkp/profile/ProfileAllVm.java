@@ -11,11 +11,16 @@ package com.cybozu.vmbkp.profile;
 import java.util.Calendar;
 import java.util.List;
 import java.util.LinkedList;
+import java.util.Map;
+import java.util.HashMap;
 import java.io.File;
+import java.io.IOException;
 
 import com.cybozu.vmbkp.config.Group;
 import com.cybozu.vmbkp.config.Entry;
 import com.cybozu.vmbkp.config.FormatBool;
+import com.cybozu.vmbkp.config.ParseException;
+import com.cybozu.vmbkp.config.NotNormalFileException;
 import com.cybozu.vmbkp.util.VmInfo;
 import com.cybozu.vmbkp.profile.ConfigWrapper;
 
@@ -39,6 +44,23 @@ public class ProfileAllVm
      * Group [index "moref_name"].
      */
     private Group vmIndex_;
+
+    /**
+     * Group [meta].
+     */
+    private Group meta_;
+
+    /**
+     * Flags in the compiled index.
+     */
+    private static final int FLAG_AVAILABLE = 0x1;
+    private static final int FLAG_TEMPLATE = 0x2;
+
+    /**
+     * Compiled index of moref -> flags to filter targets.
+     * This is built at first use and dropped when entries are modified.
+     */
+    private Map<String, Integer> flagIndex_;
     
     /**
      * Constructor
@@ -70,6 +92,59 @@ public class ProfileAllVm
     {
         vmSet_ = new Group("vm_set");
         vmIndex_ = new Group("index", "moref_name");
+        meta_ = new Group("meta");
+        flagIndex_ = null;
+    }
+
+    /**
+     * Read from a profile file and drop the compiled index.
+     */
+    public void read(String filePath)
+        throws IOException, ParseException, NotNormalFileException
+    {
+        super.read(filePath);
+        flagIndex_ = null;
+    }
+
+    /**
+     * Get the compiled index of moref -> flags.
+     * Each [`moref`] group is looked up just once.
+     */
+    private Map<String, Integer> getFlagIndex()
+    {
+        if (flagIndex_ != null) { return flagIndex_; }
+
+        Map<String, Integer> index = new HashMap<String, Integer>();
+        for (Entry vmEntry : getAllVmEntries()) {
+            String moref = vmEntry.getKey();
+            int flags = 0;
+            for (Entry entry : cfg_.getAllEntries(new Group(moref))) {
+                String key = entry.getKey();
+                String val = entry.getVal();
+                if (FormatBool.isBool(val) == false ||
+                    FormatBool.toBool(val) == false) { continue; }
+
+                if (key.equals("availability")) {
+                    flags |= FLAG_AVAILABLE;
+                } else if (key.equals("is_template")) {
+                    flags |= FLAG_TEMPLATE;
+                }
+            }
+            index.put(moref, Integer.valueOf(flags));
+        }
+        flagIndex_ = index;
+        return flagIndex_;
+    }
+
+    /**
+     * Get flags of the vm from the compiled index.
+     *
+     * @return 0 if the moref is not found.
+     */
+    private int getFlags(String vmMoref)
+    {
+        Integer flags = getFlagIndex().get(vmMoref);
+        return (flags == null ? 0 : flags.intValue());
     }
 
     /**
@@ -89,8 +164,54 @@ public class ProfileAllVm
         for (Entry vmEntry : vmEntryList) {
             cfg_.put(new Group(vmEntry.getKey()), "availability", "false");
         }
+        flagIndex_ = null;
     }
     
+    /**
+     * Set [`moref`] availability.
+     */
+    public void setAvailability(String vmMoref, boolean isAvailable)
+    {
+        assert vmMoref != null;
+        if (isExistWithMoref(vmMoref) == false) { return; }
+        cfg_.put(new Group(vmMoref), "availability",
+                 FormatBool.toString(isAvailable));
+        flagIndex_ = null;
+    }
+
+    /**
+     * Get [meta] inventory_version.
+     *
+     * @return null if not set.
+     */
+    public String getInventoryVersion()
+    {
+        return cfg_.getVal(meta_, "inventory_version");
+    }
+
+    /**
+     * Get [meta] inventory_timestamp_ms.
+     *
+     * @return -1 if not set.
+     */
+    public long getInventoryTimestampMs()
+    {
+        return cfg_.getValAsLong(meta_, "inventory_timestamp_ms");
+    }
+
+    /**
+     * Set [meta] inventory_version and inventory_timestamp_ms.
+     * The version is of the property collector which
+     * reported the inventory applied to this profile.
+     */
+    public void setInventoryVersion(String version, Calendar calendar)
+    {
+        assert version != null;
+        cfg_.put(meta_, "inventory_version", version);
+        cfg_.put(meta_, "inventory_timestamp_ms",
+                 Long.toString(calendar.getTimeInMillis()));
+    }
+
     /**
      * Put [vm_set] `vmInfo.getMoref()`.
      * Put [index "moref_name"] `vmInfo.getName()`.
@@ -114,6 +235,7 @@ public class ProfileAllVm
         cfg_.put(groupVmm, "timestamp", timestamp);
         cfg_.put(groupVmm, "timestamp_ms", Long.toString(timestamp_ms));
         cfg_.put(groupVmm, "is_template", (isTemplate ? "true" : "false"));
+        flagIndex_ = null;
     }
 
     /**
@@ -248,7 +370,7 @@ public class ProfileAllVm
         LinkedList<String> ret = new LinkedList<String>();
         for (String moref: morefList) {
 
-            if (moref != null && this.isAvailableWithMoref(moref)) {
+            if (moref != null && (getFlags(moref) & FLAG_AVAILABLE) != 0) {
                 ret.add(moref);
             }
         }
@@ -263,7 +385,7 @@ public class ProfileAllVm
         LinkedList<String> ret = new LinkedList<String>();
         for (String moref: morefList) {
 
-            if (moref != null && ! this.isTemplateWithMoref(moref)) {
+            if (moref != null && (getFlags(moref) & FLAG_TEMPLATE) == 0) {
                 ret.add(moref);
             }
         }
@@ -0,0 +1,283 @@
+/**
+ * @file
+ * @brief ProfileChain
+ *
+ * Copyright (C) 2009,2010 Cybozu Inc., all rights reserved.
+ *
+ * @author Takashi HOSHINO <hoshino@labs.cybozu.co.jp>
+ */
+package com.cybozu.vmbkp.profile;
+
+import java.util.List;
+import java.util.LinkedList;
+import java.util.logging.Logger;
+import java.io.IOException;
+
+import com.cybozu.vmbkp.config.Entry;
+import com.cybozu.vmbkp.config.Group;
+import com.cybozu.vmbkp.config.ParseException;
+import com.cybozu.vmbkp.config.NotNormalFileException;
+
+import com.cybozu.vmbkp.profile.ConfigWrapper;
+
+/**
+ * @brief Wrapper class to access vmbkp_chain.profile.
+ *
+ * This is an index of resolved restore chains of a virtual machine.
+ * For each disk uuid and generation, it keeps the list of archive files
+ * (dump first, then rdiff files) required to restore the disk,
+ * and the digest file to check it.
+ * All paths are relative to the directory of vmbkp_vm.profile.
+ *
+ * The index is a cache. A missing entry must be resolved by
+ * scanning generations and may be stored again.
+ */
+public class ProfileChain
+    extends ConfigWrapper
+{
+    public static final String FILE_NAME = "vmbkp_chain.profile";
+
+    /**
+     * Logger.
+     */
+    private static final Logger logger_ =
+        Logger.getLogger(ProfileChain.class.getName());
+
+    /**
+     * Group [meta].
+     */
+    private Group grpMeta_;
+
+    /**
+     * Group [index "uuid"].
+     */
+    private Group grpUuidIdx_;
+
+    /**
+     * Default constructor. This will create an empty profile.
+     */
+    public ProfileChain()
+    {
+        super();
+        initializeGroups();
+    }
+
+    /**
+     * Constructor reading the specified profile file.
+     *
+     * @param filePath Path to a vmbkp_chain.profile file.
+     */
+    public ProfileChain(String filePath)
+        throws IOException, ParseException, NotNormalFileException
+    {
+        super(filePath);
+        initializeGroups();
+    }
+
+    /**
+     * Initialize group(s).
+     */
+    private void initializeGroups()
+    {
+        grpMeta_ = new Group("meta");
+        grpUuidIdx_ = new Group("index", "uuid");
+    }
+
+    /**
+     * Generate Group of [chain "`uuid`"].
+     */
+    private Group generateChainGroup(String uuid)
+    {
+        return new Group("chain", uuid);
+    }
+
+    /**
+     * Key of the file list of the generation.
+     */
+    private String generateFilesKey(int genId)
+    {
+        return Integer.toString(genId) + ".files";
+    }
+
+    /**
+     * Key of the digest of the generation.
+     */
+    private String generateDigestKey(int genId)
+    {
+        return Integer.toString(genId) + ".digest";
+    }
+
+    /**
+     * Clear all chains.
+     */
+    public void clear()
+    {
+        cfg_.delGroup(grpMeta_);
+        for (Entry entry : cfg_.getAllEntries(grpUuidIdx_)) {
+            cfg_.delGroup(generateChainGroup(entry.getKey()));
+        }
+        cfg_.delGroup(grpUuidIdx_);
+    }
+
+    /**
+     * Get [meta] latest_generation_id.
+     *
+     * @return -1 if not set.
+     */
+    public int getLatestGenerationId()
+    {
+        return cfg_.getValAsInt(grpMeta_, "latest_generation_id");
+    }
+
+    /**
+     * Set [meta] latest_generation_id.
+     * This is used to detect the index is out of date.
+     */
+    public void setLatestGenerationId(int genId)
+    {
+        cfg_.put(grpMeta_, "latest_generation_id", Integer.toString(genId));
+    }
+
+    /**
+     * Get the file list to restore [chain "`uuid`"] of the generation.
+     *
+     * @return List of relative paths, the first element is dump.
+     *         null if not indexed.
+     */
+    public List<String> getFileList(int genId, String uuid)
+    {
+        String val = cfg_.getVal(generateChainGroup(uuid),
+                                 generateFilesKey(genId));
+        return splitPathList(val);
+    }
+
+    /**
+     * Set the file list to restore [chain "`uuid`"] of the generation.
+     *
+     * @param pathList List of relative paths, the first element is dump.
+     */
+    public void setFileList(int genId, String uuid, List<String> pathList)
+    {
+        assert pathList != null && pathList.isEmpty() == false;
+        cfg_.put(grpUuidIdx_, uuid, "1");
+        cfg_.put(generateChainGroup(uuid), generateFilesKey(genId),
+                 joinPathList(pathList));
+    }
+
+    /**
+     * Get the digest path of [chain "`uuid`"] of the generation.
+     *
+     * @return Relative path, or null if not indexed.
+     */
+    public String getDigest(int genId, String uuid)
+    {
+        return cfg_.getVal(generateChainGroup(uuid),
+                           generateDigestKey(genId));
+    }
+
+    /**
+     * Set the digest path of [chain "`uuid`"] of the generation.
+     */
+    public void setDigest(int genId, String uuid, String path)
+    {
+        assert path != null;
+        cfg_.put(grpUuidIdx_, uuid, "1");
+        cfg_.put(generateChainGroup(uuid), generateDigestKey(genId), path);
+    }
+
+    /**
+     * Replace the head dump of all chains of the disk
+     * which start with oldHead by the newHead files.
+     *
+     * @return Number of replaced chains.
+     */
+    public int replaceHead(String uuid, String oldHead, List<String> newHead)
+    {
+        Group group = generateChainGroup(uuid);
+        int count = 0;
+        for (Entry entry : cfg_.getAllEntries(group)) {
+            if (entry.getKey().endsWith(".files") == false) { continue; }
+
+            List<String> list = splitPathList(entry.getVal());
+            if (list == null || list.get(0).equals(oldHead) == false) {
+                continue;
+            }
+            list.remove(0);
+            list.addAll(0, newHead);
+            cfg_.put(group, entry.getKey(), joinPathList(list));
+            count ++;
+        }
+        logger_.fine(String.format("replaceHead %s: %d", uuid, count));
+        return count;
+    }
+
+    /**
+     * Replace all digest paths of the disk equal to oldDigest by newDigest.
+     *
+     * @return Number of replaced entries.
+     */
+    public int replaceDigest(String uuid, String oldDigest, String newDigest)
+    {
+        Group group = generateChainGroup(uuid);
+        int count = 0;
+        for (Entry entry : cfg_.getAllEntries(group)) {
+            if (entry.getKey().endsWith(".digest") &&
+                entry.getVal().equals(oldDigest)) {
+                cfg_.put(group, entry.getKey(), newDigest);
+                count ++;
+            }
+        }
+        logger_.fine(String.format("replaceDigest %s: %d", uuid, count));
+        return count;
+    }
+
+    /**
+     * Delete all chains of the specified generation.
+     */
+    public void delGeneration(int genId)
+    {
+        String filesKey = generateFilesKey(genId);
+        String digestKey = generateDigestKey(genId);
+
+        for (Entry idx : cfg_.getAllEntries(grpUuidIdx_)) {
+            String uuid = idx.getKey();
+            Group group = generateChainGroup(uuid);
+            cfg_.del(group, filesKey);
+            cfg_.del(group, digestKey);
+
+            if (cfg_.getAllEntries(group).isEmpty()) {
+                cfg_.delGroup(group);
+                cfg_.del(grpUuidIdx_, uuid);
+            }
+        }
+    }
+
+    /**
+     * Convert space-separated paths to a list.
+     *
+     * @return null if the string is null or empty.
+     */
+    private static List<String> splitPathList(String val)
+    {
+        if (val == null) { return null; }
+        List<String> ret = new LinkedList<String>();
+        for (String path : val.split(" ")) {
+            if (path.isEmpty() == false) { ret.add(path); }
+        }
+        if (ret.isEmpty()) { return null; }
+        return ret;
+    }
+
+    /**
+     * Convert a list of paths to space-separated string.
+     */
+    private static String joinPathList(List<String> pathList)
+    {
+        StringBuffer sb = new StringBuffer();
+        for (String path : pathList) {
+            if (sb.length() > 0) { sb.append(' '); }
+            sb.append(path);
+        }
+        return sb.toString();
+    }
+}
@@ -31,6 +31,7 @@ import com.cybozu.vmbkp.util.BackupMode;
 import com.cybozu.vmbkp.util.VmInfo;
 import com.cybozu.vmbkp.util.SnapInfo;
 import com.cybozu.vmbkp.util.VmdkInfo;
+import com.cybozu.vmbkp.util.VmdkBitmap;
 import com.cybozu.vmbkp.util.AdapterType;
 import com.cybozu.vmbkp.util.Utility;
 import com.cybozu.vmbkp.profile.ConfigWrapper;
@@ -135,6 +136,24 @@ public class ProfileGeneration
          VmInfo vmInfo, SnapInfo snapInfo,
          List<VmdkInfo> vmdkInfoList,
          Calendar calendar, boolean isGzip)
+    {
+        initializeGeneration(genId, prevGenId, vmInfo, snapInfo,
+                             vmdkInfoList, calendar, isGzip,
+                             VmdkBitmap.DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Initialize generation with block size.
+     *
+     * @param blockSize block size of changed block tracking and
+     *        dump archives. It is adjusted for each disk
+     *        so that the capacity is a multiple of it.
+     */
+    public void initializeGeneration
+        (int genId, int prevGenId,
+         VmInfo vmInfo, SnapInfo snapInfo,
+         List<VmdkInfo> vmdkInfoList,
+         Calendar calendar, boolean isGzip, int blockSize)
     {
         logger_.info("initializeGeneration() begin.");
 
@@ -146,7 +165,7 @@ public class ProfileGeneration
         int diskId = 0;
         for (VmdkInfo vmdkInfo : vmdkInfoList) {
             /* [disk `diskId`] group */
-            initializeDiskGroup(diskId, vmdkInfo, isGzip);
+            initializeDiskGroup(diskId, vmdkInfo, isGzip, blockSize);
             diskId ++;
         }
 
@@ -194,9 +213,10 @@ public class ProfileGeneration
      * @param diskId Disk identifier inside the generation only.
      * @param vmdkInfo vmdk info.
      * @param isGzip use gziped archives or not.
+     * @param blockSize block size requested.
      */
     private void initializeDiskGroup
-        (int diskId, VmdkInfo vmdkInfo, boolean isGzip)
+        (int diskId, VmdkInfo vmdkInfo, boolean isGzip, int blockSize)
     {
 
         String iStr = Integer.toString(diskId);
@@ -205,6 +225,9 @@ public class ProfileGeneration
         cfg_.put(diskGroup, "remote_path", vmdkInfo.name_);
         cfg_.put(diskGroup, "uuid", vmdkInfo.uuid_);
         cfg_.put(diskGroup, "capacity", Long.toString(vmdkInfo.capacityInKB_) + "K");
+        cfg_.put(diskGroup, "block_size", Integer.toString
+                 (VmdkBitmap.getBlockSizeOfDisk
+                  (vmdkInfo.capacityInKB_ * 1024L, blockSize)));
 
         if (vmdkInfo.changeId_ != null) {
             cfg_.put(diskGroup, "change_id", vmdkInfo.changeId_);
@@ -227,6 +250,7 @@ public class ProfileGeneration
         cfg_.put(diskGroup, "filename_digest", iStr + ".digest" + gzipExt);
         cfg_.put(diskGroup, "filename_rdiff", iStr + ".rdiff" + gzipExt);
         cfg_.put(diskGroup, "filename_bmp", iStr + ".bmp");
+        cfg_.put(diskGroup, "filename_extents", iStr + ".extents");
         cfg_.put(diskGroup, "is_deleted_previous_dump", "false");
         cfg_.put(diskGroup, "is_changed", "undefined"); /* must be set later. */
 
@@ -470,6 +494,26 @@ public class ProfileGeneration
         return this.getDirectory() + "/" + fname;
     }
 
+    /**
+     * Get filename of [disk "`diskId`"] filename_extents.
+     * Generations made by older versions do not have it.
+     */
+    public String getExtentsFileName(int diskId)
+    {
+        return this.getDiskGroupValAsAutoString(diskId, "filename_extents");
+    }
+
+    /**
+     * Get filename of [disk "`diskId`"] filename_extents
+     * and return full path.
+     */
+    public String getExtentsPath(int diskId)
+    {
+        String fname = this.getExtentsFileName(diskId);
+        if (fname == null) { return null; }
+        return this.getDirectory() + "/" + fname;
+    }
+
     /**
      * Get [disk "`diskId`"] uuid.
      */
@@ -486,6 +530,15 @@ public class ProfileGeneration
         return this.getDiskGroupValAsAutoString(diskId, "change_id");
     }
 
+    /**
+     * Set [disk "`diskId`"] change_id to "*"
+     * not to use changed block tracking from the generation.
+     */
+    public void clearChangeId(int diskId)
+    {
+        cfg_.put(generateDiskGroup(diskId), "change_id", "*");
+    }
+
     /**
      * Get [disk "`diskId`"] key as a quated string.
      */
@@ -522,6 +575,20 @@ public class ProfileGeneration
         return cfg_.getValAsLong(generateDiskGroup(diskId), "capacity");
     }
 
+    /**
+     * Get [disk "`diskId`"] block_size as int value.
+     * Generations made before the entry was introduced use 1MB.
+     *
+     * @return block size in bytes, or -1 if invalid.
+     */
+    public int getBlockSize(int diskId)
+    {
+        String val = cfg_.getVal(generateDiskGroup(diskId), "block_size");
+        if (val == null) { return VmdkBitmap.DEFAULT_BLOCK_SIZE; }
+        if (FormatInt.canBeInt(val) == false) { return -1; }
+        return FormatInt.toInt(val);
+    }
+
     /**
      * Get [disk "`diskId`"] controller_key as int value.
      */
@@ -838,5 +905,49 @@ public class ProfileGeneration
 
         return endMs - beginMs;
     }
+
+    /**
+     * Set [disk `diskId`] dump_read_bytes, dump_written_bytes
+     * and their average per second reported by vmdkbkp.
+     */
+    public void setDumpThroughput(int diskId,
+                                  long readBytes, long writtenBytes,
+                                  long readBytesPerSec, long writtenBytesPerSec)
+    {
+        Group diskGroup = this.generateDiskGroup(diskId);
+        cfg_.put(diskGroup, "dump_read_bytes", Long.toString(readBytes));
+        cfg_.put(diskGroup, "dump_written_bytes", Long.toString(writtenBytes));
+        cfg_.put(diskGroup, "dump_read_bytes_per_sec",
+                 Long.toString(readBytesPerSec));
+        cfg_.put(diskGroup, "dump_written_bytes_per_sec",
+                 Long.toString(writtenBytesPerSec));
+    }
+
+    /**
+     * Get [disk `diskId`] dump_read_bytes_per_sec.
+     *
+     * @return -1 if not recorded.
+     */
+    public long getDumpReadBytesPerSec(int diskId)
+    {
+        return getDiskLong(diskId, "dump_read_bytes_per_sec");
+    }
+
+    /**
+     * Get [disk `diskId`] dump_written_bytes_per_sec.
+     *
+     * @return -1 if not recorded.
+     */
+    public long getDumpWrittenBytesPerSec(int diskId)
+    {
+        return getDiskLong(diskId, "dump_written_bytes_per_sec");
+    }
+
+    private long getDiskLong(int diskId, String key)
+    {
+        String str = cfg_.getVal(generateDiskGroup(diskId), key);
+        if (str == null || FormatInt.canBeLong(str) == false) { return -1; }
+        return FormatInt.toLong(str);
+    }
     
 }
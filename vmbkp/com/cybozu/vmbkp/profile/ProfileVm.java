@@ -562,7 +562,7 @@ public class ProfileVm
     /**
      * Get number of generaton.
      */
-    private int getNumOfGeneration()
+    public int getNumOfGeneration()
     {
         Map<Long,Integer> genMap = getGenerationMap();
         return genMap.size();
@@ -571,7 +571,7 @@ public class ProfileVm
     /**
      * Get number of succeeded generation.
      */
-    private int getNumOfSuccceededGeneration()
+    public int getNumOfSucceededGeneration()
     {
         Map<Long,Integer> genMap = getGenerationMap();
         ArrayList<Integer> genList =
@@ -630,7 +630,7 @@ public class ProfileVm
                       ("[Latest %d \"%s\"]", genId, getTimestampStr(genId)));
 
             int numGen = getNumOfGeneration();
-            int numSucceededGen = getNumOfSuccceededGeneration();
+            int numSucceededGen = getNumOfSucceededGeneration();
             sb.append(String.format
                       ("[Clean %d/%d]", numSucceededGen, numGen));
         }
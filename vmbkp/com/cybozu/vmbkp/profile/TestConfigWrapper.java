@@ -171,6 +171,25 @@ public class TestConfigWrapper
     }
 
     
+    /**
+     * Backup is the same as the written file.
+     */
+    public static void testMakeBackup()
+        throws Exception
+    {
+        TestConfigWrapper cfgW = new TestConfigWrapper(FILE_NAME);
+        cfgW.cfg_.put(group_, "counter", "11");
+        cfgW.write();
+        assert (new TestConfigWrapper(FILE_NAME)).get("") == 11;
+
+        /* Backup is the same as the file. */
+        assert cfgW.makeBackup();
+        assert (new TestConfigWrapper(FILE_NAME + ".bak")).get("") == 11;
+        (new File(FILE_NAME + ".bak")).delete();
+
+        System.out.println("testMakeBackup passed.");
+    }
+
     public static void main(String[] args)
     {
         try {
@@ -180,6 +199,7 @@ public class TestConfigWrapper
                     new TestConfigWrapper();
                 cfgW.initialize();
                 cfgW.write(FILE_NAME);
+                testMakeBackup();
             } else {
                 /* Make a thread */
                 String name = String.format("T%s", args[0]);
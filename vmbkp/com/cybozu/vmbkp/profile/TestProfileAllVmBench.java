@@ -0,0 +1,113 @@
+/**
+ * @file
+ * @brief TestProfileAllVmBench
+ *
+ * Copyright (C) 2009,2010 Cybozu Inc., all rights reserved.
+ *
+ * @author Takashi HOSHINO <hoshino@labs.cybozu.co.jp>
+ */
+package com.cybozu.vmbkp.profile;
+
+import java.util.Calendar;
+import java.util.List;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+import com.cybozu.vmbkp.config.GroupMap;
+import com.cybozu.vmbkp.util.VmInfo;
+
+/**
+ * @brief Benchmark of ProfileAllVm lookups with sorted/hashed GroupMap.
+ *
+ * Usage: java -ea com.cybozu.vmbkp.profile.TestProfileAllVmBench
+ *        [number of vms] [number of loops]
+ */
+public class TestProfileAllVmBench
+{
+    public static void main(String[] args)
+        throws Exception
+    {
+        int numVms = 10000;
+        int numLoops = 10;
+        if (args.length > 0) { numVms = Integer.parseInt(args[0]); }
+        if (args.length > 1) { numLoops = Integer.parseInt(args[1]); }
+
+        File file = File.createTempFile("vmbkp_all_vm", ".profile");
+        file.deleteOnExit();
+        String path = file.getPath();
+
+        /* Make a profile with the default map. */
+        ProfileAllVm profAllVm = new ProfileAllVm();
+        Calendar cal = Calendar.getInstance();
+        for (int i = 0; i < numVms; i ++) {
+            VmInfo vmInfo = new VmInfo("vm" + i, "vm-" + i);
+            profAllVm.addVmEntry(vmInfo, cal, (i % 100 == 0));
+        }
+        profAllVm.write(path);
+
+        System.out.printf("%d vms, %d loops.\n", numVms, numLoops);
+        for (int i = 0; i < 2; i ++) { /* The first round is warm up. */
+            run(path, numVms, numLoops, false);
+            run(path, numVms, numLoops, true);
+        }
+    }
+
+    /**
+     * Load the profile and lookup all vms.
+     */
+    private static void run(String path, int numVms, int numLoops,
+                            boolean isHashed)
+        throws Exception
+    {
+        GroupMap.setHashed(isHashed);
+        String type = (isHashed ? "hashed" : "sorted");
+
+        long t0 = System.nanoTime();
+        long a0 = getAllocatedBytes();
+        ProfileAllVm profAllVm = new ProfileAllVm(path);
+        long t1 = System.nanoTime();
+        long a1 = getAllocatedBytes();
+        System.out.printf("%s: load %.1f ms, %.1f MB allocated.\n",
+                          type, (t1 - t0) / 1000000.0,
+                          (a1 - a0) / 1048576.0);
+
+        List<String> morefs = profAllVm.getAllVmMorefs();
+        assert morefs.size() == numVms;
+
+        int count = 0;
+        t0 = System.nanoTime();
+        a0 = getAllocatedBytes();
+        for (int loop = 0; loop < numLoops; loop ++) {
+            for (String moref : morefs) {
+                if (profAllVm.isAvailableWithMoref(moref)) { count ++; }
+                if (profAllVm.isTemplateWithMoref(moref)) { count ++; }
+                String name = profAllVm.getVmNameWithMoref(moref);
+                if (profAllVm.getVmMorefWithName(name) != null) { count ++; }
+            }
+        }
+        t1 = System.nanoTime();
+        a1 = getAllocatedBytes();
+        assert count == numLoops * (numVms * 2 + (numVms + 99) / 100);
+
+        long numOps = 4L * numLoops * numVms;
+        System.out.printf("%s: lookup %.0f ns/op, %.0f bytes/op.\n",
+                          type, (double) (t1 - t0) / numOps,
+                          (double) (a1 - a0) / numOps);
+    }
+
+    /**
+     * Get allocated bytes of the current thread.
+     *
+     * @return -1 if not supported.
+     */
+    private static long getAllocatedBytes()
+    {
+        java.lang.management.ThreadMXBean bean =
+            ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1L;
+    }
+}
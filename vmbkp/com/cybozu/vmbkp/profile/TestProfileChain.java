@@ -0,0 +1,94 @@
+/**
+ * @file
+ * @brief TestProfileChain
+ *
+ * Copyright (C) 2009,2010 Cybozu Inc., all rights reserved.
+ *
+ * @author Takashi HOSHINO <hoshino@labs.cybozu.co.jp>
+ */
+package com.cybozu.vmbkp.profile;
+
+import java.util.List;
+import java.util.LinkedList;
+
+/**
+ * @brief Test of ProfileChain class.
+ */
+public class TestProfileChain
+{
+    public static void main(String[] args)
+    {
+        test1();
+        test2();
+    }
+
+    /**
+     * Backup history of a disk: gen 0 full, gen 1 diff, gen 2 incr (not changed).
+     */
+    public static void test1()
+    {
+        ProfileChain chain = new ProfileChain();
+        String uuid = "6000C29a-0000";
+
+        /* gen 0 full. */
+        chain.setFileList(0, uuid, makeList("0/0.dump"));
+        chain.setDigest(0, uuid, "0/0.digest");
+
+        /* gen 1 diff: dump of gen 0 is deleted. */
+        assert chain.replaceHead
+            (uuid, "0/0.dump", makeList("1/0.dump", "1/0.rdiff")) == 1;
+        chain.setFileList(1, uuid, makeList("1/0.dump"));
+        chain.setDigest(1, uuid, "1/0.digest");
+
+        assert chain.getFileList(0, uuid).equals
+            (makeList("1/0.dump", "1/0.rdiff"));
+        assert chain.getDigest(0, uuid).equals("0/0.digest");
+
+        /* gen 2 incr not changed: dump and digest of gen 1 are moved. */
+        assert chain.replaceHead(uuid, "1/0.dump", makeList("2/0.dump")) == 2;
+        assert chain.replaceDigest(uuid, "1/0.digest", "2/0.digest") == 1;
+        chain.setFileList(2, uuid, makeList("2/0.dump"));
+        chain.setDigest(2, uuid, "2/0.digest");
+
+        assert chain.getFileList(0, uuid).equals
+            (makeList("2/0.dump", "1/0.rdiff"));
+        assert chain.getFileList(1, uuid).equals(makeList("2/0.dump"));
+        assert chain.getDigest(0, uuid).equals("0/0.digest");
+        assert chain.getDigest(1, uuid).equals("2/0.digest");
+
+        /* old generation is deleted. */
+        chain.delGeneration(0);
+        assert chain.getFileList(0, uuid) == null;
+        assert chain.getDigest(0, uuid) == null;
+        assert chain.getFileList(1, uuid) != null;
+
+        System.out.println("test1 passed.");
+    }
+
+    /**
+     * Clear and latest generation id.
+     */
+    public static void test2()
+    {
+        ProfileChain chain = new ProfileChain();
+        assert chain.getLatestGenerationId() < 0;
+        chain.setLatestGenerationId(3);
+        assert chain.getLatestGenerationId() == 3;
+
+        chain.setFileList(3, "a", makeList("3/0.dump"));
+        chain.setFileList(3, "b", makeList("3/1.dump"));
+        chain.clear();
+        assert chain.getLatestGenerationId() < 0;
+        assert chain.getFileList(3, "a") == null;
+        assert chain.getFileList(3, "b") == null;
+
+        System.out.println("test2 passed.");
+    }
+
+    private static List<String> makeList(String... paths)
+    {
+        List<String> ret = new LinkedList<String>();
+        for (String path : paths) { ret.add(path); }
+        return ret;
+    }
+}
@@ -34,7 +34,7 @@ public class TestProfileGeneration
         }
 
         testGetDiskIdList(p);
-
+        testBlockSize(p);
     }
 
     private static int makeRandomInt(int max)
@@ -134,6 +134,32 @@ public class TestProfileGeneration
         return profGen;
     }
 
+    public static void testBlockSize(ProfileGeneration profGen)
+    {
+        for (Integer diskId: profGen.getDiskIdList()) {
+            assert profGen.getBlockSize(diskId) ==
+                VmdkBitmap.DEFAULT_BLOCK_SIZE;
+        }
+
+        /* capacity 1G + 64K can not be divided by 256K. */
+        List<VmdkInfo> vmdkInfoList = new LinkedList<VmdkInfo>();
+        vmdkInfoList.add(new VmdkInfo("[storage] a", "uuid-a", "*",
+                                      2000, 1000, 1024L * 1024L,
+                                      AdapterType.LSILOGIC, 0, 0,
+                                      "persistent"));
+        vmdkInfoList.add(new VmdkInfo("[storage] b", "uuid-b", "*",
+                                      2001, 1000, 1024L * 1024L + 64L,
+                                      AdapterType.LSILOGIC, 0, 1,
+                                      "persistent"));
+        ProfileGeneration p = new ProfileGeneration();
+        p.initializeGeneration
+            (1, 0, new VmInfo("testvm", "vm-10000"),
+             new SnapInfo("testsnapshot", "snapshot-10001"),
+             vmdkInfoList, Calendar.getInstance(), false, 256 * 1024);
+        assert p.getBlockSize(p.getDiskIdWithUuid("uuid-a")) == 256 * 1024;
+        assert p.getBlockSize(p.getDiskIdWithUuid("uuid-b")) == 64 * 1024;
+    }
+
     public static void testGetDiskIdList(ProfileGeneration profGen)
     {
         assert profGen.getDiskIdList().size() == numDisks_;
@@ -0,0 +1,163 @@
+/**
+ * @file
+ * @brief ChangedBlockCollector
+ *
+ * Copyright (C) 2009,2010 Cybozu Inc., all rights reserved.
+ *
+ * @author Takashi HOSHINO <hoshino@labs.cybozu.co.jp>
+ */
+package com.cybozu.vmbkp.soap;
+
+import java.util.List;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+import com.cybozu.vmbkp.util.ChangedExtents;
+import com.cybozu.vmbkp.util.VmdkInfo;
+import com.cybozu.vmbkp.util.Utility;
+
+/**
+ * @brief Collect changed extents of disks of a snapshot concurrently.
+ *
+ * Each disk is divided into windows of WINDOW_SIZE bytes
+ * and the windows of all submitted disks are queried by a thread pool.
+ */
+public class ChangedBlockCollector
+{
+    /**
+     * Logger.
+     */
+    private static final Logger logger_ =
+        Logger.getLogger(ChangedBlockCollector.class.getName());
+
+    /**
+     * Size of an offset window queried by a thread.
+     */
+    public static final long WINDOW_SIZE = 64L * 1024L * 1024L * 1024L;
+
+    /**
+     * Target snapshot.
+     */
+    private SnapshotManager snap_;
+
+    /**
+     * Thread pool.
+     */
+    private ExecutorService executor_;
+
+    /**
+     * uuid -> futures of windows in offset order.
+     */
+    private Map<String, List<Future<ChangedExtents>>> futureMap_;
+
+    /**
+     * uuid -> merged result. The value is null in failure.
+     */
+    private Map<String, ChangedExtents> resultMap_;
+
+    /**
+     * Constructor.
+     *
+     * @param snap Target snapshot.
+     * @param numThreads Number of threads to query.
+     */
+    public ChangedBlockCollector(SnapshotManager snap, int numThreads)
+    {
+        assert snap != null;
+        assert numThreads > 0;
+        snap_ = snap;
+        executor_ = Executors.newFixedThreadPool
+            (numThreads, new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread th = new Thread(r, "cbt-query");
+                        th.setDaemon(true);
+                        return th;
+                    }
+                });
+        futureMap_ = new TreeMap<String, List<Future<ChangedExtents>>>();
+        resultMap_ = new TreeMap<String, ChangedExtents>();
+    }
+
+    /**
+     * Submit queries of changed extents of a disk.
+     *
+     * @param vmdkInfo Target vmdk.
+     * @param baseChangeId changeId of the previous backup time.
+     */
+    public void submit(final VmdkInfo vmdkInfo, final String baseChangeId)
+    {
+        final long capacityInBytes = vmdkInfo.capacityInKB_ * 1024L;
+
+        List<Future<ChangedExtents>> list =
+            new LinkedList<Future<ChangedExtents>>();
+        for (long begin = 0; begin < capacityInBytes; begin += WINDOW_SIZE) {
+            final long b = begin;
+            final long e = Math.min(begin + WINDOW_SIZE, capacityInBytes);
+            list.add(executor_.submit(new Callable<ChangedExtents>() {
+                        public ChangedExtents call() throws Exception {
+                            return snap_.queryChangedExtents
+                                (vmdkInfo, baseChangeId, b, e);
+                        }
+                    }));
+        }
+        futureMap_.put(vmdkInfo.uuid_, list);
+        resultMap_.remove(vmdkInfo.uuid_);
+    }
+
+    /**
+     * Wait for all submitted queries.
+     * Call this before disconnecting the connection.
+     */
+    public void waitAll()
+    {
+        for (String uuid : futureMap_.keySet()) {
+            get(uuid);
+        }
+    }
+
+    /**
+     * Get changed extents of the disk.
+     *
+     * @param uuid uuid of the disk.
+     * @return Changed extents, or null if not submitted or failed.
+     */
+    public ChangedExtents get(String uuid)
+    {
+        if (resultMap_.containsKey(uuid)) { return resultMap_.get(uuid); }
+        List<Future<ChangedExtents>> list = futureMap_.get(uuid);
+        if (list == null) { return null; }
+
+        ChangedExtents ret = new ChangedExtents();
+        try {
+            for (Future<ChangedExtents> f : list) {
+                if (ret.addAll(f.get()) == false) {
+                    throw new Exception("windows overlap.");
+                }
+            }
+        } catch (Exception e) {
+            logger_.warning(Utility.toString(e));
+            ret = null;
+        }
+        resultMap_.put(uuid, ret);
+        if (ret == null) { return null; }
+
+        logger_.info(String.format("changed extents of %s: %s in %d windows.",
+                                   uuid, ret.toString(), list.size()));
+        return ret;
+    }
+
+    /**
+     * Stop the threads.
+     */
+    public void shutdown()
+    {
+        executor_.shutdownNow();
+    }
+}
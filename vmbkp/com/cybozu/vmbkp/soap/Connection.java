@@ -8,19 +8,30 @@
  */
 package com.cybozu.vmbkp.soap;
 
+import java.util.Calendar;
 import java.util.List;
 import java.util.LinkedList;
 import java.util.logging.Logger;
 import java.net.URL;
 import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ManagedObjectNotFound;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.RetrieveOptions;
+import com.vmware.vim25.RetrieveResult;
+import com.vmware.vim25.SelectionSpec;
 import com.vmware.vim25.mo.ServiceInstance;
 import com.vmware.vim25.mo.Folder;
 import com.vmware.vim25.mo.ManagedEntity;
 import com.vmware.vim25.mo.ManagedObject;
 import com.vmware.vim25.mo.InventoryNavigator;
+import com.vmware.vim25.mo.PropertyCollector;
 import com.vmware.vim25.mo.VirtualMachine;
 import com.vmware.vim25.mo.VirtualMachineSnapshot;
 import com.vmware.vim25.mo.util.MorUtil;
+import com.vmware.vim25.mo.util.PropertyCollectorUtil;
 
 import com.cybozu.vmbkp.util.Utility;
 
@@ -46,6 +57,26 @@ public class Connection
     private String url_;
     private String username_;
     private String password_;
+
+    /**
+     * Task tracker shared in the connection. Created on demand.
+     */
+    private TaskTracker taskTracker_;
+
+    /**
+     * Pool of extra sessions for concurrent operations. Can be null.
+     */
+    private ConnectionPool pool_;
+
+    /**
+     * Time to live of cached lookups.
+     */
+    private static final long MO_CACHE_TTL_MS = 5L * 60L * 1000L;
+
+    /**
+     * Cache of name/moref lookups. Kept over reconnection.
+     */
+    private ManagedObjectCache moCache_;
     
     /**
      * Constructor.
@@ -61,6 +92,18 @@ public class Connection
         password_ = password;
         si_ = null;
         rootFolder_ = null;
+        taskTracker_ = null;
+        pool_ = null;
+        moCache_ = new ManagedObjectCache(MO_CACHE_TTL_MS);
+    }
+
+    /**
+     * Set a pool of extra sessions to the same server.
+     * Operations that can run concurrently lease sessions from it.
+     */
+    public void setPool(ConnectionPool pool)
+    {
+        pool_ = pool;
     }
 
     /**
@@ -70,8 +113,13 @@ public class Connection
         throws Exception
     {
         logger_.info(String.format("connecting to %s...", url_));
-		si_ = new ServiceInstance
-            (new URL(url_), username_, password_, true);
+        si_ = SoapMetrics.measure
+            ("login", new SoapMetrics.Body<ServiceInstance, Exception>() {
+                public ServiceInstance call() throws Exception {
+                    return new ServiceInstance
+                        (new URL(url_), username_, password_, true);
+                }
+            });
 		rootFolder_ = si_.getRootFolder();
         logger_.info("connected");
     }
@@ -80,12 +128,27 @@ public class Connection
      * Disconnect from the vcenter server.
      */
     public void disconnect() {
+        if (pool_ != null) { pool_.evictAll(); }
         if (isConnected()) {
             logger_.info("disconnecting...");
-            si_.getServerConnection().logout();
+            synchronized (this) {
+                if (taskTracker_ != null) {
+                    taskTracker_.shutdown();
+                    taskTracker_ = null;
+                }
+            }
+            SoapMetrics.measure
+                ("logout", new SoapMetrics.Body<Void, RuntimeException>() {
+                    public Void call() {
+                        si_.getServerConnection().logout();
+                        return null;
+                    }
+                });
             si_ = null;
             rootFolder_ = null;
-            logger_.info("disconnected");
+            logger_.info(String.format
+                         ("disconnected. lookup cache: %d hits, %d misses.",
+                          moCache_.getNumHits(), moCache_.getNumMisses()));
         } else {
             logger_.info("already connected.");
         }
@@ -103,6 +166,36 @@ public class Connection
         return si_ != null;
     }
 
+    /**
+     * Check the session is still valid with a server call.
+     */
+    protected boolean isAlive()
+    {
+        if (si_ == null) { return false; }
+        try {
+            SoapMetrics.measure
+                ("currentTime", new SoapMetrics.Body<Calendar, Exception>() {
+                    public Calendar call() throws Exception {
+                        return si_.currentTime();
+                    }
+                });
+            return true;
+        } catch (Exception e) {
+            logger_.info(Utility.toString(e));
+            return false;
+        }
+    }
+
+    /**
+     * Get the pool of extra sessions.
+     *
+     * @return null if not set.
+     */
+    protected ConnectionPool getPool()
+    {
+        return pool_;
+    }
+
     /**
      * Get ServiceInstance object.
      */
@@ -111,6 +204,15 @@ public class Connection
         return si_;
     }
     
+    /**
+     * Get the task tracker shared in the connection.
+     */
+    protected synchronized TaskTracker getTaskTracker()
+    {
+        if (taskTracker_ == null) { taskTracker_ = new TaskTracker(this); }
+        return taskTracker_;
+    }
+
     /**
      * A wrapper of InventoryNavigator(rootFolder_).searchManagedEntity().
      *
@@ -118,19 +220,81 @@ public class Connection
      * @param name Name of the entity.
      * @return Found managed entity in success or null in failure.
      */
-    protected ManagedEntity searchManagedEntity(String type, String name)
+    protected ManagedEntity searchManagedEntity(final String type,
+                                                final String name)
     {
+        String key = ManagedObjectCache.nameKey(type, name);
+        ManagedObjectReference mor = moCache_.get(key);
+        if (mor != null) {
+            return MorUtil.createExactManagedEntity
+                (si_.getServerConnection(), mor);
+        }
+
         ManagedEntity ret = null;
         try {
-            ret = new InventoryNavigator
-                (rootFolder_).searchManagedEntity(type, name);
+            ret = SoapMetrics.measure
+                ("retrieveProperties",
+                 new SoapMetrics.Body<ManagedEntity, Exception>() {
+                    public ManagedEntity call() throws Exception {
+                        return new InventoryNavigator
+                            (rootFolder_).searchManagedEntity(type, name);
+                    }
+                });
         } catch (Exception e) { /* InvalidProperty, RuntimeFault, RemoteException */
             logger_.warning(Utility.toString(e));
             return null;
         }
+        if (ret != null) { moCache_.put(key, ret.getMOR()); }
         return ret;
     }
 
+    /**
+     * Get a cached reference with the moref.
+     *
+     * @return null if not cached or expired.
+     */
+    protected ManagedObjectReference getCachedMoref
+        (String type, String morefStr)
+    {
+        return moCache_.get(ManagedObjectCache.morefKey(type, morefStr));
+    }
+
+    /**
+     * Cache a reference which is known to exist.
+     */
+    protected void putCachedMoref(ManagedObjectReference mor)
+    {
+        moCache_.put
+            (ManagedObjectCache.morefKey(mor.getType(), mor.getVal()), mor);
+    }
+
+    /**
+     * Remove cached lookups of the managed object.
+     */
+    protected void invalidate(ManagedObjectReference mor)
+    {
+        if (mor != null) { moCache_.invalidate(mor); }
+    }
+
+    /**
+     * Remove cached lookups of the managed object
+     * if the exception means it is not found.
+     *
+     * @return True if the exception is ManagedObjectNotFound.
+     */
+    protected boolean invalidateIfNotFound
+        (Throwable t, ManagedObjectReference mor)
+    {
+        for (; t != null; t = t.getCause()) {
+            if (t instanceof ManagedObjectNotFound) {
+                logger_.info(String.format("%s is not found.", mor.getVal()));
+                invalidate(mor);
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * A wrapper of InventoryNavigator(rootFolder_).searchManagedEntities().
      *
@@ -138,13 +302,20 @@ public class Connection
      * @return List of found managed entities.
      *         Never return null, but a list with zero-size.
      */
-    protected List<ManagedEntity> searchManagedEntities(String type)
+    protected List<ManagedEntity> searchManagedEntities(final String type)
     {
         List<ManagedEntity> ret = new LinkedList<ManagedEntity>();
         
         ManagedEntity[] mes;
         try {
-            mes = new InventoryNavigator(rootFolder_).searchManagedEntities(type);
+            mes = SoapMetrics.measure
+                ("retrieveProperties",
+                 new SoapMetrics.Body<ManagedEntity[], Exception>() {
+                    public ManagedEntity[] call() throws Exception {
+                        return new InventoryNavigator(rootFolder_)
+                            .searchManagedEntities(type);
+                    }
+                });
         } catch (Exception e) { /* InvalidProperty, RuntimeFault, RemoteException */
             return ret;
         }
@@ -164,15 +335,22 @@ public class Connection
      * @return List of found managed entities.
      *         Never return null, but a list with zero-size.
      */
-    protected List<ManagedEntity> searchManagedEntities(String type, String name)
+    protected List<ManagedEntity> searchManagedEntities(final String type,
+                                                        final String name)
     {
         List<ManagedEntity> ret = new LinkedList<ManagedEntity>();
         
         ManagedEntity[] mes;
         try {
-            mes = new InventoryNavigator(rootFolder_).searchManagedEntities
-                (new String[][] { {type, name}, }, true);
-            
+            mes = SoapMetrics.measure
+                ("retrieveProperties",
+                 new SoapMetrics.Body<ManagedEntity[], Exception>() {
+                    public ManagedEntity[] call() throws Exception {
+                        return new InventoryNavigator(rootFolder_)
+                            .searchManagedEntities
+                            (new String[][] { {type, name}, }, true);
+                    }
+                });
         } catch (Exception e) { /* InvalidProperty, RuntimeFault, RemoteException */
             return ret;
         }
@@ -184,6 +362,93 @@ public class Connection
         return ret;
     }
 
+    /**
+     * Max number of objects in a result of RetrievePropertiesEx.
+     */
+    private static final int MAX_OBJECTS_PER_RETRIEVE = 1000;
+
+    /**
+     * Retrieve properties of all managed entities of the type
+     * under the root folder with RetrievePropertiesEx.
+     * The result is paged with continuation tokens.
+     *
+     * @param type Search type like "VirtualMachine", "Datacenter", etc.
+     * @param props Property paths like "name", "config.template", etc.
+     * @return List of object contents. Never return null.
+     */
+    protected List<ObjectContent> retrieveAllProperties
+        (String type, String[] props)
+        throws Exception
+    {
+        List<ObjectContent> ret = new LinkedList<ObjectContent>();
+        final PropertyFilterSpec filterSpec =
+            createInventoryFilterSpec(type, props);
+
+        final RetrieveOptions options = new RetrieveOptions();
+        options.setMaxObjects(Integer.valueOf(MAX_OBJECTS_PER_RETRIEVE));
+
+        final PropertyCollector pc = si_.getPropertyCollector();
+        RetrieveResult result = SoapMetrics.measure
+            ("retrievePropertiesEx",
+             new SoapMetrics.Body<RetrieveResult, Exception>() {
+                public RetrieveResult call() throws Exception {
+                    return pc.retrievePropertiesEx
+                        (new PropertyFilterSpec[] { filterSpec }, options);
+                }
+            });
+        int numCalls = 1;
+        while (result != null) {
+            ObjectContent[] objs = result.getObjects();
+            if (objs != null) {
+                for (int i = 0; i < objs.length; i ++) {
+                    ret.add(objs[i]);
+                }
+            }
+            final String token = result.getToken();
+            if (token == null) { break; }
+            result = SoapMetrics.measure
+                ("continueRetrievePropertiesEx",
+                 new SoapMetrics.Body<RetrieveResult, Exception>() {
+                    public RetrieveResult call() throws Exception {
+                        return pc.continueRetrievePropertiesEx(token);
+                    }
+                });
+            numCalls ++;
+        }
+        logger_.info(String.format("retrieved %d %s in %d calls.",
+                                   ret.size(), type, numCalls));
+        return ret;
+    }
+
+    /**
+     * Create a filter spec to get properties of all managed entities
+     * of the type under the root folder.
+     *
+     * @param type Search type like "VirtualMachine", "Datacenter", etc.
+     * @param props Property paths like "name", "config.template", etc.
+     */
+    protected PropertyFilterSpec createInventoryFilterSpec
+        (String type, String[] props)
+    {
+        /* Same traversal as InventoryNavigator. */
+        SelectionSpec[] selectionSpecs;
+        String apiVer = si_.getAboutInfo().getApiVersion();
+        if (apiVer.startsWith("4") || apiVer.startsWith("5")) {
+            selectionSpecs = PropertyCollectorUtil.buildFullTraversalV4();
+        } else {
+            selectionSpecs = PropertyCollectorUtil.buildFullTraversal();
+        }
+
+        ObjectSpec objSpec = PropertyCollectorUtil.creatObjectSpec
+            (rootFolder_.getMOR(), true, selectionSpecs);
+        PropertySpec propSpec =
+            PropertyCollectorUtil.createPropertySpec(type, false, props);
+        PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+        filterSpec.setObjectSet(new ObjectSpec[] { objSpec });
+        filterSpec.setPropSet(new PropertySpec[] { propSpec });
+        return filterSpec;
+    }
+
     /**
      * Generate ManagedObjectReference with type and moref string.
      *
@@ -229,6 +494,36 @@ public class Connection
         }
     }
 
+    /**
+     * Get VirtualMachine object from moref string
+     * checking it exists in the server.
+     * The check is skipped while the moref is cached.
+     *
+     * @return The target VirtualMachine object, or null if not found.
+     */
+    protected VirtualMachine findVirtualMachineWithMoref(String morefStr)
+    {
+        final VirtualMachine vm = generateVirtualMachineWithMoref(morefStr);
+        if (vm == null) { return null; }
+        if (getCachedMoref("VirtualMachine", morefStr) != null) { return vm; }
+
+        try {
+            String name = SoapMetrics.measure
+                ("retrieveProperties",
+                 new SoapMetrics.Body<String, RuntimeException>() {
+                    public String call() {
+                        return vm.getName();
+                    }
+                });
+            if (name == null) { return null; }
+        } catch (RuntimeException e) {
+            if (invalidateIfNotFound(e, vm.getMOR())) { return null; }
+            throw e;
+        }
+        putCachedMoref(vm.getMOR());
+        return vm;
+    }
+
     /**
      * Generate VirtualMachineSnapshot object from moref string.
      *
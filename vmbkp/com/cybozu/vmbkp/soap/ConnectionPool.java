@@ -0,0 +1,276 @@
+/**
+ * @file
+ * @brief ConnectionPool
+ *
+ * Copyright (C) 2009,2010 Cybozu Inc., all rights reserved.
+ *
+ * @author Takashi HOSHINO <hoshino@labs.cybozu.co.jp>
+ */
+package com.cybozu.vmbkp.soap;
+
+import java.util.List;
+import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.logging.Logger;
+
+import com.cybozu.vmbkp.util.Utility;
+
+/**
+ * @brief Pool of authenticated sessions to a vcenter server.
+ *
+ * Each session is a Connection object used by one thread at a time.
+ * Lease a session with lease() and give it back with release(),
+ * or use execute() to do both.
+ * Sessions are connected on demand, checked with a server call
+ * when they have been idle for a while, and logged out
+ * when they have been idle longer than the idle timeout.
+ */
+public class ConnectionPool
+{
+    /**
+     * Logger.
+     */
+    private static final Logger logger_ =
+        Logger.getLogger(ConnectionPool.class.getName());
+
+    /**
+     * Default idle timeout.
+     * vcenter expires sessions idle for 30 minutes by default.
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 10L * 60L * 1000L;
+
+    /**
+     * Sessions idle longer than this are checked before lease.
+     */
+    private static final long HEALTH_CHECK_INTERVAL_MS = 60L * 1000L;
+
+    /**
+     * Max time to wait for a session in lease().
+     */
+    private static final long LEASE_TIMEOUT_MS = 10L * 60L * 1000L;
+
+    /**
+     * An operation with a leased session.
+     */
+    public interface Operation<T>
+    {
+        public T run(Connection conn)
+            throws Exception;
+    }
+
+    /**
+     * An idle session.
+     */
+    private static class Idle
+    {
+        final Connection conn_;
+        final long releasedMs_;
+
+        Idle(Connection conn, long releasedMs)
+        {
+            conn_ = conn;
+            releasedMs_ = releasedMs;
+        }
+    }
+
+    private String url_;
+    private String username_;
+    private String password_;
+
+    private int maxSize_;
+    private long idleTimeoutMs_;
+
+    /**
+     * Idle sessions. The last one is the most recently released.
+     */
+    private LinkedList<Idle> idleList_;
+
+    /**
+     * Number of leased sessions including ones being connected.
+     */
+    private int numLeased_;
+
+    /**
+     * Constructor with the default idle timeout.
+     *
+     * @param maxSize Max number of sessions.
+     */
+    public ConnectionPool(String url, String username, String password,
+                          int maxSize)
+    {
+        this(url, username, password, maxSize, DEFAULT_IDLE_TIMEOUT_MS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxSize Max number of sessions.
+     * @param idleTimeoutMs Idle sessions are logged out after this.
+     */
+    public ConnectionPool(String url, String username, String password,
+                          int maxSize, long idleTimeoutMs)
+    {
+        assert maxSize > 0;
+        url_ = url;
+        username_ = username;
+        password_ = password;
+        maxSize_ = maxSize;
+        idleTimeoutMs_ = idleTimeoutMs;
+        idleList_ = new LinkedList<Idle>();
+        numLeased_ = 0;
+    }
+
+    public int getMaxSize()
+    {
+        return maxSize_;
+    }
+
+    /**
+     * Lease a connected session.
+     * This blocks while all sessions are leased.
+     */
+    public Connection lease()
+        throws Exception
+    {
+        Idle idle = null;
+        List<Connection> evicted;
+        synchronized (this) {
+            evicted = evictIdle(System.currentTimeMillis());
+            long deadline = System.currentTimeMillis() + LEASE_TIMEOUT_MS;
+            while (idleList_.isEmpty() && numLeased_ >= maxSize_) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new Exception("no session is available in the pool.");
+                }
+                wait(remaining);
+            }
+            if (! idleList_.isEmpty()) { idle = idleList_.removeLast(); }
+            numLeased_ ++;
+        }
+        disconnectAll(evicted);
+
+        try {
+            if (idle == null) {
+                Connection conn = new Connection(url_, username_, password_);
+                conn.connect();
+                return conn;
+            }
+            Connection conn = idle.conn_;
+            if (System.currentTimeMillis() - idle.releasedMs_ >
+                HEALTH_CHECK_INTERVAL_MS && conn.isAlive() == false) {
+                logger_.info("session is not alive. reconnect.");
+                disconnect(conn);
+                conn.connect();
+            }
+            return conn;
+        } catch (Exception e) {
+            synchronized (this) {
+                numLeased_ --;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Give back a leased session.
+     */
+    public void release(Connection conn)
+    {
+        List<Connection> evicted;
+        synchronized (this) {
+            numLeased_ --;
+            long now = System.currentTimeMillis();
+            idleList_.addLast(new Idle(conn, now));
+            evicted = evictIdle(now);
+            notifyAll();
+        }
+        disconnectAll(evicted);
+    }
+
+    /**
+     * Discard a leased session that is broken.
+     */
+    public void invalidate(Connection conn)
+    {
+        synchronized (this) {
+            numLeased_ --;
+            notifyAll();
+        }
+        disconnect(conn);
+    }
+
+    /**
+     * Run an operation with a leased session.
+     * The session is discarded if it is not alive after a failure.
+     */
+    public <T> T execute(Operation<T> op)
+        throws Exception
+    {
+        Connection conn = lease();
+        T ret;
+        try {
+            ret = op.run(conn);
+        } catch (Exception e) {
+            if (conn.isAlive()) {
+                release(conn);
+            } else {
+                invalidate(conn);
+            }
+            throw e;
+        }
+        release(conn);
+        return ret;
+    }
+
+    /**
+     * Log out all idle sessions.
+     * Leased sessions are kept and can be released later.
+     */
+    public void evictAll()
+    {
+        List<Connection> evicted = new LinkedList<Connection>();
+        synchronized (this) {
+            for (Idle idle : idleList_) {
+                evicted.add(idle.conn_);
+            }
+            idleList_.clear();
+        }
+        disconnectAll(evicted);
+    }
+
+    /**
+     * Remove sessions idle longer than the idle timeout.
+     *
+     * @return Removed sessions to be disconnected outside the lock.
+     */
+    private List<Connection> evictIdle(long now)
+    {
+        List<Connection> ret = new LinkedList<Connection>();
+        Iterator<Idle> it = idleList_.iterator();
+        while (it.hasNext()) {
+            Idle idle = it.next();
+            if (now - idle.releasedMs_ > idleTimeoutMs_) {
+                ret.add(idle.conn_);
+                it.remove();
+            }
+        }
+        return ret;
+    }
+
+    private void disconnectAll(List<Connection> connList)
+    {
+        for (Connection conn : connList) {
+            disconnect(conn);
+        }
+    }
+
+    private void disconnect(Connection conn)
+    {
+        try {
+            conn.disconnect();
+        } catch (Exception e) {
+            logger_.warning(Utility.toString(e));
+        }
+    }
+}
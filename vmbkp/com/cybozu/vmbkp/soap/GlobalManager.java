@@ -9,82 +9,28 @@
 package com.cybozu.vmbkp.soap;
 
 import java.util.List;
-import java.util.LinkedList;
-import java.util.logging.Logger;
-import java.io.IOException;
 
-import com.vmware.vim25.mo.HostSystem;
-import com.vmware.vim25.mo.Datastore;
-import com.vmware.vim25.mo.VirtualMachine;
-import com.vmware.vim25.mo.ManagedEntity;
-
-/* required by importOvf */
-import com.vmware.vim25.mo.Folder;
-import com.vmware.vim25.mo.ResourcePool;
-import com.vmware.vim25.mo.ComputeResource;
-import com.vmware.vim25.mo.HttpNfcLease;
-import com.vmware.vim25.mo.Task;
-import com.vmware.vim25.OvfCreateImportSpecParams;
-import com.vmware.vim25.OvfNetworkMapping;
-import com.vmware.vim25.OvfCreateImportSpecResult;
-import com.vmware.vim25.HttpNfcLeaseState;
-
-/* required by zerofill */
-import com.vmware.vim25.mo.VirtualDiskManager;
-import com.vmware.vim25.mo.Datacenter;
-
-/* required by readOvfContent */
-import java.lang.StringBuffer;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.FileInputStream;
-
-import com.cybozu.vmbkp.util.Utility;
+import com.cybozu.vmbkp.util.VmInventoryInfo;
 
 /**
- * @brief Manage a vSphere environment.
+ * @brief Interface to manage a vSphere environment.
+ *
+ * GlobalManagerV talks with a vSphere soap server,
+ * and GlobalManagerS uses an in-memory simulator.
  */
-public class GlobalManager
+public interface GlobalManager
 {
-    /**
-     * Logger.
-     */
-    private static final Logger logger_ =
-        Logger.getLogger(GlobalManager.class.getName());
-    
-    /**
-     * vSphere connection.
-     */
-    private Connection conn_;
-
-    /**
-     * Contructor.
-     */
-    public GlobalManager(Connection conn)
-    {
-        assert conn != null;
-        conn_ = conn;
-    }
-
     /**
      * Connect to the soap server if not connected.
      */
     public void connect()
-        throws Exception
-    {
-        assert conn_ != null;
-        conn_.connect();
-    }
-    
+        throws Exception;
+
     /**
      * Disconnect from the soap server if connected.
      * The application must call this at the end.
      */
-    public void disconnect()
-    {
-        assert conn_ != null;
-        conn_.disconnect();
-    }
+    public void disconnect();
 
     /**
      * Search virtual machine with a specified name.
@@ -93,13 +39,7 @@ public class GlobalManager
      * @return virtual machine manager in success.
      */
     public VirtualMachineManager searchVmWithName(String vmName)
-        throws Exception
-    {
-        if (conn_.isConnected() == false) { conn_.connect(); }
-        ManagedEntity vm = conn_.searchManagedEntity("VirtualMachine", vmName);
-        if (vm == null) { throw new Exception(); }
-        return new VirtualMachineManager(conn_, (VirtualMachine)vm);
-    }
+        throws Exception;
 
     /**
      * Search virtual machine with a specified moref.
@@ -108,58 +48,22 @@ public class GlobalManager
      * @return virtual machine manager in success.
      */
     public VirtualMachineManager searchVmWithMoref(String vmMorefStr)
-        throws Exception
-    {
-        if (conn_.isConnected() == false) { conn_.connect(); }
-        /* generate VirtualMachine object from moref string */
-        VirtualMachine vm = conn_.generateVirtualMachineWithMoref(vmMorefStr);
-        if (vm == null) { throw new Exception("virtual machine is not found."); }
-        
-        return new VirtualMachineManager(conn_, vm);
-    }
-    
+        throws Exception;
+
     /**
      * Remove virtual machine(removing also disk files).
      *
      * @param vm Virtual machine manager to destroy.
      * @return true in success, false in failure.
      */
-    public boolean destroyVm(VirtualMachineManager vmm)
-    {
-        if (vmm == null ) { return false; }
-        VirtualMachine vm = vmm.getVirtualMachine();
-        if (vm == null) { return false; }
-        
-        try {
-            Task task = vm.destroy_Task();
-            String ret = task.waitForTask();
-            if (ret.equals("success")) {
-                logger_.info
-                    (String.format
-                     ("%s: virtual machine was destroyed successfully.\n", ret));
-                return true;
-            } else {
-                logger_.info
-                    (String.format
-                     ("%s: virtual machine destory failed.\n", ret));
-                return false;
-            }
-        } catch (Exception e) {
-            /* InterruptedException, VimFault, RuntimeFault, RemoteException */
-            logger_.warning(Utility.toString(e));
-            return false;
-        }
-    }
+    public boolean destroyVm(VirtualMachineManager vmm);
 
     /**
      * Deploy ovf template using default host and datastore.
      */
     public String importOvf(String ovfPath, String newVmName)
-        throws Exception
-    {
-        return importOvf(ovfPath, newVmName, null, null, null);
-    }
-    
+        throws Exception;
+
     /**
      * Deploy ovf template to vSphere environment as a new virtual machine.
      *
@@ -170,144 +74,11 @@ public class GlobalManager
      * @param datastoreName The name of datastore.
      * @param folderName Folder name. can be null.
      * @return moref string in success.
-     *
      */
     public String importOvf(String ovfPath, String newVmName,
-                             String hostName, String datastoreName, String folderName)
-        throws Exception
-    {
-        if (conn_.isConnected() == false) { conn_.connect(); }
-
-        /* Get the HostSystem */
-        HostSystem host = getAvailableHost(hostName);
-        assert host != null;
-
-        /* Check the specified datastore exists and available with the host. */
-        Datastore datastore = getAvailableDatastore(datastoreName, host);
-        assert datastore != null;
-        
-        /* create spec */
-        Folder vmFolder = null;
-        OvfCreateImportSpecParams importSpecParams
-            = new OvfCreateImportSpecParams();
-        String ovfDescriptor = "";
-
-        if (folderName == null) {
-            vmFolder = (Folder) host.getVms()[0].getParent();
-        } else {
-            vmFolder = getFolder(folderName);
-        }
-
-        importSpecParams.setHostSystem(host.getMOR());
-        importSpecParams.setLocale("US");
-        importSpecParams.setEntityName(newVmName);
-        importSpecParams.setDeploymentOption("");
-        OvfNetworkMapping networkMapping = new OvfNetworkMapping();
-        networkMapping.setName("Network 1");
-        networkMapping.setNetwork(host.getNetworks()[0].getMOR());
-        importSpecParams.setNetworkMapping(new OvfNetworkMapping[] { networkMapping });
-        importSpecParams.setPropertyMapping(null);
-
-        /* read ovf from the file. */
-        ovfDescriptor = readOvfContent(ovfPath);
-
-        /* create ovf descriptor */
-        final String apiVerStr = conn_.getServiceInstance().getAboutInfo().getApiVersion();
-        final float apiVer = Float.parseFloat(apiVerStr);
-        if (apiVer < 5.5) {
-            ovfDescriptor = escapeSpecialChars(ovfDescriptor);
-            logger_.info("escapeSpecialChars.");
-        }
-        //logger_.info("ovfDesc: " + ovfDescriptor);
-
-        ResourcePool rp = ((ComputeResource) host.getParent()).getResourcePool();
-
-        logger_.fine(String.format("vmname: %s\n" +
-                                   "resourcepool: %s\n" +
-                                   "host:%s\n" +
-                                   "datastore:%s\n",
-                                   newVmName,
-                                   rp.getName(),
-                                   host.getName(),
-                                   datastore.getName()));
-        
-        OvfCreateImportSpecResult ovfImportResult = null;
-        HttpNfcLease httpNfcLease = null;        
-
-        /* create import spec */
-        ovfImportResult =
-            conn_.getServiceInstance().getOvfManager().createImportSpec
-            (ovfDescriptor, rp, datastore, importSpecParams);
-
-        /* import execution */
-        try {
-            httpNfcLease = 
-                rp.importVApp(ovfImportResult.getImportSpec(), vmFolder, host);
-        } catch (Exception e) {
-            logger_.warning("importVapp failed.");
-            throw e;
-        }
-
-        String morefOfNewVm = null;
-        
-        /* wait nfc lease */
-        HttpNfcLeaseState hls;
-		while (true) {
-			hls = httpNfcLease.getState();
-			if (hls == HttpNfcLeaseState.ready ||
-                hls == HttpNfcLeaseState.error) { break; }
-		}
-        if (hls == HttpNfcLeaseState.ready) {
-
-            morefOfNewVm = httpNfcLease.getInfo().getEntity().getVal();
-
-            logger_.info
-                (String.format
-                 ("Moref of the created vm: %s\n", morefOfNewVm));
-            
-            httpNfcLease.httpNfcLeaseComplete();
-            /*
-              We do not upload disk files, because the specified ovf
-              must not contain disk information.
-            */
-        } else {
-            logger_.warning("Could not obtain nfc lease.");
-            throw new Exception();
-        }
-        
-        return morefOfNewVm;
-    }
-
-    /**
-     * Called by importOvf().
-     * Original version is written by Steve Jin.
-     * @author Steve Jin <sjin@vmware.com>
-     */
-	private String readOvfContent(String ovfFilePath)
-        throws IOException 
-	{
-		StringBuffer strContent = new StringBuffer();
-		BufferedReader in = new BufferedReader
-            (new InputStreamReader(new FileInputStream(ovfFilePath)));
-		String lineStr;
-		while ((lineStr = in.readLine()) != null) {
-			strContent.append(lineStr);
-		}
-		in.close();
-		return strContent.toString();
-	}
-
-    /**
-     * Called by importOvf().
-     * Original version is written by Steve Jin.
-     * @author Steve Jin <sjin@vmware.com>
-     */
-    private String escapeSpecialChars(String str)
-	{
-		str = str.replaceAll("<", "&lt;");
-		return str.replaceAll(">", "&gt;");
-        /* do not escape "&" -> "&amp;", "\"" -> "&quot;" */
-	}
+                            String hostName, String datastoreName,
+                            String folderName)
+        throws Exception;
 
     /**
      * Get the list of all virtual machine managers.
@@ -315,278 +86,49 @@ public class GlobalManager
      * @return list of virtual machine objects. never return 'null'.
      */
     public List<VirtualMachineManager> getAllVmList()
-        throws Exception
-    {
-        if (conn_.isConnected() == false) { conn_.connect(); }
-        
-        List<VirtualMachineManager> ret =
-            new LinkedList<VirtualMachineManager>();
-        
-        List<ManagedEntity> tmpList =
-            conn_.searchManagedEntities("VirtualMachine", "name");
-
-        int i = 0;
-        for (ManagedEntity me: tmpList) {
-            assert (me instanceof VirtualMachine);
-            VirtualMachineManager vmm =
-                new VirtualMachineManager(conn_, (VirtualMachine) me);
-
-            String logStr = String.format
-                ("%d: %s %s", i, vmm.getMoref(), vmm.getName());
-            System.out.println(logStr);
-            logger_.info(logStr);
-            
-            ret.add(vmm);
-            i ++;
-        }
-        return ret;
-    }
-
-    /**
-     * Get the list of name of all ESX(i) hosts.
-     */
-    public List<String> getAllHostNameList()
-        throws Exception
-    {
-        List<String> ret = new LinkedList<String>();
-
-        List<HostSystem> tmp = getAllHostList();
-
-        for (HostSystem hs: tmp) {
-            ret.add(hs.getName());
-        }
-        return ret;
-    }
+        throws Exception;
 
     /**
-     * Get the list of name of all Datastores managed
-     * by the vSphere server.
+     * Get name, moref and template flag of all virtual machines.
+     *
+     * @return never return null.
      */
-    public List<String> getAllDatastoreNameList()
-        throws Exception
-    {
-        List<String> ret = new LinkedList<String>();
-
-        List<Datastore> tmp = getAllDatastoreList();
-
-        for (Datastore ds: tmp) {
-            ret.add(ds.getName());
-        }
-        return ret;
-    }
+    public List<VmInventoryInfo> getAllVmInventoryInfoList()
+        throws Exception;
 
     /**
-     * Get the list of name of all Datastores of a specified ESX(i) host.
+     * Create a tracker of the virtual machine inventory.
      */
-    public List<String> getAllDatastoreNameList(String hostname)
-        throws Exception
-    {
-        if (conn_.isConnected() == false) { conn_.connect(); }
+    public InventoryTracker createInventoryTracker()
+        throws Exception;
 
-        List<String> ret = new LinkedList<String>();
-        
-        ManagedEntity host = conn_.searchManagedEntity("HostSystem", hostname);
-        if (host == null) { return ret; }
-
-        List<Datastore> tmp = getAllDatastoreList((HostSystem) host);
-
-        for (Datastore ds: tmp) {
-            ret.add(ds.getName());
-        }
-        return ret;
-    }
-    
     /**
-     * Get all ESX(i) hosts.
-     *
-     * @return list of host system objects. never return 'null'.
+     * Get the list of name of all hosts.
      */
-    private List<HostSystem> getAllHostList()
-        throws Exception
-    {
-        if (conn_.isConnected() == false) { conn_.connect(); }
-
-        List<HostSystem> ret = new LinkedList<HostSystem>();
-
-        List<ManagedEntity> tmpList =
-            conn_.searchManagedEntities("HostSystem", "name");
-
-        for (ManagedEntity me: tmpList) {
-            ret.add((HostSystem) me);
-        }
-        return ret;
-    }
+    public List<String> getAllHostNameList()
+        throws Exception;
 
     /**
-     * Get all Datastores.
-     *
-     * @return list of datastore objects. never return 'null'.
+     * Get the list of name of all datastores.
      */
-    private List<Datastore> getAllDatastoreList()
-        throws Exception
-    {
-        if (conn_.isConnected() == false) { conn_.connect(); }
-
-        List<Datastore> ret = new LinkedList<Datastore>();
-
-        List<ManagedEntity> tmpList =
-            conn_.searchManagedEntities("Datastore", "name");
-
-        for (ManagedEntity me: tmpList) {
-            ret.add((Datastore) me);
-        }
-        return ret;
-    }
+    public List<String> getAllDatastoreNameList()
+        throws Exception;
 
     /**
-     * Get all Datastores.
-     *
-     * @return list of datastore objects. never return 'null'.
+     * Get the list of name of all datastores available with the host.
      */
-    private List<Datastore> getAllDatastoreList(HostSystem host)
-    {
-        List<Datastore> ret = new LinkedList<Datastore>();
-        if (host == null) { return ret; }
-
-        try {
-            Datastore[] tmpList = host.getDatastores();
-
-            for (int i = 0; i < tmpList.length; i ++) {
-                ret.add(tmpList[i]);
-            }
-            return ret;
-        } catch (Exception e) { logger_.warning(Utility.toString(e)); return ret; }
-    }
+    public List<String> getAllDatastoreNameList(String hostname)
+        throws Exception;
 
     /**
-     * Get name of default host.
+     * Get the name of a host to deploy virtual machines by default.
      */
     public String getDefaultHostName()
-        throws Exception
-    {
-        return getDefaultHost().getName();
-    }
+        throws Exception;
 
     /**
-     * Get default host.
-     */
-    private HostSystem getDefaultHost()
-        throws Exception
-    {
-     	return getAllHostList().get(0);
-    }
-    
-    /**
-     * Get name of default datastore.
+     * Get the name of a datastore available with the host by default.
      */
     public String getDefaultDatastoreName(String hostName)
-        throws Exception
-    {
-        ManagedEntity host = conn_.searchManagedEntity("HostSystem", hostName);
-        if (host == null) { throw new Exception("host is not found."); }
-        return getDefaultDatastore((HostSystem) host).getName();
-    }
-    
-    /**
-     * Get default datastore.
-     */
-    private Datastore getDefaultDatastore(HostSystem host)
-    {
-        return getAllDatastoreList(host).get(0);
-    }
-
-    /**
-     * Get available host with the name or default one.
-     *
-     * @param hostName Host name to search or null to use default host.
-     * @return HostSystem object.
-     * @exception When hostsystem not found.
-     */
-    private HostSystem getAvailableHost(String hostName)
-        throws Exception
-    {
-
-        HostSystem host = null;
-
-        if (hostName != null) {
-            List<HostSystem> hosts = getAllHostList();
-            for (HostSystem h: hosts) {
-                if (hostName.equals(h.getName())) {
-                    host = h; break;
-                }
-            }
-        }
-
-        if (hostName != null && host == null) {
-            logger_.warning
-                (String.format("Host %s not found.", hostName));
-            hostName = null;
-        }
-        
-        if (hostName == null) {
-            host = getDefaultHost();
-            logger_.info(String.format
-                         ("Use default host %s.", host.getName()));
-        }
-
-        if (host == null) {
-            throw new Exception("host is null.");
-        }
-        return host;
-    }
-
-    /**
-     * Get available datastore with the name or default one.
-     *
-     * @param hostName Host name to search or null to use default host.
-     * @param host HostSystem object that mounts the datastore.
-     * @return Datastore object.
-     * @exception When datastore not found.
-     */
-    private Datastore getAvailableDatastore
-        (String datastoreName, HostSystem host)
-        throws Exception
-    {
-        assert host != null;
-        Datastore datastore = null;
-
-        if (datastoreName != null) {
-            List<Datastore> datastores = getAllDatastoreList(host);
-            for (Datastore d: datastores) {
-                if (datastoreName.equals(d.getName())) {
-                    datastore = d; break;
-                }
-            }
-        }
-
-        if (datastoreName != null && datastore == null) {
-            logger_.warning
-                (String.format("Datastore %s not found.", datastoreName));
-            datastoreName = null;
-        }
-        
-        if (datastoreName == null) {
-            datastore = getDefaultDatastore(host);
-            logger_.info
-                (String.format
-                 ("Use default datastore %s.", datastore.getName()));
-        }
-        
-        if (datastore == null) {
-            throw new Exception("datastore is null.");
-        }
-        return datastore;
-    }
-
-    /**
-     * Get a folder.
-     * @param name Folder name.
-     * @return found folder
-     */
-    public Folder getFolder(String name) throws Exception
-    {
-        ManagedEntity folder = conn_.searchManagedEntity("Folder", name);
-        if (folder == null) { throw new Exception("folder is not found."); }
-        return (Folder)folder;
-    }
+        throws Exception;
 }
@@ -0,0 +1,192 @@
+/**
+ * @file
+ * @brief GlobalManagerS
+ *
+ * Copyright (C) 2009,2010 Cybozu Inc., all rights reserved.
+ *
+ * @author Takashi HOSHINO <hoshino@labs.cybozu.co.jp>
+ */
+package com.cybozu.vmbkp.soap;
+
+import java.io.File;
+import java.util.List;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.logging.Logger;
+
+import com.cybozu.vmbkp.util.VmInventoryInfo;
+import com.cybozu.vmbkp.util.Utility;
+
+/**
+ * @brief GlobalManager of a simulated vSphere environment.
+ *
+ * The inventory tracker is not supported.
+ */
+public class GlobalManagerS
+    implements GlobalManager
+{
+    /**
+     * Logger.
+     */
+    private static final Logger logger_ =
+        Logger.getLogger(GlobalManagerS.class.getName());
+
+    private VsphereSimulator sim_;
+
+    private boolean isConnected_;
+
+    /**
+     * Constructor.
+     */
+    public GlobalManagerS(VsphereSimulator sim)
+    {
+        assert sim != null;
+        sim_ = sim;
+        isConnected_ = false;
+    }
+
+    public void connect()
+        throws Exception
+    {
+        if (isConnected_) { return; }
+        sim_.call("login");
+        isConnected_ = true;
+    }
+
+    public void disconnect()
+    {
+        isConnected_ = false;
+    }
+
+    public VirtualMachineManager searchVmWithName(String vmName)
+        throws Exception
+    {
+        connect();
+        sim_.call("findByInventoryPath");
+        VsphereSimulator.Vm vm = sim_.getVmWithName(vmName);
+        if (vm == null) { throw new Exception(); }
+        return new VirtualMachineManagerS(sim_, vm);
+    }
+
+    public VirtualMachineManager searchVmWithMoref(String vmMorefStr)
+        throws Exception
+    {
+        connect();
+        sim_.call("retrieveProperties");
+        VsphereSimulator.Vm vm = sim_.getVm(vmMorefStr);
+        if (vm == null) { throw new Exception("virtual machine is not found."); }
+        return new VirtualMachineManagerS(sim_, vm);
+    }
+
+    public boolean destroyVm(VirtualMachineManager vmm)
+    {
+        final String moref = vmm.getMoref();
+        try {
+            String ret = sim_.submitTask("destroy_Task", new Callable<Boolean>() {
+                    public Boolean call() {
+                        return Boolean.valueOf(sim_.removeVm(moref));
+                    }
+                }).get();
+            logger_.info(String.format("destroy %s: %s.", moref, ret));
+            return ret.equals("success");
+        } catch (Exception e) {
+            logger_.warning(Utility.toString(e));
+            return false;
+        }
+    }
+
+    public String importOvf(String ovfPath, String newVmName)
+        throws Exception
+    {
+        return importOvf(ovfPath, newVmName, null, null, null);
+    }
+
+    /**
+     * Create a virtual machine without disks.
+     * The ovf file is checked to exist only.
+     */
+    public String importOvf(String ovfPath, String newVmName,
+                            String hostName, String datastoreName,
+                            String folderName)
+        throws Exception
+    {
+        connect();
+        if (! (new File(ovfPath)).isFile()) {
+            throw new Exception("ovf file not found: " + ovfPath);
+        }
+        if (sim_.getVmWithName(newVmName) != null) {
+            throw new Exception("duplicated name: " + newVmName);
+        }
+        sim_.call("createImportSpec");
+        sim_.call("importVApp");
+        return sim_.createVm(newVmName).moref_;
+    }
+
+    public List<VirtualMachineManager> getAllVmList()
+        throws Exception
+    {
+        connect();
+        List<VirtualMachineManager> ret =
+            new LinkedList<VirtualMachineManager>();
+        for (VsphereSimulator.Vm vm : sim_.getAllVms()) {
+            /* Each vm is a managed entity in the real environment. */
+            sim_.call("retrieveProperties");
+            ret.add(new VirtualMachineManagerS(sim_, vm));
+        }
+        return ret;
+    }
+
+    public List<VmInventoryInfo> getAllVmInventoryInfoList()
+        throws Exception
+    {
+        connect();
+        sim_.call("retrievePropertiesEx");
+        List<VmInventoryInfo> ret = new LinkedList<VmInventoryInfo>();
+        for (VsphereSimulator.Vm vm : sim_.getAllVms()) {
+            ret.add(new VmInventoryInfo(vm.name_, vm.moref_, vm.isTemplate_));
+        }
+        return ret;
+    }
+
+    public InventoryTracker createInventoryTracker()
+        throws Exception
+    {
+        throw new Exception("inventory tracker is not simulated.");
+    }
+
+    public List<String> getAllHostNameList()
+        throws Exception
+    {
+        connect();
+        List<String> ret = new LinkedList<String>();
+        ret.add(VsphereSimulator.HOST_NAME);
+        return ret;
+    }
+
+    public List<String> getAllDatastoreNameList()
+        throws Exception
+    {
+        connect();
+        List<String> ret = new LinkedList<String>();
+        ret.add(VsphereSimulator.DATASTORE_NAME);
+        return ret;
+    }
+
+    public List<String> getAllDatastoreNameList(String hostname)
+        throws Exception
+    {
+        return getAllDatastoreNameList();
+    }
+
+    public String getDefaultHostName()
+        throws Exception
+    {
+        return VsphereSimulator.HOST_NAME;
+    }
+
+    public String getDefaultDatastoreName(String hostName)
+        throws Exception
+    {
+        return VsphereSimulator.DATASTORE_NAME;
+    }
+}
@@ -0,0 +1,313 @@
+/**
+ * @file
+ * @brief InventoryTracker
+ *
+ * Copyright (C) 2009,2010 Cybozu Inc., all rights reserved.
+ *
+ * @author Takashi HOSHINO <hoshino@labs.cybozu.co.jp>
+ */
+package com.cybozu.vmbkp.soap;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.logging.Logger;
+
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.WaitOptions;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+import com.vmware.vim25.InvalidCollectorVersion;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.PropertyFilter;
+
+import com.cybozu.vmbkp.util.Utility;
+import com.cybozu.vmbkp.util.VmInventoryInfo;
+
+/**
+ * @brief Track name and template flag of all virtual machines
+ *        with WaitForUpdatesEx.
+ *
+ * The first call of waitForUpdates() reports all virtual machines,
+ * and following calls report only changed or removed ones.
+ * A dedicated property collector is used so that
+ * other filters of the session do not affect the updates.
+ */
+public class InventoryTracker
+{
+    /**
+     * Logger.
+     */
+    private static final Logger logger_ =
+        Logger.getLogger(InventoryTracker.class.getName());
+
+    /**
+     * Max number of object updates in a result of WaitForUpdatesEx.
+     */
+    private static final int MAX_OBJECT_UPDATES = 1000;
+
+    private static final String PROP_NAME = "name";
+    private static final String PROP_TEMPLATE = "config.template";
+
+    /**
+     * vSphere connection.
+     */
+    private Connection conn_;
+
+    /**
+     * Property collector and its filter. null before the first wait.
+     */
+    private PropertyCollector pc_;
+    private PropertyFilter filter_;
+
+    /**
+     * Version of the last update set. null before the first update.
+     */
+    private String version_;
+
+    /**
+     * True if the session must be created again before the next wait.
+     */
+    private boolean isReconnectRequired_;
+
+    /**
+     * Current inventory. moref -> information.
+     */
+    private Map<String, VmInventoryInfo> vmMap_;
+
+    /**
+     * Constructor.
+     */
+    public InventoryTracker(Connection conn)
+    {
+        assert conn != null;
+        conn_ = conn;
+        pc_ = null;
+        filter_ = null;
+        version_ = null;
+        isReconnectRequired_ = false;
+        vmMap_ = new HashMap<String, VmInventoryInfo>();
+    }
+
+    /**
+     * Get the version of the last update set.
+     *
+     * @return null if no update has been received.
+     */
+    public String getVersion()
+    {
+        return version_;
+    }
+
+    /**
+     * Get the number of tracked virtual machines.
+     */
+    public int size()
+    {
+        return vmMap_.size();
+    }
+
+    /**
+     * Wait for updates of the inventory.
+     *
+     * @param maxWaitSec Max seconds to wait. 0 means polling.
+     * @param updatedList Added or changed virtual machines will be added.
+     * @param removedList Morefs of removed virtual machines will be added.
+     * @return True if there are some updates, or false in timeout.
+     */
+    public boolean waitForUpdates(int maxWaitSec,
+                                  List<VmInventoryInfo> updatedList,
+                                  List<String> removedList)
+        throws Exception
+    {
+        if (conn_.isConnected() == false || isReconnectRequired_) {
+            conn_.connect();
+            isReconnectRequired_ = false;
+            /* Objects of the old session are not valid. */
+            pc_ = null;
+            filter_ = null;
+            version_ = null;
+        }
+        if (filter_ == null) { createFilter(); }
+
+        WaitOptions options = new WaitOptions();
+        options.setMaxWaitSeconds(Integer.valueOf(maxWaitSec));
+        options.setMaxObjectUpdates(Integer.valueOf(MAX_OBJECT_UPDATES));
+
+        /* Morefs seen in a full update after the version was reset. */
+        Set<String> enteredSet = null;
+        if (version_ == null) { enteredSet = new HashSet<String>(); }
+
+        Set<String> changedSet = new HashSet<String>();
+        boolean isUpdated = false;
+        UpdateSet updateSet;
+        do {
+            try {
+                updateSet = waitForUpdatesEx(version_, options);
+            } catch (InvalidCollectorVersion e) {
+                logger_.warning("collector version is invalid. resync.");
+                version_ = null;
+                enteredSet = new HashSet<String>();
+                changedSet.clear();
+                updateSet = waitForUpdatesEx(null, options);
+            }
+            if (updateSet == null) { break; } /* timeout */
+
+            isUpdated = true;
+            version_ = updateSet.getVersion();
+            applyUpdateSet(updateSet, enteredSet, changedSet, removedList);
+        } while (Boolean.TRUE.equals(updateSet.getTruncated()));
+
+        /* Virtual machines not reported by a full update are removed. */
+        if (enteredSet != null && isUpdated) {
+            List<String> goneList = new LinkedList<String>();
+            for (String moref : vmMap_.keySet()) {
+                if (enteredSet.contains(moref) == false) {
+                    goneList.add(moref);
+                }
+            }
+            for (String moref : goneList) {
+                vmMap_.remove(moref);
+                removedList.add(moref);
+            }
+        }
+
+        for (String moref : changedSet) {
+            VmInventoryInfo vmInfo = vmMap_.get(moref);
+            if (vmInfo != null && vmInfo.getName() != null) {
+                updatedList.add(vmInfo);
+            }
+        }
+        logger_.fine(String.format("version %s: %d updated %d removed.",
+                                   version_, updatedList.size(),
+                                   removedList.size()));
+        return isUpdated;
+    }
+
+    /**
+     * Reconnect to the server at the next wait
+     * after an error of the session.
+     * A new filter is created and all virtual machines are resynced.
+     * The current inventory is kept to find removed ones.
+     */
+    public void reset()
+    {
+        try {
+            if (pc_ != null) { pc_.destroyPropertyCollector(); }
+        } catch (Exception e) {
+            /* The session may be already lost. */
+            logger_.fine(Utility.toString(e));
+        }
+        pc_ = null;
+        filter_ = null;
+        version_ = null;
+        isReconnectRequired_ = true;
+    }
+
+    /**
+     * Destroy the filter and the property collector.
+     */
+    public void destroy()
+    {
+        try {
+            if (pc_ != null) { pc_.destroyPropertyCollector(); }
+        } catch (Exception e) {
+            logger_.warning(Utility.toString(e));
+        }
+        pc_ = null;
+        filter_ = null;
+        version_ = null;
+        vmMap_.clear();
+    }
+
+    /**
+     * pc_.waitForUpdatesEx() with metrics.
+     */
+    private UpdateSet waitForUpdatesEx(final String version,
+                                       final WaitOptions options)
+        throws Exception
+    {
+        return SoapMetrics.measure
+            ("waitForUpdatesEx", new SoapMetrics.Body<UpdateSet, Exception>() {
+                public UpdateSet call() throws Exception {
+                    return pc_.waitForUpdatesEx(version, options);
+                }
+            });
+    }
+
+    /**
+     * Create the property collector and its filter.
+     */
+    private void createFilter()
+        throws Exception
+    {
+        pc_ = conn_.getServiceInstance()
+            .getPropertyCollector().createPropertyCollector();
+        filter_ = pc_.createFilter
+            (conn_.createInventoryFilterSpec
+             ("VirtualMachine", new String[] {PROP_NAME, PROP_TEMPLATE}),
+             false /* partialUpdates */);
+        version_ = null;
+    }
+
+    /**
+     * Apply an update set to the current inventory.
+     */
+    private void applyUpdateSet(UpdateSet updateSet,
+                                Set<String> enteredSet,
+                                Set<String> changedSet,
+                                List<String> removedList)
+    {
+        PropertyFilterUpdate[] pfus = updateSet.getFilterSet();
+        if (pfus == null) { return; }
+
+        for (PropertyFilterUpdate pfu : pfus) {
+            ObjectUpdate[] ous = pfu.getObjectSet();
+            if (ous == null) { continue; }
+
+            for (ObjectUpdate ou : ous) {
+                String moref = ou.getObj().getVal();
+                if (ou.getKind() == ObjectUpdateKind.leave) {
+                    vmMap_.remove(moref);
+                    changedSet.remove(moref);
+                    removedList.add(moref);
+                    continue;
+                }
+                if (enteredSet != null) { enteredSet.add(moref); }
+                applyChangeSet(moref, ou.getChangeSet());
+                changedSet.add(moref);
+            }
+        }
+    }
+
+    /**
+     * Apply property changes of a virtual machine.
+     */
+    private void applyChangeSet(String moref, PropertyChange[] changes)
+    {
+        VmInventoryInfo old = vmMap_.get(moref);
+        String name = (old == null ? null : old.getName());
+        boolean isTemplate = (old == null ? false : old.isTemplate());
+
+        if (changes != null) {
+            for (PropertyChange pc : changes) {
+                boolean isRemoved =
+                    (pc.getOp() == PropertyChangeOp.remove ||
+                     pc.getOp() == PropertyChangeOp.indirectRemove);
+                if (PROP_NAME.equals(pc.getName())) {
+                    name = (isRemoved ? null : (String) pc.getVal());
+                } else if (PROP_TEMPLATE.equals(pc.getName())) {
+                    isTemplate = (isRemoved == false && pc.getVal() != null &&
+                                  ((Boolean) pc.getVal()).booleanValue());
+                }
+            }
+        }
+        vmMap_.put(moref, new VmInventoryInfo(name, moref, isTemplate));
+    }
+}
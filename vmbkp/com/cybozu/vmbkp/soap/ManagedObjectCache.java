@@ -0,0 +1,140 @@
+/**
+ * @file
+ * @brief ManagedObjectCache
+ *
+ * Copyright (C) 2009,2010 Cybozu Inc., all rights reserved.
+ *
+ * @author Takashi HOSHINO <hoshino@labs.cybozu.co.jp>
+ */
+package com.cybozu.vmbkp.soap;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import com.vmware.vim25.ManagedObjectReference;
+
+/**
+ * @brief Cache of lookup keys to managed object references.
+ *
+ * A key is a name or a moref string with the type,
+ * and an entry expires after the ttl.
+ * Managed object references do not depend on the session,
+ * so entries are kept over reconnection to the same server.
+ */
+public class ManagedObjectCache
+{
+    /**
+     * A cached reference.
+     */
+    private static class Entry
+    {
+        final ManagedObjectReference mor_;
+        final long expireMs_;
+
+        Entry(ManagedObjectReference mor, long expireMs)
+        {
+            mor_ = mor;
+            expireMs_ = expireMs;
+        }
+    }
+
+    private long ttlMs_;
+
+    /**
+     * key -> entry.
+     */
+    private Map<String, Entry> map_;
+
+    /**
+     * Number of hits and misses for logging.
+     */
+    private long numHits_;
+    private long numMisses_;
+
+    /**
+     * Constructor.
+     *
+     * @param ttlMs Time to live of an entry in milliseconds.
+     */
+    public ManagedObjectCache(long ttlMs)
+    {
+        ttlMs_ = ttlMs;
+        map_ = new HashMap<String, Entry>();
+        numHits_ = 0;
+        numMisses_ = 0;
+    }
+
+    /**
+     * Key of a managed object with the name.
+     */
+    public static String nameKey(String type, String name)
+    {
+        return type + ":name:" + name;
+    }
+
+    /**
+     * Key of a managed object with the moref.
+     */
+    public static String morefKey(String type, String moref)
+    {
+        return type + ":moref:" + moref;
+    }
+
+    /**
+     * Get a cached reference.
+     *
+     * @return null if not found or expired.
+     */
+    public synchronized ManagedObjectReference get(String key)
+    {
+        Entry entry = map_.get(key);
+        if (entry != null && entry.expireMs_ < System.currentTimeMillis()) {
+            map_.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            numMisses_ ++;
+            return null;
+        }
+        numHits_ ++;
+        return entry.mor_;
+    }
+
+    public synchronized void put(String key, ManagedObjectReference mor)
+    {
+        assert mor != null;
+        map_.put(key, new Entry(mor, System.currentTimeMillis() + ttlMs_));
+    }
+
+    /**
+     * Remove all entries of the managed object.
+     * Call this when the object is not found in the server.
+     */
+    public synchronized void invalidate(ManagedObjectReference mor)
+    {
+        Iterator<Entry> it = map_.values().iterator();
+        while (it.hasNext()) {
+            ManagedObjectReference m = it.next().mor_;
+            if (m.getType().equals(mor.getType()) &&
+                m.getVal().equals(mor.getVal())) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear()
+    {
+        map_.clear();
+    }
+
+    public synchronized long getNumHits()
+    {
+        return numHits_;
+    }
+
+    public synchronized long getNumMisses()
+    {
+        return numMisses_;
+    }
+}
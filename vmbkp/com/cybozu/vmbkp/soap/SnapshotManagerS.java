@@ -0,0 +1,135 @@
+/**
+ * @file
+ * @brief SnapshotManagerS
+ *
+ * Copyright (C) 2009,2010 Cybozu Inc., all rights reserved.
+ *
+ * @author Takashi HOSHINO <hoshino@labs.cybozu.co.jp>
+ */
+package com.cybozu.vmbkp.soap;
+
+import java.util.logging.Logger;
+
+import com.cybozu.vmbkp.util.SnapInfo;
+import com.cybozu.vmbkp.util.VmInfo;
+import com.cybozu.vmbkp.util.VmdkInfo;
+import com.cybozu.vmbkp.util.VmdkBitmap;
+import com.cybozu.vmbkp.util.ChangedExtents;
+import com.cybozu.vmbkp.util.Utility;
+
+/**
+ * @brief Snapshot of a simulated virtual machine.
+ */
+public class SnapshotManagerS
+    implements SnapshotManager
+{
+    /**
+     * Logger.
+     */
+    private static final Logger logger_ =
+        Logger.getLogger(SnapshotManagerS.class.getName());
+
+    private VsphereSimulator sim_;
+    private VirtualMachineManagerS vmm_;
+    private VsphereSimulator.Snapshot snap_;
+
+    /**
+     * Constructor.
+     */
+    public SnapshotManagerS(VsphereSimulator sim, VirtualMachineManagerS vmm,
+                            VsphereSimulator.Snapshot snap)
+    {
+        sim_ = sim;
+        vmm_ = vmm;
+        snap_ = snap;
+    }
+
+    public String getName()
+    {
+        return snap_.name_;
+    }
+
+    public String getMoref()
+    {
+        return snap_.moref_;
+    }
+
+    public SnapInfo getSnapInfo()
+    {
+        return new SnapInfo(snap_.name_, snap_.moref_);
+    }
+
+    public VmInfo getVmInfo()
+    {
+        return vmm_.getVmInfo();
+    }
+
+    public VirtualMachineConfigManager getConfig()
+    {
+        return new VirtualMachineConfigManagerS
+            (snap_.vmdkInfoList_, false);
+    }
+
+    public VirtualMachineManager getVirtualMachine()
+    {
+        return vmm_;
+    }
+
+    public VmdkBitmap getChangedBlocksOfDisk
+        (VmdkInfo vmdkInfo, String baseChangeId)
+    {
+        return getChangedBlocksOfDisk
+            (vmdkInfo, baseChangeId, VmdkBitmap.DEFAULT_BLOCK_SIZE);
+    }
+
+    public VmdkBitmap getChangedBlocksOfDisk
+        (VmdkInfo vmdkInfo, String baseChangeId, int blockSize)
+    {
+        final long capacityInBytes = vmdkInfo.capacityInKB_ * 1024L;
+        ChangedExtents extents;
+        try {
+            extents = queryChangedExtents
+                (vmdkInfo, baseChangeId, 0, capacityInBytes);
+        } catch (Exception e) {
+            logger_.warning(Utility.toString(e));
+            return null;
+        }
+        return extents.toBitmap(capacityInBytes, blockSize);
+    }
+
+    public ChangedExtents queryChangedExtents
+        (VmdkInfo vmdkInfo, String baseChangeId,
+         long beginOffset, long endOffset)
+        throws Exception
+    {
+        if (baseChangeId == null) { baseChangeId = "*"; }
+        sim_.call("queryChangedDiskAreas");
+        return sim_.queryChangedExtents
+            (getSnapVmdkInfo(vmdkInfo), baseChangeId, beginOffset, endOffset);
+    }
+
+    public boolean isChangedDisk(VmdkInfo vmdkInfo, String baseChangeId)
+    {
+        if (baseChangeId == null) { return false; }
+        try {
+            final long capacityInBytes = vmdkInfo.capacityInKB_ * 1024L;
+            return ! queryChangedExtents
+                (vmdkInfo, baseChangeId, 0, capacityInBytes).isEmpty();
+        } catch (Exception e) {
+            logger_.warning(Utility.toString(e));
+            return false;
+        }
+    }
+
+    /**
+     * Get the disk of the snapshot with the same device key.
+     */
+    private VmdkInfo getSnapVmdkInfo(VmdkInfo vmdkInfo)
+        throws Exception
+    {
+        for (VmdkInfo info : snap_.vmdkInfoList_) {
+            if (info.key_ == vmdkInfo.key_) { return info; }
+        }
+        throw new Exception("disk not found: " + vmdkInfo.key_);
+    }
+}
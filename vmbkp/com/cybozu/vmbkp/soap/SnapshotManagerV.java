@@ -0,0 +1,349 @@
+/**
+ * @file
+ * @brief SnapshotManagerV
+ *
+ * Copyright (C) 2009,2010 Cybozu Inc., all rights reserved.
+ *
+ * @author Takashi HOSHINO <hoshino@labs.cybozu.co.jp>
+ */
+package com.cybozu.vmbkp.soap;
+
+import java.util.LinkedList;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+import com.vmware.vim25.mo.VirtualMachine;
+import com.vmware.vim25.mo.VirtualMachineSnapshot;
+import com.vmware.vim25.VirtualMachineSnapshotTree;
+import com.vmware.vim25.DiskChangeInfo;
+import com.vmware.vim25.DiskChangeExtent;
+import com.vmware.vim25.VirtualMachineConfigInfo;
+
+import com.cybozu.vmbkp.util.VmInfo;
+import com.cybozu.vmbkp.util.SnapInfo;
+import com.cybozu.vmbkp.util.VmdkInfo;
+import com.cybozu.vmbkp.util.VmdkBitmap;
+import com.cybozu.vmbkp.util.ChangedExtents;
+import com.cybozu.vmbkp.util.Utility;
+
+/**
+ * @brief Manage a snapshot of a virtual machine.
+ */
+public class SnapshotManagerV
+    implements SnapshotManager
+{
+    /**
+     * Logger.
+     */
+    private static final Logger logger_ =
+        Logger.getLogger(SnapshotManagerV.class.getName());
+    
+    private Connection conn_;
+    private VirtualMachineSnapshot snapshot_;
+    private VirtualMachineSnapshotTree snapshotTree_;
+    private VirtualMachineManagerV vmm_;
+    private VirtualMachineConfigManager configMgr_;
+
+    /**
+     * Constructor.
+     *
+     * You must not create this class by yourself.
+     * Instead, 
+     * VirtualMachineManager.getCurrentSnapshot() or
+     * VirtualMachineManager.searchSnapshotWithName().
+     *
+     * @param snapshotTree Snapshot tree if already retrieved, or null.
+     */
+    public SnapshotManagerV
+        (Connection conn, VirtualMachineManagerV vmm,
+         VirtualMachineSnapshot snapshot,
+         VirtualMachineSnapshotTree snapshotTree)
+    {
+        assert snapshot != null;
+        conn_ = conn;
+        vmm_ = vmm;
+        snapshot_ = snapshot;
+        /* These are retrieved on demand. */
+        snapshotTree_ = snapshotTree;
+        configMgr_ = null;
+    }
+
+    /**
+     * Get name of the snapshot.
+     */
+    public synchronized String getName()
+    {
+        /* This is virtual machine name. */
+        /* return snapshot_.getConfig().getName(); */
+        
+        if (snapshotTree_ == null) {
+            snapshotTree_ = vmm_.searchSnapshotTreeWithMoref(getMoref());
+            if (snapshotTree_ == null) { return null; }
+        }
+        return snapshotTree_.getName();
+    }
+
+    /**
+     * Get moref of the snapshot.
+     */
+    public String getMoref()
+    {
+        return snapshot_.getMOR().getVal();
+    }
+
+    /**
+     * Generate SnapInfo object.
+     */
+    public SnapInfo getSnapInfo()
+    {
+        return new SnapInfo(getName(), getMoref());
+    }
+
+    /**
+     * Generate VmInfo object.
+     */
+    public VmInfo getVmInfo()
+    {
+        return vmm_.getVmInfo();
+    }
+
+    /**
+     * Get config manager of the snapshot.
+     */
+    public synchronized VirtualMachineConfigManager getConfig()
+    {
+        if (configMgr_ == null) {
+            try {
+                configMgr_ = new VirtualMachineConfigManagerV
+                    (conn_, SoapMetrics.measure
+                     ("retrieveProperties",
+                      new SoapMetrics.Body<VirtualMachineConfigInfo,
+                                           RuntimeException>() {
+                         public VirtualMachineConfigInfo call() {
+                             return snapshot_.getConfig();
+                         }
+                     }));
+            } catch (RuntimeException e) {
+                conn_.invalidateIfNotFound(e, snapshot_.getMOR());
+                throw e;
+            }
+        }
+        return configMgr_;
+    }
+
+    /**
+     * Get virtual machine manager of the snapshot.
+     */
+    public VirtualMachineManager getVirtualMachine()
+    {
+        return vmm_;
+    }
+
+    /**
+     * Get changed blocks information of specified vmdk file.
+     * You should call isChangedDisk() before.
+     *
+     * @param vmdkInfo vmdk information obtained from getAllVmdkInfo() or so.
+     * @param changeId changeId of the previous backup time. "*" is used if null.
+     * @return changed block information as a bitmap data.
+     */
+    public VmdkBitmap getChangedBlocksOfDisk
+        (VmdkInfo vmdkInfo, String baseChangeId)
+    {
+        return getChangedBlocksOfDisk
+            (vmdkInfo, baseChangeId, VmdkBitmap.DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Get changed blocks information of specified vmdk file
+     * with the block size.
+     *
+     * @param blockSize block size of the bitmap in bytes.
+     *        The capacity must be a multiple of it.
+     */
+    public VmdkBitmap getChangedBlocksOfDisk
+        (VmdkInfo vmdkInfo, String baseChangeId, int blockSize)
+    {
+        final long capacityInBytes = vmdkInfo.capacityInKB_ * 1024L;
+        ChangedExtents extents;
+        try {
+            extents = queryChangedExtents
+                (vmdkInfo, baseChangeId, 0, capacityInBytes);
+        } catch (Exception e) {
+            logger_.warning(Utility.toString(e));
+            return null;
+        }
+
+        return extents.toBitmap(capacityInBytes, blockSize);
+    }
+
+    /**
+     * Get changed extents of the specified vmdk inside a window
+     * from the point of the changeId to the snapshot time.
+     * Extents are clipped by the window.
+     *
+     * This can be called by multiple threads
+     * for disjoint windows concurrently.
+     * A session is leased for each call if the connection has a pool.
+     *
+     * @param vmdkInfo vmdk information obtained from getAllVmdkInfo() or so.
+     * @param baseChangeId changeId of the previous backup time.
+     *                     "*" is used if null.
+     * @param beginOffset Begin of the window in bytes.
+     * @param endOffset End of the window in bytes.
+     * @return Changed extents. Never returns null.
+     */
+    public ChangedExtents queryChangedExtents
+        (final VmdkInfo vmdkInfo, String baseChangeId,
+         final long beginOffset, final long endOffset)
+        throws Exception
+    {
+        final String vmMoref = vmm_.getMoref();
+        final String snapMoref = getMoref();
+        final String changeId = (baseChangeId != null ? baseChangeId : "*");
+
+        ConnectionPool pool = conn_.getPool();
+        if (pool == null) {
+            return queryChangedExtents
+                (vmm_.getVirtualMachine(), snapshot_,
+                 vmdkInfo, changeId, beginOffset, endOffset);
+        }
+        return pool.execute(new ConnectionPool.Operation<ChangedExtents>() {
+                public ChangedExtents run(Connection conn) throws Exception {
+                    VirtualMachine vm =
+                        conn.generateVirtualMachineWithMoref(vmMoref);
+                    VirtualMachineSnapshot vmSnap =
+                        conn.generateSnapshotWithMoref(snapMoref);
+                    if (vm == null || vmSnap == null) {
+                        throw new Exception("vm or snapshot is not found.");
+                    }
+                    return queryChangedExtents
+                        (vm, vmSnap, vmdkInfo, changeId,
+                         beginOffset, endOffset);
+                }
+            });
+    }
+
+    /**
+     * queryChangedExtents() with objects of a session.
+     */
+    private static ChangedExtents queryChangedExtents
+        (VirtualMachine vm, VirtualMachineSnapshot vmSnap,
+         VmdkInfo vmdkInfo, String baseChangeId,
+         long beginOffset, long endOffset)
+        throws Exception
+    {
+        ChangedExtents ret = new ChangedExtents();
+        int numCalls = 0;
+        long offset = beginOffset;
+        while (offset < endOffset) {
+            DiskChangeInfo dci = queryChangedDiskAreas
+                (vm, vmSnap, vmdkInfo.key_, offset, baseChangeId);
+            numCalls ++;
+
+            DiskChangeExtent[] areas = dci.getChangedArea();
+            if (areas != null) {
+                for (int j = 0; j < areas.length; j ++) {
+                    long start = Math.max(areas[j].getStart(), beginOffset);
+                    long end = Math.min
+                        (areas[j].getStart() + areas[j].getLength(), endOffset);
+                    if (start < end && ret.add(start, end - start) == false) {
+                        throw new Exception
+                            (String.format("changed area (%d,%d) is not sorted.",
+                                           areas[j].getStart(),
+                                           areas[j].getLength()));
+                    }
+                }
+            }
+
+            long next = dci.getStartOffset() + dci.getLength();
+            if (next <= offset && areas == null) {
+                /* Not changed at all after the offset. */
+                break;
+            }
+            if (next <= offset) {
+                throw new Exception
+                    (String.format("queryChangedDiskAreas does not proceed at %d.",
+                                   offset));
+            }
+            offset = next;
+        }
+
+        if (logger_.isLoggable(Level.FINE)) {
+            logger_.fine(String.format
+                         ("disk %d window [%d,%d): %s in %d calls.",
+                          vmdkInfo.key_, beginOffset, endOffset,
+                          ret.toString(), numCalls));
+        }
+        return ret;
+    }
+
+    /**
+     * vm.queryChangedDiskAreas() with metrics.
+     */
+    private static DiskChangeInfo queryChangedDiskAreas
+        (final VirtualMachine vm, final VirtualMachineSnapshot vmSnap,
+         final int deviceKey, final long offset, final String changeId)
+        throws Exception
+    {
+        return SoapMetrics.measure
+            ("queryChangedDiskAreas",
+             new SoapMetrics.Body<DiskChangeInfo, Exception>() {
+                public DiskChangeInfo call() throws Exception {
+                    return vm.queryChangedDiskAreas
+                        (vmSnap, deviceKey, offset, changeId);
+                }
+            });
+    }
+
+    /**
+     * Check the specified vmdk is changed or not.
+     * Call this before calling getChangedBlocksOfDisk().
+     *
+     * @param vmdkInfo vmdk information obtained from getAllVmdkInfo() or so.
+     * @param changeId changeId of the previous backup time.
+     * @return true if it is changed, or false.
+     *         If baseChangeId is not valid, this method does not mean.
+     */
+    public boolean isChangedDisk(VmdkInfo vmdkInfo, String baseChangeId)
+    {
+        logger_.info("isChangedDisk start.");
+        
+        final VirtualMachine vm = vmm_.getVirtualMachine();
+        final VirtualMachineSnapshot vmSnap = snapshot_;
+
+        if (baseChangeId == null) {
+            return false;
+        }
+
+        /* debug */
+        vmdkInfo.print();
+        logger_.info(baseChangeId);
+
+        long offset = 0;
+        DiskChangeInfo dci;
+        try {
+            dci = queryChangedDiskAreas
+                (vm, vmSnap, vmdkInfo.key_, offset, baseChangeId);
+        } catch (Exception e) {
+            /*
+              Candidates:
+              com.vmware.vim25.FileFault,
+              com.vmware.vim25.NotFound,
+              com.vmware.vim25.RuntimeFault,
+              java.rmi.RemoteException
+             */
+            logger_.warning(Utility.toString(e));
+            return false;
+        }
+
+        logger_.info("isChangedDisk end");
+        
+        if (dci != null) {
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,293 @@
+/**
+ * @file
+ * @brief SoapMetrics
+ *
+ * Copyright (C) 2009,2010 Cybozu Inc., all rights reserved.
+ *
+ * @author Takashi HOSHINO <hoshino@labs.cybozu.co.jp>
+ */
+package com.cybozu.vmbkp.soap;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * @brief Latency and fault statistics of vSphere API calls
+ *        per operation name in the process.
+ *
+ * Usage:
+ *   dci = SoapMetrics.measure
+ *       ("queryChangedDiskAreas",
+ *        new SoapMetrics.Body<DiskChangeInfo, Exception>() {
+ *           public DiskChangeInfo call() throws Exception {
+ *               return ... soap call ...;
+ *           }
+ *       });
+ *
+ * Use begin() and Call directly when the call does not end
+ * in the same block like a task.
+ */
+public class SoapMetrics
+{
+    /**
+     * Upper bounds of latency histogram buckets in milliseconds.
+     * The last bucket has no upper bound.
+     */
+    private static final long[] BUCKETS_MS =
+    { 1, 2, 5, 10, 20, 50, 100, 200, 500,
+      1000, 2000, 5000, 10000, 30000, 60000 };
+
+    /**
+     * A call being measured.
+     */
+    public static class Call
+    {
+        private final String op_;
+        private final long beginNs_;
+        private String faultType_;
+        private boolean isEnded_;
+
+        private Call(String op)
+        {
+            op_ = op;
+            beginNs_ = System.nanoTime();
+            faultType_ = null;
+            isEnded_ = false;
+        }
+
+        /**
+         * Mark the call failed.
+         *
+         * @return The argument to rethrow it.
+         */
+        public <E extends Throwable> E fail(E e)
+        {
+            faultType_ = faultType(e);
+            return e;
+        }
+
+        /**
+         * Mark the call failed without an exception
+         * like a task finished with an error.
+         */
+        public void fail(String faultType)
+        {
+            faultType_ = faultType;
+        }
+
+        /**
+         * Record the call. Only the first call is recorded.
+         */
+        public void end()
+        {
+            if (isEnded_) { return; }
+            isEnded_ = true;
+            record(op_, (System.nanoTime() - beginNs_) / 1000000L, faultType_);
+        }
+    }
+
+    /**
+     * Body of a call to measure.
+     *
+     * @param T Result type.
+     * @param E Exception type the call throws.
+     */
+    public interface Body<T, E extends Exception>
+    {
+        T call() throws E;
+    }
+
+    /**
+     * Statistics of an operation.
+     */
+    private static class Stat
+    {
+        long count_;
+        long totalMs_;
+        long maxMs_;
+        long[] histogram_ = new long[BUCKETS_MS.length + 1];
+
+        /**
+         * Fault type -> count.
+         */
+        Map<String, Long> faultMap_ = new TreeMap<String, Long>();
+
+        void add(long ms, String faultType)
+        {
+            count_ ++;
+            totalMs_ += ms;
+            if (ms > maxMs_) { maxMs_ = ms; }
+            int i = 0;
+            while (i < BUCKETS_MS.length && ms > BUCKETS_MS[i]) { i ++; }
+            histogram_[i] ++;
+            if (faultType != null) {
+                Long n = faultMap_.get(faultType);
+                faultMap_.put(faultType,
+                              (n == null ? 1L : n.longValue() + 1L));
+            }
+        }
+
+        long getNumFaults()
+        {
+            long ret = 0;
+            for (Long n : faultMap_.values()) { ret += n.longValue(); }
+            return ret;
+        }
+
+        /**
+         * Upper bound of the bucket including the percentile.
+         *
+         * @return -1 for the last bucket.
+         */
+        long percentileMs(double p)
+        {
+            long target = (long) Math.ceil(count_ * p);
+            long sum = 0;
+            for (int i = 0; i < BUCKETS_MS.length; i ++) {
+                sum += histogram_[i];
+                if (sum >= target) { return BUCKETS_MS[i]; }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Operation name -> statistics.
+     */
+    private static final Map<String, Stat> statMap_ =
+        new TreeMap<String, Stat>();
+
+    /**
+     * Start measuring a call.
+     *
+     * @param op Operation name like "createSnapshot_Task".
+     */
+    public static Call begin(String op)
+    {
+        return new Call(op);
+    }
+
+    /**
+     * Measure a call.
+     * An exception of the body is recorded as a fault and rethrown.
+     *
+     * @param op Operation name.
+     * @param body The call.
+     * @return Result of the body.
+     */
+    public static <T, E extends Exception> T measure(String op,
+                                                     Body<T, E> body)
+        throws E
+    {
+        Call call = begin(op);
+        try {
+            return body.call();
+        } catch (Throwable t) {
+            call.fail(t);
+            throw t;
+        } finally {
+            call.end();
+        }
+    }
+
+    /**
+     * Record a call.
+     *
+     * @param faultType Fault type of the call, or null in success.
+     */
+    public static synchronized void record(String op, long ms,
+                                           String faultType)
+    {
+        Stat stat = statMap_.get(op);
+        if (stat == null) {
+            stat = new Stat();
+            statMap_.put(op, stat);
+        }
+        stat.add(ms, faultType);
+    }
+
+    /**
+     * Total number of calls.
+     */
+    public static synchronized long getNumCalls()
+    {
+        long ret = 0;
+        for (Stat stat : statMap_.values()) { ret += stat.count_; }
+        return ret;
+    }
+
+    public static synchronized void reset()
+    {
+        statMap_.clear();
+    }
+
+    /**
+     * Summary of all operations, one line for each.
+     * Percentiles are upper bounds of histogram buckets.
+     */
+    public static synchronized String summary()
+    {
+        StringBuffer sb = new StringBuffer();
+        sb.append(String.format("%-32s %7s %6s %9s %7s %7s %7s %8s\n",
+                                "operation", "calls", "faults", "total_ms",
+                                "p50_ms", "p90_ms", "p99_ms", "max_ms"));
+        for (Map.Entry<String, Stat> ent : statMap_.entrySet()) {
+            Stat stat = ent.getValue();
+            sb.append(String.format("%-32s %7d %6d %9d %7s %7s %7s %8d\n",
+                                    ent.getKey(), stat.count_,
+                                    stat.getNumFaults(), stat.totalMs_,
+                                    bound(stat.percentileMs(0.5)),
+                                    bound(stat.percentileMs(0.9)),
+                                    bound(stat.percentileMs(0.99)),
+                                    stat.maxMs_));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Full dump with histograms and fault types.
+     */
+    public static synchronized String dump()
+    {
+        StringBuffer sb = new StringBuffer();
+        for (Map.Entry<String, Stat> ent : statMap_.entrySet()) {
+            Stat stat = ent.getValue();
+            sb.append(String.format("[%s]\n", ent.getKey()));
+            sb.append(String.format("\tcalls = %d\n", stat.count_));
+            sb.append(String.format("\ttotal_ms = %d\n", stat.totalMs_));
+            sb.append(String.format("\tmax_ms = %d\n", stat.maxMs_));
+            for (int i = 0; i < stat.histogram_.length; i ++) {
+                if (stat.histogram_[i] == 0) { continue; }
+                sb.append(String.format
+                          ("\tle_%s = %d\n",
+                           (i < BUCKETS_MS.length ?
+                            Long.toString(BUCKETS_MS[i]) : "inf"),
+                           stat.histogram_[i]));
+            }
+            for (Map.Entry<String, Long> f : stat.faultMap_.entrySet()) {
+                sb.append(String.format("\tfault.%s = %d\n",
+                                        f.getKey(), f.getValue()));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String bound(long ms)
+    {
+        return (ms < 0 ? ">" + BUCKETS_MS[BUCKETS_MS.length - 1]
+                : "<=" + ms);
+    }
+
+    /**
+     * Simple class name of the fault.
+     * A RuntimeException wrapping a soap fault is named by the cause.
+     */
+    private static String faultType(Throwable t)
+    {
+        while (t.getClass() == RuntimeException.class &&
+               t.getCause() != null) {
+            t = t.getCause();
+        }
+        return t.getClass().getSimpleName();
+    }
+}
@@ -0,0 +1,435 @@
+/**
+ * @file
+ * @brief TaskTracker
+ *
+ * Copyright (C) 2009,2010 Cybozu Inc., all rights reserved.
+ *
+ * @author Takashi HOSHINO <hoshino@labs.cybozu.co.jp>
+ */
+package com.cybozu.vmbkp.soap;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Logger;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.WaitOptions;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.HttpNfcLeaseState;
+import com.vmware.vim25.InvalidCollectorVersion;
+import com.vmware.vim25.mo.Task;
+import com.vmware.vim25.mo.HttpNfcLease;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.PropertyFilter;
+
+import com.cybozu.vmbkp.util.Utility;
+
+/**
+ * @brief Wait for completion of tasks and nfc leases
+ *        with a single WaitForUpdatesEx loop.
+ *
+ * Each tracked object has its own filter in a dedicated property
+ * collector, and a daemon thread waits for updates of all of them.
+ * The thread exits when nothing is tracked.
+ * Use Connection.getTaskTracker() to share a tracker in a connection.
+ */
+public class TaskTracker
+{
+    /**
+     * Logger.
+     */
+    private static final Logger logger_ =
+        Logger.getLogger(TaskTracker.class.getName());
+
+    /**
+     * Max seconds of a WaitForUpdatesEx call.
+     */
+    private static final int MAX_WAIT_SEC = 60;
+
+    private static final String PROP_TASK_STATE = "info.state";
+    private static final String PROP_LEASE_STATE = "state";
+
+    /**
+     * Future completed by the tracker thread.
+     */
+    private static class TrackFuture<T>
+        extends FutureTask<T>
+    {
+        TrackFuture()
+        {
+            super(new Callable<T>() {
+                    public T call() {
+                        throw new IllegalStateException("never run.");
+                    }
+                });
+        }
+
+        void complete(T val) { set(val); }
+
+        void fail(Throwable t) { setException(t); }
+    }
+
+    /**
+     * A tracked object.
+     */
+    private abstract static class Tracked
+    {
+        PropertyFilter filter_;
+
+        /**
+         * Measures the time until the object has done.
+         */
+        SoapMetrics.Call call_;
+
+        /**
+         * Apply a new value of the property.
+         *
+         * @return True if the object has done.
+         */
+        abstract boolean update(Object val);
+
+        abstract void fail(Throwable t);
+    }
+
+    /**
+     * vSphere connection.
+     */
+    private Connection conn_;
+
+    /**
+     * Property collector. null before the first track.
+     */
+    private PropertyCollector pc_;
+
+    /**
+     * Version of the last update set.
+     */
+    private String version_;
+
+    /**
+     * "type:moref" -> tracked object.
+     */
+    private Map<String, Tracked> trackedMap_;
+
+    /**
+     * Thread waiting for updates. null when nothing is tracked.
+     */
+    private Thread thread_;
+
+    private boolean isShutdown_;
+
+    /**
+     * Constructor.
+     */
+    public TaskTracker(Connection conn)
+    {
+        assert conn != null;
+        conn_ = conn;
+        pc_ = null;
+        version_ = null;
+        trackedMap_ = new HashMap<String, Tracked>();
+        thread_ = null;
+        isShutdown_ = false;
+    }
+
+    /**
+     * Track a task until it finishes.
+     *
+     * @param op Operation name which started the task
+     *           like "createSnapshot_Task".
+     *           Time to finish is recorded as "op.complete".
+     * @return Future of the result same as Task.waitForTask(),
+     *         "success" or "error".
+     */
+    public Future<String> track(Task task, String op)
+        throws Exception
+    {
+        final TrackFuture<String> future = new TrackFuture<String>();
+        register(task.getMOR(), PROP_TASK_STATE, op, new Tracked() {
+                boolean update(Object val) {
+                    if (val == TaskInfoState.success ||
+                        val == TaskInfoState.error) {
+                        if (val == TaskInfoState.error) {
+                            call_.fail("TaskError");
+                        }
+                        call_.end();
+                        future.complete(val.toString());
+                        return true;
+                    }
+                    return false;
+                }
+                void fail(Throwable t) {
+                    call_.fail(t);
+                    call_.end();
+                    future.fail(t);
+                }
+            });
+        return future;
+    }
+
+    /**
+     * Track a nfc lease until it becomes ready or error.
+     *
+     * @param op Operation name which created the lease like "importVApp".
+     * @return Future of the state.
+     */
+    public Future<HttpNfcLeaseState> track(HttpNfcLease lease, String op)
+        throws Exception
+    {
+        final TrackFuture<HttpNfcLeaseState> future =
+            new TrackFuture<HttpNfcLeaseState>();
+        register(lease.getMOR(), PROP_LEASE_STATE, op, new Tracked() {
+                boolean update(Object val) {
+                    if (val == HttpNfcLeaseState.ready ||
+                        val == HttpNfcLeaseState.error) {
+                        if (val == HttpNfcLeaseState.error) {
+                            call_.fail("LeaseError");
+                        }
+                        call_.end();
+                        future.complete((HttpNfcLeaseState) val);
+                        return true;
+                    }
+                    return false;
+                }
+                void fail(Throwable t) {
+                    call_.fail(t);
+                    call_.end();
+                    future.fail(t);
+                }
+            });
+        return future;
+    }
+
+    /**
+     * Number of objects being tracked.
+     */
+    public synchronized int size()
+    {
+        return trackedMap_.size();
+    }
+
+    /**
+     * Fail all tracked objects and destroy the property collector.
+     * Call this before logout.
+     */
+    public void shutdown()
+    {
+        PropertyCollector pc;
+        synchronized (this) {
+            isShutdown_ = true;
+            failAll(new Exception("task tracker was shut down."));
+            pc = pc_;
+            pc_ = null;
+        }
+        try {
+            /* This destroys all filters also. */
+            if (pc != null) { pc.destroyPropertyCollector(); }
+        } catch (Exception e) {
+            logger_.warning(Utility.toString(e));
+        }
+    }
+
+    /**
+     * Register an object and create its filter.
+     * The entry is added before the filter
+     * so that the first update is not missed.
+     */
+    private synchronized void register
+        (final ManagedObjectReference mor, final String prop, String op,
+         Tracked tracked)
+        throws Exception
+    {
+        if (isShutdown_) {
+            throw new IllegalStateException("task tracker was shut down.");
+        }
+        if (conn_.isConnected() == false) { conn_.connect(); }
+
+        String key = toKey(mor);
+        tracked.call_ = SoapMetrics.begin(op + ".complete");
+        trackedMap_.put(key, tracked);
+        try {
+            if (pc_ == null) {
+                pc_ = SoapMetrics.measure
+                    ("createPropertyCollector",
+                     new SoapMetrics.Body<PropertyCollector, Exception>() {
+                        public PropertyCollector call() throws Exception {
+                            return conn_.getServiceInstance()
+                                .getPropertyCollector()
+                                .createPropertyCollector();
+                        }
+                    });
+                version_ = null;
+            }
+            tracked.filter_ = SoapMetrics.measure
+                ("createFilter",
+                 new SoapMetrics.Body<PropertyFilter, Exception>() {
+                    public PropertyFilter call() throws Exception {
+                        return pc_.createFilter
+                            (createFilterSpec(mor, prop),
+                             true /* partialUpdates */);
+                    }
+                });
+        } catch (Exception e) {
+            trackedMap_.remove(key);
+            throw e;
+        }
+
+        if (thread_ == null) {
+            thread_ = new Thread(new Runnable() {
+                    public void run() { loop(); }
+                }, "task-tracker");
+            thread_.setDaemon(true);
+            thread_.start();
+        }
+    }
+
+    /**
+     * Wait for updates while some objects are tracked.
+     */
+    private void loop()
+    {
+        final WaitOptions options = new WaitOptions();
+        options.setMaxWaitSeconds(Integer.valueOf(MAX_WAIT_SEC));
+
+        while (true) {
+            final PropertyCollector pc;
+            final String version;
+            synchronized (this) {
+                if (isShutdown_ || trackedMap_.isEmpty()) {
+                    thread_ = null;
+                    return;
+                }
+                pc = pc_;
+                version = version_;
+            }
+
+            UpdateSet updateSet;
+            try {
+                updateSet = SoapMetrics.measure
+                    ("waitForUpdatesEx",
+                     new SoapMetrics.Body<UpdateSet, Exception>() {
+                        public UpdateSet call() throws Exception {
+                            return pc.waitForUpdatesEx(version, options);
+                        }
+                    });
+            } catch (InvalidCollectorVersion e) {
+                logger_.warning("collector version is invalid. resync.");
+                synchronized (this) { version_ = null; }
+                continue;
+            } catch (Exception e) {
+                logger_.warning(Utility.toString(e));
+                synchronized (this) {
+                    failAll(e);
+                    thread_ = null;
+                }
+                return;
+            }
+            if (updateSet == null) { continue; } /* timeout */
+
+            synchronized (this) {
+                version_ = updateSet.getVersion();
+                applyUpdateSet(updateSet);
+            }
+        }
+    }
+
+    /**
+     * Apply an update set and remove finished objects.
+     */
+    private void applyUpdateSet(UpdateSet updateSet)
+    {
+        PropertyFilterUpdate[] pfus = updateSet.getFilterSet();
+        if (pfus == null) { return; }
+
+        List<Tracked> doneList = new LinkedList<Tracked>();
+        for (PropertyFilterUpdate pfu : pfus) {
+            ObjectUpdate[] ous = pfu.getObjectSet();
+            if (ous == null) { continue; }
+
+            for (ObjectUpdate ou : ous) {
+                String key = toKey(ou.getObj());
+                Tracked tracked = trackedMap_.get(key);
+                if (tracked == null) { continue; }
+
+                boolean isDone = false;
+                if (ou.getKind() == ObjectUpdateKind.leave) {
+                    tracked.fail(new Exception(key + " has gone."));
+                    isDone = true;
+                } else if (ou.getChangeSet() != null) {
+                    for (PropertyChange pc : ou.getChangeSet()) {
+                        if (tracked.update(pc.getVal())) { isDone = true; }
+                    }
+                }
+                if (isDone) {
+                    trackedMap_.remove(key);
+                    doneList.add(tracked);
+                }
+            }
+        }
+
+        for (Tracked tracked : doneList) {
+            destroyFilter(tracked);
+        }
+    }
+
+    /**
+     * Fail all tracked objects. Their filters are not destroyed here.
+     */
+    private void failAll(Throwable t)
+    {
+        for (Tracked tracked : trackedMap_.values()) {
+            tracked.fail(t);
+        }
+        trackedMap_.clear();
+    }
+
+    private void destroyFilter(Tracked tracked)
+    {
+        if (tracked.filter_ == null) { return; }
+        try {
+            tracked.filter_.destroyPropertyFilter();
+        } catch (Exception e) {
+            logger_.warning(Utility.toString(e));
+        }
+        tracked.filter_ = null;
+    }
+
+    /**
+     * Filter spec of a property of an object.
+     */
+    private static PropertyFilterSpec createFilterSpec
+        (ManagedObjectReference mor, String prop)
+    {
+        PropertySpec pSpec = new PropertySpec();
+        pSpec.setType(mor.getType());
+        pSpec.setAll(Boolean.FALSE);
+        pSpec.setPathSet(new String[] {prop});
+
+        ObjectSpec oSpec = new ObjectSpec();
+        oSpec.setObj(mor);
+        oSpec.setSkip(Boolean.FALSE);
+
+        PropertyFilterSpec spec = new PropertyFilterSpec();
+        spec.setPropSet(new PropertySpec[] {pSpec});
+        spec.setObjectSet(new ObjectSpec[] {oSpec});
+        return spec;
+    }
+
+    private static String toKey(ManagedObjectReference mor)
+    {
+        return mor.getType() + ":" + mor.getVal();
+    }
+}
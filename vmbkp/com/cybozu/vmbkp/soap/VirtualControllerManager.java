@@ -103,6 +103,30 @@ public class VirtualControllerManager
         return new Integer(ckey_);
     }
 
+    /**
+     * Get adapter type.
+     */
+    protected AdapterType getType()
+    {
+        return type_;
+    }
+
+    /**
+     * Get bus number.
+     */
+    protected int getBusNumber()
+    {
+        return busNumber_;
+    }
+
+    /**
+     * Get the list of disks.
+     */
+    protected List<VirtualDiskManager> getDiskList()
+    {
+        return diskList_;
+    }
+
     /**
      * Create scsi controller spec and all of its child disks.
      */
@@ -94,6 +94,30 @@ public class VirtualDiskManager
         controller_ = controller;
     }
 
+    /**
+     * Get device key.
+     */
+    protected int getKey()
+    {
+        return key_;
+    }
+
+    /**
+     * Get unit number.
+     */
+    protected int getUnitNumber()
+    {
+        return unitNumber_;
+    }
+
+    /**
+     * Get capacity in kilo bytes.
+     */
+    protected long getCapacityInKb()
+    {
+        return capacityInKb_;
+    }
+
     /**
      * Create disk spec for VMware vSphere environment.
      */
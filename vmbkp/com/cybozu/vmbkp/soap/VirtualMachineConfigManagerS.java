@@ -0,0 +1,57 @@
+/**
+ * @file
+ * @brief VirtualMachineConfigManagerS
+ *
+ * Copyright (C) 2009,2010 Cybozu Inc., all rights reserved.
+ *
+ * @author Takashi HOSHINO <hoshino@labs.cybozu.co.jp>
+ */
+package com.cybozu.vmbkp.soap;
+
+import java.util.List;
+import java.util.LinkedList;
+
+import com.cybozu.vmbkp.util.VmdkInfo;
+
+/**
+ * @brief Config of a simulated virtual machine or snapshot.
+ */
+public class VirtualMachineConfigManagerS
+    implements VirtualMachineConfigManager
+{
+    /**
+     * Disks at the time the config was got.
+     */
+    private List<VmdkInfo> vmdkInfoList_;
+
+    private boolean isTemplate_;
+
+    /**
+     * Constructor.
+     */
+    public VirtualMachineConfigManagerS(List<VmdkInfo> vmdkInfoList,
+                                        boolean isTemplate)
+    {
+        vmdkInfoList_ = vmdkInfoList;
+        isTemplate_ = isTemplate;
+    }
+
+    public List<VmdkInfo> getAllVmdkInfo()
+    {
+        return new LinkedList<VmdkInfo>(vmdkInfoList_);
+    }
+
+    public List<String> getAllDiskNameList()
+    {
+        List<String> ret = new LinkedList<String>();
+        for (VmdkInfo vmdkInfo : vmdkInfoList_) {
+            ret.add(vmdkInfo.name_);
+        }
+        return ret;
+    }
+
+    public boolean isTemplate()
+    {
+        return isTemplate_;
+    }
+}
@@ -0,0 +1,295 @@
+/**
+ * @file
+ * @brief VirtualMachineManagerS
+ *
+ * Copyright (C) 2009,2010 Cybozu Inc., all rights reserved.
+ *
+ * @author Takashi HOSHINO <hoshino@labs.cybozu.co.jp>
+ */
+package com.cybozu.vmbkp.soap;
+
+import java.util.List;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import com.cybozu.vmbkp.util.VmInfo;
+import com.cybozu.vmbkp.util.VmdkInfo;
+import com.cybozu.vmbkp.util.Utility;
+
+/**
+ * @brief Simulated virtual machine.
+ */
+public class VirtualMachineManagerS
+    implements VirtualMachineManager
+{
+    /**
+     * Logger.
+     */
+    private static final Logger logger_ =
+        Logger.getLogger(VirtualMachineManagerS.class.getName());
+
+    private VsphereSimulator sim_;
+    private VsphereSimulator.Vm vm_;
+
+    /**
+     * Constructor.
+     */
+    public VirtualMachineManagerS(VsphereSimulator sim, VsphereSimulator.Vm vm)
+    {
+        sim_ = sim;
+        vm_ = vm;
+    }
+
+    public String getName()
+    {
+        return vm_.name_;
+    }
+
+    public String getMoref()
+    {
+        return vm_.moref_;
+    }
+
+    public VmInfo getVmInfo()
+    {
+        return new VmInfo(vm_.name_, vm_.moref_);
+    }
+
+    public VirtualMachineConfigManager getConfig()
+    {
+        List<VmdkInfo> list = new LinkedList<VmdkInfo>();
+        synchronized (sim_) {
+            for (VsphereSimulator.Disk disk : vm_.diskList_) {
+                list.add(disk.toVmdkInfo());
+            }
+        }
+        return new VirtualMachineConfigManagerS(list, vm_.isTemplate_);
+    }
+
+    public SnapshotManager getCurrentSnapshot()
+    {
+        synchronized (sim_) {
+            if (vm_.snapList_.isEmpty()) { return null; }
+            return new SnapshotManagerS
+                (sim_, this, vm_.snapList_.get(vm_.snapList_.size() - 1));
+        }
+    }
+
+    public SnapshotManager searchSnapshotWithName(String snapName)
+    {
+        VsphereSimulator.Snapshot snap = findSnapshot(snapName, null);
+        return (snap == null ? null : new SnapshotManagerS(sim_, this, snap));
+    }
+
+    public SnapshotManager searchSnapshotWithMoref(String snapMorefStr)
+    {
+        VsphereSimulator.Snapshot snap = findSnapshot(null, snapMorefStr);
+        return (snap == null ? null : new SnapshotManagerS(sim_, this, snap));
+    }
+
+    public Future<String> createSnapshotAsync(final String snapName)
+        throws Exception
+    {
+        return sim_.submitTask("createSnapshot_Task", new Callable<Boolean>() {
+                public Boolean call() {
+                    sim_.createSnapshot(vm_, snapName);
+                    return Boolean.TRUE;
+                }
+            });
+    }
+
+    public Future<String> deleteSnapshotAsync(final String snapName)
+        throws Exception
+    {
+        final VsphereSimulator.Snapshot snap = getSnapshot(snapName);
+        return sim_.submitTask("removeSnapshot_Task", new Callable<Boolean>() {
+                public Boolean call() {
+                    return Boolean.valueOf(vm_.snapList_.remove(snap));
+                }
+            });
+    }
+
+    public Future<String> revertToSnapshotAsync(final String snapName)
+        throws Exception
+    {
+        getSnapshot(snapName);
+        return sim_.submitTask("revertToSnapshot_Task",
+                               new Callable<Boolean>() {
+                public Boolean call() { return Boolean.TRUE; }
+            });
+    }
+
+    public boolean createSnapshot(String snapName)
+    {
+        return waitTask("createSnapshot_Task", snapName);
+    }
+
+    public boolean deleteSnapshot(String snapName)
+    {
+        return waitTask("removeSnapshot_Task", snapName);
+    }
+
+    public boolean revertToSnapshot(String snapName)
+    {
+        return waitTask("revertToSnapshot_Task", snapName);
+    }
+
+    public List<String> getAllSnapshotNameList()
+    {
+        List<String> ret = new LinkedList<String>();
+        synchronized (sim_) {
+            for (VsphereSimulator.Snapshot snap : vm_.snapList_) {
+                ret.add(snap.name_);
+            }
+        }
+        return ret;
+    }
+
+    public boolean addEmptyDisks(List<VirtualControllerManager> ctrlmList)
+    {
+        try {
+            sim_.call("reconfigVM_Task");
+        } catch (Exception e) {
+            logger_.warning(Utility.toString(e));
+            return false;
+        }
+        for (VirtualControllerManager vcm : ctrlmList) {
+            for (VirtualDiskManager vdm : vcm.getDiskList()) {
+                sim_.addDisk(vm_, vdm.getKey(), vcm.getType(),
+                             vcm.getCkey().intValue(), vcm.getBusNumber(),
+                             vdm.getUnitNumber(), vdm.getCapacityInKb());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Generate a minimal ovf descriptor
+     * with controllers and disks of the virtual machine.
+     */
+    public String exportOvf()
+    {
+        try {
+            sim_.call("createDescriptor");
+        } catch (Exception e) {
+            logger_.warning(Utility.toString(e));
+            return null;
+        }
+
+        StringBuffer refs = new StringBuffer();
+        StringBuffer disks = new StringBuffer();
+        StringBuffer items = new StringBuffer();
+        Map<Integer, Integer> ctrlIdMap = new TreeMap<Integer, Integer>();
+        int id = 1;
+        synchronized (sim_) {
+            for (VsphereSimulator.Disk disk : vm_.diskList_) {
+                Integer ckey = Integer.valueOf(disk.ckey_);
+                if (! ctrlIdMap.containsKey(ckey)) {
+                    ctrlIdMap.put(ckey, Integer.valueOf(id));
+                    items.append(String.format
+                                 ("<Item><rasd:InstanceID>%d</rasd:InstanceID>" +
+                                  "<rasd:ResourceSubType>%s</rasd:ResourceSubType>" +
+                                  "<rasd:ResourceType>6</rasd:ResourceType>" +
+                                  "</Item>\n", id, disk.type_.toString()));
+                    id ++;
+                }
+                refs.append(String.format
+                            ("<File ovf:href=\"disk-%d.vmdk\" ovf:id=\"file%d\"/>\n",
+                             disk.key_, disk.key_));
+                disks.append(String.format
+                             ("<Disk ovf:capacity=\"%d\" ovf:capacityAllocationUnits=\"byte * 2^10\"" +
+                              " ovf:diskId=\"vmdisk%d\" ovf:fileRef=\"file%d\"/>\n",
+                              disk.capacityInKB_, disk.key_, disk.key_));
+                items.append(String.format
+                             ("<Item><rasd:AddressOnParent>%d</rasd:AddressOnParent>" +
+                              "<rasd:HostResource>ovf:/disk/vmdisk%d</rasd:HostResource>" +
+                              "<rasd:InstanceID>%d</rasd:InstanceID>" +
+                              "<rasd:Parent>%d</rasd:Parent>" +
+                              "<rasd:ResourceType>17</rasd:ResourceType>" +
+                              "</Item>\n", disk.unitNumber_, disk.key_,
+                              id, ctrlIdMap.get(ckey).intValue()));
+                id ++;
+            }
+        }
+
+        return String.format
+            ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+             "<Envelope xmlns=\"http://schemas.dmtf.org/ovf/envelope/1\"" +
+             " xmlns:ovf=\"http://schemas.dmtf.org/ovf/envelope/1\"" +
+             " xmlns:rasd=\"http://schemas.dmtf.org/wbem/wscim/1/cim-schema/2/CIM_ResourceAllocationSettingData\">\n" +
+             "<References>\n%s</References>\n" +
+             "<DiskSection><Info>Virtual disk information</Info>\n%s</DiskSection>\n" +
+             "<VirtualSystem ovf:id=\"%s\"><Info>A virtual machine</Info>\n" +
+             "<VirtualHardwareSection><Info>Virtual hardware requirements</Info>\n" +
+             "%s</VirtualHardwareSection>\n" +
+             "</VirtualSystem>\n" +
+             "</Envelope>\n",
+             refs.toString(), disks.toString(), vm_.name_, items.toString());
+    }
+
+    public void reload()
+    {
+        try {
+            sim_.call("reload");
+        } catch (Exception e) {
+            logger_.warning(Utility.toString(e));
+        }
+    }
+
+    /**
+     * Run a snapshot operation and wait for it.
+     */
+    private boolean waitTask(final String op, final String snapName)
+    {
+        try {
+            Future<String> future;
+            if (op.equals("createSnapshot_Task")) {
+                future = createSnapshotAsync(snapName);
+            } else if (op.equals("removeSnapshot_Task")) {
+                future = deleteSnapshotAsync(snapName);
+            } else {
+                future = revertToSnapshotAsync(snapName);
+            }
+            String ret = future.get();
+            logger_.info(String.format("%s %s: %s.", op, snapName, ret));
+            return ret.equals("success");
+        } catch (Exception e) {
+            logger_.warning(Utility.toString(e));
+            return false;
+        }
+    }
+
+    /**
+     * @throws Exception if not found.
+     */
+    private VsphereSimulator.Snapshot getSnapshot(String snapName)
+        throws Exception
+    {
+        VsphereSimulator.Snapshot snap = findSnapshot(snapName, null);
+        if (snap == null) {
+            throw new Exception
+                (String.format("snapshot %s is not found.", snapName));
+        }
+        return snap;
+    }
+
+    /**
+     * Find a snapshot with the name or moref.
+     */
+    private VsphereSimulator.Snapshot findSnapshot(String name, String moref)
+    {
+        synchronized (sim_) {
+            for (VsphereSimulator.Snapshot snap : vm_.snapList_) {
+                if ((name != null && snap.name_.equals(name)) ||
+                    (moref != null && snap.moref_.equals(moref))) {
+                    return snap;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,429 @@
+/**
+ * @file
+ * @brief VsphereSimulator
+ *
+ * Copyright (C) 2009,2010 Cybozu Inc., all rights reserved.
+ *
+ * @author Takashi HOSHINO <hoshino@labs.cybozu.co.jp>
+ */
+package com.cybozu.vmbkp.soap;
+
+import java.util.List;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+import com.cybozu.vmbkp.util.AdapterType;
+import com.cybozu.vmbkp.util.VmdkInfo;
+import com.cybozu.vmbkp.util.ChangedExtents;
+
+/**
+ * @brief In-memory model of a vSphere environment.
+ *
+ * This is used with GlobalManagerS to run vmbkp commands
+ * with thousands of virtual machines without a soap server.
+ * Each call sleeps latency and fails with the failure rate,
+ * and each task sleeps task latency in a thread.
+ * Changed blocks are decided by a hash of (disk, epoch, block)
+ * so that the results are reproducible with the same seed.
+ */
+public class VsphereSimulator
+{
+    /**
+     * Logger.
+     */
+    private static final Logger logger_ =
+        Logger.getLogger(VsphereSimulator.class.getName());
+
+    /**
+     * Granularity of simulated changed blocks.
+     */
+    public static final long CHANGE_BLOCK_SIZE = 1024L * 1024L;
+
+    public static final String HOST_NAME = "sim-host";
+    public static final String DATASTORE_NAME = "sim-datastore";
+
+    /**
+     * A simulated disk.
+     * The epoch is incremented when a snapshot is created.
+     */
+    static class Disk
+    {
+        int key_;
+        int ckey_;
+        AdapterType type_;
+        int busNumber_;
+        int unitNumber_;
+        long capacityInKB_;
+        String name_;
+        String uuid_;
+        int epoch_;
+
+        VmdkInfo toVmdkInfo()
+        {
+            return new VmdkInfo(name_, uuid_, uuid_ + "/" + epoch_,
+                                key_, ckey_, capacityInKB_, type_,
+                                busNumber_, unitNumber_, "persistent");
+        }
+    }
+
+    /**
+     * A simulated snapshot with the disk state at the time.
+     */
+    static class Snapshot
+    {
+        String moref_;
+        String name_;
+        List<VmdkInfo> vmdkInfoList_;
+    }
+
+    /**
+     * A simulated virtual machine.
+     */
+    static class Vm
+    {
+        String moref_;
+        String name_;
+        boolean isTemplate_;
+        List<Disk> diskList_ = new LinkedList<Disk>();
+        List<Snapshot> snapList_ = new LinkedList<Snapshot>();
+    }
+
+    /**
+     * moref -> virtual machine.
+     */
+    private Map<String, Vm> vmMap_;
+
+    private int nextId_;
+
+    private long latencyMs_;
+    private long taskLatencyMs_;
+    private double failureRate_;
+    private double changeRate_;
+    private long seed_;
+    private Random random_;
+
+    /**
+     * Number of calls and simulated failures.
+     */
+    private long numCalls_;
+    private long numFailures_;
+
+    /**
+     * Threads to run tasks.
+     */
+    private ExecutorService executor_;
+
+    /**
+     * Constructor of an empty environment without latency.
+     */
+    public VsphereSimulator(long seed)
+    {
+        vmMap_ = new TreeMap<String, Vm>();
+        nextId_ = 1;
+        latencyMs_ = 0;
+        taskLatencyMs_ = 0;
+        failureRate_ = 0.0;
+        changeRate_ = 0.01;
+        seed_ = seed;
+        random_ = new Random(seed);
+        numCalls_ = 0;
+        numFailures_ = 0;
+        executor_ = Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread th = new Thread(r, "sim-task");
+                    th.setDaemon(true);
+                    return th;
+                }
+            });
+    }
+
+    /**
+     * Latency of each call in milliseconds.
+     */
+    public void setLatencyMs(long latencyMs)
+    {
+        latencyMs_ = latencyMs;
+    }
+
+    /**
+     * Time of each task in milliseconds.
+     */
+    public void setTaskLatencyMs(long taskLatencyMs)
+    {
+        taskLatencyMs_ = taskLatencyMs;
+    }
+
+    /**
+     * Probability [0, 1] that a call fails.
+     */
+    public void setFailureRate(double failureRate)
+    {
+        failureRate_ = failureRate;
+    }
+
+    /**
+     * Probability [0, 1] that a block changes between snapshots.
+     */
+    public void setChangeRate(double changeRate)
+    {
+        changeRate_ = changeRate;
+    }
+
+    public synchronized long getNumCalls()
+    {
+        return numCalls_;
+    }
+
+    public synchronized long getNumFailures()
+    {
+        return numFailures_;
+    }
+
+    /**
+     * Add virtual machines named "sim-vm-N".
+     *
+     * @param numVms Number of virtual machines.
+     * @param numDisks Number of disks of each virtual machine.
+     * @param capacityInKB Capacity of each disk.
+     */
+    public synchronized void addVms(int numVms, int numDisks,
+                                    long capacityInKB)
+    {
+        for (int i = 0; i < numVms; i ++) {
+            Vm vm = createVm(null);
+            for (int j = 0; j < numDisks; j ++) {
+                addDisk(vm, 0, AdapterType.LSILOGIC, 1000, 0, j,
+                        capacityInKB);
+            }
+        }
+    }
+
+    /**
+     * Shutdown task threads.
+     */
+    public void shutdown()
+    {
+        executor_.shutdownNow();
+    }
+
+    /**
+     * Simulate a call to the server.
+     * Sleep latency and fail with the failure rate.
+     * The call is recorded to SoapMetrics as a real one.
+     */
+    void call(final String op)
+        throws Exception
+    {
+        final boolean isFailure;
+        synchronized (this) {
+            numCalls_ ++;
+            isFailure = random_.nextDouble() < failureRate_;
+            if (isFailure) { numFailures_ ++; }
+        }
+        SoapMetrics.measure(op, new SoapMetrics.Body<Void, Exception>() {
+                public Void call() throws Exception {
+                    sleep(latencyMs_);
+                    if (isFailure) {
+                        throw new Exception
+                            ("simulated failure of " + op + ".");
+                    }
+                    return null;
+                }
+            });
+    }
+
+    /**
+     * Run a task in a thread.
+     *
+     * @param op Operation name.
+     * @param body Task body. It returns false in error.
+     * @return Future of "success" or "error".
+     */
+    Future<String> submitTask(final String op, final Callable<Boolean> body)
+        throws Exception
+    {
+        call(op);
+        final SoapMetrics.Call taskCall =
+            SoapMetrics.begin(op + ".complete");
+        return executor_.submit(new Callable<String>() {
+                public String call() throws Exception {
+                    sleep(taskLatencyMs_);
+                    boolean ret;
+                    synchronized (VsphereSimulator.this) {
+                        ret = body.call().booleanValue();
+                    }
+                    if (! ret) {
+                        logger_.warning(op + " failed.");
+                        taskCall.fail("TaskError");
+                    }
+                    taskCall.end();
+                    return ret ? "success" : "error";
+                }
+            });
+    }
+
+    synchronized Vm getVm(String moref)
+    {
+        return vmMap_.get(moref);
+    }
+
+    synchronized Vm getVmWithName(String name)
+    {
+        for (Vm vm : vmMap_.values()) {
+            if (vm.name_.equals(name)) { return vm; }
+        }
+        return null;
+    }
+
+    synchronized List<Vm> getAllVms()
+    {
+        return new LinkedList<Vm>(vmMap_.values());
+    }
+
+    /**
+     * @param name Name of the vm. "sim-vm-N" is used if null.
+     */
+    synchronized Vm createVm(String name)
+    {
+        int id = nextId_ ++;
+        Vm vm = new Vm();
+        vm.moref_ = "vm-" + id;
+        vm.name_ = (name != null ? name : "sim-vm-" + id);
+        vm.isTemplate_ = false;
+        vmMap_.put(vm.moref_, vm);
+        return vm;
+    }
+
+    synchronized boolean removeVm(String moref)
+    {
+        return vmMap_.remove(moref) != null;
+    }
+
+    /**
+     * @param key Device key. It is assigned automatically if 0.
+     */
+    synchronized Disk addDisk(Vm vm, int key, AdapterType type, int ckey,
+                              int busNumber, int unitNumber,
+                              long capacityInKB)
+    {
+        int id = nextId_ ++;
+        Disk disk = new Disk();
+        disk.key_ = (key != 0 ? key : 2000 + vm.diskList_.size());
+        disk.ckey_ = ckey;
+        disk.type_ = type;
+        disk.busNumber_ = busNumber;
+        disk.unitNumber_ = unitNumber;
+        disk.capacityInKB_ = capacityInKB;
+        disk.name_ = String.format("[%s] %s/disk-%d.vmdk",
+                                   DATASTORE_NAME, vm.name_, id);
+        disk.uuid_ = String.format("sim-%016x-%08x", seed_, id);
+        disk.epoch_ = 0;
+        vm.diskList_.add(disk);
+        return disk;
+    }
+
+    /**
+     * Create a snapshot and start a new epoch of each disk.
+     */
+    synchronized Snapshot createSnapshot(Vm vm, String name)
+    {
+        Snapshot snap = new Snapshot();
+        snap.moref_ = "snapshot-" + (nextId_ ++);
+        snap.name_ = name;
+        snap.vmdkInfoList_ = new LinkedList<VmdkInfo>();
+        for (Disk disk : vm.diskList_) {
+            disk.epoch_ ++;
+            snap.vmdkInfoList_.add(disk.toVmdkInfo());
+        }
+        vm.snapList_.add(snap);
+        return snap;
+    }
+
+    /**
+     * Changed extents of a disk of a snapshot inside a window.
+     *
+     * @param snapVmdkInfo vmdk information of the snapshot.
+     * @param baseChangeId "*" or "uuid/epoch".
+     */
+    ChangedExtents queryChangedExtents
+        (VmdkInfo snapVmdkInfo, String baseChangeId,
+         long beginOffset, long endOffset)
+        throws Exception
+    {
+        int endEpoch = parseEpoch(snapVmdkInfo.uuid_, snapVmdkInfo.changeId_);
+        final boolean isAll = baseChangeId.equals("*");
+        int beginEpoch = 0;
+        if (! isAll) {
+            beginEpoch = parseEpoch(snapVmdkInfo.uuid_, baseChangeId);
+            if (beginEpoch > endEpoch) {
+                throw new Exception("changeId is newer than the snapshot.");
+            }
+        }
+        ChangedExtents ret = new ChangedExtents();
+        for (long off = beginOffset; off < endOffset;
+             off += CHANGE_BLOCK_SIZE) {
+            long len = Math.min(CHANGE_BLOCK_SIZE, endOffset - off);
+            if (isAll) {
+                /* All blocks are reported with "*". */
+                ret.add(off, len);
+                continue;
+            }
+            long block = off / CHANGE_BLOCK_SIZE;
+            for (int e = beginEpoch; e < endEpoch; e ++) {
+                if (isChanged(snapVmdkInfo.uuid_, e, block)) {
+                    ret.add(off, len);
+                    break;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Whether the block is written during the epoch.
+     */
+    private boolean isChanged(String uuid, int epoch, long block)
+    {
+        long h = seed_;
+        h = mix(h ^ uuid.hashCode());
+        h = mix(h ^ epoch);
+        h = mix(h ^ block);
+        return (double) (h >>> 11) / (double) (1L << 53) < changeRate_;
+    }
+
+    /**
+     * Finalizer of splitmix64.
+     */
+    private static long mix(long z)
+    {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private static int parseEpoch(String uuid, String changeId)
+        throws Exception
+    {
+        int idx = changeId.lastIndexOf('/');
+        if (idx < 0 || ! changeId.substring(0, idx).equals(uuid)) {
+            throw new Exception("invalid changeId: " + changeId);
+        }
+        return Integer.parseInt(changeId.substring(idx + 1));
+    }
+
+    private static void sleep(long ms)
+    {
+        if (ms <= 0) { return; }
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException ignored) {}
+    }
+}
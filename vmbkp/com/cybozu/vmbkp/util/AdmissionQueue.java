@@ -0,0 +1,394 @@
+/**
+ * @file
+ * @brief AdmissionQueue
+ *
+ * Copyright (C) 2009,2010 Cybozu Inc., all rights reserved.
+ *
+ * @author Takashi HOSHINO <hoshino@labs.cybozu.co.jp>
+ */
+package com.cybozu.vmbkp.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.io.IOException;
+import java.nio.channels.FileLock;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * @brief Queue of jobs sharing limited slots among processes.
+ *
+ * Each job has a ticket file "<priority>.<seq>.W" in the queue
+ * directory, renamed to "<priority>.<seq>.R" when admitted
+ * and deleted when it leaves.
+ * Waiting tickets are admitted one by one in order of priority
+ * (smaller first) and arrival, while the policy allows
+ * for the number of running tickets.
+ * Admission is decided under the file lock of the counter file.
+ *
+ * Tickets are renewed and removed when stale as LockFileManagerT.
+ */
+public class AdmissionQueue
+{
+    /**
+     * Logger.
+     */
+    private static final Logger logger_ =
+        Logger.getLogger(AdmissionQueue.class.getName());
+
+    /**
+     * Counter file name in the queue directory.
+     */
+    private static final String SEQ_FILE = "seq";
+
+    /**
+     * Max interval to evaluate the policy again.
+     */
+    private static final long MAX_WAIT_MS = 5000L;
+
+    /**
+     * Timer to renew tickets.
+     */
+    private static final Timer timer_ = new Timer("AdmissionQueue", true);
+
+    /**
+     * Admission policy.
+     */
+    public interface Policy
+    {
+        /**
+         * Called under the lock of the queue.
+         *
+         * @param priority Priority of the first waiting ticket.
+         * @param numRunning Number of admitted tickets.
+         * @return True to admit the ticket.
+         */
+        boolean canAdmit(int priority, int numRunning);
+    }
+
+    /**
+     * Ticket of a job.
+     */
+    public static class Ticket
+    {
+        private volatile File file_;
+        private TimerTask renewTask_;
+        private final int priority_;
+        private int numRunning_;
+        private long admittedNs_;
+
+        private Ticket(File file, int priority)
+        {
+            file_ = file;
+            priority_ = priority;
+        }
+
+        public int getPriority()
+        {
+            return priority_;
+        }
+
+        /**
+         * Number of running tickets including this one at the admission.
+         */
+        public int getNumRunning()
+        {
+            return numRunning_;
+        }
+    }
+
+    private final File dir_;
+    private final String name_;
+    private final long leaseMs_;
+
+    /**
+     * Constructor.
+     *
+     * @param dirPath Queue directory path.
+     */
+    public AdmissionQueue(String dirPath)
+    {
+        this(dirPath, LockFileManagerT.DEFAULT_LEASE_SEC);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param dirPath Queue directory path.
+     * @param leaseSec Tickets not renewed for this are stale.
+     */
+    public AdmissionQueue(String dirPath, int leaseSec)
+    {
+        assert dirPath != null;
+        assert leaseSec > 0;
+        dir_ = new File(dirPath);
+        name_ = dir_.getName();
+        leaseMs_ = leaseSec * 1000L;
+    }
+
+    public String getPath()
+    {
+        return dir_.getPath();
+    }
+
+    /**
+     * Wait until the job is admitted.
+     *
+     * @param priority 0 to 9. Smaller is prior.
+     * @param policy Admission policy.
+     * @return Ticket to pass to leave().
+     */
+    public Ticket enter(int priority, Policy policy)
+        throws Exception
+    {
+        long beginNs = System.nanoTime();
+        Ticket ticket = takeRenewedTicket(priority);
+
+        boolean isAdmitted = false;
+        try {
+            waitForAdmission(ticket, policy);
+            isAdmitted = true;
+        } finally {
+            long waitMs = (System.nanoTime() - beginNs) / 1000000L;
+            LockMetrics.recordWait(name_, waitMs, isAdmitted);
+            if (isAdmitted) {
+                if (waitMs >= 1000L) {
+                    logger_.info(String.format
+                                 ("waited %d ms for %s.",
+                                  waitMs, dir_.getPath()));
+                }
+            } else {
+                ticket.renewTask_.cancel();
+                ticket.file_.delete();
+            }
+        }
+        ticket.admittedNs_ = System.nanoTime();
+        return ticket;
+    }
+
+    /**
+     * Enter the queue only if the job is admitted at once.
+     *
+     * @param priority 0 to 9. Smaller is prior.
+     * @param policy Admission policy.
+     * @return Ticket to pass to leave(), or null if not admitted.
+     */
+    public Ticket tryEnter(int priority, Policy policy)
+        throws Exception
+    {
+        Ticket ticket = takeRenewedTicket(priority);
+
+        boolean isAdmitted = false;
+        try {
+            isAdmitted = tryAdmit(ticket, policy);
+        } finally {
+            if (isAdmitted == false) {
+                ticket.renewTask_.cancel();
+                ticket.file_.delete();
+            }
+        }
+        if (isAdmitted == false) { return null; }
+        LockMetrics.recordWait(name_, 0L, true);
+        ticket.admittedNs_ = System.nanoTime();
+        return ticket;
+    }
+
+    /**
+     * Leave the queue.
+     */
+    public void leave(Ticket ticket)
+    {
+        if (ticket == null || ticket.renewTask_ == null) { return; }
+
+        ticket.renewTask_.cancel();
+        ticket.renewTask_ = null;
+        if (ticket.file_.delete() == false) {
+            logger_.warning("delete ticket failed: " + ticket.file_.getPath());
+        }
+        LockMetrics.recordHold
+            (name_, (System.nanoTime() - ticket.admittedNs_) / 1000000L);
+    }
+
+    /**
+     * Number of running tickets.
+     */
+    public int getNumRunning()
+    {
+        String[] names = dir_.list();
+        if (names == null) { return 0; }
+        int ret = 0;
+        for (String name : names) {
+            if (name.matches("[0-9]\\.[0-9]{19}\\.R")) { ret ++; }
+        }
+        return ret;
+    }
+
+    /**
+     * Create a waiting ticket and start renewing it.
+     */
+    private Ticket takeRenewedTicket(int priority)
+        throws IOException
+    {
+        assert 0 <= priority && priority <= 9;
+        if (dir_.mkdirs() == false && dir_.isDirectory() == false) {
+            throw new IOException("mkdir failed: " + dir_.getPath());
+        }
+
+        final Ticket ticket = takeTicket(priority);
+        ticket.renewTask_ = new TimerTask() {
+                public void run() {
+                    ticket.file_.setLastModified(System.currentTimeMillis());
+                }
+            };
+        timer_.schedule(ticket.renewTask_, leaseMs_ / 3, leaseMs_ / 3);
+        return ticket;
+    }
+
+    /**
+     * Create a waiting ticket with the next sequence number.
+     */
+    private Ticket takeTicket(int priority)
+        throws IOException
+    {
+        synchronized (AdmissionQueue.class) {
+            RandomAccessFile f =
+                new RandomAccessFile(new File(dir_, SEQ_FILE), "rw");
+            try {
+                FileLock lock = f.getChannel().lock();
+                try {
+                    long seq = (f.length() >= 8 ? f.readLong() : 0L);
+                    f.seek(0);
+                    f.writeLong(seq + 1);
+
+                    File file = new File
+                        (dir_, String.format("%d.%019d.W", priority, seq));
+                    FileOutputStream out = new FileOutputStream(file);
+                    try {
+                        out.write(LockFileManagerT.getOwner()
+                                  .getBytes("UTF-8"));
+                    } finally {
+                        out.close();
+                    }
+                    return new Ticket(file, priority);
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                f.close();
+            }
+        }
+    }
+
+    /**
+     * Wait until the ticket is admitted.
+     */
+    private void waitForAdmission(Ticket ticket, Policy policy)
+        throws Exception
+    {
+        WatchService ws = null;
+        try {
+            while (true) {
+                if (tryAdmit(ticket, policy)) { return; }
+
+                if (ws == null) {
+                    /* Check again after the registration
+                       not to miss removal of tickets. */
+                    ws = FileSystems.getDefault().newWatchService();
+                    dir_.toPath().register
+                        (ws, StandardWatchEventKinds.ENTRY_DELETE);
+                    continue;
+                }
+                /* The policy may change without removal. */
+                long waitMs = Math.min(leaseMs_ / 3, MAX_WAIT_MS);
+                WatchKey key = ws.poll(waitMs, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    key.pollEvents();
+                    key.reset();
+                }
+            }
+        } finally {
+            if (ws != null) { ws.close(); }
+        }
+    }
+
+    /**
+     * Admit the ticket if it is the first waiting one
+     * and the policy allows, removing stale tickets.
+     */
+    private boolean tryAdmit(Ticket ticket, Policy policy)
+        throws IOException
+    {
+        synchronized (AdmissionQueue.class) {
+            RandomAccessFile f =
+                new RandomAccessFile(new File(dir_, SEQ_FILE), "rw");
+            try {
+                FileLock lock = f.getChannel().lock();
+                try {
+                    return tryAdmitLocked(ticket, policy);
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                f.close();
+            }
+        }
+    }
+
+    private boolean tryAdmitLocked(Ticket ticket, Policy policy)
+        throws IOException
+    {
+        if (ticket.file_.exists() == false) {
+            throw new IOException("ticket removed: " + ticket.file_.getPath());
+        }
+        String[] names = dir_.list();
+        if (names == null) {
+            throw new IOException("list failed: " + dir_.getPath());
+        }
+        Arrays.sort(names);
+        String myName = ticket.file_.getName();
+        int numRunning = 0;
+        boolean isFirst = true;
+        for (String name : names) {
+            if (name.equals(myName)) { continue; }
+            if (name.matches("[0-9]\\.[0-9]{19}\\.[WR]") == false) {
+                continue;
+            }
+
+            File other = new File(dir_, name);
+            if (LockFileManagerT.isStale(other, leaseMs_)) {
+                if (other.delete()) {
+                    logger_.warning("removed stale ticket: " +
+                                    other.getPath());
+                    LockMetrics.recordStale(name_);
+                }
+                continue;
+            }
+            if (name.endsWith(".R")) {
+                numRunning ++;
+            } else if (name.compareTo(myName) < 0) {
+                isFirst = false;
+            }
+        }
+        if (isFirst == false ||
+            policy.canAdmit(ticket.priority_, numRunning) == false) {
+            return false;
+        }
+
+        File running = new File
+            (dir_, myName.substring(0, myName.length() - 1) + "R");
+        if (ticket.file_.renameTo(running) == false) {
+            throw new IOException("rename failed: " + ticket.file_.getPath());
+        }
+        ticket.file_ = running;
+        ticket.numRunning_ = numRunning + 1;
+        return true;
+    }
+}
@@ -0,0 +1,216 @@
+/**
+ * @file
+ * @brief ChangedExtents
+ *
+ * Copyright (C) 2009,2010 Cybozu Inc., all rights reserved.
+ *
+ * @author Takashi HOSHINO <hoshino@labs.cybozu.co.jp>
+ */
+package com.cybozu.vmbkp.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * @brief List of changed extents of a disk.
+ *
+ * Extents are kept as (offset, length) pairs in bytes
+ * in a primitive long array, sorted by offset.
+ * Adjacent extents are merged when added.
+ * Convert to VmdkBitmap with toBitmap() only when required.
+ */
+public class ChangedExtents
+{
+    /**
+     * Magic number of the file format.
+     */
+    private static final int MAGIC = 0x56455854; /* "VEXT" */
+
+    /**
+     * Pairs of (offset, length).
+     * The i'th extent is [2 * i] and [2 * i + 1].
+     */
+    private long[] extents_;
+
+    /**
+     * Number of extents.
+     */
+    private int size_;
+
+    /**
+     * Constructor of an empty list.
+     */
+    public ChangedExtents()
+    {
+        extents_ = new long[32];
+        size_ = 0;
+    }
+
+    /**
+     * Number of extents.
+     */
+    public int size()
+    {
+        return size_;
+    }
+
+    /**
+     * @return True if there is no extent.
+     */
+    public boolean isEmpty()
+    {
+        return size_ == 0;
+    }
+
+    public long getOffset(int i)
+    {
+        assert i < size_;
+        return extents_[2 * i];
+    }
+
+    public long getLength(int i)
+    {
+        assert i < size_;
+        return extents_[2 * i + 1];
+    }
+
+    /**
+     * Total size of all extents in bytes.
+     */
+    public long getTotalLength()
+    {
+        long total = 0;
+        for (int i = 0; i < size_; i ++) {
+            total += extents_[2 * i + 1];
+        }
+        return total;
+    }
+
+    /**
+     * Add an extent.
+     * The offset must not be less than the end of the last extent.
+     *
+     * @return False if the extent is empty or not sorted.
+     */
+    public boolean add(long offset, long length)
+    {
+        if (length <= 0) { return false; }
+        if (size_ > 0) {
+            long lastEnd = extents_[2 * size_ - 2] + extents_[2 * size_ - 1];
+            if (offset < lastEnd) { return false; }
+            if (offset == lastEnd) {
+                extents_[2 * size_ - 1] += length;
+                return true;
+            }
+        }
+        if (2 * size_ + 2 > extents_.length) {
+            long[] tmp = new long[extents_.length * 2];
+            System.arraycopy(extents_, 0, tmp, 0, 2 * size_);
+            extents_ = tmp;
+        }
+        extents_[2 * size_] = offset;
+        extents_[2 * size_ + 1] = length;
+        size_ ++;
+        return true;
+    }
+
+    /**
+     * Add all extents of another list.
+     * All of them must be after the last extent of this.
+     *
+     * @return False if some extents are not sorted.
+     */
+    public boolean addAll(ChangedExtents rhs)
+    {
+        boolean ret = true;
+        for (int i = 0; i < rhs.size_; i ++) {
+            ret &= add(rhs.extents_[2 * i], rhs.extents_[2 * i + 1]);
+        }
+        return ret;
+    }
+
+    /**
+     * Convert to a bitmap.
+     *
+     * @param diskSizeInBytes disk size in bytes.
+     * @param blockSize block size in bytes.
+     */
+    public VmdkBitmap toBitmap(long diskSizeInBytes, int blockSize)
+    {
+        VmdkBitmap bmp = new VmdkBitmap(diskSizeInBytes, blockSize);
+        addTo(bmp);
+        return bmp;
+    }
+
+    /**
+     * Set blocks of all extents in a bitmap.
+     */
+    public void addTo(VmdkBitmap bmp)
+    {
+        for (int i = 0; i < size_; i ++) {
+            bmp.setRangeInBytes(extents_[2 * i], extents_[2 * i + 1]);
+        }
+    }
+
+    /**
+     * Write to a file.
+     */
+    public void writeTo(String path)
+        throws IOException
+    {
+        DataOutputStream out = new DataOutputStream
+            (new BufferedOutputStream(new FileOutputStream(path)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(size_);
+            for (int i = 0; i < 2 * size_; i ++) {
+                out.writeLong(extents_[i]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Read from a file written by writeTo().
+     */
+    public static ChangedExtents readFrom(String path)
+        throws IOException
+    {
+        DataInputStream in = new DataInputStream
+            (new BufferedInputStream(new FileInputStream(path)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("bad magic: " + path);
+            }
+            int size = in.readInt();
+            if (size < 0) {
+                throw new IOException("bad size: " + path);
+            }
+            ChangedExtents ret = new ChangedExtents();
+            for (int i = 0; i < size; i ++) {
+                long offset = in.readLong();
+                long length = in.readLong();
+                if (ret.add(offset, length) == false) {
+                    throw new IOException("bad extent: " + path);
+                }
+            }
+            return ret;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Summary for logging.
+     */
+    public String toString()
+    {
+        return String.format("%d extents, %d bytes", size_, getTotalLength());
+    }
+}
@@ -0,0 +1,282 @@
+/**
+ * @file
+ * @brief CompressedBitmap
+ *
+ * Copyright (C) 2009,2010 Cybozu Inc., all rights reserved.
+ *
+ * @author Takashi HOSHINO <hoshino@labs.cybozu.co.jp>
+ */
+package com.cybozu.vmbkp.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.EOFException;
+
+/**
+ * @brief Compressed file format of VmdkBitmap.
+ *
+ * The bitmap is divided into chunks of CHUNK_BITS blocks
+ * and only chunks with set bits are stored.
+ * Each chunk is stored as a list of runs of set bits,
+ * or as raw words if the runs are larger.
+ *
+ * Format (big endian):
+ *   int magic, int version, int blockSize, long size (number of bits),
+ *   int number of stored chunks, then for each of them:
+ *   int chunkIndex, byte type,
+ *     RUNS:  int numRuns, (char begin, char length - 1) * numRuns.
+ *     WORDS: long * CHUNK_WORDS.
+ *
+ * vmdkbkp does not read this format.
+ * Use expand() to make a legacy bitmap file for it.
+ */
+public class CompressedBitmap
+{
+    /**
+     * Magic number of the file format.
+     */
+    private static final int MAGIC = 0x56424d5a; /* "VBMZ" */
+
+    private static final int VERSION = 1;
+
+    /**
+     * Number of bits of a chunk.
+     */
+    private static final int CHUNK_BITS = 1 << 16;
+    private static final int CHUNK_WORDS = CHUNK_BITS / 64;
+
+    private static final byte TYPE_RUNS = 1;
+    private static final byte TYPE_WORDS = 2;
+
+    /**
+     * A chunk with runs more than this is stored as words.
+     */
+    private static final int MAX_RUNS = CHUNK_WORDS * 8 / 4;
+
+    /**
+     * Check the file is in this format.
+     */
+    public static boolean isCompressed(String path)
+        throws IOException
+    {
+        DataInputStream in = new DataInputStream(new FileInputStream(path));
+        try {
+            return in.readInt() == MAGIC;
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write a bitmap to a file in this format.
+     */
+    public static void write(VmdkBitmap bmp, String path)
+        throws IOException
+    {
+        LongBitmap bs = bmp.getLongBitmap();
+        long size = bs.size();
+        int numChunks = (int) ((size + CHUNK_BITS - 1) / CHUNK_BITS);
+
+        /* Count non-empty chunks first. */
+        int numNonEmpty = 0;
+        for (int c = 0; c < numChunks; c ++) {
+            if (! isEmptyChunk(bs, c)) { numNonEmpty ++; }
+        }
+
+        DataOutputStream out = new DataOutputStream
+            (new BufferedOutputStream(new FileOutputStream(path)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(bmp.getBlockSize());
+            out.writeLong(size);
+            out.writeInt(numNonEmpty);
+            int[] runs = new int[2 * MAX_RUNS];
+            for (int c = 0; c < numChunks; c ++) {
+                if (isEmptyChunk(bs, c)) { continue; }
+                out.writeInt(c);
+                int numRuns = getRuns(bs, c, runs);
+                if (numRuns >= 0) {
+                    out.writeByte(TYPE_RUNS);
+                    out.writeInt(numRuns);
+                    for (int i = 0; i < numRuns; i ++) {
+                        out.writeChar(runs[2 * i]);
+                        out.writeChar(runs[2 * i + 1] - 1);
+                    }
+                } else {
+                    out.writeByte(TYPE_WORDS);
+                    int w0 = c * CHUNK_WORDS;
+                    for (int i = 0; i < CHUNK_WORDS; i ++) {
+                        out.writeLong(w0 + i < bs.getNumWords() ?
+                                      bs.getWord(w0 + i) : 0L);
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Read a bitmap from a file written by write().
+     */
+    public static VmdkBitmap read(String path)
+        throws IOException
+    {
+        DataInputStream in = new DataInputStream
+            (new BufferedInputStream(new FileInputStream(path)));
+        try {
+            int blockSize = readHeader(in, path);
+            long size = in.readLong();
+            if (size < 0 || size > LongBitmap.MAX_SIZE) {
+                throw new IOException("bad header: " + path);
+            }
+            LongBitmap bs = LongBitmap.allocate(size);
+            readChunks(in, bs, path);
+            return new VmdkBitmap(bs, blockSize);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Add set bits in a file written by write() to a bitmap
+     * without reading the whole file into another bitmap.
+     *
+     * @param dst It must have the same size and block size as the file.
+     */
+    public static void orInto(String path, VmdkBitmap dst)
+        throws IOException
+    {
+        DataInputStream in = new DataInputStream
+            (new BufferedInputStream(new FileInputStream(path)));
+        try {
+            int blockSize = readHeader(in, path);
+            long size = in.readLong();
+            if (blockSize != dst.getBlockSize() || size != dst.size()) {
+                throw new IOException
+                    (String.format("bitmap differs: %d blocks of %d bytes: %s",
+                                   size, blockSize, path));
+            }
+            readChunks(in, dst.getLongBitmap(), path);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Read magic and version.
+     *
+     * @return Block size.
+     */
+    private static int readHeader(DataInputStream in, String path)
+        throws IOException
+    {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("bad magic: " + path);
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException
+                (String.format("unsupported version %d: %s",
+                               version, path));
+        }
+        return in.readInt();
+    }
+
+    /**
+     * Read chunks and set their bits to a bitmap.
+     * Bits already set are kept.
+     */
+    private static void readChunks(DataInputStream in, LongBitmap bs,
+                                   String path)
+        throws IOException
+    {
+        long size = bs.size();
+        int numNonEmpty = in.readInt();
+        if (numNonEmpty < 0) {
+            throw new IOException("bad header: " + path);
+        }
+        for (int n = 0; n < numNonEmpty; n ++) {
+            int c = in.readInt();
+            long bit0 = (long) c * CHUNK_BITS;
+            if (c < 0 || bit0 >= size) {
+                throw new IOException("bad chunk index: " + path);
+            }
+            byte type = in.readByte();
+            if (type == TYPE_RUNS) {
+                int numRuns = in.readInt();
+                for (int i = 0; i < numRuns; i ++) {
+                    long b = bit0 + in.readChar();
+                    long e = b + in.readChar() + 1;
+                    if (e > size) {
+                        throw new IOException("bad run: " + path);
+                    }
+                    bs.setRange(b, e, true);
+                }
+            } else if (type == TYPE_WORDS) {
+                int w0 = c * CHUNK_WORDS;
+                for (int i = 0; i < CHUNK_WORDS; i ++) {
+                    long word = in.readLong();
+                    if (w0 + i < bs.getNumWords()) {
+                        bs.setWord(w0 + i, bs.getWord(w0 + i) | word);
+                    }
+                }
+            } else {
+                throw new IOException("bad chunk type: " + path);
+            }
+        }
+    }
+
+    /**
+     * Make a legacy bitmap file for vmdkbkp from a file in this format.
+     *
+     * @param path File written by write().
+     * @param legacyPath File to write with VmdkBitmap.writeTo().
+     */
+    public static void expand(String path, String legacyPath)
+        throws Exception
+    {
+        read(path).writeTo(legacyPath);
+    }
+
+    private static boolean isEmptyChunk(LongBitmap bs, int c)
+    {
+        int w0 = c * CHUNK_WORDS;
+        int w1 = Math.min(w0 + CHUNK_WORDS, bs.getNumWords());
+        for (int i = w0; i < w1; i ++) {
+            if (bs.getWord(i) != 0L) { return false; }
+        }
+        return true;
+    }
+
+    /**
+     * Get runs of set bits in a chunk.
+     *
+     * @param runs (begin, length) pairs relative to the chunk are stored.
+     * @return Number of runs, or -1 if more than MAX_RUNS.
+     */
+    private static int getRuns(LongBitmap bs, int c, int[] runs)
+    {
+        long bit0 = (long) c * CHUNK_BITS;
+        long end = Math.min(bit0 + CHUNK_BITS, bs.size());
+        int n = 0;
+        long b = bs.nextSetBit(bit0);
+        while (b >= 0 && b < end) {
+            if (n == MAX_RUNS) { return -1; }
+            long e = Math.min(bs.nextClearBit(b), end);
+            runs[2 * n] = (int) (b - bit0);
+            runs[2 * n + 1] = (int) (e - b);
+            n ++;
+            b = bs.nextSetBit(e);
+        }
+        return n;
+    }
+}
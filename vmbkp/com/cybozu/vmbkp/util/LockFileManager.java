@@ -26,13 +26,24 @@ package com.cybozu.vmbkp.util;
 public interface LockFileManager
 {
     /**
-     * Lock the resource.
+     * Lock the resource exclusively.
      *
      * @param timeoutSec Lock timeout.
      */
     public void lock(int timeoutSec)
         throws LockTimeoutException, Exception;
 
+    /**
+     * Lock the resource.
+     * Shared locks can be held by multiple readers at once,
+     * while an exclusive lock excludes all other locks.
+     *
+     * @param timeoutSec Lock timeout.
+     * @param isShared True for a shared lock, false for an exclusive one.
+     */
+    public void lock(int timeoutSec, boolean isShared)
+        throws LockTimeoutException, Exception;
+
     /**
      * Unlock the resource.
      */
@@ -29,6 +29,18 @@ public class LockFileManagerM
         lockPath_ = lockPath;
     }
 
+    /**
+     * Lock.
+     * Shared locks are not supported and taken as exclusive ones.
+     *
+     * @param timeoutSec Lock timeout.
+     */
+    public void lock(int timeoutSec, boolean isShared)
+        throws LockTimeoutException, Exception
+    {
+        lock(timeoutSec);
+    }
+
     /**
      * Lock.
      *
@@ -8,21 +8,35 @@
  */
 package com.cybozu.vmbkp.util;
 
-import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
 import java.io.IOException;
 import java.io.File;
 import java.nio.channels.FileLock;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileLockInterruptionException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.Timer;
+import java.util.TimerTask;
 
 /**
  * @brief Manage file locking using java.nio.FileLock.
+ *
+ * Waiters block in FileChannel.lock() and are interrupted
+ * at the timeout instead of polling with tryLock().
+ * Locks are held by the process, so threads of a process
+ * must not lock the same file with different managers at once.
  */
 public class LockFileManagerN
     implements LockFileManager
 {
+    /**
+     * Timer to interrupt waiters at the timeout.
+     */
+    private static final Timer timer_ = new Timer("LockFileManagerN", true);
+
     String lockPath_;
     FileLock lock_;
-    FileOutputStream lockOut_;
+    RandomAccessFile lockFile_;
 
     /**
      * Constructor.
@@ -34,11 +48,11 @@ public class LockFileManagerN
         assert lockPath != null;
         lockPath_ = lockPath;
         lock_ = null;
-        lockOut_ = null;
+        lockFile_ = null;
     }
 
     /**
-     * Lock the resource.
+     * Lock the resource exclusively.
      *
      * @param timeoutSec Lock timeout.
      *        If timeoutSec == 0, no wait.
@@ -46,42 +60,105 @@ public class LockFileManagerN
      */
     public void lock(int timeoutSec)
         throws LockTimeoutException, Exception
+    {
+        lock(timeoutSec, false);
+    }
+
+    /**
+     * Lock the resource.
+     *
+     * @param timeoutSec Lock timeout.
+     *        If timeoutSec == 0, no wait.
+     *        If timeoutSec <  0, block.
+     * @param isShared True for a shared lock, false for an exclusive one.
+     */
+    public void lock(int timeoutSec, boolean isShared)
+        throws LockTimeoutException, Exception
     {
         if (lock_ != null || lockPath_ == null) {
             throw new Exception("lock failed.");
         }
-        assert lockOut_ == null;
+        assert lockFile_ == null;
         
-        File lockFile = new File(lockPath_);
+        /* The channel must be readable for shared locks
+           and writable for exclusive ones. */
+        lockFile_ = new RandomAccessFile(new File(lockPath_), "rw");
 
-        lockOut_ = new FileOutputStream(lockFile);
-
-        FileChannel ch = lockOut_.getChannel();
+        FileChannel ch = lockFile_.getChannel();
         assert lock_ == null;
 
-        if (timeoutSec == 0) {
-            lock_ = ch.tryLock(); /* no wait */
+        try {
+            if (timeoutSec == 0) {
+                lock_ = ch.tryLock(0L, Long.MAX_VALUE, isShared); /* no wait */
 
-        } else if (timeoutSec < 0) {
-            lock_ = ch.lock(); /* wait */
+            } else if (timeoutSec < 0) {
+                lock_ = ch.lock(0L, Long.MAX_VALUE, isShared); /* wait */
             
-        } else {
-            final int sleepMs = 100;
-            int elapsedMs = 0;
-            while (elapsedMs < timeoutSec * 1000) {
-                if ((lock_ = ch.tryLock()) != null) { break; }
-                Thread.sleep(sleepMs);
-                elapsedMs += sleepMs;
+            } else {
+                lock_ = lockWithTimeout(ch, timeoutSec, isShared);
+            }
+        } finally {
+            if (lock_ == null) {
+                try {
+                    lockFile_.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                lockFile_ = null;
             }
         }
 
         if (lock_ == null) {
-            lockOut_.close();
-            lockOut_ = null;
             throw new LockTimeoutException();
         }
     }
 
+    /**
+     * Wait for the lock until the timeout.
+     *
+     * @return The lock, or null at the timeout.
+     */
+    private static FileLock lockWithTimeout
+        (FileChannel ch, int timeoutSec, boolean isShared)
+        throws IOException
+    {
+        final Thread waiter = Thread.currentThread();
+        final boolean[] isWaiting = {true};
+        TimerTask task = new TimerTask() {
+                public void run() {
+                    synchronized (isWaiting) {
+                        if (isWaiting[0]) { waiter.interrupt(); }
+                    }
+                }
+            };
+        timer_.schedule(task, timeoutSec * 1000L);
+
+        FileLock lock = null;
+        try {
+            lock = ch.lock(0L, Long.MAX_VALUE, isShared);
+        } catch (FileLockInterruptionException e) {
+            /* timeout. */
+        } catch (ClosedByInterruptException e) {
+            /* timeout just after the lock is acquired. */
+        } finally {
+            task.cancel();
+            synchronized (isWaiting) {
+                isWaiting[0] = false;
+                /* Clear the interrupt by the timer. */
+                Thread.interrupted();
+            }
+        }
+        return lock;
+    }
+
+    /**
+     * Check the lock is shared.
+     */
+    public boolean isShared()
+    {
+        return lock_ != null && lock_.isShared();
+    }
+
     /**
      * Unlock threads/processes to access the config file.
      */
@@ -90,7 +167,7 @@ public class LockFileManagerN
         if (lock_ == null || lockPath_ == null) {
             return;
         }
-        assert lockOut_ != null;
+        assert lockFile_ != null;
         
         try {
             lock_.release();
@@ -100,12 +177,12 @@ public class LockFileManagerN
             
         } finally {
             try {
-                lockOut_.close();
+                lockFile_.close();
             } catch (Exception e) {
                 e.printStackTrace();
             }
             lock_ = null;
-            lockOut_ = null;
+            lockFile_ = null;
         }
     }
 }
@@ -0,0 +1,364 @@
+/**
+ * @file
+ * @brief LockFileManagerT
+ *
+ * Copyright (C) 2009,2010 Cybozu Inc., all rights reserved.
+ *
+ * @author Takashi HOSHINO <hoshino@labs.cybozu.co.jp>
+ */
+package com.cybozu.vmbkp.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileLock;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * @brief Fair file locking with FIFO tickets in a lock directory.
+ *
+ * Each locker creates a ticket file named by a sequence number
+ * from the counter file of the directory.
+ * An exclusive ticket is granted when it is the oldest one,
+ * and a shared ticket when all older ones are shared.
+ * Waiters sleep on change notification of the directory
+ * until an older ticket is removed or the timeout.
+ *
+ * A ticket contains "pid@host" of the owner and its mtime is
+ * renewed while the owner lives. A ticket is stale and removed
+ * by waiters if the owner process on the same host does not exist,
+ * or if it is not renewed for the lease time.
+ */
+public class LockFileManagerT
+    implements LockFileManager
+{
+    /**
+     * Logger.
+     */
+    private static final Logger logger_ =
+        Logger.getLogger(LockFileManagerT.class.getName());
+
+    public static final int DEFAULT_LEASE_SEC = 60;
+
+    /**
+     * Counter file name in the lock directory.
+     */
+    private static final String SEQ_FILE = "seq";
+
+    /**
+     * Timer to renew tickets.
+     */
+    private static final Timer timer_ = new Timer("LockFileManagerT", true);
+
+    /**
+     * "pid@host" of this process.
+     */
+    private static final String owner_ =
+        ManagementFactory.getRuntimeMXBean().getName();
+
+    private final String lockPath_;
+    private final String name_;
+    private final long leaseMs_;
+
+    /**
+     * Ticket of the held lock, or null.
+     */
+    private File ticket_;
+    private TimerTask renewTask_;
+    private long acquiredNs_;
+
+    /**
+     * Constructor.
+     *
+     * @param lockPath Lock directory path.
+     */
+    public LockFileManagerT(String lockPath)
+    {
+        this(lockPath, DEFAULT_LEASE_SEC);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param lockPath Lock directory path.
+     * @param leaseSec Tickets not renewed for this are stale.
+     */
+    public LockFileManagerT(String lockPath, int leaseSec)
+    {
+        assert lockPath != null;
+        assert leaseSec > 0;
+        lockPath_ = lockPath;
+        name_ = (new File(lockPath)).getName();
+        leaseMs_ = leaseSec * 1000L;
+        ticket_ = null;
+        renewTask_ = null;
+    }
+
+    /**
+     * Lock the resource exclusively.
+     *
+     * @param timeoutSec Lock timeout.
+     *        If timeoutSec == 0, no wait.
+     *        If timeoutSec <  0, block.
+     */
+    public void lock(int timeoutSec)
+        throws LockTimeoutException, Exception
+    {
+        lock(timeoutSec, false);
+    }
+
+    /**
+     * Lock the resource.
+     *
+     * @param timeoutSec Lock timeout.
+     *        If timeoutSec == 0, no wait.
+     *        If timeoutSec <  0, block.
+     * @param isShared True for a shared lock, false for an exclusive one.
+     */
+    public void lock(int timeoutSec, boolean isShared)
+        throws LockTimeoutException, Exception
+    {
+        if (ticket_ != null) {
+            throw new Exception("lock failed.");
+        }
+        File dir = new File(lockPath_);
+        if (dir.mkdirs() == false && dir.isDirectory() == false) {
+            throw new IOException("mkdir failed: " + lockPath_);
+        }
+
+        long beginNs = System.nanoTime();
+        File ticket = takeTicket(dir, isShared);
+        TimerTask renewTask = renew(ticket);
+        boolean isGranted = false;
+        try {
+            isGranted = waitForTurn(dir, ticket, isShared,
+                                    timeoutSec, beginNs);
+        } finally {
+            long waitMs = (System.nanoTime() - beginNs) / 1000000L;
+            LockMetrics.recordWait(name_, waitMs, isGranted);
+            if (isGranted) {
+                if (waitMs >= 1000L) {
+                    logger_.info(String.format
+                                 ("waited %d ms for %s.", waitMs, lockPath_));
+                }
+            } else {
+                renewTask.cancel();
+                ticket.delete();
+            }
+        }
+        if (isGranted == false) {
+            throw new LockTimeoutException();
+        }
+        ticket_ = ticket;
+        renewTask_ = renewTask;
+        acquiredNs_ = System.nanoTime();
+    }
+
+    /**
+     * Unlock.
+     */
+    public void unlock()
+    {
+        if (ticket_ == null) { return; }
+
+        renewTask_.cancel();
+        if (ticket_.delete() == false) {
+            logger_.warning("delete ticket failed: " + ticket_.getPath());
+        }
+        LockMetrics.recordHold
+            (name_, (System.nanoTime() - acquiredNs_) / 1000000L);
+        ticket_ = null;
+        renewTask_ = null;
+    }
+
+    /**
+     * Create a ticket file with the next sequence number.
+     * The counter is incremented under a file lock,
+     * so that an older ticket always exists before a newer one.
+     */
+    private static File takeTicket(File dir, boolean isShared)
+        throws IOException
+    {
+        /* FileLock is held by the process so threads are serialized. */
+        synchronized (LockFileManagerT.class) {
+            RandomAccessFile f =
+                new RandomAccessFile(new File(dir, SEQ_FILE), "rw");
+            try {
+                FileLock lock = f.getChannel().lock();
+                try {
+                    long seq = (f.length() >= 8 ? f.readLong() : 0L);
+                    f.seek(0);
+                    f.writeLong(seq + 1);
+
+                    File ticket = new File
+                        (dir, String.format("%019d.%s", seq,
+                                            (isShared ? "S" : "X")));
+                    FileOutputStream out = new FileOutputStream(ticket);
+                    try {
+                        out.write(owner_.getBytes("UTF-8"));
+                    } finally {
+                        out.close();
+                    }
+                    return ticket;
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                f.close();
+            }
+        }
+    }
+
+    /**
+     * Renew mtime of the ticket periodically.
+     */
+    private TimerTask renew(final File ticket)
+    {
+        TimerTask task = new TimerTask() {
+                public void run() {
+                    ticket.setLastModified(System.currentTimeMillis());
+                }
+            };
+        timer_.schedule(task, leaseMs_ / 3, leaseMs_ / 3);
+        return task;
+    }
+
+    /**
+     * Wait until the ticket is granted.
+     *
+     * @return False at the timeout.
+     */
+    private boolean waitForTurn(File dir, File ticket, boolean isShared,
+                                int timeoutSec, long beginNs)
+        throws Exception
+    {
+        long deadlineNs = beginNs + timeoutSec * 1000000000L;
+        WatchService ws = null;
+        try {
+            while (true) {
+                if (isTurn(dir, ticket, isShared)) { return true; }
+                if (timeoutSec == 0) { return false; }
+
+                /* Wake up before the lease expires to find stale ones. */
+                long waitMs = leaseMs_ / 3;
+                if (timeoutSec > 0) {
+                    long restMs = (deadlineNs - System.nanoTime()) / 1000000L;
+                    if (restMs <= 0) { return false; }
+                    waitMs = Math.min(waitMs, restMs);
+                }
+                if (ws == null) {
+                    /* Check again after the registration
+                       not to miss removal of tickets. */
+                    ws = FileSystems.getDefault().newWatchService();
+                    dir.toPath().register
+                        (ws, StandardWatchEventKinds.ENTRY_DELETE);
+                    continue;
+                }
+                WatchKey key = ws.poll(waitMs, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    key.pollEvents();
+                    key.reset();
+                }
+            }
+        } finally {
+            if (ws != null) { ws.close(); }
+        }
+    }
+
+    /**
+     * Check the ticket is granted, removing stale older tickets.
+     */
+    private boolean isTurn(File dir, File ticket, boolean isShared)
+        throws IOException
+    {
+        if (ticket.exists() == false) {
+            throw new IOException("ticket removed: " + ticket.getPath());
+        }
+        String[] names = dir.list();
+        if (names == null) {
+            throw new IOException("list failed: " + dir.getPath());
+        }
+        Arrays.sort(names);
+        String myName = ticket.getName();
+        for (String name : names) {
+            if (name.compareTo(myName) >= 0) { break; }
+            if (name.matches("[0-9]{19}\\.[SX]") == false) { continue; }
+
+            File older = new File(dir, name);
+            if (isStale(older, leaseMs_)) {
+                if (older.delete()) {
+                    logger_.warning("removed stale ticket: " +
+                                    older.getPath());
+                    LockMetrics.recordStale(name_);
+                }
+                continue;
+            }
+            if (isShared == false || name.endsWith(".X")) { return false; }
+        }
+        return true;
+    }
+
+    /**
+     * Check the owner of a ticket is dead.
+     *
+     * @param leaseMs Tickets not renewed for this are stale.
+     */
+    static boolean isStale(File ticket, long leaseMs)
+    {
+        long mtime = ticket.lastModified();
+        if (mtime == 0L) { return false; } /* already removed. */
+        if (System.currentTimeMillis() - mtime > leaseMs) { return true; }
+
+        String owner = readOwner(ticket);
+        int at = (owner == null ? -1 : owner.indexOf('@'));
+        if (at < 0 || owner.equals(owner_)) { return false; }
+        String host = owner.substring(at + 1);
+        if (host.equals(owner_.substring(owner_.indexOf('@') + 1)) == false) {
+            return false; /* only the lease is used for other hosts. */
+        }
+        File proc = new File("/proc");
+        if (proc.isDirectory() == false) { return false; }
+        return (new File(proc, owner.substring(0, at))).exists() == false;
+    }
+
+    /**
+     * "pid@host" of this process written in tickets.
+     */
+    static String getOwner()
+    {
+        return owner_;
+    }
+
+    /**
+     * Read "pid@host" in a ticket.
+     *
+     * @return null if it can not be read.
+     */
+    private static String readOwner(File ticket)
+    {
+        try {
+            FileInputStream in = new FileInputStream(ticket);
+            try {
+                byte[] buf = new byte[256];
+                int len = in.read(buf);
+                if (len <= 0) { return null; }
+                return new String(buf, 0, len, "UTF-8");
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * @file
+ * @brief LockMetrics
+ *
+ * Copyright (C) 2009,2010 Cybozu Inc., all rights reserved.
+ *
+ * @author Takashi HOSHINO <hoshino@labs.cybozu.co.jp>
+ */
+package com.cybozu.vmbkp.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * @brief Wait and hold time statistics of file locks
+ *        per lock name in the process.
+ */
+public class LockMetrics
+{
+    /**
+     * Statistics of a lock.
+     */
+    private static class Stat
+    {
+        long numAcquired_;
+        long numTimeouts_;
+        long numStale_;
+        long waitTotalMs_;
+        long waitMaxMs_;
+        long holdTotalMs_;
+        long holdMaxMs_;
+    }
+
+    /**
+     * Lock name -> statistics.
+     */
+    private static final Map<String, Stat> statMap_ =
+        new TreeMap<String, Stat>();
+
+    private static Stat getStat(String name)
+    {
+        Stat stat = statMap_.get(name);
+        if (stat == null) {
+            stat = new Stat();
+            statMap_.put(name, stat);
+        }
+        return stat;
+    }
+
+    /**
+     * Record a wait for a lock.
+     *
+     * @param isAcquired False if the wait timed out.
+     */
+    public static synchronized void recordWait(String name, long ms,
+                                               boolean isAcquired)
+    {
+        Stat stat = getStat(name);
+        if (isAcquired) {
+            stat.numAcquired_ ++;
+        } else {
+            stat.numTimeouts_ ++;
+        }
+        stat.waitTotalMs_ += ms;
+        if (ms > stat.waitMaxMs_) { stat.waitMaxMs_ = ms; }
+    }
+
+    /**
+     * Record a hold of a lock from acquisition to release.
+     */
+    public static synchronized void recordHold(String name, long ms)
+    {
+        Stat stat = getStat(name);
+        stat.holdTotalMs_ += ms;
+        if (ms > stat.holdMaxMs_) { stat.holdMaxMs_ = ms; }
+    }
+
+    /**
+     * Record a stale lock of a dead holder removed by a waiter.
+     */
+    public static synchronized void recordStale(String name)
+    {
+        getStat(name).numStale_ ++;
+    }
+
+    /**
+     * Total number of acquired locks.
+     */
+    public static synchronized long getNumAcquired()
+    {
+        long ret = 0;
+        for (Stat stat : statMap_.values()) { ret += stat.numAcquired_; }
+        return ret;
+    }
+
+    public static synchronized void reset()
+    {
+        statMap_.clear();
+    }
+
+    /**
+     * Summary of all locks, one line for each.
+     */
+    public static synchronized String summary()
+    {
+        StringBuffer sb = new StringBuffer();
+        sb.append(String.format("%-32s %7s %8s %5s %9s %8s %9s %8s\n",
+                                "lock", "locks", "timeouts", "stale",
+                                "wait_ms", "wait_max", "hold_ms",
+                                "hold_max"));
+        for (Map.Entry<String, Stat> ent : statMap_.entrySet()) {
+            Stat stat = ent.getValue();
+            sb.append(String.format("%-32s %7d %8d %5d %9d %8d %9d %8d\n",
+                                    ent.getKey(), stat.numAcquired_,
+                                    stat.numTimeouts_, stat.numStale_,
+                                    stat.waitTotalMs_, stat.waitMaxMs_,
+                                    stat.holdTotalMs_, stat.holdMaxMs_));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,387 @@
+/**
+ * @file
+ * @brief LongBitmap
+ *
+ * Copyright (C) 2009,2010 Cybozu Inc., all rights reserved.
+ *
+ * @author Takashi HOSHINO <hoshino@labs.cybozu.co.jp>
+ */
+package com.cybozu.vmbkp.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.io.IOException;
+
+/**
+ * @brief Fixed-size bitmap with long indices in a LongBuffer.
+ *
+ * The buffer is a direct buffer or a mapped region of a file,
+ * so that bitmaps of large disks do not live in the java heap.
+ *
+ * Bit i is stored in word i / 64 from the highest bit,
+ * which is the same order as the byte string of vmdkbkp
+ * when the words are stored in big endian.
+ * Bits after the size in the last word are ignored.
+ */
+public class LongBitmap
+{
+    /**
+     * Max number of bits.
+     */
+    public static final long MAX_SIZE = (long) Integer.MAX_VALUE * 64L;
+
+    /**
+     * Words of the bitmap.
+     */
+    private LongBuffer words_;
+
+    /**
+     * Number of bits.
+     */
+    private long size_;
+
+    /**
+     * Number of words.
+     */
+    private int numWords_;
+
+    /**
+     * Mapped buffer, or null if the words are not mapped.
+     */
+    private MappedByteBuffer mapped_;
+
+    private LongBitmap(LongBuffer words, long size, MappedByteBuffer mapped)
+    {
+        words_ = words;
+        size_ = size;
+        numWords_ = getNumWords(size);
+        mapped_ = mapped;
+    }
+
+    /**
+     * Number of words to store bits.
+     */
+    public static int getNumWords(long size)
+    {
+        if (size < 0 || size > MAX_SIZE) {
+            throw new IllegalArgumentException("bad bitmap size: " + size);
+        }
+        return (int) ((size + 63) / 64);
+    }
+
+    /**
+     * Allocate a bitmap with all bits zero in a direct buffer.
+     *
+     * @param size Number of bits.
+     */
+    public static LongBitmap allocate(long size)
+    {
+        int numWords = getNumWords(size);
+        if (numWords > Integer.MAX_VALUE / 8) {
+            throw new IllegalArgumentException
+                ("too large bitmap to allocate: " + size);
+        }
+        ByteBuffer buf = ByteBuffer.allocateDirect(numWords * 8);
+        buf.order(ByteOrder.nativeOrder());
+        return new LongBitmap(buf.asLongBuffer(), size, null);
+    }
+
+    /**
+     * Map a region of a file as a bitmap.
+     * The region is the words in big endian starting at the position,
+     * so it is the byte string of vmdkbkp padded to a multiple of 8 bytes.
+     * A file opened for write is extended if it is shorter than the region.
+     *
+     * @param ch File channel.
+     * @param position Offset of the first word in the file.
+     * @param size Number of bits.
+     * @param mode READ_ONLY or READ_WRITE.
+     */
+    public static LongBitmap map(FileChannel ch, long position, long size,
+                                 FileChannel.MapMode mode)
+        throws IOException
+    {
+        int numWords = getNumWords(size);
+        MappedByteBuffer buf = ch.map(mode, position, (long) numWords * 8L);
+        buf.order(ByteOrder.BIG_ENDIAN);
+        return new LongBitmap(buf.asLongBuffer(), size, buf);
+    }
+
+    /**
+     * Number of bits.
+     */
+    public long size()
+    {
+        return size_;
+    }
+
+    public int getNumWords()
+    {
+        return numWords_;
+    }
+
+    /**
+     * Get a word. Bit i * 64 is the highest bit.
+     * Bits after the size are zero.
+     */
+    public long getWord(int i)
+    {
+        long w = words_.get(i);
+        return (i == numWords_ - 1) ? (w & lastWordMask()) : w;
+    }
+
+    /**
+     * Set a word. Bits after the size are cleared.
+     */
+    public void setWord(int i, long word)
+    {
+        if (i == numWords_ - 1) { word &= lastWordMask(); }
+        words_.put(i, word);
+    }
+
+    /**
+     * Copy words from the index to dst until dst is full
+     * or the last word is copied.
+     * The copy is done in bulk, converting byte order
+     * if dst has a different one.
+     *
+     * @return Number of copied words.
+     */
+    public int getWords(int index, LongBuffer dst)
+    {
+        int n = Math.min(dst.remaining(), numWords_ - index);
+        if (n <= 0) { return 0; }
+        LongBuffer src = words_.duplicate();
+        src.position(index);
+        src.limit(index + n);
+        dst.put(src);
+        if (index + n == numWords_) {
+            int pos = dst.position() - 1;
+            dst.put(pos, dst.get(pos) & lastWordMask());
+        }
+        return n;
+    }
+
+    /**
+     * Copy words from src to the index until src is empty
+     * or the last word is filled.
+     *
+     * @return Number of copied words.
+     */
+    public int putWords(int index, LongBuffer src)
+    {
+        int n = Math.min(src.remaining(), numWords_ - index);
+        if (n <= 0) { return 0; }
+        LongBuffer s = src.duplicate();
+        s.limit(s.position() + n);
+        LongBuffer dst = words_.duplicate();
+        dst.position(index);
+        dst.put(s);
+        src.position(src.position() + n);
+        if (index + n == numWords_) {
+            setWord(numWords_ - 1, words_.get(numWords_ - 1));
+        }
+        return n;
+    }
+
+    public boolean get(long idx)
+    {
+        if (idx < 0 || idx >= size_) { return false; }
+        return (words_.get((int) (idx >>> 6)) & (Long.MIN_VALUE >>> idx)) != 0;
+    }
+
+    public void set(long idx, boolean flag)
+    {
+        if (idx < 0 || idx >= size_) {
+            throw new IndexOutOfBoundsException("bit " + idx);
+        }
+        int i = (int) (idx >>> 6);
+        long mask = Long.MIN_VALUE >>> idx;
+        long w = words_.get(i);
+        words_.put(i, flag ? (w | mask) : (w & ~mask));
+    }
+
+    /**
+     * Set or clear bits [begin, end).
+     */
+    public void setRange(long begin, long end, boolean flag)
+    {
+        if (begin < 0 || end > size_ || begin > end) {
+            throw new IndexOutOfBoundsException
+                (String.format("range [%d, %d)", begin, end));
+        }
+        if (begin == end) { return; }
+        int i0 = (int) (begin >>> 6);
+        int i1 = (int) ((end - 1) >>> 6);
+        long mask0 = -1L >>> begin;
+        long mask1 = ~(-1L >>> end) | (end % 64 == 0 ? -1L : 0L);
+        if (i0 == i1) {
+            setMasked(i0, mask0 & mask1, flag);
+            return;
+        }
+        setMasked(i0, mask0, flag);
+        long fill = flag ? -1L : 0L;
+        for (int i = i0 + 1; i < i1; i ++) {
+            words_.put(i, fill);
+        }
+        setMasked(i1, mask1, flag);
+    }
+
+    private void setMasked(int i, long mask, boolean flag)
+    {
+        long w = words_.get(i);
+        words_.put(i, flag ? (w | mask) : (w & ~mask));
+    }
+
+    /**
+     * Clear all bits.
+     */
+    public void clear()
+    {
+        for (int i = 0; i < numWords_; i ++) {
+            words_.put(i, 0L);
+        }
+    }
+
+    /**
+     * Number of set bits.
+     */
+    public long cardinality()
+    {
+        long ret = 0;
+        for (int i = 0; i < numWords_; i ++) {
+            ret += Long.bitCount(getWord(i));
+        }
+        return ret;
+    }
+
+    public boolean isEmpty()
+    {
+        for (int i = 0; i < numWords_; i ++) {
+            if (getWord(i) != 0L) { return false; }
+        }
+        return true;
+    }
+
+    /**
+     * Index of the first set bit at or after idx.
+     *
+     * @return -1 if not found.
+     */
+    public long nextSetBit(long idx)
+    {
+        if (idx < 0) { idx = 0; }
+        if (idx >= size_) { return -1; }
+        int i = (int) (idx >>> 6);
+        long w = getWord(i) & (-1L >>> idx);
+        while (w == 0) {
+            if (++ i == numWords_) { return -1; }
+            w = getWord(i);
+        }
+        return ((long) i << 6) + Long.numberOfLeadingZeros(w);
+    }
+
+    /**
+     * Index of the first clear bit at or after idx.
+     *
+     * @return size() if not found.
+     */
+    public long nextClearBit(long idx)
+    {
+        if (idx < 0) { idx = 0; }
+        if (idx >= size_) { return size_; }
+        int i = (int) (idx >>> 6);
+        long w = ~words_.get(i) & (-1L >>> idx);
+        while (w == 0) {
+            if (++ i == numWords_) { return size_; }
+            w = ~words_.get(i);
+        }
+        return Math.min(((long) i << 6) + Long.numberOfLeadingZeros(w), size_);
+    }
+
+    /**
+     * Number of set bits in [begin, end).
+     */
+    public long cardinality(long begin, long end)
+    {
+        if (begin < 0 || end > size_ || begin > end) {
+            throw new IndexOutOfBoundsException
+                (String.format("range [%d, %d)", begin, end));
+        }
+        if (begin == end) { return 0; }
+        int i0 = (int) (begin >>> 6);
+        int i1 = (int) ((end - 1) >>> 6);
+        long mask0 = -1L >>> begin;
+        long mask1 = ~(-1L >>> end) | (end % 64 == 0 ? -1L : 0L);
+        if (i0 == i1) {
+            return Long.bitCount(words_.get(i0) & mask0 & mask1);
+        }
+        long ret = Long.bitCount(words_.get(i0) & mask0);
+        for (int i = i0 + 1; i < i1; i ++) {
+            ret += Long.bitCount(words_.get(i));
+        }
+        return ret + Long.bitCount(words_.get(i1) & mask1);
+    }
+
+    /**
+     * this |= rhs.
+     */
+    public void or(LongBitmap rhs)
+    {
+        checkSameSize(rhs);
+        for (int i = 0; i < numWords_; i ++) {
+            words_.put(i, words_.get(i) | rhs.getWord(i));
+        }
+    }
+
+    /**
+     * this &= rhs.
+     */
+    public void and(LongBitmap rhs)
+    {
+        checkSameSize(rhs);
+        for (int i = 0; i < numWords_; i ++) {
+            words_.put(i, words_.get(i) & rhs.getWord(i));
+        }
+    }
+
+    /**
+     * this &= ~rhs.
+     */
+    public void andNot(LongBitmap rhs)
+    {
+        checkSameSize(rhs);
+        for (int i = 0; i < numWords_; i ++) {
+            words_.put(i, words_.get(i) & ~rhs.getWord(i));
+        }
+    }
+
+    private void checkSameSize(LongBitmap rhs)
+    {
+        if (rhs.size_ != size_) {
+            throw new IllegalArgumentException
+                (String.format("bitmap size differs: %d and %d",
+                               size_, rhs.size_));
+        }
+    }
+
+    /**
+     * Mask of valid bits in the last word.
+     */
+    private long lastWordMask()
+    {
+        int r = (int) (size_ % 64);
+        return r == 0 ? -1L : ~(-1L >>> r);
+    }
+
+    /**
+     * Write changes of a mapped bitmap to the file.
+     */
+    public void force()
+    {
+        if (mapped_ != null) { mapped_.force(); }
+    }
+}
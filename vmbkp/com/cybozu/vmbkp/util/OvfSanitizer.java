@@ -0,0 +1,388 @@
+/**
+ * @file
+ * @brief OvfSanitizer
+ *
+ * Copyright (C) 2009,2010 Cybozu Inc., all rights reserved.
+ *
+ * @author Takashi HOSHINO <hoshino@labs.cybozu.co.jp>
+ */
+package com.cybozu.vmbkp.util;
+
+import java.util.List;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+import java.io.Reader;
+import java.io.OutputStream;
+
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * @brief Remove disk information from an exported ovf in one pass.
+ *
+ * This does the same as the following calls of VmbkpOvf
+ * and XmlIndent without building DOM trees.
+ *   deleteFilesInReferences(),
+ *   deleteDisksInDiskSection(),
+ *   deleteDiskDevicesInHardwareSection(),
+ *   deleteControllerDevicesWithoutChildInHardwareSection(),
+ *   deleteMountedCdromInfoInHardwareSection(),
+ *   and fixIndent().
+ *
+ * Events are written as they are read except the items
+ * of <VirtualHardwareSection>, which are kept until the end of the section
+ * to decide controllers without children.
+ * The original ovf can be written with indent at the same time.
+ */
+public class OvfSanitizer
+{
+    /**
+     * Logger.
+     */
+    private static final Logger logger_ =
+        Logger.getLogger(OvfSanitizer.class.getName());
+
+    /**
+     * @brief Write events with indent.
+     *
+     * Space-only text is dropped and new indent is inserted
+     * before each element. An element with text only is kept in a line.
+     */
+    private static class IndentWriter
+    {
+        private XMLEventWriter writer_;
+        private XMLEventFactory factory_;
+        private int indent_;
+
+        /**
+         * Whether each open element has a child element.
+         */
+        private LinkedList<Boolean> stack_;
+
+        IndentWriter(OutputStream out, int indent)
+            throws XMLStreamException
+        {
+            writer_ = XMLOutputFactory.newInstance()
+                .createXMLEventWriter(out, "UTF-8");
+            factory_ = XMLEventFactory.newInstance();
+            indent_ = indent;
+            stack_ = new LinkedList<Boolean>();
+        }
+
+        void add(XMLEvent ev)
+            throws XMLStreamException
+        {
+            switch (ev.getEventType()) {
+            case XMLEvent.START_DOCUMENT:
+                /* The output encoding is always UTF-8. */
+                writer_.add(factory_.createStartDocument("UTF-8", "1.0"));
+                break;
+            case XMLEvent.END_DOCUMENT:
+                writer_.add(factory_.createCharacters("\n"));
+                writer_.add(ev);
+                break;
+            case XMLEvent.START_ELEMENT:
+                newLine();
+                writer_.add(ev);
+                stack_.addLast(Boolean.FALSE);
+                break;
+            case XMLEvent.END_ELEMENT:
+                if (stack_.removeLast().booleanValue()) { newLine(); }
+                writer_.add(ev);
+                break;
+            case XMLEvent.COMMENT:
+                newLine();
+                writer_.add(ev);
+                break;
+            case XMLEvent.CHARACTERS:
+            case XMLEvent.CDATA:
+            case XMLEvent.SPACE:
+                if (ev.asCharacters().getData().trim().length() > 0) {
+                    writer_.add(ev);
+                }
+                break;
+            default:
+                writer_.add(ev);
+            }
+        }
+
+        /**
+         * Insert eol and indent of the current depth.
+         */
+        private void newLine()
+            throws XMLStreamException
+        {
+            if (! stack_.isEmpty()) { stack_.set(stack_.size() - 1, Boolean.TRUE); }
+            StringBuffer sb = new StringBuffer("\n");
+            for (int i = 0; i < stack_.size() * indent_; i ++) {
+                sb.append(' ');
+            }
+            writer_.add(factory_.createCharacters(sb.toString()));
+        }
+
+        void close()
+            throws XMLStreamException
+        {
+            writer_.flush();
+            writer_.close();
+        }
+    }
+
+    /**
+     * @brief An <Item> of <VirtualHardwareSection> with its events.
+     */
+    private static class Item
+    {
+        List<XMLEvent> eventList_ = new LinkedList<XMLEvent>();
+        String instanceId_;
+        String parentId_;
+        String resourceType_;
+
+        boolean isType(ResourceType type)
+        {
+            return type.getId().equals(resourceType_);
+        }
+    }
+
+    /**
+     * Indent size.
+     */
+    private int indent_;
+
+    /**
+     * Number of deleted disk items in the last call.
+     */
+    private int numDeletedDisks_;
+
+    /**
+     * Constructor.
+     */
+    public OvfSanitizer()
+    {
+        indent_ = 4;
+        numDeletedDisks_ = 0;
+    }
+
+    /**
+     * @param indent non-negative integer of indent.
+     */
+    public void setIndent(int indent)
+    {
+        if (indent >= 0) { indent_ = indent; }
+    }
+
+    /**
+     * Number of disk items deleted by the last sanitize().
+     */
+    public int getNumDeletedDisks()
+    {
+        return numDeletedDisks_;
+    }
+
+    /**
+     * Read an ovf and write the sanitized one.
+     * The streams are not closed.
+     *
+     * @param in Ovf to read.
+     * @param out Sanitized ovf is written.
+     * @param origOut The original ovf is written with indent.
+     *                This can be null.
+     */
+    public void sanitize(Reader in, OutputStream out, OutputStream origOut)
+        throws XMLStreamException
+    {
+        XMLInputFactory inf = XMLInputFactory.newInstance();
+        inf.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        inf.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        inf.setProperty
+            (XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        XMLEventReader reader = inf.createXMLEventReader(in);
+
+        IndentWriter writer = new IndentWriter(out, indent_);
+        IndentWriter origWriter =
+            (origOut == null ? null : new IndentWriter(origOut, indent_));
+        numDeletedDisks_ = 0;
+
+        /* Local names of open elements. */
+        LinkedList<String> path = new LinkedList<String>();
+
+        /* Depth of the subtree being skipped, or 0. */
+        int skipDepth = 0;
+
+        /* Children of <VirtualHardwareSection> being kept.
+           Each is an XMLEvent or an Item. */
+        List<Object> hwList = null;
+        int hwDepth = 0;
+        Item item = null;
+        StringBuffer text = null;
+
+        while (reader.hasNext()) {
+            XMLEvent ev = reader.nextEvent();
+            if (origWriter != null) { origWriter.add(ev); }
+
+            String name = null;
+            if (ev.isStartElement()) {
+                name = ev.asStartElement().getName().getLocalPart();
+                path.addLast(name);
+            }
+            int depth = path.size();
+
+            if (skipDepth > 0) {
+                /* inside a deleted subtree. */
+            } else if (item != null) {
+                item.eventList_.add(ev);
+                if (ev.isStartElement()) {
+                    text = (depth == hwDepth + 2 ? new StringBuffer() : null);
+                } else if (ev.isCharacters() && text != null) {
+                    text.append(ev.asCharacters().getData());
+                } else if (ev.isEndElement() && depth == hwDepth + 2 &&
+                           text != null) {
+                    setItemProperty(item, path.getLast(),
+                                    text.toString().trim());
+                    text = null;
+                } else if (ev.isEndElement() && depth == hwDepth + 1) {
+                    hwList.add(item);
+                    item = null;
+                }
+            } else if (hwList != null) {
+                if (ev.isStartElement() && depth == hwDepth + 1 &&
+                    name.equals("Item")) {
+                    item = new Item();
+                    item.eventList_.add(ev);
+                } else if (ev.isEndElement() && depth == hwDepth) {
+                    writeHardwareSection(writer, hwList);
+                    writer.add(ev);
+                    hwList = null;
+                } else {
+                    hwList.add(ev);
+                }
+            } else if (ev.isStartElement() && isDeleted(path)) {
+                skipDepth = depth;
+            } else {
+                writer.add(ev);
+                if (ev.isStartElement() &&
+                    name.equals("VirtualHardwareSection")) {
+                    hwList = new LinkedList<Object>();
+                    hwDepth = depth;
+                }
+            }
+
+            if (ev.isEndElement()) {
+                if (skipDepth == depth) { skipDepth = 0; }
+                path.removeLast();
+            }
+        }
+        reader.close();
+        writer.close();
+        if (origWriter != null) { origWriter.close(); }
+    }
+
+    /**
+     * <File> in <References> and <Disk> in <DiskSection> are deleted.
+     */
+    private static boolean isDeleted(LinkedList<String> path)
+    {
+        if (path.size() < 2) { return false; }
+        String name = path.getLast();
+        String parent = path.get(path.size() - 2);
+        return ((parent.equals("References") && name.equals("File")) ||
+                (parent.equals("DiskSection") && name.equals("Disk")));
+    }
+
+    private static void setItemProperty(Item item, String name, String value)
+    {
+        if (name.equals("InstanceID")) {
+            item.instanceId_ = value;
+        } else if (name.equals("Parent")) {
+            item.parentId_ = value;
+        } else if (name.equals("ResourceType")) {
+            item.resourceType_ = value;
+        }
+    }
+
+    /**
+     * Write children of <VirtualHardwareSection>
+     * without disk drives and controllers which had only disk drives.
+     * <HostResource> of CD-ROM drives is also deleted.
+     */
+    private void writeHardwareSection(IndentWriter writer, List<Object> hwList)
+        throws XMLStreamException
+    {
+        /* Controllers of deleted disks. */
+        Set<String> ctrlIdSet = new TreeSet<String>();
+        /* Parents of remaining items. */
+        Set<String> parentIdSet = new TreeSet<String>();
+        for (Object obj : hwList) {
+            if (obj instanceof Item == false) { continue; }
+            Item item = (Item) obj;
+            if (item.isType(ResourceType.DISK_DRIVE)) {
+                if (item.parentId_ != null) { ctrlIdSet.add(item.parentId_); }
+            } else if (item.parentId_ != null) {
+                parentIdSet.add(item.parentId_);
+            }
+        }
+        ctrlIdSet.removeAll(parentIdSet);
+
+        for (Object obj : hwList) {
+            if (obj instanceof Item == false) {
+                writer.add((XMLEvent) obj);
+                continue;
+            }
+            Item item = (Item) obj;
+            if (item.isType(ResourceType.DISK_DRIVE)) {
+                numDeletedDisks_ ++;
+                logger_.info("Deleted disk info from the ovf file.");
+                continue;
+            }
+            if (item.instanceId_ != null &&
+                ctrlIdSet.contains(item.instanceId_) &&
+                (item.isType(ResourceType.IDE_CONTROLLER) ||
+                 item.isType(ResourceType.SCSI_CONTROLLER))) {
+                logger_.fine("Deleted controller " + item.instanceId_ +
+                             " without child from the ovf file.");
+                continue;
+            }
+            if (item.isType(ResourceType.CDROM_DRIVE)) {
+                writeItemWithoutHostResource(writer, item);
+                logger_.info("Deleted mounted CD-ROM info from the ovf file.");
+                continue;
+            }
+            for (XMLEvent ev : item.eventList_) {
+                writer.add(ev);
+            }
+        }
+    }
+
+    /**
+     * Write an item except its <HostResource> children.
+     */
+    private static void writeItemWithoutHostResource
+        (IndentWriter writer, Item item)
+        throws XMLStreamException
+    {
+        int depth = 0;
+        int skipDepth = 0;
+        for (XMLEvent ev : item.eventList_) {
+            if (ev.isStartElement()) {
+                depth ++;
+                if (skipDepth == 0 && depth == 2 &&
+                    ev.asStartElement().getName().getLocalPart()
+                    .equals("HostResource")) {
+                    skipDepth = depth;
+                }
+            }
+            if (skipDepth == 0) { writer.add(ev); }
+            if (ev.isEndElement()) {
+                if (skipDepth == depth) { skipDepth = 0; }
+                depth --;
+            }
+        }
+    }
+}
@@ -8,7 +8,20 @@
  */
 package com.cybozu.vmbkp.util;
 
+import java.util.BitSet;
+import java.util.Random;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.nio.channels.FileChannel;
+
 import com.cybozu.vmbkp.util.VmdkBitmap;
+import com.cybozu.vmbkp.util.LongBitmap;
+import com.cybozu.vmbkp.util.CompressedBitmap;
 
 /**
  * @brief Test of VmdkBitmap class.
@@ -24,6 +37,7 @@ public class TestBitmap
     static final long TERA = 1024L * 1024L * 1024L * 1024L;
 
     public static void main(String[] args)
+        throws Exception
     {
         /* basic test */
         if (true) {
@@ -131,5 +145,255 @@ public class TestBitmap
             }
 
         }
+
+        /* block size test. */
+        if (true) {
+            assert VmdkBitmap.isValidBlockSize(64 * KILO);
+            assert VmdkBitmap.isValidBlockSize(4 * MEGA);
+            assert ! VmdkBitmap.isValidBlockSize(32 * KILO);
+            assert ! VmdkBitmap.isValidBlockSize(8 * MEGA);
+            assert ! VmdkBitmap.isValidBlockSize(96 * KILO);
+
+            assert VmdkBitmap.getBlockSizeOfDisk(GIGA, (int) MEGA) == MEGA;
+            assert VmdkBitmap.getBlockSizeOfDisk
+                (GIGA + 256 * KILO, (int) MEGA) == 256 * KILO;
+            assert VmdkBitmap.getBlockSizeOfDisk(GIGA + 100, (int) MEGA) == -1;
+
+            VmdkBitmap bmp = new VmdkBitmap(MEGA, 64 * 1024);
+            assert bmp.getBlockSize() == 64 * KILO;
+            bmp.setRangeInBytes(4096, 4096);
+            bmp.setRangeInBytes(MEGA - 1, 1);
+            assert bmp.toString().equals("1000000000000001");
+        }
+
+        /* range, cardinality and iteration compared with BitSet. */
+        if (true) {
+            Random rand = new Random(1);
+            int size = 1000;
+            LongBitmap lb = LongBitmap.allocate(size);
+            BitSet ref = new BitSet(size);
+            for (int n = 0; n < 2000; n ++) {
+                int b = rand.nextInt(size);
+                int e = b + rand.nextInt(Math.min(200, size - b) + 1);
+                boolean flag = rand.nextInt(3) != 0;
+                lb.setRange(b, e, flag);
+                ref.set(b, e, flag);
+            }
+            assert lb.cardinality() == ref.cardinality();
+            for (int i = 0; i <= size; i ++) {
+                assert lb.get(i) == ref.get(i);
+                int next = ref.nextSetBit(i);
+                assert lb.nextSetBit(i) == (next >= size ? -1 : next);
+                assert lb.nextClearBit(i) == Math.min(ref.nextClearBit(i), size);
+            }
+            lb.setRange(0, size, true);
+            assert lb.cardinality() == size;
+            assert lb.nextClearBit(0) == size;
+            lb.setRange(0, size, false);
+            assert lb.isEmpty();
+            assert lb.nextSetBit(0) == -1;
+        }
+
+        /* algebra compared with BitSet. */
+        if (true) {
+            Random rand = new Random(4);
+            int size = 1000;
+            LongBitmap a = LongBitmap.allocate(size);
+            LongBitmap b = LongBitmap.allocate(size);
+            BitSet ra = new BitSet(size);
+            BitSet rb = new BitSet(size);
+            for (int n = 0; n < 300; n ++) {
+                int i = rand.nextInt(size);
+                int j = rand.nextInt(size);
+                a.set(i, true); ra.set(i);
+                b.set(j, true); rb.set(j);
+            }
+            for (int n = 0; n < 100; n ++) {
+                int i = rand.nextInt(size);
+                int j = i + rand.nextInt(size - i + 1);
+                assert a.cardinality(i, j) == ra.get(i, j).cardinality();
+            }
+            LongBitmap c = LongBitmap.allocate(size);
+            BitSet rc = (BitSet) ra.clone();
+            c.or(a); c.or(b); rc.or(rb);
+            assert c.cardinality() == rc.cardinality();
+            c.and(b); rc.and(rb);
+            assert c.cardinality() == rc.cardinality();
+            c.or(a); rc.or(ra);
+            c.andNot(b); rc.andNot(rb);
+            assert c.cardinality() == rc.cardinality();
+            for (int i = 0; i < size; i ++) { assert c.get(i) == rc.get(i); }
+
+            VmdkBitmap x = new VmdkBitmap(10 * KILO, 1024);
+            VmdkBitmap y = new VmdkBitmap(10 * KILO, 1024);
+            x.setRangeInBytes(0, 4 * KILO);
+            y.setRangeInBytes(2 * KILO, 4 * KILO);
+            x.or(y);
+            assert x.toString().equals("1111110000");
+            assert x.cardinalityInBytes() == 6 * KILO;
+            assert x.cardinality(1, 3) == 2;
+            x.andNot(y);
+            assert x.toString().equals("1100000000");
+            x.set(3);
+            x.and(y);
+            assert x.toString().equals("0001000000");
+            boolean isThrown = false;
+            try {
+                x.or(new VmdkBitmap(10 * KILO, 2048));
+            } catch (IllegalArgumentException e) {
+                isThrown = true;
+            }
+            assert isThrown;
+        }
+
+        /* serialization, map and byte string. */
+        if (true) {
+            File file = File.createTempFile("testbitmap", ".bmp");
+            file.deleteOnExit();
+            VmdkBitmap bmp = new VmdkBitmap(100 * KILO, 1024);
+            bmp.setRangeInBytes(0, 1);
+            bmp.setRangeInBytes(9 * KILO, 3 * KILO);
+            bmp.setRangeInBytes(99 * KILO, 1);
+            byte[] a = bmp.getAsByteString();
+            assert a.length == 13;
+            assert a[0] == (byte) 0x80 && a[1] == (byte) 0x70 &&
+                a[12] == (byte) 0x10;
+
+            FilterOutputStream out = new FilterOutputStream
+                (new BufferedOutputStream(new FileOutputStream(file)));
+            bmp.writeTo(out);
+            out.close();
+            /* "100\0" and 13 bytes padded to 16 bytes. */
+            assert file.length() == 4 + 16;
+
+            VmdkBitmap bmp2 = new VmdkBitmap
+                (1024, new BufferedInputStream(new FileInputStream(file)));
+            assert bmp2.toString().equals(bmp.toString());
+
+            VmdkBitmap bmp3 = VmdkBitmap.map(file.getPath(), 1024, false);
+            assert bmp3.toString().equals(bmp.toString());
+            assert bmp3.cardinality() == 5;
+            assert bmp3.nextSetBit(1) == 9;
+
+            /* A file without padding is read instead of mapped. */
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(4 + 13);
+            raf.close();
+            VmdkBitmap bmp4 = VmdkBitmap.map(file.getPath(), 1024, false);
+            assert bmp4.toString().equals(bmp.toString());
+
+            VmdkBitmap bmp5 =
+                VmdkBitmap.createMapped(file.getPath(), 100 * KILO, 1024);
+            bmp5.setRangeInBytes(9 * KILO, 3 * KILO);
+            bmp5.force();
+            VmdkBitmap bmp6 = new VmdkBitmap
+                (1024, new BufferedInputStream(new FileInputStream(file)));
+            assert bmp6.cardinality() == 3 && bmp6.get(11) && !bmp6.get(12);
+        }
+
+        /* channel io larger than the io buffer with odd sizes. */
+        if (true) {
+            File file = File.createTempFile("testbitmap", ".bmp");
+            file.deleteOnExit();
+            Random rand = new Random(2);
+            long[] sizes = { 1, 63, 64, 65, 1000003, 1048576 };
+            for (long n : sizes) {
+                VmdkBitmap bmp = new VmdkBitmap(n * 1024, 1024);
+                for (int k = 0; k < 100; k ++) {
+                    long b = (long) rand.nextInt((int) n);
+                    bmp.setRangeInBytes(b * 1024, 1024 * rand.nextInt(300));
+                }
+                bmp.set(n - 1);
+                bmp.writeTo(file.getPath());
+                assert file.length() ==
+                    Long.toString(n).length() + 1 + (n + 63) / 64 * 8;
+
+                VmdkBitmap bmp2 = VmdkBitmap.map(file.getPath(), 1024, false);
+                assert java.util.Arrays.equals
+                    (bmp.getAsByteString(), bmp2.getAsByteString());
+
+                /* unpadded as written by older versions. */
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                raf.setLength(Long.toString(n).length() + 1 + (n + 7) / 8);
+                raf.close();
+                FileInputStream in = new FileInputStream(file);
+                VmdkBitmap bmp3 = new VmdkBitmap(1024, 1024);
+                assert bmp3.readFrom(in.getChannel());
+                in.close();
+                assert bmp3.size() == n;
+                assert bmp3.cardinality() == bmp.cardinality();
+                assert java.util.Arrays.equals
+                    (bmp.getAsByteString(), bmp3.getAsByteString());
+
+                /* too short. */
+                raf = new RandomAccessFile(file, "rw");
+                raf.setLength(raf.length() - 1);
+                raf.close();
+                in = new FileInputStream(file);
+                assert bmp3.readFrom(in.getChannel()) == false;
+                in.close();
+            }
+        }
+
+        /* compressed format. */
+        if (true) {
+            File file = File.createTempFile("testbitmap", ".bmpz");
+            File legacy = File.createTempFile("testbitmap", ".bmp");
+            File expanded = File.createTempFile("testbitmap", ".bmp");
+            file.deleteOnExit();
+            legacy.deleteOnExit();
+            expanded.deleteOnExit();
+            Random rand = new Random(3);
+            long n = 300000; /* 5 chunks, the last one is short. */
+            VmdkBitmap bmp = new VmdkBitmap(n * 65536, 65536);
+
+            /* empty */
+            CompressedBitmap.write(bmp, file.getPath());
+            assert CompressedBitmap.isCompressed(file.getPath());
+            assert CompressedBitmap.read(file.getPath()).isAllZero();
+            assert file.length() < 32;
+
+            /* runs in chunk 0, random bits in chunk 2, the last bit. */
+            bmp.setRangeInBytes(0, 65536 * 10);
+            bmp.setRangeInBytes(65536 * 65535L, 65536 * 2);
+            for (int k = 0; k < 20000; k ++) {
+                bmp.set(131072 + rand.nextInt(65536));
+            }
+            bmp.set(n - 1);
+            CompressedBitmap.write(bmp, file.getPath());
+            assert file.length() < (n + 7) / 8;
+            VmdkBitmap bmp2 = CompressedBitmap.read(file.getPath());
+            assert bmp2.size() == n && bmp2.getBlockSize() == 65536;
+            assert bmp2.cardinality() == bmp.cardinality();
+            assert java.util.Arrays.equals
+                (bmp.getAsByteString(), bmp2.getAsByteString());
+
+            /* expand to the legacy format. */
+            bmp.writeTo(legacy.getPath());
+            assert CompressedBitmap.isCompressed(legacy.getPath()) == false;
+            CompressedBitmap.expand(file.getPath(), expanded.getPath());
+            assert expanded.length() == legacy.length();
+            assert bmp.toString().equals
+                (VmdkBitmap.map(expanded.getPath(), 65536, false).toString());
+        }
+
+        /* more than 2^31 blocks in a sparse mapped file. */
+        if (true) {
+            File file = File.createTempFile("testbitmap", ".map");
+            file.deleteOnExit();
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            long size = 1L << 33;
+            LongBitmap lb = LongBitmap.map
+                (raf.getChannel(), 0, size, FileChannel.MapMode.READ_WRITE);
+            raf.close();
+            long idx = (1L << 32) + 7;
+            lb.setRange(idx, idx + 100, true);
+            lb.set(size - 1, true);
+            assert lb.get(idx) && lb.get(idx + 99) && !lb.get(idx + 100);
+            assert lb.nextSetBit(idx + 100) == size - 1;
+            lb.setRange(idx, idx + 100, false);
+            assert lb.nextSetBit(0) == size - 1;
+            file.delete();
+        }
     }
 }
@@ -0,0 +1,68 @@
+/**
+ * @file
+ * @brief TestChangedExtents
+ *
+ * Copyright (C) 2009,2010 Cybozu Inc., all rights reserved.
+ *
+ * @author Takashi HOSHINO <hoshino@labs.cybozu.co.jp>
+ */
+package com.cybozu.vmbkp.util;
+
+import java.io.File;
+
+import com.cybozu.vmbkp.util.ChangedExtents;
+
+/**
+ * @brief Test of ChangedExtents class.
+ *
+ * Don't forget execute java with -ea option
+ * to enable assertion check.
+ */
+public class TestChangedExtents
+{
+    public static void main(String[] args)
+        throws Exception
+    {
+        /* add and merge test */
+        if (true) {
+            ChangedExtents ext = new ChangedExtents();
+            assert ext.isEmpty();
+            assert ext.add(0, 4);
+            assert ext.add(4, 4); /* merged */
+            assert ext.add(16, 8);
+            assert ext.add(8, 1) == false; /* not sorted */
+            assert ext.add(32, 0) == false; /* empty */
+            assert ext.size() == 2;
+            assert ext.getOffset(1) == 16 && ext.getLength(1) == 8;
+            assert ext.getTotalLength() == 16;
+
+            ChangedExtents ext2 = new ChangedExtents();
+            for (int i = 0; i < 100; i ++) { ext2.add(32 + i * 2, 1); }
+            assert ext.addAll(ext2);
+            assert ext.size() == 102;
+            System.out.println(ext.toString());
+
+            /* blocks 0, 2, and 4 to 28 are changed. */
+            assert ext.toBitmap(256, 8).toString().equals
+                ("10101111" + "11111111" + "11111111" + "11111000");
+        }
+
+        /* file test */
+        if (true) {
+            ChangedExtents ext = new ChangedExtents();
+            ext.add(1024L * 1024L * 1024L * 1024L, 1024L);
+            ext.add(2048L * 1024L * 1024L * 1024L, 4096L);
+
+            File file = File.createTempFile("vmbkp_test", ".extents");
+            file.deleteOnExit();
+            ext.writeTo(file.getPath());
+            ChangedExtents ext2 = ChangedExtents.readFrom(file.getPath());
+            assert ext2.size() == 2;
+            assert ext2.getOffset(1) == 2048L * 1024L * 1024L * 1024L;
+            assert ext2.getLength(1) == 4096L;
+            file.delete();
+        }
+
+        System.out.println("TestChangedExtents passed.");
+    }
+}
@@ -9,6 +9,10 @@
 package com.cybozu.vmbkp.util;
 
 import java.util.Random;
+import java.util.List;
+import java.util.LinkedList;
+import java.io.File;
+import java.io.RandomAccessFile;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStreamReader;
@@ -18,6 +22,8 @@ import java.io.IOException;
 import com.cybozu.vmbkp.util.LockFileManager;
 import com.cybozu.vmbkp.util.LockFileManagerN;
 import com.cybozu.vmbkp.util.LockFileManagerM;
+import com.cybozu.vmbkp.util.LockFileManagerT;
+import com.cybozu.vmbkp.util.LockMetrics;
 
 /**
  * @brief Test of LockFileManager(s).
@@ -93,7 +99,255 @@ public class TestLockFileManager
         }
     }
     
+    /**
+     * Lock in a child process.
+     *
+     * @return True if the child got the lock.
+     */
+    public static boolean probe(String lockPath, int timeoutSec,
+                                boolean isShared)
+        throws Exception
+    {
+        String java = System.getProperty("java.home") + "/bin/java";
+        ProcessBuilder pb = new ProcessBuilder
+            (java, "-cp", System.getProperty("java.class.path"),
+             TestLockFileManager.class.getName(), "--probe", lockPath,
+             Integer.toString(timeoutSec), Boolean.toString(isShared));
+        pb.redirectErrorStream(true);
+        Process p = pb.start();
+        p.getInputStream().close();
+        return p.waitFor() == 0;
+    }
+
+    /**
+     * Shared locks exclude exclusive locks only.
+     */
+    public static void testShared(String lockPath)
+        throws Exception
+    {
+        LockFileManagerN lockM = new LockFileManagerN(lockPath);
+        lockM.lock(0, true);
+        try {
+            assert lockM.isShared();
+            assert probe(lockPath, 0, true);
+            assert probe(lockPath, 0, false) == false;
+
+            /* A waiter gives up at the timeout. */
+            long begin = System.currentTimeMillis();
+            assert probe(lockPath, 1, false) == false;
+            assert System.currentTimeMillis() - begin >= 1000;
+        } finally {
+            lockM.unlock();
+        }
+
+        lockM.lock(0);
+        try {
+            assert lockM.isShared() == false;
+            assert probe(lockPath, 0, true) == false;
+        } finally {
+            lockM.unlock();
+        }
+        assert probe(lockPath, 1, false);
+        System.out.println("testShared passed.");
+    }
+    
+    /**
+     * Number of tickets in a lock directory.
+     */
+    private static int numTickets(String lockPath)
+    {
+        return (new File(lockPath)).list().length - 1; /* except seq */
+    }
+
+    private static void waitTickets(String lockPath, int n)
+        throws Exception
+    {
+        while (numTickets(lockPath) < n) { Thread.sleep(10); }
+    }
+
+    /**
+     * Lock in a thread and record the order of acquisition.
+     */
+    private static Thread lockInThread
+        (final String lockPath, final String name, final boolean isShared,
+         final List<String> order)
+    {
+        Thread th = new Thread() {
+                public void run() {
+                    LockFileManager lockM = new LockFileManagerT(lockPath);
+                    try {
+                        lockM.lock(10, isShared);
+                        synchronized (order) { order.add(name); }
+                        Thread.sleep(50);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        lockM.unlock();
+                    }
+                }
+            };
+        th.start();
+        return th;
+    }
+
+    /**
+     * Tickets are granted in FIFO order and stale ones are removed.
+     */
+    public static void testTicket(String lockPath)
+        throws Exception
+    {
+        Utility.deleteDirectoryRecursive(new File(lockPath));
+        LockMetrics.reset();
+        LockFileManager lockA = new LockFileManagerT(lockPath);
+        LockFileManager lockB = new LockFileManagerT(lockPath);
+        List<String> order = new LinkedList<String>();
+
+        /* Exclusive waiters in arrival order. */
+        lockA.lock(0);
+        Thread th1 = lockInThread(lockPath, "1", false, order);
+        waitTickets(lockPath, 2);
+        Thread th2 = lockInThread(lockPath, "2", false, order);
+        waitTickets(lockPath, 3);
+        Thread th3 = lockInThread(lockPath, "3", true, order);
+        waitTickets(lockPath, 4);
+        lockA.unlock();
+        th1.join(); th2.join(); th3.join();
+        assert order.toString().equals("[1, 2, 3]");
+
+        /* Shared locks wait for an older exclusive waiter. */
+        lockA.lock(0, true);
+        lockB.lock(0, true);
+        lockB.unlock();
+        Thread th4 = lockInThread(lockPath, "4", false, order);
+        waitTickets(lockPath, 2);
+        try {
+            lockB.lock(0, true);
+            assert false;
+        } catch (LockTimeoutException e) {}
+        lockA.unlock();
+        th4.join();
+        assert numTickets(lockPath) == 0;
+
+        /* A ticket of a dead process and an expired ticket. */
+        RandomAccessFile seq =
+            new RandomAccessFile(new File(lockPath, "seq"), "rw");
+        long n = seq.readLong();
+        seq.close();
+        writeTicket(new File(lockPath, String.format("%019d.X", n - 2)),
+                    "999999999@" + java.net.InetAddress.getLocalHost()
+                    .getHostName(), System.currentTimeMillis());
+        writeTicket(new File(lockPath, String.format("%019d.S", n - 1)),
+                    "1@other-host", System.currentTimeMillis() - 3000L);
+        LockFileManager lockC = new LockFileManagerT(lockPath, 2);
+        lockC.lock(0);
+        lockC.unlock();
+        assert numTickets(lockPath) == 0;
+
+        String summary = LockMetrics.summary();
+        System.out.print(summary);
+        assert summary.contains(new File(lockPath).getName());
+        assert LockMetrics.getNumAcquired() == 8;
+        Utility.deleteDirectoryRecursive(new File(lockPath));
+        System.out.println("testTicket passed.");
+    }
+
+    /**
+     * Enter the queue in a thread and record the order of admission.
+     */
+    private static Thread enterInThread
+        (final AdmissionQueue q, final int priority,
+         final AdmissionQueue.Policy policy, final List<String> order)
+    {
+        Thread th = new Thread() {
+                public void run() {
+                    try {
+                        AdmissionQueue.Ticket t = q.enter(priority, policy);
+                        synchronized (order) {
+                            order.add(Integer.toString(priority));
+                        }
+                        q.leave(t);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+        th.start();
+        return th;
+    }
+
+    private static int numQueued(String queuePath)
+    {
+        String[] names = (new File(queuePath)).list();
+        int ret = 0;
+        for (String name : names) {
+            if (name.matches("[0-9]\\.[0-9]{19}\\.[WR]")) { ret ++; }
+        }
+        return ret;
+    }
+
+    /**
+     * Waiting jobs are admitted in order of priority
+     * and stale running ones are removed.
+     */
+    public static void testAdmission(String queuePath)
+        throws Exception
+    {
+        Utility.deleteDirectoryRecursive(new File(queuePath));
+        AdmissionQueue q = new AdmissionQueue(queuePath);
+        AdmissionQueue.Policy one = new AdmissionQueue.Policy() {
+                public boolean canAdmit(int priority, int numRunning) {
+                    return numRunning < 1;
+                }
+            };
+        List<String> order = new LinkedList<String>();
+
+        AdmissionQueue.Ticket t0 = q.enter(1, one);
+        assert t0.getNumRunning() == 1;
+        assert q.getNumRunning() == 1;
+        Thread th1 = enterInThread(q, 2, one, order);
+        while (numQueued(queuePath) < 2) { Thread.sleep(10); }
+        Thread th2 = enterInThread(q, 1, one, order);
+        while (numQueued(queuePath) < 3) { Thread.sleep(10); }
+        Thread th3 = enterInThread(q, 0, one, order);
+        while (numQueued(queuePath) < 4) { Thread.sleep(10); }
+        Thread.sleep(100);
+        assert order.isEmpty();
+        q.leave(t0);
+        th1.join(); th2.join(); th3.join();
+        assert order.toString().equals("[0, 1, 2]");
+        assert numQueued(queuePath) == 0;
+
+        /* A running ticket of a dead process. */
+        writeTicket(new File(queuePath, String.format("1.%019d.R", 0L)),
+                    "999999999@" + java.net.InetAddress.getLocalHost()
+                    .getHostName(), System.currentTimeMillis());
+        assert q.getNumRunning() == 1;
+        q.leave(q.enter(1, one));
+        assert numQueued(queuePath) == 0;
+
+        /* tryEnter() does not wait. */
+        AdmissionQueue.Ticket t1 = q.tryEnter(1, one);
+        assert t1 != null;
+        assert q.tryEnter(0, one) == null;
+        assert numQueued(queuePath) == 1;
+        q.leave(t1);
+        assert numQueued(queuePath) == 0;
+
+        Utility.deleteDirectoryRecursive(new File(queuePath));
+        System.out.println("testAdmission passed.");
+    }
+
+    private static void writeTicket(File file, String owner, long mtime)
+        throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(owner.getBytes("UTF-8"));
+        out.close();
+        file.setLastModified(mtime);
+    }
+
     public static void main(String[] args)
+        throws Exception
     {
         final String lockPath = "testlock.lock";
         final String testPath = "testlock";
@@ -107,6 +361,19 @@ public class TestLockFileManager
             try {
                 writeIntToFile(testPath, 0);
             } catch (Exception e) {}
+            testShared(lockPath);
+            testTicket(lockPath + ".d");
+            testAdmission(lockPath + ".q");
+
+        } else if (args[0].equals("--probe")) {
+            lockM = new LockFileManagerN(args[1]);
+            try {
+                lockM.lock(Integer.parseInt(args[2]),
+                           Boolean.parseBoolean(args[3]));
+            } catch (LockTimeoutException e) {
+                System.exit(1);
+            }
+            lockM.unlock();
 
         } else {
             runTest(args[0], testPath, lockM);
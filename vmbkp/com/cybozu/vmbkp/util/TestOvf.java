@@ -16,65 +16,159 @@ import com.cybozu.vmbkp.util.Utility;
 
 /**
  * @brief Test of ovf convert.
+ *
+ * Usage: TestOvf [inputFile outputFile]
+ *
+ * Without arguments, a sample ovf is converted
+ * by both VmbkpOvf and OvfSanitizer and the results are compared.
  */
 public class TestOvf
 {
+    private static final String SAMPLE =
+        "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+        "<Envelope vmw:buildId=\"build-1\"" +
+        " xmlns=\"http://schemas.dmtf.org/ovf/envelope/1\"" +
+        " xmlns:ovf=\"http://schemas.dmtf.org/ovf/envelope/1\"" +
+        " xmlns:rasd=\"http://schemas.dmtf.org/wbem/wscim/1/cim-schema/2/CIM_ResourceAllocationSettingData\"" +
+        " xmlns:vmw=\"http://www.vmware.com/schema/ovf\">" +
+        "<References><File ovf:href=\"disk-0.vmdk\" ovf:id=\"file1\"/>" +
+        "<File ovf:href=\"disk-1.vmdk\" ovf:id=\"file2\"/></References>" +
+        "<DiskSection><Info>Virtual disk information</Info>" +
+        "<Disk ovf:capacity=\"1\" ovf:diskId=\"vmdisk1\"/>" +
+        "<Disk ovf:capacity=\"1\" ovf:diskId=\"vmdisk2\"/></DiskSection>" +
+        "<VirtualSystem ovf:id=\"vm1\"><Info>A virtual machine</Info>" +
+        "<Name>vm1</Name>" +
+        "<VirtualHardwareSection><Info>Virtual hardware</Info>" +
+        "<System><vssd:VirtualSystemType xmlns:vssd=\"urn:vssd\">vmx-07" +
+        "</vssd:VirtualSystemType></System>" +
+        "<Item><rasd:Address>0</rasd:Address>" +
+        "<rasd:ElementName>SCSI controller 0</rasd:ElementName>" +
+        "<rasd:InstanceID>3</rasd:InstanceID>" +
+        "<rasd:ResourceSubType>lsilogic</rasd:ResourceSubType>" +
+        "<rasd:ResourceType>6</rasd:ResourceType></Item>" +
+        "<Item><rasd:Address>1</rasd:Address>" +
+        "<rasd:ElementName>IDE 1</rasd:ElementName>" +
+        "<rasd:InstanceID>4</rasd:InstanceID>" +
+        "<rasd:ResourceType>5</rasd:ResourceType></Item>" +
+        "<Item><rasd:Address>0</rasd:Address>" +
+        "<rasd:ElementName>IDE 0</rasd:ElementName>" +
+        "<rasd:InstanceID>5</rasd:InstanceID>" +
+        "<rasd:ResourceType>5</rasd:ResourceType></Item>" +
+        "<Item ovf:required=\"false\">" +
+        "<rasd:AddressOnParent>0</rasd:AddressOnParent>" +
+        "<rasd:AutomaticAllocation>false</rasd:AutomaticAllocation>" +
+        "<rasd:ElementName>CD/DVD Drive 1</rasd:ElementName>" +
+        "<rasd:HostResource>/dev/cdrom &amp; more</rasd:HostResource>" +
+        "<rasd:InstanceID>6</rasd:InstanceID>" +
+        "<rasd:Parent>4</rasd:Parent>" +
+        "<rasd:ResourceType>15</rasd:ResourceType></Item>" +
+        "<Item><rasd:AddressOnParent>0</rasd:AddressOnParent>" +
+        "<rasd:ElementName>Hard Disk 1</rasd:ElementName>" +
+        "<rasd:HostResource>ovf:/disk/vmdisk1</rasd:HostResource>" +
+        "<rasd:InstanceID>7</rasd:InstanceID>" +
+        "<rasd:Parent>3</rasd:Parent>" +
+        "<rasd:ResourceType>17</rasd:ResourceType></Item>" +
+        "<Item><rasd:AddressOnParent>1</rasd:AddressOnParent>" +
+        "<rasd:ElementName>Hard Disk 2</rasd:ElementName>" +
+        "<rasd:HostResource>ovf:/disk/vmdisk2</rasd:HostResource>" +
+        "<rasd:InstanceID>8</rasd:InstanceID>" +
+        "<rasd:Parent>5</rasd:Parent>" +
+        "<rasd:ResourceType>17</rasd:ResourceType></Item>" +
+        "<Item><rasd:AddressOnParent>1</rasd:AddressOnParent>" +
+        "<rasd:ElementName>CD/DVD Drive 2</rasd:ElementName>" +
+        "<rasd:InstanceID>9</rasd:InstanceID>" +
+        "<rasd:Parent>5</rasd:Parent>" +
+        "<rasd:ResourceType>15</rasd:ResourceType></Item>" +
+        "<Item><rasd:ElementName>Network adapter 1</rasd:ElementName>" +
+        "<rasd:InstanceID>10</rasd:InstanceID>" +
+        "<rasd:ResourceType>10</rasd:ResourceType></Item>" +
+        "<vmw:Config ovf:required=\"false\" vmw:key=\"cpuHotAddEnabled\"" +
+        " vmw:value=\"false\"/>" +
+        "</VirtualHardwareSection></VirtualSystem></Envelope>\n";
+
     /**
      * Just execute this.
      */
     public static void main(String[] args)
+        throws Exception
     {
         String className = "TestOvf";
-        
+
+        if (args.length == 0) {
+            testSample();
+            System.out.printf("%s passed.\n", className);
+            return;
+        }
         if (args.length != 2) {
-            System.out.printf("usage: java %s inputFile outputFile\n", className);
+            System.out.printf("usage: java %s [inputFile outputFile]\n", className);
+            return;
         }
         String inputFile = args[0];
         String outputFile = args[1];
-        
+
         try {
-            StringBuffer strBuf = new StringBuffer();
-            BufferedReader in =
-                new BufferedReader
-                (new InputStreamReader(new FileInputStream(inputFile)));
-            String line;
-            while ((line = in.readLine()) != null) { strBuf.append(line); }
+            Reader in = new BufferedReader
+                (new InputStreamReader(new FileInputStream(inputFile), "UTF-8"));
+            OutputStream out =
+                new BufferedOutputStream(new FileOutputStream(outputFile));
+            OutputStream origOut = new BufferedOutputStream
+                (new FileOutputStream(outputFile + ".orig"));
+            new OvfSanitizer().sanitize(in, out, origOut);
             in.close();
-            String ovfStr = strBuf.toString();
-        
-            VmbkpOvf ovf = new VmbkpOvf(ovfStr);
+            out.close();
+            origOut.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
 
-            /* delete disk information in ovf data */
-            ovf.deleteFilesInReferences();
-            ovf.deleteDisksInDiskSection();
+    /**
+     * Compare OvfSanitizer with the DOM version.
+     */
+    private static void testSample()
+        throws Exception
+    {
+        VmbkpOvf ovf = new VmbkpOvf(SAMPLE);
+        ovf.deleteFilesInReferences();
+        ovf.deleteDisksInDiskSection();
+        Set<String> ctrlIdSet = ovf.deleteDiskDevicesInHardwareSection();
+        ovf.deleteControllerDevicesWithoutChildInHardwareSection(ctrlIdSet);
+        ovf.deleteMountedCdromInfoInHardwareSection();
+        String expected = compact(ovf.toString());
 
-            /*
-            List<String> scsiIdList = ovf.deleteScsiControllerDevices();
-            for (String id: scsiIdList) {
-                System.out.printf("scsiID:%s\n", id); //debug
-            }
-            ovf.deleteDiskDevices(scsiIdList);
-            */
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream origOut = new ByteArrayOutputStream();
+        OvfSanitizer sanitizer = new OvfSanitizer();
+        sanitizer.sanitize(new StringReader(SAMPLE), out, origOut);
+        String sanitized = out.toString("UTF-8");
+        String orig = origOut.toString("UTF-8");
 
-            Set<String> ctrlIdSet
-                = ovf.deleteDiskDevicesInHardwareSection();
-            /* debug */
-            Utility.printList(ctrlIdSet, "ctrlIdSet begin\n", "ctrlIdSet end\n");
-            ovf.deleteControllerDevicesWithoutChildInHardwareSection(ctrlIdSet);
+        assert sanitizer.getNumDeletedDisks() == 2;
+        assert compact(sanitized).equals(expected);
+        assert compact(orig).equals(compact(SAMPLE));
 
-            /* Delete mounted cd-rom information. */
-            ovf.deleteMountedCdromInfoInHardwareSection();
-            
-            /* fix indent of xml data for human's easy read. */
-            XmlIndent xmli = new XmlIndent(ovf.toString());
-            xmli.fixIndent();
-            
-            FileWriter fw = new FileWriter(outputFile);
-            fw.write(xmli.toString());
-            fw.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        /* The scsi controller is deleted and ide controllers are kept. */
+        assert sanitized.indexOf("SCSI controller 0") < 0;
+        assert sanitized.indexOf("IDE 0") >= 0;
+        assert sanitized.indexOf("IDE 1") >= 0;
+        assert sanitized.indexOf("/dev/cdrom") < 0;
+        assert orig.indexOf("/dev/cdrom &amp; more") >= 0;
 
+        /* Indented with text-only elements in a line. */
+        assert sanitized.indexOf
+            ("\n                <rasd:InstanceID>10</rasd:InstanceID>\n") >= 0;
+        assert sanitized.indexOf("\n    <References/>") >= 0 ||
+            sanitized.indexOf("\n    <References></References>") >= 0;
+    }
+
+    /**
+     * Xml without indent to compare.
+     */
+    private static String compact(String xml)
+        throws Exception
+    {
+        XmlIndent xmli = new XmlIndent(xml);
+        xmli.deleteIndent();
+        return xmli.toString(false);
     }
 }
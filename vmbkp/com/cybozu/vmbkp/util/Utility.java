@@ -13,6 +13,7 @@ import java.util.logging.Logger;
 import java.util.List;
 import java.util.LinkedList;
 import java.util.TreeSet;
+import java.util.LinkedHashSet;
 import java.io.File;
 import java.io.StringWriter;
 import java.io.PrintWriter;
@@ -133,18 +134,17 @@ public class Utility
 
     /**
      * Deduplicate Iterable<String> keeping order.
+     * The first occurrence is kept. This runs in O(n).
      */
     public static List<String> dedupKeepingOrder(Iterable<String> list)
     {
-        LinkedList<String> ret = new LinkedList<String>();
-        
+        LinkedHashSet<String> set = new LinkedHashSet<String>();
+
         for (String str: list) {
-            if (ret.contains(str) == false) {
-                ret.add(str);
-            }
+            set.add(str);
         }
 
-        return ret;
+        return new LinkedList<String>(set);
     }
 
     /**
@@ -188,4 +188,25 @@ public class Utility
         return ret;
     }
     
+
+    /**
+     * Get total size of all files under the directory.
+     *
+     * @return Size in bytes. 0 if the directory does not exist.
+     */
+    public static long getDirectorySizeRecursive(File pathFile)
+    {
+        File[] files = pathFile.listFiles();
+        if (files == null) { return 0L; }
+
+        long ret = 0L;
+        for (int i = 0; i < files.length; i ++) {
+            if (files[i].isDirectory()) {
+                ret += getDirectorySizeRecursive(files[i]);
+            } else {
+                ret += files[i].length();
+            }
+        }
+        return ret;
+    }
 }
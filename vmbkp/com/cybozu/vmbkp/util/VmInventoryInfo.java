@@ -0,0 +1,32 @@
+/**
+ * @file
+ * @brief VmInventoryInfo
+ *
+ * Copyright (C) 2009,2010 Cybozu Inc., all rights reserved.
+ *
+ * @author Takashi HOSHINO <hoshino@labs.cybozu.co.jp>
+ */
+package com.cybozu.vmbkp.util;
+
+/**
+ * @brief Virtual machine information in the inventory.
+ */
+public class VmInventoryInfo
+    extends VmInfo
+{
+    private boolean isTemplate_;
+
+    /**
+     * Constructor.
+     */
+    public VmInventoryInfo(String name, String moref, boolean isTemplate)
+    {
+        super(name, moref);
+        isTemplate_ = isTemplate;
+    }
+
+    public boolean isTemplate()
+    {
+        return isTemplate_;
+    }
+}
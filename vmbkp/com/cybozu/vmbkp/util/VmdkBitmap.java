@@ -8,12 +8,23 @@
  */
 package com.cybozu.vmbkp.util;
 
-import java.util.BitSet;
 import java.util.logging.Logger;
 import java.io.Serializable;
+import java.io.FileInputStream;
+import java.io.RandomAccessFile;
 import java.io.FilterInputStream;
 import java.io.FilterOutputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * @brief Block bitmap for changed blocks management.
@@ -21,6 +32,9 @@ import java.io.IOException;
  * The main purpose of the class is to manage aligned block bitmap
  * with the interface that deals with more high-resolution unit.
  * (Ex. interface unit: 1 byte, bitmap unit: 1 mega bytes)
+ *
+ * Bits are stored in a LongBitmap out of the java heap
+ * and indexed by long, so a disk can have more than 2^31 blocks.
  */
 public class VmdkBitmap
     implements java.io.Serializable
@@ -32,14 +46,35 @@ public class VmdkBitmap
         = Logger.getLogger(VmdkBitmap.class.getName());
 
     /**
-     * Internal bitset.
+     * Default block size 1MB, which is also the default of vmdkbkp.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    /**
+     * Range of block size which can be configured.
+     */
+    public static final int MIN_BLOCK_SIZE = 64 * 1024;
+    public static final int MAX_BLOCK_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Unit of block size. vmdkbkp requires a multiple of sector size.
+     */
+    private static final int SECTOR_SIZE = 512;
+
+    /**
+     * Buffer size to read and write the byte string.
+     */
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Internal bitmap. This is written by writeObject().
      */
-    private BitSet bs_;
+    private transient LongBitmap bs_;
 
     /**
-     * Size of the bitset.
+     * Size of the bitmap.
      */
-    private int bsSize_;
+    private long bsSize_;
 
     /**
      * disk size: bsSize_ * blockSize_
@@ -47,7 +82,7 @@ public class VmdkBitmap
     private long diskSizeInBytes_;
 
     /**
-     * default 1MB = 1048576
+     * Block size in bytes. default 1MB = 1048576
      */
     private int blockSize_;
 
@@ -70,8 +105,7 @@ public class VmdkBitmap
     public VmdkBitmap(long diskSizeInBytes)
     {
         try {
-            /* default blockSize_ is 1MB */
-            VmdkBitmapInit(diskSizeInBytes, 1024 * 1024);
+            VmdkBitmapInit(diskSizeInBytes, DEFAULT_BLOCK_SIZE);
         } catch (Exception e) {
             logger_.severe("VmdkBitmap Constructor failed.");
             logger_.info(Utility.toString(e));
@@ -98,6 +132,149 @@ public class VmdkBitmap
         }                
     }
 
+    /**
+     * Constructor with a bitmap.
+     */
+    VmdkBitmap(LongBitmap bs, int blockSize)
+    {
+        bs_ = bs;
+        bsSize_ = bs.size();
+        blockSize_ = blockSize;
+        diskSizeInBytes_ = bsSize_ * (long) blockSize_;
+    }
+
+    /**
+     * Map a bitmap file written by writeTo().
+     * The file is read into memory instead
+     * if its size is not padded to 8 bytes by older versions.
+     *
+     * @param path Bitmap file.
+     * @param blockSize block size in bytes.
+     * @param isWritable True to write changes to the file.
+     */
+    public static VmdkBitmap map(String path, int blockSize,
+                                 boolean isWritable)
+        throws Exception
+    {
+        RandomAccessFile raf =
+            new RandomAccessFile(path, (isWritable ? "rw" : "r"));
+        try {
+            StringBuffer sb = new StringBuffer();
+            int c;
+            while ((c = raf.read()) > 0) { sb.append((char) c); }
+            if (c < 0) { throw new Exception("It must not be c < 0."); }
+            long bsSize = Long.parseLong(sb.toString());
+            long pos = raf.getFilePointer();
+
+            long len = (long) LongBitmap.getNumWords(bsSize) * 8L;
+            if (pos + len > raf.length()) {
+                logger_.info(String.format("%s is not padded. read it.", path));
+                VmdkBitmap ret = new VmdkBitmap(bsSize * (long) blockSize,
+                                                blockSize);
+                FileInputStream in = new FileInputStream(path);
+                try {
+                    if (ret.readFrom(in.getChannel()) == false) {
+                        throw new Exception(path + " is too short.");
+                    }
+                } finally {
+                    in.close();
+                }
+                return ret;
+            }
+            LongBitmap bs = LongBitmap.map
+                (raf.getChannel(), pos, bsSize,
+                 (isWritable ? FileChannel.MapMode.READ_WRITE :
+                  FileChannel.MapMode.READ_ONLY));
+            return new VmdkBitmap(bs, blockSize);
+        } finally {
+            /* The mapping is valid after close. */
+            raf.close();
+        }
+    }
+
+    /**
+     * Create a bitmap file with all bits zero and map it.
+     * Call force() to make sure changes are written.
+     *
+     * @param path Bitmap file to create.
+     * @param diskSizeInBytes disk size in bytes.
+     * @param blockSize block size in bytes.
+     */
+    public static VmdkBitmap createMapped(String path, long diskSizeInBytes,
+                                          int blockSize)
+        throws Exception
+    {
+        if (diskSizeInBytes % (long) blockSize != 0) {
+            throw new Exception("diskSizeInBytes % blockSize must be 0.");
+        }
+        long bsSize = diskSizeInBytes / (long) blockSize;
+        RandomAccessFile raf = new RandomAccessFile(path, "rw");
+        try {
+            raf.setLength(0);
+            raf.write(getHeader(bsSize));
+            LongBitmap bs = LongBitmap.map
+                (raf.getChannel(), raf.getFilePointer(), bsSize,
+                 FileChannel.MapMode.READ_WRITE);
+            return new VmdkBitmap(bs, blockSize);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Bits of the bitmap.
+     */
+    LongBitmap getLongBitmap()
+    {
+        return bs_;
+    }
+
+    /**
+     * Write changes to the file if the bitmap is mapped.
+     */
+    public void force()
+    {
+        bs_.force();
+    }
+
+    /**
+     * Check the block size can be configured.
+     *
+     * @return True if it is a power of two between
+     *         MIN_BLOCK_SIZE and MAX_BLOCK_SIZE.
+     */
+    public static boolean isValidBlockSize(long blockSize)
+    {
+        return MIN_BLOCK_SIZE <= blockSize && blockSize <= MAX_BLOCK_SIZE &&
+            (blockSize & (blockSize - 1)) == 0;
+    }
+
+    /**
+     * Get block size which can be used for the disk.
+     * The disk size must be a multiple of the block size,
+     * so the block size is halved until it divides the disk size.
+     *
+     * @param diskSizeInBytes disk size in bytes.
+     * @param blockSize requested block size.
+     * @return block size, or -1 if the disk size is not
+     *         a multiple of sector size.
+     */
+    public static int getBlockSizeOfDisk(long diskSizeInBytes, int blockSize)
+    {
+        int ret = blockSize;
+        while (ret >= SECTOR_SIZE && diskSizeInBytes % (long) ret != 0) {
+            ret /= 2;
+        }
+        if (ret < SECTOR_SIZE || ret % SECTOR_SIZE != 0) { return -1; }
+        if (ret != blockSize) {
+            logger_.warning
+                (String.format
+                 ("disk size %d is not a multiple of %d. use %d instead.",
+                  diskSizeInBytes, blockSize, ret));
+        }
+        return ret;
+    }
+
     /**
      * Initializer
      *
@@ -116,12 +293,28 @@ public class VmdkBitmap
 
         long bsSizeTmp = diskSizeInBytes_ / (long) blockSize_;
 
-        if (bsSizeTmp > (long) Integer.MAX_VALUE) {
+        if (bsSizeTmp > LongBitmap.MAX_SIZE) {
             throw new Exception("Too large disk or too small blocksize.");
         }
 
-        bsSize_ = (int) bsSizeTmp;
-        bs_ = new BitSet(bsSize_);
+        bsSize_ = bsSizeTmp;
+        bs_ = LongBitmap.allocate(bsSize_);
+    }
+
+    /**
+     * Get number of blocks.
+     */
+    public long size()
+    {
+        return bsSize_;
+    }
+
+    /**
+     * Get block size in bytes.
+     */
+    public int getBlockSize()
+    {
+        return blockSize_;
     }
 
     /**
@@ -155,18 +348,19 @@ public class VmdkBitmap
         long oft0L = offset / (long) blockSize_;
         long oft1L = (offset + length + (long) blockSize_ - 1) / (long) blockSize_;
 
-        if (oft0L > (long)Integer.MAX_VALUE ||
-            oft1L > (long)Integer.MAX_VALUE) {
+        if (offset < 0 || oft0L >= bsSize_) {
             /* error */
             return false;
         }
-
-        if (oft0L < oft1L) {
-            bs_.set((int) oft0L, (int) oft1L);
-        } else {
-            bs_.set((int) oft0L);
+        boolean ret = true;
+        if (oft1L > bsSize_) {
+            /* The range after the disk end is dropped. */
+            oft1L = bsSize_;
+            ret = false;
         }
-        return true;
+
+        bs_.setRange(oft0L, oft1L, flag);
+        return ret;
     }
 
     /**
@@ -175,13 +369,9 @@ public class VmdkBitmap
      * @param offset offset in block size.
      * @return true if set, or false.
      */
-    public boolean get(int offsetInBlock)
+    public boolean get(long offsetInBlock)
     {
-        if (offsetInBlock < bsSize_) {
-            return bs_.get(offsetInBlock);
-        } else {
-            return false;
-        }
+        return bs_.get(offsetInBlock);
     }
 
     /**
@@ -190,10 +380,10 @@ public class VmdkBitmap
      * @param offsetInBlock offset in blockSize.
      * @param flag true or false.
      */
-    public void set(int offsetInBlock, boolean flag)
+    public void set(long offsetInBlock, boolean flag)
     {
-        if (offsetInBlock < bsSize_) {
-            bs_.set(offsetInBlock);
+        if (0 <= offsetInBlock && offsetInBlock < bsSize_) {
+            bs_.set(offsetInBlock, flag);
         }
     }
 
@@ -202,10 +392,93 @@ public class VmdkBitmap
      *
      * @param offsetInBlock offset in blockSize.
      */
-    public void set(int offsetInBlock)
+    public void set(long offsetInBlock)
     {
         set(offsetInBlock, true);
     }
+
+    /**
+     * Number of set blocks.
+     */
+    public long cardinality()
+    {
+        return bs_.cardinality();
+    }
+
+    /**
+     * Number of set blocks in [beginBlock, endBlock).
+     */
+    public long cardinality(long beginBlock, long endBlock)
+    {
+        return bs_.cardinality(beginBlock, endBlock);
+    }
+
+    /**
+     * Total size of set blocks in bytes.
+     */
+    public long cardinalityInBytes()
+    {
+        return bs_.cardinality() * (long) blockSize_;
+    }
+
+    /**
+     * Union. Both must have the same size and block size.
+     */
+    public void or(VmdkBitmap rhs)
+    {
+        checkSameShape(rhs);
+        bs_.or(rhs.bs_);
+    }
+
+    /**
+     * Intersection. Both must have the same size and block size.
+     */
+    public void and(VmdkBitmap rhs)
+    {
+        checkSameShape(rhs);
+        bs_.and(rhs.bs_);
+    }
+
+    /**
+     * Difference, this - rhs.
+     * Both must have the same size and block size.
+     */
+    public void andNot(VmdkBitmap rhs)
+    {
+        checkSameShape(rhs);
+        bs_.andNot(rhs.bs_);
+    }
+
+    private void checkSameShape(VmdkBitmap rhs)
+    {
+        if (rhs.blockSize_ != blockSize_ || rhs.bsSize_ != bsSize_) {
+            throw new IllegalArgumentException
+                (String.format("bitmap differs: %d blocks of %d bytes " +
+                               "and %d blocks of %d bytes",
+                               bsSize_, blockSize_,
+                               rhs.bsSize_, rhs.blockSize_));
+        }
+    }
+
+    /**
+     * Index of the first set block at or after the given one.
+     *
+     * @return -1 if not found.
+     */
+    public long nextSetBit(long offsetInBlock)
+    {
+        return bs_.nextSetBit(offsetInBlock);
+    }
+
+    /**
+     * Index of the first clear block at or after the given one.
+     *
+     * @return size() if not found.
+     */
+    public long nextClearBit(long offsetInBlock)
+    {
+        return bs_.nextClearBit(offsetInBlock);
+    }
     
     /**
      * Return byte string for C/C++ compatibility
@@ -223,77 +496,103 @@ public class VmdkBitmap
      */
     public byte[] getAsByteString()
     {
-        int size = (bsSize_ + 7) / 8;
+        long sizeL = (bsSize_ + 7) / 8;
+        if (sizeL > (long) Integer.MAX_VALUE) {
+            throw new IllegalStateException("Too large bitmap for a byte[].");
+        }
+        int size = (int) sizeL;
 
         byte[] ret = new byte[size];
-        for (int i = 0; i < size; i ++) {
-            ret[i] = 0;
-            for (int j = 0; j < 8; j ++) {
-                if (bs_.get(i * 8 + j)) {
-                    ret[i] |= (1 << (7 - j));
-                }
+        /* Full words in big endian, then bytes of the last word. */
+        int nFull = bs_.getWords(0, ByteBuffer.wrap(ret).asLongBuffer());
+        if (size % 8 != 0) {
+            long word = bs_.getWord(nFull);
+            for (int j = 0; j < size % 8; j ++) {
+                ret[nFull * 8 + j] = (byte) (word >>> (56 - 8 * j));
             }
         }
         return ret;
     }
 
     /**
-     * Serialize integer value and put to stream.
+     * Header of the serialized bitmap: the size as a string and a null byte.
      *
-     * @param out output stream.
-     * @param val input integer.
-     * @return true in success.
+     * @param size number of bits.
      */
-    private void serializeInteger(FilterOutputStream out, Integer val)
-        throws Exception
+    private static byte[] getHeader(long size)
     {
-        byte[] a = val.toString().getBytes();
-        out.write(a);
-        out.write(0);
+        byte[] a = Long.toString(size).getBytes();
+        byte[] ret = new byte[a.length + 1];
+        System.arraycopy(a, 0, ret, 0, a.length);
+        ret[a.length] = 0;
+        return ret;
     }
 
     /**
-     * Deserialize integer value from input stream.
-     *
-     * @param in input stream.
-     * @return output integer.
+     * Buffer to convert words to the byte string and vice versa.
      */
-    private Integer deserializeInteger(FilterInputStream in)
-        throws Exception
+    private static ByteBuffer newIoBuffer()
     {
-        StringBuffer sb = new StringBuffer();
-        int i = -1;
-        while ((i = in.read()) > 0) {
-            sb.append((char) i);
-        }
-        if (i < 0) {
-            throw new Exception("It must not be i < 0.");
-        }
+        ByteBuffer buf = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+        buf.order(ByteOrder.BIG_ENDIAN);
+        return buf;
+    }
 
-        return Integer.valueOf(sb.toString());
-    }        
-    
     /**
      * Write bitmap data to output stream.
+     * The byte string is padded with zero to a multiple of 8 bytes
+     * so that the file can be mapped by map().
+     * vmdkbkp ignores bytes after the bitmap.
      */
     public void writeTo(FilterOutputStream out)
         throws IOException, Exception
+    {
+        writeTo(Channels.newChannel(out));
+        out.flush();
+    }
+
+    /**
+     * Write bitmap data to a file.
+     */
+    public void writeTo(String path)
+        throws IOException, Exception
+    {
+        FileOutputStream out = new FileOutputStream(path);
+        try {
+            writeTo(out.getChannel());
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Write bitmap data to a channel.
+     * Words are converted to big endian in bulk
+     * through a buffer of IO_BUFFER_SIZE bytes.
+     */
+    public void writeTo(WritableByteChannel ch)
+        throws IOException, Exception
     {
         /* Write header */
-        serializeInteger(out, bsSize_);
-
-        int size = (bsSize_ + 7) / 8;
-        byte tmp;
-        for (int i = 0; i < size; i ++) {
-            tmp = 0;
-            for (int j = 0; j < 8; j ++) {
-                if (bs_.get(i * 8 + j)) {
-                    tmp |= (1 << (7 - j));
-                }
-            }
-            out.write(tmp);
+        writeFully(ch, ByteBuffer.wrap(getHeader(bsSize_)));
+
+        ByteBuffer buf = newIoBuffer();
+        LongBuffer lb = buf.asLongBuffer();
+        int i = 0;
+        while (i < bs_.getNumWords()) {
+            lb.clear();
+            int n = bs_.getWords(i, lb);
+            buf.clear();
+            buf.limit(n * 8);
+            writeFully(ch, buf);
+            i += n;
         }
-        out.flush();
+    }
+
+    private static void writeFully(WritableByteChannel ch, ByteBuffer buf)
+        throws IOException
+    {
+        while (buf.hasRemaining()) { ch.write(buf); }
     }
 
     /**
@@ -304,38 +603,74 @@ public class VmdkBitmap
     public boolean readFrom(FilterInputStream in)
         throws IOException, Exception
     {
+        return readFrom(Channels.newChannel(in));
+    }
+
+    /**
+     * Read bitmap data from a channel.
+     * The stream may be padded or not after the byte string.
+     *
+     * @return False if the byte string is too short.
+     */
+    public boolean readFrom(ReadableByteChannel ch)
+        throws IOException, Exception
+    {
+        ByteBuffer buf = newIoBuffer();
+
         /* Read header */
-        Integer bsSizeI = deserializeInteger(in);
+        StringBuffer sb = new StringBuffer();
+        boolean isHeaderRead = false;
+        while (! isHeaderRead) {
+            if (ch.read(buf) < 0) {
+                throw new Exception("header is broken.");
+            }
+            buf.flip();
+            while (buf.hasRemaining()) {
+                byte b = buf.get();
+                if (b == 0) { isHeaderRead = true; break; }
+                sb.append((char) b);
+            }
+            buf.compact();
+        }
+        long bsSize = Long.parseLong(sb.toString());
 
         /* Reset size members. */
-        bsSize_ = bsSizeI.intValue();
-        diskSizeInBytes_ = (long)bsSize_ * (long)blockSize_;
+        bsSize_ = bsSize;
+        diskSizeInBytes_ = bsSize_ * (long) blockSize_;
 
-        /* Reset BitSet if needed. */
-        if (bs_ == null || bsSize_ != bs_.length()) {
-            bs_ = new BitSet(bsSize_);
+        /* Reset the bitmap if needed. */
+        if (bs_ == null || bsSize_ != bs_.size()) {
+            bs_ = LongBitmap.allocate(bsSize_);
         }
 
         logger_.info(String.format
                      ("%d:%d:%d\n",
                       blockSize_, bsSize_, diskSizeInBytes_));
 
-        /* loop */
-        int size = (bsSize_ + 7) / 8;
-        byte tmp;
-        for (int i = 0; i < size; i ++) {
-            int r = in.read();
-            if (r == -1) {
-                return false;
+        /* Words in big endian. The last one may be short. */
+        long numBytes = (bsSize_ + 7) / 8;
+        int numWords = bs_.getNumWords();
+        int i = 0;
+        while (i < numWords) {
+            long rest = numBytes - (long) i * 8L;
+            if (buf.position() < 8 && buf.position() < rest) {
+                if (ch.read(buf) < 0) { return false; }
+                continue;
             }
-            tmp = (byte) r;
-            for (int j = 0; j < 8; j ++) {
-                if ((tmp & (1 << (7 - j))) > 0) {
-                    bs_.set(i * 8 + j, true);
-                } else {
-                    bs_.set(i * 8 + j, false);
+            buf.flip();
+            if (rest < 8) {
+                long word = 0;
+                for (int j = 0; j < rest; j ++) {
+                    word |= (long) (buf.get() & 0xff) << (56 - 8 * j);
                 }
+                bs_.setWord(i, word);
+                i ++;
+            } else {
+                int n = bs_.putWords(i, buf.asLongBuffer());
+                buf.position(buf.position() + n * 8);
+                i += n;
             }
+            buf.compact();
         }
         return true;
     }
@@ -349,8 +684,8 @@ public class VmdkBitmap
      */
     public String toString()
     {
-        StringBuffer sb = new StringBuffer(bsSize_);
-        for (int i = 0; i < bsSize_; i ++) {
+        StringBuffer sb = new StringBuffer((int) Math.min(bsSize_, 1L << 20));
+        for (long i = 0; i < bsSize_; i ++) {
             sb.append(bs_.get(i) ? '1' : '0');
         }
         return sb.toString();
@@ -373,5 +708,27 @@ public class VmdkBitmap
     {
         return bs_.isEmpty();
     }
+
+    /**
+     * Serialize the bitmap words after other fields.
+     */
+    private void writeObject(ObjectOutputStream out)
+        throws IOException
+    {
+        out.defaultWriteObject();
+        for (int i = 0; i < bs_.getNumWords(); i ++) {
+            out.writeLong(bs_.getWord(i));
+        }
+    }
+
+    private void readObject(ObjectInputStream in)
+        throws IOException, ClassNotFoundException
+    {
+        in.defaultReadObject();
+        bs_ = LongBitmap.allocate(bsSize_);
+        for (int i = 0; i < bs_.getNumWords(); i ++) {
+            bs_.setWord(i, in.readLong());
+        }
+    }
     
 }
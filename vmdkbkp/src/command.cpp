@@ -29,6 +29,17 @@ void signalHandler(int)
     isSignal_ = true;
 }
 
+/**
+ * Print a progress line for vmbkp.
+ * Format: "PROGRESS <blocks done> <total blocks> <bytes read> <bytes written>".
+ */
+static void printProgress(uint64 done, uint64 total,
+                          uint64 readBytes, uint64 writtenBytes)
+{
+    std::cout << "PROGRESS " << done << " " << total << " "
+              << readBytes << " " << writtenBytes << std::endl;
+}
+
 /******************************************************************************
  * Command class methods.
  ******************************************************************************/
@@ -70,6 +81,7 @@ void Command::showHelp() const
         "  restore: --digestin\n"
         "           Just specify input dump/rdiff files in line.\n"
         "           digestin will be required with --omitzeroblock only.\n"
+        "           bmpin is optional to write changed blocks only.\n"
         "  print:   --dumpin or --digestin\n"
         "  check:   --digestin\n"
         "           Just specify input dump/rdiff files in line.\n"
@@ -125,6 +137,9 @@ void Command::showHelp() const
         "  --omitzeroblock:\n"
         "      Do not write all-zero blocks for thin vmdk.\n"
         "      You should use this option only for restoring to empty vmdk.\n"
+        "  --bmpin <filename>:\n"
+        "      Write only blocks set in the bitmap including all-zero ones\n"
+        "      to roll back an existing vmdk. NBD transfer is used.\n"
         "\n"
         "Other options:\n"
         "  --help: \n"
@@ -422,6 +437,9 @@ void Command::doDumpNoFork()
     double bulkTimeBegin = timeBegin;
     double bulkTimeEnd;
 
+    /* Bytes read from the vmdk and bytes of changed blocks. */
+    uint64 readBytes = 0, writtenBytes = 0;
+
     for (uint64 oft = 0; oft < maxOft; oft ++) {
 
         if (isSignal_) {
@@ -477,6 +495,8 @@ void Command::doDumpNoFork()
         bool isChanged = arcMgr.writeToStreams
             (prevDumpB, prevDigestB,
              currDumpB, currDigestB);
+        if (maybeChanged) { readBytes += cfg_.blocksize; }
+        if (isChanged) { writtenBytes += cfg_.blocksize; }
         
         /* Show progress. */
         const size_t INTERVAL = 64;
@@ -495,7 +515,7 @@ void Command::doDumpNoFork()
             std::cout << " "
                       << INTERVAL / (bulkTimeEnd - bulkTimeBegin)
                       << "blks/s\n";
-            std::cout.flush();
+            printProgress(oft + 1, maxOft, readBytes, writtenBytes);
             bulkTimeBegin = bulkTimeEnd;
         }
 
@@ -504,6 +524,7 @@ void Command::doDumpNoFork()
     /* Elapsed time */
     double timeEnd = getTime();
     ::printf("\nElapsed time to dump: %f sec\n", timeEnd - timeBegin);
+    printProgress(maxOft, maxOft, readBytes, writtenBytes);
 
     WRITE_LOG1("********** doDump() end **********\n");
 }
@@ -566,6 +587,9 @@ void Command::doDumpFork()
     double bulkTimeBegin = timeBegin;
     double bulkTimeEnd;
 
+    /* Bytes read from the vmdk and bytes of changed blocks. */
+    uint64 readBytes = 0, writtenBytes = 0;
+
     for (uint64 oft = 0; oft < maxOft; oft ++) {
 
         if (isSignal_) {
@@ -635,6 +659,8 @@ void Command::doDumpFork()
         bool isChanged = arcMgr.writeToStreams
             (prevDumpB, prevDigestB,
              currDumpB, currDigestB);
+        if (maybeChanged) { readBytes += cfg_.blocksize; }
+        if (isChanged) { writtenBytes += cfg_.blocksize; }
         
         /* Show progress. */
         const size_t INTERVAL = 64;
@@ -652,7 +678,7 @@ void Command::doDumpFork()
             std::cout << " "
                       << INTERVAL / (bulkTimeEnd - bulkTimeBegin)
                       << "blks/s\n";
-            std::cout.flush();
+            printProgress(oft + 1, maxOft, readBytes, writtenBytes);
             bulkTimeBegin = bulkTimeEnd;
         }
 
@@ -661,6 +687,7 @@ void Command::doDumpFork()
     /* Elapsed time */
     double timeEnd = getTime();
     ::printf("\nElapsed time to dump: %f sec\n", timeEnd - timeBegin);
+    printProgress(maxOft, maxOft, readBytes, writtenBytes);
 
     WRITE_LOG1("********** doDump() end **********\n");
 }
@@ -875,6 +902,9 @@ void Command::doRestore()
     bool isSkipZeroBlock = ! cfg_.isWriteZeroBlock;
     bool isUseSanForRestore = isFullRestore && isSkipZeroBlock;
     
+    /* Blocks in the bitmap are overwritten in the existing vmdk. */
+    if (! cfg_.bmpInFileName.empty()) { isUseSanForRestore = false; }
+    
     if (cfg_.isUseSan && isUseSanForRestore) {
         /* Currently an efficient block allocate method for
            empty thin vmdk is not available.
@@ -925,7 +955,7 @@ void Command::doRestoreNBD(MultiArchiveManager& mArcMgr)
 
     /* Restore each block. */
     double timeBegin = getTime();
-    writeBlocksToVmdk(vddkCtrl, mArcMgr, blockSize);
+    writeBlocksToVmdk(vddkCtrl, mArcMgr, blockSize, dumpH.getDiskSize());
     double timeEnd = getTime();
         
     /* Shrink if local */
@@ -943,6 +973,7 @@ void Command::doRestoreSAN(MultiArchiveManager& mArcMgr)
     assert(cfg_.cmd == CMD_RESTORE);
 
     size_t blockSize;
+    uint64 nBlocks;
     {    
         /* Initialize vddk manager via NBD. */
         mArcMgr.pause();
@@ -954,6 +985,7 @@ void Command::doRestoreSAN(MultiArchiveManager& mArcMgr)
         VmdkDumpHeader dumpH;
         mArcMgr.getDumpHeader(dumpH);
         blockSize = dumpH.getBlockSize();
+        nBlocks = dumpH.getDiskSize();
         
         /* Create vmdk file if required. */
         if (cfg_.isCreate) {
@@ -997,7 +1029,7 @@ void Command::doRestoreSAN(MultiArchiveManager& mArcMgr)
 
     /* Restore each block. */
     double timeBegin = getTime();
-    writeBlocksToVmdk(vddkCtrl, mArcMgr, blockSize);
+    writeBlocksToVmdk(vddkCtrl, mArcMgr, blockSize, nBlocks);
     double timeEnd = getTime();
 
     /* Show elapsed time */
@@ -1057,7 +1089,8 @@ void Command::allocateNonZeroBlock(VddkController& vddkCtrl,
 
 void Command::writeBlocksToVmdk(VddkController& vddkCtrl,
                                 MultiArchiveManager& mArcMgr,
-                                size_t blockSize)
+                                size_t blockSize,
+                                uint64 nBlocks)
 {
     WRITE_LOG1("writeBlocksToVmdk() called.\n");
     assert(cfg_.cmd == CMD_RESTORE);
@@ -1065,14 +1098,29 @@ void Command::writeBlocksToVmdk(VddkController& vddkCtrl,
     /* Prepare a zero block. */
     ByteArray zeroBlock(blockSize, 0);
 
+    /* Write only blocks in the bitmap if specified. */
+    const bool isBmp = ! cfg_.bmpInFileName.empty();
+    Bitmap bmp;
+    if (isBmp) {
+        std::ifstream bmpIn(cfg_.bmpInFileName.c_str());
+        MY_CHECK_AND_THROW(bmpIn.is_open(),
+                           "writeBlocksToVmdk: could not open bmpin.");
+        bmpIn >> bmp;
+        WRITE_LOG1("bmpin has %zu blocks.\n", bmp.size());
+    }
+
     /* Restore each block. */
     VmdkDumpBlock dumpB(blockSize);
 
     typedef enum {NONE, ZERO, NONZERO} Wflag;
     Wflag flag = NONE;
+
+    /* Bytes read from archives and written to vmdk. */
+    uint64 readBytes = 0, writtenBytes = 0;
+    uint64 offset;
     
     /* Write each block to vmdk. */
-    for (uint64 offset = 0; ! mArcMgr.isEOF(); offset ++) {
+    for (offset = 0; ! mArcMgr.isEOF(); offset ++) {
 
         if (isSignal_) {
             std::string msg("Signal received.\n");
@@ -1081,12 +1129,15 @@ void Command::writeBlocksToVmdk(VddkController& vddkCtrl,
         
         /* Read block from dump file. */
         bool isExist = mArcMgr.readBlock(dumpB);
+        if (isExist) { readBytes += blockSize; }
         
-        if (isExist) {
+        if (isExist && isBmp && ! bmp.get(offset)) {
+            flag = NONE;
+        } else if (isExist) {
             assert(offset == dumpB.getOffset());
 
             /* Write the block to vmdk file */
-            if (! dumpB.isAllZero() || cfg_.isWriteZeroBlock) {
+            if (! dumpB.isAllZero() || cfg_.isWriteZeroBlock || isBmp) {
                 const uint8* buf;
                 if (dumpB.isAllZero()) {
                     buf = reinterpret_cast<const uint8 *>(&zeroBlock[0]);
@@ -1097,6 +1148,7 @@ void Command::writeBlocksToVmdk(VddkController& vddkCtrl,
                 }
                 /* zero block is not recraimed by VMware automatically  */
                 vddkCtrl.writeBlock(offset, buf);
+                writtenBytes += blockSize;
                 
             } else {
                 flag = NONE;
@@ -1121,8 +1173,11 @@ void Command::writeBlocksToVmdk(VddkController& vddkCtrl,
         }
         if (offset % INTERVAL == INTERVAL - 1) {
             std::cout << std::endl;
+            printProgress(offset + 1, nBlocks, readBytes, writtenBytes);
         }
     }
+    std::cout << std::endl;
+    printProgress(offset, nBlocks, readBytes, writtenBytes);
 
     WRITE_LOG1("writeBlocksToVmdk() end.\n");
 }
@@ -1367,26 +1422,38 @@ void Command::doLock()
        1. self:   LOCKED
        2. caller: UNLOCK
        3. self:   UNLOCKED
+       4. caller: LOCK then go to 1, or QUIT/EOF to exit.
+
+       A caller can reuse this process for many critical sections.
      */
 
-#if 0 /* Currently do not lock anything */
-    bool isExclusive = ! cfg_.useSharedLock;
-    ScopedResourceLock lk(cfg_.lockResourceName, isExclusive);
-#endif
-    
     const size_t sz = 1024;
     char buf[sz];
 
-    /* 1. */
-    std::cout << "LOCKED" << std::endl;
+    while (true) {
+        {
+#if 0 /* Currently do not lock anything */
+            bool isExclusive = ! cfg_.useSharedLock;
+            ScopedResourceLock lk(cfg_.lockResourceName, isExclusive);
+#endif
+            /* 1. */
+            std::cout << "LOCKED" << std::endl;
     
-    /* 2. */
-    std::cin.getline(buf, sz);
-    std::string unlock(buf);
-    MY_CHECK_AND_THROW(unlock == "UNLOCK", "Caller did not say UNLOCK.");
+            /* 2. */
+            std::cin.getline(buf, sz);
+            std::string unlock(buf);
+            MY_CHECK_AND_THROW(unlock == "UNLOCK", "Caller did not say UNLOCK.");
 
-    /* 3. */
-    std::cout << "UNLOCKED" << std::endl;
+            /* 3. */
+            std::cout << "UNLOCKED" << std::endl;
+        }
+
+        /* 4. */
+        if (! std::cin.getline(buf, sz)) { break; }
+        std::string next(buf);
+        if (next == "QUIT") { break; }
+        MY_CHECK_AND_THROW(next == "LOCK", "Caller did not say LOCK or QUIT.");
+    }
 }
 
 /* end of file */
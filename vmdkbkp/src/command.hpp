@@ -83,6 +83,8 @@ public:
     void doDumpTest();
     /**
      * Restoring dump data to remote/local vmdk file.
+     * With --bmpin, only blocks in the bitmap are written
+     * to the existing vmdk, including all-zero blocks.
      *
      * @exception Throws VixException, ExceptionStack.
      */
@@ -163,10 +165,12 @@ private:
      * @param vddkCtrl vddk controller.
      * @param mArcMgr multi archive manager.
      * @param blockSize block size.
+     * @param nBlocks number of blocks of the disk to show progress.
      */
     void writeBlocksToVmdk(VddkController& vddkCtrl,
                            MultiArchiveManager& mArcMgr,
-                           size_t blockSize);
+                           size_t blockSize,
+                           uint64 nBlocks);
     /**
      * Test methods.
      */